@@ -300,6 +300,8 @@ public class BasicStream implements Stream, ModelProviderObserver, OnLayoutChang
     if (streamDriver != null) {
       streamDriver.onDestroy();
     }
+    // Drops the pooled adapters and cancels the pending template warm-ups of this stream.
+    pietManager.purgeRecyclerPools();
 
     isDestroyed = true;
   }
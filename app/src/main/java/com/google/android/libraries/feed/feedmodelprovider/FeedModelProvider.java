@@ -46,6 +46,7 @@ import com.google.android.libraries.feed.common.logging.Dumper;
 import com.google.android.libraries.feed.common.logging.Logger;
 import com.google.android.libraries.feed.common.time.TimingUtils;
 import com.google.android.libraries.feed.common.time.TimingUtils.ElapsedTimeTracker;
+import com.google.android.libraries.feed.feedmodelprovider.internal.ChildList;
 import com.google.android.libraries.feed.feedmodelprovider.internal.CursorProvider;
 import com.google.android.libraries.feed.feedmodelprovider.internal.FeatureChangeImpl;
 import com.google.android.libraries.feed.feedmodelprovider.internal.ModelChildBinder;
@@ -95,7 +96,7 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
   // The tree is model as a parent with an list of children.  A container is created for every
   // ModelChild with a child.
   @GuardedBy("lock")
-  private final Map<String, ArrayList<UpdatableModelChild>> containers = new HashMap<>();
+  private final Map<String, ChildList> containers = new HashMap<>();
 
   @GuardedBy("lock")
   private final Map<String, UpdatableModelChild> contents = new HashMap<>();
@@ -161,14 +162,14 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
     CursorProvider cursorProvider =
         parentId -> {
           synchronized (lock) {
-            ArrayList<UpdatableModelChild> children = containers.get(parentId);
+            ChildList children = containers.get(parentId);
             if (children == null) {
               Logger.i(TAG, "No children found for Cursor");
               ModelCursorImpl cursor = new ModelCursorImpl(parentId, EMPTY_LIST);
               cursors.add(new WeakReference<>(cursor));
               return cursor;
             }
-            ModelCursorImpl cursor = new ModelCursorImpl(parentId, new ArrayList<>(children));
+            ModelCursorImpl cursor = new ModelCursorImpl(parentId, children.snapshot());
             cursors.add(new WeakReference<>(cursor));
             return cursor;
           }
@@ -280,8 +281,10 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
       if (root == null) {
         return Collections.emptyList();
       }
-      List<UpdatableModelChild> rootChildren = containers.get(root.getContentId());
-      return (rootChildren != null) ? new ArrayList<>(rootChildren) : Collections.emptyList();
+      ChildList rootChildren = containers.get(root.getContentId());
+      return (rootChildren != null)
+          ? Collections.unmodifiableList(rootChildren.snapshot())
+          : Collections.emptyList();
     }
   }
 
@@ -457,7 +460,7 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
       int singleChild = 0;
       Dumper childDumper = dumper.getChildDumper();
       childDumper.title("Containers With Multiple Children");
-      for (Entry<String, ArrayList<UpdatableModelChild>> entry : containers.entrySet()) {
+      for (Entry<String, ChildList> entry : containers.entrySet()) {
         if (entry.getValue().size() > 1) {
           childDumper.forKey("Container").value(entry.getKey());
           childDumper.forKey("childrenCount").value(entry.getValue().size()).compactPrevious();
@@ -556,7 +559,7 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
           int tokenPageSize = initialPageSize;
           synchronized (lock) {
             if (root != null) {
-              ArrayList<UpdatableModelChild> rootChildren = containers.get(root.getContentId());
+              ChildList rootChildren = containers.get(root.getContentId());
               if (rootChildren != null) {
                 tokenStart = rootChildren.size() - 1;
                 tokenPageSize = pageSize;
@@ -687,7 +690,7 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
 
             // process the structure changes
             String currentParentKey = null;
-            ArrayList<UpdatableModelChild> childrenList = null;
+            ChildList childrenList = null;
             for (StreamStructure structure : structureChanges) {
               if (structure.getOperation() == Operation.UPDATE_OR_APPEND) {
                 UpdatableModelChild modelChild = appendedChildren.get(structure.getContentId());
@@ -762,7 +765,7 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
                 child.getContentId());
             continue;
           }
-          ArrayList<UpdatableModelChild> childrenList = getChildList(parent);
+          ChildList childrenList = getChildList(parent);
           TokenTracking tokenTracking =
               new TokenTracking(child.getUpdatableModelToken(), parent, childrenList);
           tokens.put(child.getModelToken().getStreamToken().getNextPageToken(), tokenTracking);
@@ -833,7 +836,7 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
       traverse(pagingChild, startingPosition, endPosition);
       if (insertToken) {
         synchronized (lock) {
-          ArrayList<UpdatableModelChild> rootChildren = containers.get(pagingChild.getContentId());
+          ChildList rootChildren = containers.get(pagingChild.getContentId());
           if (rootChildren != null) {
             tokenChild = getSyntheticToken();
             rootChildren.add(endPosition, tokenChild);
@@ -871,19 +874,26 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
         currentRoot = root;
       }
       if (tokenChild != null && currentRoot != null) {
-        List<UpdatableModelChild> rootChildren;
+        ChildList rootChildren;
         synchronized (lock) {
           rootChildren = containers.get(currentRoot.getContentId());
         }
         if (rootChildren != null) {
-          int pos = rootChildren.indexOf(tokenChild);
+          int pos;
+          synchronized (lock) {
+            pos = rootChildren.indexOf(tokenChild);
+            if (pos > 0) {
+              rootChildren.remove(pos);
+            }
+          }
           if (pos > 0) {
-            rootChildren.remove(pos);
             SyntheticTokenTracker tokenTracker =
                 new SyntheticTokenTracker(currentRoot, pos, pageSize);
             List<UpdatableModelChild> childrenToBind = tokenTracker.insertToken();
-            List<UpdatableModelChild> cursorSublist =
-                rootChildren.subList(pos, rootChildren.size());
+            ChildList cursorSublist;
+            synchronized (lock) {
+              cursorSublist = rootChildren.snapshot(pos);
+            }
 
             // Bind the unbound children
             bindChildrenAndTokens(
@@ -1085,9 +1095,11 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
         Logger.e(TAG, "Token was not found, mutation is being ignored");
         return;
       }
-      ModelCursorImpl cursor =
-          new ModelCursorImpl(
-              token.parentContentId, token.location.subList(newCursorStart, token.location.size()));
+      ModelCursorImpl cursor;
+      synchronized (lock) {
+        cursor =
+            new ModelCursorImpl(token.parentContentId, token.location.snapshot(newCursorStart));
+      }
       TokenCompleted tokenCompleted = new TokenCompleted(cursor);
       mainThreadRunner.execute(
           TAG + " onTokenChange",
@@ -1244,10 +1256,10 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
   }
 
   // Lazy creation of containers
-  private ArrayList<UpdatableModelChild> getChildList(String parentKey) {
+  private ChildList getChildList(String parentKey) {
     synchronized (lock) {
       if (!containers.containsKey(parentKey)) {
-        containers.put(parentKey, new ArrayList<>());
+        containers.put(parentKey, new ChildList());
       }
       return containers.get(parentKey);
     }
@@ -1272,12 +1284,12 @@ public final class FeedModelProvider extends FeedObservable<ModelProviderObserve
   static final class TokenTracking {
     final UpdatableModelToken tokenChild;
     final String parentContentId;
-    final ArrayList<UpdatableModelChild> location;
+    final ChildList location;
 
     TokenTracking(
         UpdatableModelToken tokenChild,
         String parentContentId,
-        ArrayList<UpdatableModelChild> location) {
+        ChildList location) {
       this.tokenChild = tokenChild;
       this.parentContentId = parentContentId;
       this.location = location;
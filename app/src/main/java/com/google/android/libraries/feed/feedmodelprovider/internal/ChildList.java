@@ -0,0 +1,246 @@
+// Copyright 2019 The Feed Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.android.libraries.feed.feedmodelprovider.internal;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The children of a container in the model, stored as a list of chunks which are shared between
+ * a list and its snapshots.
+ *
+ * <p>{@link #snapshot()} is constant time: the snapshot shares all the chunks of the list, and
+ * whichever of the two is modified first copies the chunk it modifies. This allows the {@link
+ * ModelCursorImpl} to own a private copy of the children without copying the whole list.
+ *
+ * <p>This class isn't thread safe. A list and its snapshots can however be used from different
+ * threads, as shared chunks are never modified.
+ */
+public final class ChildList extends AbstractList<UpdatableModelChild> {
+  /** Maximum number of children in a chunk. */
+  private static final int CHUNK_CAPACITY = 32;
+
+  /** A run of consecutive children. Only modified by the list whose owner token it carries. */
+  private static final class Chunk {
+    private final Object owner;
+    private final UpdatableModelChild[] children = new UpdatableModelChild[CHUNK_CAPACITY];
+    private int size;
+
+    private Chunk(Object owner) {
+      this.owner = owner;
+    }
+
+    private Chunk copy(Object newOwner, int from, int to) {
+      Chunk chunk = new Chunk(newOwner);
+      System.arraycopy(children, from, chunk.children, 0, to - from);
+      chunk.size = to - from;
+      return chunk;
+    }
+  }
+
+  /** Identifies the chunks this list is allowed to modify in place. */
+  private Object owner = new Object();
+
+  private List<Chunk> chunks;
+
+  /** Whether {@link #chunks} is shared with a snapshot and must be copied before a change. */
+  private boolean chunksShared;
+
+  private int size;
+
+  // Position of the last chunk located, which makes iterating by index constant time.
+  private int lastChunkIndex;
+  private int lastChunkStart;
+
+  public ChildList() {
+    this.chunks = new ArrayList<>();
+  }
+
+  private ChildList(List<Chunk> chunks, int size) {
+    this.chunks = chunks;
+    this.size = size;
+  }
+
+  /** Returns a copy of this list. The copy and this list can be modified independently. */
+  public ChildList snapshot() {
+    ChildList snapshot = new ChildList(chunks, size);
+    snapshot.chunksShared = true;
+    chunksShared = true;
+    // Neither list may modify the existing chunks in place anymore.
+    owner = new Object();
+    return snapshot;
+  }
+
+  /** Returns a copy of the children from {@code fromIndex} to the end of this list. */
+  public ChildList snapshot(int fromIndex) {
+    if (fromIndex < 0 || fromIndex > size) {
+      throw new IndexOutOfBoundsException("Index: " + fromIndex + ", Size: " + size);
+    }
+    if (fromIndex == size) {
+      return new ChildList();
+    }
+    int chunkIndex = locate(fromIndex);
+    Chunk first = chunks.get(chunkIndex);
+    ChildList snapshot =
+        new ChildList(new ArrayList<>(chunks.size() - chunkIndex), size - fromIndex);
+    snapshot.chunks.add(first.copy(snapshot.owner, fromIndex - lastChunkStart, first.size));
+    snapshot.chunks.addAll(chunks.subList(chunkIndex + 1, chunks.size()));
+    owner = new Object();
+    return snapshot;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public UpdatableModelChild get(int index) {
+    checkIndex(index, size);
+    int chunkIndex = locate(index);
+    return chunks.get(chunkIndex).children[index - lastChunkStart];
+  }
+
+  @Override
+  public UpdatableModelChild set(int index, UpdatableModelChild child) {
+    checkIndex(index, size);
+    Chunk chunk = writableChunk(locate(index));
+    int offset = index - lastChunkStart;
+    UpdatableModelChild previous = chunk.children[offset];
+    chunk.children[offset] = child;
+    return previous;
+  }
+
+  @Override
+  public boolean add(UpdatableModelChild child) {
+    add(size, child);
+    return true;
+  }
+
+  @Override
+  public void add(int index, UpdatableModelChild child) {
+    checkIndex(index, size + 1);
+    int chunkIndex;
+    if (index == size) {
+      // Appending is the common case, fill the last chunk.
+      chunkIndex = chunks.size() - 1;
+      if (chunkIndex < 0 || chunks.get(chunkIndex).size == CHUNK_CAPACITY) {
+        writableChunks().add(new Chunk(owner));
+        chunkIndex++;
+      }
+      lastChunkIndex = chunkIndex;
+      lastChunkStart = size - chunks.get(chunkIndex).size;
+    } else {
+      chunkIndex = locate(index);
+    }
+
+    Chunk chunk = writableChunk(chunkIndex);
+    int offset = index - lastChunkStart;
+    if (chunk.size == CHUNK_CAPACITY) {
+      // Split the full chunk in two halves and insert into the one containing the index.
+      int half = CHUNK_CAPACITY / 2;
+      Chunk tail = chunk.copy(owner, half, CHUNK_CAPACITY);
+      for (int i = half; i < CHUNK_CAPACITY; i++) {
+        chunk.children[i] = null;
+      }
+      chunk.size = half;
+      writableChunks().add(chunkIndex + 1, tail);
+      if (offset > half) {
+        chunk = tail;
+        offset -= half;
+        lastChunkIndex = chunkIndex + 1;
+        lastChunkStart += half;
+      }
+    }
+    System.arraycopy(chunk.children, offset, chunk.children, offset + 1, chunk.size - offset);
+    chunk.children[offset] = child;
+    chunk.size++;
+    size++;
+    modCount++;
+  }
+
+  @Override
+  public UpdatableModelChild remove(int index) {
+    checkIndex(index, size);
+    int chunkIndex = locate(index);
+    Chunk chunk = writableChunk(chunkIndex);
+    int offset = index - lastChunkStart;
+    UpdatableModelChild removed = chunk.children[offset];
+    System.arraycopy(chunk.children, offset + 1, chunk.children, offset, chunk.size - offset - 1);
+    chunk.children[--chunk.size] = null;
+    if (chunk.size == 0) {
+      writableChunks().remove(chunkIndex);
+      lastChunkIndex = 0;
+      lastChunkStart = 0;
+    }
+    size--;
+    modCount++;
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    chunks = new ArrayList<>();
+    chunksShared = false;
+    size = 0;
+    lastChunkIndex = 0;
+    lastChunkStart = 0;
+    modCount++;
+  }
+
+  /**
+   * Returns the index of the chunk containing {@code index}, and leaves the index of its first
+   * child in {@link #lastChunkStart}.
+   */
+  private int locate(int index) {
+    int chunkIndex = lastChunkIndex;
+    int chunkStart = lastChunkStart;
+    if (chunkIndex >= chunks.size() || index < chunkStart) {
+      chunkIndex = 0;
+      chunkStart = 0;
+    }
+    while (index >= chunkStart + chunks.get(chunkIndex).size) {
+      chunkStart += chunks.get(chunkIndex).size;
+      chunkIndex++;
+    }
+    lastChunkIndex = chunkIndex;
+    lastChunkStart = chunkStart;
+    return chunkIndex;
+  }
+
+  private List<Chunk> writableChunks() {
+    if (chunksShared) {
+      chunks = new ArrayList<>(chunks);
+      chunksShared = false;
+    }
+    return chunks;
+  }
+
+  private Chunk writableChunk(int chunkIndex) {
+    Chunk chunk = chunks.get(chunkIndex);
+    if (chunk.owner != owner) {
+      chunk = chunk.copy(owner, 0, chunk.size);
+      writableChunks().set(chunkIndex, chunk);
+    }
+    return chunk;
+  }
+
+  private static void checkIndex(int index, int bound) {
+    if (index < 0 || index >= bound) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (bound - 1));
+    }
+  }
+}
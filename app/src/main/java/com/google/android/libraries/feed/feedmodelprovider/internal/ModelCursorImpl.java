@@ -53,8 +53,9 @@ public final class ModelCursorImpl implements ModelCursor, Dumpable {
 
   /**
    * Create a new ModelCursorImpl. The {@code childList} needs to be a copy of the original list to
-   * prevent {@link java.util.ConcurrentModificationException} for changes to the Model. The cursor
-   * is informed of changes through the {@link #updateIterator(FeatureChange featureChang)}.
+   * prevent {@link java.util.ConcurrentModificationException} for changes to the Model, typically a
+   * {@link ChildList#snapshot()} which doesn't copy the children. The cursor is informed of changes
+   * through the {@link #updateIterator(FeatureChange featureChang)}.
    */
   public ModelCursorImpl(String parentContentId, List<UpdatableModelChild> childList) {
     this.parentContentId = parentContentId;
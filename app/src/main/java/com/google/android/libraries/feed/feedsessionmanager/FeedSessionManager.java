@@ -359,7 +359,9 @@ public final class FeedSessionManager
     StreamSession recordedSession =
         streamSession.toBuilder().setLastAccessed(clock.currentTimeMillis()).build();
 
-    Result<List<StreamStructure>> streamStructuresResult = store.getStreamStructures(streamSession);
+    // The new session is a copy of $HEAD, whose stream structures are usually cached in memory.
+    Result<List<StreamStructure>> streamStructuresResult =
+        sessionCache.getHead().getStreamStructures();
     if (!streamStructuresResult.isSuccessful()) {
       switchToEphemeralMode("Unable to create a new session, getStreamStructures failed");
       timeTracker.stop("task", "Create/Populate New Session", "Failure", "getStreamStructures");
@@ -639,10 +641,16 @@ public final class FeedSessionManager
         "getStreamFeaturesFromHead",
         TaskType.BACKGROUND,
         () -> {
+          Result<List<StreamStructure>> headResult = sessionCache.getHead().getStreamStructures();
+          if (!headResult.isSuccessful()) {
+            consumer.accept(Result.failure());
+            return;
+          }
           HeadAsStructure headAsStructure = new HeadAsStructure(store, timingUtils, threadUtils);
           Function<TreeNode, /*@Nullable*/ T> toStreamPayload =
               treeNode -> filterPredicate.apply(treeNode.getStreamPayload());
           headAsStructure.initialize(
+              headResult.getValue(),
               result -> {
                 if (!result.isSuccessful()) {
                   consumer.accept(Result.failure());
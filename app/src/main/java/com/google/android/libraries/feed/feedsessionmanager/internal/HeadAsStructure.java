@@ -34,9 +34,13 @@ import java.util.Map;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
- * This class will load the current $HEAD to allow for structured access to the defined contents and
- * structure. Currently, the only supported access is filtering the tree in a pre-order traversal of
- * the structure, {@see #filter}.
+ * This class holds the tree formed by $HEAD to allow for structured access to the defined contents
+ * and structure. Currently, the only supported access is filtering the tree in a pre-order
+ * traversal of the structure, {@see #filter}.
+ *
+ * <p>The tree is built from the stream structures of $HEAD, which are either read from the store or
+ * provided by {@link HeadSessionImpl#getStreamStructures()}. The payloads are loaded from the store
+ * and only held by this instance.
  */
 public final class HeadAsStructure {
   private static final String TAG = "HeadFilter";
@@ -50,9 +54,17 @@ public final class HeadAsStructure {
   @GuardedBy("lock")
   private boolean initalized;
 
-  @VisibleForTesting Map<String, List<TreeNode>> tree = new HashMap<>();
-  @VisibleForTesting Map<String, TreeNode> content = new HashMap<>();
-  @VisibleForTesting TreeNode root;
+  @GuardedBy("lock")
+  @VisibleForTesting
+  Map<String, List<TreeNode>> tree = new HashMap<>();
+
+  @GuardedBy("lock")
+  @VisibleForTesting
+  Map<String, TreeNode> content = new HashMap<>();
+
+  @GuardedBy("lock")
+  @VisibleForTesting
+  /*@Nullable*/ TreeNode root;
 
   /**
    * Define a Node within the tree formed by $HEAD. This contains both the structure and content.
@@ -60,7 +72,7 @@ public final class HeadAsStructure {
    */
   public static final class TreeNode {
     final StreamStructure streamStructure;
-    StreamPayload streamPayload;
+    /*@Nullable*/ StreamPayload streamPayload;
 
     TreeNode(StreamStructure streamStructure) {
       this.streamStructure = streamStructure;
@@ -82,11 +94,27 @@ public final class HeadAsStructure {
   }
 
   /**
-   * Capture the state of the current $HEAD, returning success or failure through a {@link
-   * Consumer}. The snapshot of head will not be updated if $HEAD is updated. Initialization may
-   * only be called once. This method must be called on a background thread.
+   * Capture the state of the current $HEAD from the store, returning success or failure through a
+   * {@link Consumer}. The snapshot of head will not be updated if $HEAD is updated. Initialization
+   * may only be called once. This method must be called on a background thread.
    */
   public void initialize(Consumer<Result<Void>> consumer) {
+    threadUtils.checkNotMainThread();
+    Result<List<StreamStructure>> headResult = store.getStreamStructures(Store.HEAD);
+    if (!headResult.isSuccessful()) {
+      Logger.e(TAG, "Unable to load $HEAD");
+      consumer.accept(Result.failure());
+      return;
+    }
+    initialize(headResult.getValue(), consumer);
+  }
+
+  /**
+   * Capture the state of $HEAD formed by {@code headStructures}, the stream structures stored in
+   * the $HEAD journal, and load the payloads from the store. Otherwise behaves like {@link
+   * #initialize(Consumer)}.
+   */
+  public void initialize(List<StreamStructure> headStructures, Consumer<Result<Void>> consumer) {
     Logger.i(TAG, "initialize HeadFilter");
     threadUtils.checkNotMainThread();
     ElapsedTimeTracker timeTracker = timingUtils.getElapsedTimeTracker(TAG);
@@ -96,7 +124,10 @@ public final class HeadAsStructure {
         consumer.accept(Result.failure());
         return;
       }
-      if (!buildTree()) {
+      Logger.i(TAG, "size of $head %s", headStructures.size());
+      applyStructures(headStructures);
+      if (root == null) {
+        Logger.e(TAG, "Root was not found");
         timeTracker.stop("", "buildTree Failed");
         consumer.accept(Result.failure());
         return;
@@ -125,16 +156,16 @@ public final class HeadAsStructure {
   // can't be inferred from T.  This is done here and in the methods called below.
   public <T> Result<List</*@NonNull*/ T>> filter(Function<TreeNode, /*@Nullable*/ T> filterPredicate) {
     Logger.i(TAG, "filterHead");
+    ElapsedTimeTracker timeTracker = timingUtils.getElapsedTimeTracker(TAG);
+    List</*@NonNull*/ T> filteredList = new ArrayList<>();
     synchronized (lock) {
-      if (!initalized) {
+      if (!initalized || root == null) {
         Logger.e(TAG, "HeadFilter has not been initialized");
+        timeTracker.stop("", "HeadFilter.filterHead", "initialized", false);
         return Result.failure();
       }
+      traverseHead(filterPredicate, filteredList);
     }
-
-    ElapsedTimeTracker timeTracker = timingUtils.getElapsedTimeTracker(TAG);
-    List</*@NonNull*/ T> filteredList = new ArrayList<>();
-    traverseHead(filterPredicate, filteredList);
     Logger.i(TAG, "filterList size %s", filteredList.size());
     timeTracker.stop("task", "HeadFilter.filterHead");
     return Result.success(filteredList);
@@ -183,14 +214,7 @@ public final class HeadAsStructure {
     return true;
   }
 
-  private boolean buildTree() {
-    Result<List<StreamStructure>> headResult = store.getStreamStructures(Store.HEAD);
-    if (!headResult.isSuccessful()) {
-      Logger.e(TAG, "Unable to load $HEAD");
-      return false;
-    }
-    List<StreamStructure> head = headResult.getValue();
-    Logger.i(TAG, "size of $head %s", head.size());
+  private void applyStructures(List<StreamStructure> head) {
     for (StreamStructure structure : head) {
       switch (structure.getOperation()) {
         case CLEAR_ALL:
@@ -206,11 +230,6 @@ public final class HeadAsStructure {
           break;
       }
     }
-    if (root == null) {
-      Logger.e(TAG, "Root was not found");
-      return false;
-    }
-    return true;
   }
 
   private void updateOrAppend(StreamStructure structure) {
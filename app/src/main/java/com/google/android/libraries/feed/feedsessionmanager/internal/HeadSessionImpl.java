@@ -19,6 +19,7 @@ import com.google.android.libraries.feed.api.common.MutationContext;
 import com.google.android.libraries.feed.api.modelprovider.ModelProvider;
 import com.google.android.libraries.feed.api.store.SessionMutation;
 import com.google.android.libraries.feed.api.store.Store;
+import com.google.android.libraries.feed.common.Result;
 import com.google.android.libraries.feed.common.logging.Dumpable;
 import com.google.android.libraries.feed.common.logging.Dumper;
 import com.google.android.libraries.feed.common.logging.Logger;
@@ -28,15 +29,22 @@ import com.google.search.now.feed.client.StreamDataProto.StreamSession;
 import com.google.search.now.feed.client.StreamDataProto.StreamStructure;
 import com.google.search.now.feed.client.StreamDataProto.StreamStructure.Operation;
 import com.google.search.now.feed.client.StreamDataProto.StreamToken;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Implementation of {@link Session} for $HEAD. This class doesn't support a ModelProvider. The
  * $HEAD session does not support optimistic writes because we may create a new session between when
  * the response is received and when task updating the head session runs.
+ *
+ * <p>The stream structures of the $HEAD journal are cached in memory and updated as this session
+ * updates $HEAD, so that creating a session or filtering $HEAD doesn't need to read the journal.
+ * The cache is dropped whenever $HEAD may have changed otherwise, and is then reloaded from the
+ * store.
  */
 public class HeadSessionImpl implements Session, Dumpable {
   private static final String TAG = "HeadSessionImpl";
@@ -47,6 +55,20 @@ public class HeadSessionImpl implements Session, Dumpable {
 
   @VisibleForTesting final Set<String> contentInSession = new HashSet<>();
 
+  private final Object lock = new Object();
+
+  /**
+   * The stream structures stored in the $HEAD journal, or {@code null} if they have to be read from
+   * the store.
+   */
+  @GuardedBy("lock")
+  /*@Nullable*/
+  private List<StreamStructure> headStructures;
+
+  /** Incremented on every change of {@link #headStructures}. */
+  @GuardedBy("lock")
+  private int headStructuresVersion;
+
   // operation counts for the dumper
   private int updateCount = 0;
   private int storeMutationFailures = 0;
@@ -63,10 +85,52 @@ public class HeadSessionImpl implements Session, Dumpable {
     for (StreamStructure streamStructure : streamStructures) {
       contentInSession.add(streamStructure.getContentId());
     }
+    synchronized (lock) {
+      headStructures = new ArrayList<>(streamStructures);
+      headStructuresVersion++;
+    }
   }
 
   void reset() {
     contentInSession.clear();
+    invalidateStreamStructures();
+  }
+
+  /**
+   * Drops the cached stream structures of $HEAD, which must be called whenever the $HEAD journal is
+   * changed other than by {@link #updateSession}.
+   */
+  void invalidateStreamStructures() {
+    synchronized (lock) {
+      headStructures = null;
+      headStructuresVersion++;
+    }
+  }
+
+  /**
+   * Returns the stream structures stored in the $HEAD journal, which are the ones a new session
+   * starts from. They are read from the store if they are not cached. This method must be called on
+   * a background thread.
+   */
+  public Result<List<StreamStructure>> getStreamStructures() {
+    int version;
+    synchronized (lock) {
+      if (headStructures != null) {
+        return Result.success(new ArrayList<>(headStructures));
+      }
+      version = headStructuresVersion;
+    }
+    Result<List<StreamStructure>> result = store.getStreamStructures(streamSession);
+    if (result.isSuccessful()) {
+      synchronized (lock) {
+        // Don't cache the structures if $HEAD changed while they were being read.
+        if (version == headStructuresVersion) {
+          headStructures = new ArrayList<>(result.getValue());
+          headStructuresVersion++;
+        }
+      }
+    }
+    return result;
   }
 
   @Override
@@ -101,6 +165,7 @@ public class HeadSessionImpl implements Session, Dumpable {
     int addFeatureCnt = 0;
     boolean cleared = false;
     SessionMutation sessionMutation = store.editSession(streamSession);
+    List<StreamStructure> addedStructures = new ArrayList<>(streamStructures.size());
     for (StreamStructure streamStructure : streamStructures) {
       if (streamStructure.getOperation() == Operation.UPDATE_OR_APPEND) {
         String contentKey = streamStructure.getContentId();
@@ -111,6 +176,7 @@ public class HeadSessionImpl implements Session, Dumpable {
         }
 
         sessionMutation.add(streamStructure);
+        addedStructures.add(streamStructure);
         contentInSession.add(contentKey);
         addFeatureCnt++;
         continue;
@@ -119,6 +185,7 @@ public class HeadSessionImpl implements Session, Dumpable {
         Logger.i(TAG, "Removing Item %s from $HEAD", contentKey);
         if (contentInSession.contains(contentKey)) {
           sessionMutation.add(streamStructure);
+          addedStructures.add(streamStructure);
           contentInSession.remove(contentKey);
         } else {
           Logger.w(TAG, "Remove operation content not found in $HEAD");
@@ -132,6 +199,16 @@ public class HeadSessionImpl implements Session, Dumpable {
       Logger.e(TAG, "Unknown operation, ignoring: %s", streamStructure.getOperation());
     }
     boolean success = sessionMutation.commit();
+    synchronized (lock) {
+      // A CLEAR_ALL has already cleared the $HEAD journal and the cache, see
+      // invalidateStreamStructures(). A failed commit may have been partially applied.
+      if (success && headStructures != null) {
+        headStructures.addAll(addedStructures);
+      } else {
+        headStructures = null;
+      }
+      headStructuresVersion++;
+    }
     if (success) {
       timeTracker.stop(
           "updateSession",
@@ -186,6 +263,12 @@ public class HeadSessionImpl implements Session, Dumpable {
     dumper.forKey("sessionName").value(streamSession.getStreamToken());
     dumper.forKey("accessTime").value(new Date(streamSession.getLastAccessed())).compactPrevious();
     dumper.forKey("contentInSession").value(contentInSession.size());
+    synchronized (lock) {
+      dumper
+          .forKey("headStructures")
+          .value(headStructures != null ? headStructures.size() : -1)
+          .compactPrevious();
+    }
     dumper.forKey("updateCount").value(updateCount).compactPrevious();
     dumper.forKey("storeMutationFailures").value(storeMutationFailures).compactPrevious();
   }
@@ -144,6 +144,7 @@ public final class SessionManagerMutation implements Dumpable {
       // If we have old sessions and we received a clear head, let's invalidate the session that
       // initiated the clear.
       store.clearHead();
+      sessionCache.getHead().invalidateStreamStructures();
       for (Session session : currentSessions) {
         ModelProvider modelProvider = session.getModelProvider();
         if (modelProvider != null
@@ -100,6 +100,7 @@ public final class FeedStore extends FeedObservable<StoreListener>
             contentStorage,
             journalStorage,
             threadUtils,
+            taskQueue,
             this.clock,
             this.storeHelper);
     delegate = persistentStore;
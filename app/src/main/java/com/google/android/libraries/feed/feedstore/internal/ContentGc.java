@@ -18,139 +18,312 @@ import static com.google.android.libraries.feed.feedstore.internal.FeedStoreCons
 import static com.google.android.libraries.feed.feedstore.internal.FeedStoreConstants.SHARED_STATE_PREFIX;
 
 import com.google.android.libraries.feed.common.Result;
+import com.google.android.libraries.feed.common.concurrent.TaskQueue;
+import com.google.android.libraries.feed.common.concurrent.TaskQueue.TaskType;
 import com.google.android.libraries.feed.common.functional.Supplier;
 import com.google.android.libraries.feed.common.logging.Logger;
+import com.google.android.libraries.feed.common.time.Clock;
 import com.google.android.libraries.feed.common.time.TimingUtils;
 import com.google.android.libraries.feed.common.time.TimingUtils.ElapsedTimeTracker;
 import com.google.android.libraries.feed.host.storage.CommitResult;
 import com.google.android.libraries.feed.host.storage.ContentMutation;
 import com.google.android.libraries.feed.host.storage.ContentStorageDirect;
 import com.google.search.now.feed.client.StreamDataProto.StreamAction;
+import com.google.search.now.feed.client.StreamDataProto.StreamStructure;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import javax.annotation.concurrent.GuardedBy;
 
-/** Storage Content Garbage Collector. */
+/**
+ * Incremental storage content garbage collector.
+ *
+ * <p>The keys of the content storage are loaded once and then kept up to date as content is
+ * committed through the store, so that most collections do not need to scan the storage. They are
+ * reloaded every {@link #MAX_CYCLES_BETWEEN_RELOADS} cycles to pick up content written by other
+ * means.
+ *
+ * <p>A collection cycle snapshots the live content, then sweeps the keys in slices bounded in time.
+ * Each slice runs as a separate {@link TaskType#BACKGROUND} task, so that tasks with a higher
+ * priority queued in the meantime run between slices. Content committed after the start of a cycle
+ * is never removed by this cycle: the store commits content through {@link #commitContent}, which
+ * is serialized with the removals of the slices.
+ */
 public final class ContentGc {
   private static final String TAG = "ContentGc";
 
-  private final Supplier<Set<String>> accessibleContentSupplier;
-  private final Set<String> reservedContentIds;
-  private final Supplier<Set<StreamAction>> actionsSupplier;
+  /** Time after which a slice stops scanning keys. */
+  private static final long SLICE_BUDGET_MS = 10;
+
+  /** Maximum number of keys removed by a single slice. */
+  private static final int MAX_REMOVALS_PER_SLICE = 200;
+
+  /** Number of cycles reusing the tracked keys before they are reloaded from the storage. */
+  private static final int MAX_CYCLES_BETWEEN_RELOADS = 10;
+
+  /** Number of keys scanned between two checks of the slice budget. */
+  private static final int KEYS_PER_BUDGET_CHECK = 64;
+
   private final ContentStorageDirect contentStorageDirect;
+  private final TaskQueue taskQueue;
+  private final Clock clock;
   private final TimingUtils timingUtils;
 
+  private final Object lock = new Object();
+
+  /**
+   * Held while committing content, and while a slice checks and removes its garbage. Acquired
+   * before {@code lock}.
+   */
+  private final Object commitLock = new Object();
+
+  /** All the keys of the content storage, or {@code null} if they need to be loaded. */
+  @GuardedBy("lock")
+  /*@Nullable*/
+  private Set<String> population;
+
+  @GuardedBy("lock")
+  private int cyclesSinceReload;
+
+  /** Keys committed since the start of the current cycle, which must not be removed. */
+  @GuardedBy("lock")
+  private final Set<String> dirtyKeys = new HashSet<>();
+
+  @GuardedBy("lock")
+  private boolean cycleInProgress;
+
+  /** The cycle in progress, a new cycle supersedes the previous one. */
+  @GuardedBy("lock")
+  /*@Nullable*/
+  private Cycle currentCycle;
+
+  /** State of a collection cycle. */
+  private static final class Cycle {
+    private final Set<String> liveKeys;
+    private final List<String> candidates;
+    private int nextCandidate;
+    private int removedCount;
+
+    private Cycle(Set<String> liveKeys, List<String> candidates) {
+      this.liveKeys = liveKeys;
+      this.candidates = candidates;
+    }
+  }
+
   ContentGc(
-      Supplier<Set<String>> accessibleContentSupplier,
-      Set<String> reservedContentIds,
-      Supplier<Set<StreamAction>> actionsSupplier,
       ContentStorageDirect contentStorageDirect,
+      TaskQueue taskQueue,
+      Clock clock,
       TimingUtils timingUtils) {
-    this.accessibleContentSupplier = accessibleContentSupplier;
-    this.reservedContentIds = reservedContentIds;
-    this.actionsSupplier = actionsSupplier;
     this.contentStorageDirect = contentStorageDirect;
+    this.taskQueue = taskQueue;
+    this.clock = clock;
     this.timingUtils = timingUtils;
   }
 
-  void gc() {
+  /**
+   * Starts a collection cycle, removing the content which is not accessible, reserved, or the
+   * semantic properties of accessible content or of content associated with an action. The first
+   * slice runs on the calling thread.
+   */
+  void gc(
+      Supplier<Set<String>> accessibleContentSupplier,
+      Set<String> reservedContentIds,
+      Supplier<Set<StreamAction>> actionsSupplier) {
     ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
-    Set<String> population = getPopulation();
-    // remove the items in the population that are accessible, reserved, or semantic properties
-    // either accessible or associated with an action
-    Set<String> accessibleContent = getAccessible();
-    population.removeAll(accessibleContent);
-    population.removeAll(reservedContentIds);
-    population.removeAll(getAccessibleSemanticProperties(accessibleContent));
-    population.removeAll(getActionSemanticProperties(getActions()));
-    filterPrefixed(population);
-
-    // Population now contains only un-accessible items
-    removeUnAccessible(population);
-    tracker.stop("task", "ContentGc", "contentItemsRemoved", population.size());
-  }
+    synchronized (lock) {
+      // Anything committed from now on is spared by this cycle.
+      currentCycle = null;
+      cycleInProgress = true;
+      dirtyKeys.clear();
+    }
+    Set<String> liveKeys = new HashSet<>(reservedContentIds);
+    Set<String> accessibleContent = accessibleContentSupplier.get();
+    for (String accessibleContentId : accessibleContent) {
+      liveKeys.add(accessibleContentId);
+      liveKeys.add(SEMANTIC_PROPERTIES_PREFIX + accessibleContentId);
+    }
+    Set<StreamAction> actions = actionsSupplier.get();
+    for (StreamAction action : actions) {
+      liveKeys.add(SEMANTIC_PROPERTIES_PREFIX + action.getFeatureContentId());
+    }
+    List<String> candidates = getCandidates();
 
-  private void removeUnAccessible(Set<String> unAccessible) {
-    ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
-    ContentMutation.Builder mutationBuilder = new ContentMutation.Builder();
-    for (String key : unAccessible) {
-      mutationBuilder.delete(key);
+    Cycle cycle = new Cycle(liveKeys, candidates);
+    synchronized (lock) {
+      currentCycle = cycle;
     }
-    CommitResult result = contentStorageDirect.commit(mutationBuilder.build());
-    if (result == CommitResult.FAILURE) {
-      Logger.e(TAG, "Content Modification failed removing unaccessible items.");
+    tracker.stop(
+        "task",
+        "ContentGc",
+        "contentPopulation",
+        candidates.size(),
+        "accessibleContent",
+        accessibleContent.size(),
+        "actionCount",
+        actions.size());
+    sweep(cycle);
+  }
+
+  /**
+   * Commits |mutation|, which writes |keys|, to the content storage. The keys are spared by the
+   * cycle in progress if the commit succeeds.
+   */
+  CommitResult commitContent(ContentMutation mutation, Collection<String> keys) {
+    synchronized (commitLock) {
+      CommitResult result = contentStorageDirect.commit(mutation);
+      if (result == CommitResult.SUCCESS) {
+        onContentCommitted(keys);
+      }
+      return result;
     }
-    tracker.stop("", "removeUnAccessible", "mutations", unAccessible.size());
   }
 
-  private void filterPrefixed(Set<String> population) {
-    int size = population.size();
-    ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
-    Iterator<String> i = population.iterator();
-    while (i.hasNext()) {
-      String key = i.next();
-      if (key.startsWith(SHARED_STATE_PREFIX)) {
-        i.remove();
+  /** Records that |keys| have been written to the content storage. */
+  private void onContentCommitted(Collection<String> keys) {
+    synchronized (lock) {
+      if (population != null) {
+        population.addAll(keys);
+      }
+      if (cycleInProgress) {
+        dirtyKeys.addAll(keys);
       }
     }
-    tracker.stop("", "filterPrefixed", population.size() - size);
   }
 
-  private Set<String> getAccessible() {
-    ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
-    Set<String> accessibleContent = accessibleContentSupplier.get();
-    tracker.stop("", "getAccessible", "accessableContent", accessibleContent.size());
-    return accessibleContent;
+  /** Records that |streamStructures| have been added to a session. */
+  void onSessionCommitted(List<StreamStructure> streamStructures) {
+    synchronized (lock) {
+      if (!cycleInProgress) {
+        return;
+      }
+      // The content may have become accessible after the start of the cycle.
+      for (StreamStructure streamStructure : streamStructures) {
+        dirtyKeys.add(streamStructure.getContentId());
+        dirtyKeys.add(SEMANTIC_PROPERTIES_PREFIX + streamStructure.getContentId());
+      }
+    }
   }
 
-  private Set<StreamAction> getActions() {
-    ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
-    Set<StreamAction> actions = actionsSupplier.get();
-    tracker.stop("", "getActions", "actionCount", actions.size());
-    return actions;
+  /** Forces the next cycle to reload the keys from the storage. */
+  void invalidatePopulation() {
+    synchronized (lock) {
+      population = null;
+    }
   }
 
-  private Set<String> getPopulation() {
+  private List<String> getCandidates() {
+    synchronized (lock) {
+      if (population != null && cyclesSinceReload < MAX_CYCLES_BETWEEN_RELOADS) {
+        cyclesSinceReload++;
+        return new ArrayList<>(population);
+      }
+    }
+
     ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
-    Set<String> population = new HashSet<>();
     Result<List<String>> result = contentStorageDirect.getAllKeys();
-    if (result.isSuccessful()) {
-      population.addAll(result.getValue());
-    } else {
+    if (!result.isSuccessful()) {
       Logger.e(TAG, "Unable to get all content, getAll failed");
+      tracker.stop("", "getPopulation", "failed");
+      return new ArrayList<>();
     }
-    tracker.stop("", "getPopulation", "contentPopulation", population.size());
-    return population;
+    List<String> keys = result.getValue();
+    synchronized (lock) {
+      population = new HashSet<>(keys);
+      population.addAll(dirtyKeys);
+      cyclesSinceReload = 0;
+    }
+    tracker.stop("", "getPopulation", "contentPopulation", keys.size());
+    return new ArrayList<>(keys);
   }
 
-  private Set<String> getAccessibleSemanticProperties(Set<String> accessibleContent) {
+  /** Removes the garbage of the next slice of |cycle|, and schedules the following slice. */
+  private void sweep(Cycle cycle) {
     ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
-    Set<String> semanticPropertiesKeys = new HashSet<>();
-    for (String accessibleContentId : accessibleContent) {
-      String semanticPropertyKey = SEMANTIC_PROPERTIES_PREFIX + accessibleContentId;
-      semanticPropertiesKeys.add(semanticPropertyKey);
+    long deadline = clock.elapsedRealtime() + SLICE_BUDGET_MS;
+    List<String> garbage = new ArrayList<>();
+    int scanned = 0;
+    boolean finished;
+    synchronized (lock) {
+      if (cycle != currentCycle) {
+        tracker.stop("", "sweep", "superseded", true);
+        return;
+      }
+      while (cycle.nextCandidate < cycle.candidates.size()
+          && garbage.size() < MAX_REMOVALS_PER_SLICE) {
+        String key = cycle.candidates.get(cycle.nextCandidate++);
+        if (!key.startsWith(SHARED_STATE_PREFIX)
+            && !cycle.liveKeys.contains(key)
+            && !dirtyKeys.contains(key)) {
+          garbage.add(key);
+        }
+        if (++scanned % KEYS_PER_BUDGET_CHECK == 0 && clock.elapsedRealtime() > deadline) {
+          break;
+        }
+      }
+      finished = cycle.nextCandidate == cycle.candidates.size();
     }
-    tracker.stop(
-        "",
-        "getAccessibleSemanticProperties",
-        "accessibleSemanticPropertiesSize",
-        semanticPropertiesKeys.size());
-    return semanticPropertiesKeys;
+
+    int removed = garbage.isEmpty() ? 0 : removeUnAccessible(cycle, garbage);
+    cycle.removedCount += removed;
+    tracker.stop("task", "ContentGc slice", "contentItemsRemoved", removed, "scanned", scanned);
+
+    if (!finished) {
+      taskQueue.execute("contentGcSlice", TaskType.BACKGROUND, () -> sweep(cycle));
+      return;
+    }
+    synchronized (lock) {
+      if (cycle == currentCycle) {
+        currentCycle = null;
+        cycleInProgress = false;
+        dirtyKeys.clear();
+      }
+    }
+    Logger.i(TAG, "ContentGc removed %d content items", cycle.removedCount);
   }
 
-  private Set<String> getActionSemanticProperties(Set<StreamAction> actions) {
+  /**
+   * Removes the keys of |garbage| which are still garbage for |cycle|, and returns the number of
+   * keys removed.
+   */
+  private int removeUnAccessible(Cycle cycle, List<String> garbage) {
     ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
-    Set<String> semanticPropertiesKeys = new HashSet<>();
-    for (StreamAction action : actions) {
-      String semanticPropertyKey = SEMANTIC_PROPERTIES_PREFIX + action.getFeatureContentId();
-      semanticPropertiesKeys.add(semanticPropertyKey);
+    List<String> unAccessible = new ArrayList<>(garbage.size());
+    // No content can be committed between the last check of the keys and their removal.
+    synchronized (commitLock) {
+      ContentMutation.Builder mutationBuilder = new ContentMutation.Builder();
+      synchronized (lock) {
+        if (cycle != currentCycle) {
+          tracker.stop("", "removeUnAccessible", "superseded", true);
+          return 0;
+        }
+        for (String key : garbage) {
+          // The key may have been committed since it was picked.
+          if (!dirtyKeys.contains(key)) {
+            unAccessible.add(key);
+            mutationBuilder.delete(key);
+          }
+        }
+      }
+      if (unAccessible.isEmpty()) {
+        tracker.stop("", "removeUnAccessible", "mutations", 0);
+        return 0;
+      }
+      CommitResult result = contentStorageDirect.commit(mutationBuilder.build());
+      if (result == CommitResult.FAILURE) {
+        Logger.e(TAG, "Content Modification failed removing unaccessible items.");
+        tracker.stop("", "removeUnAccessible", "failed", true);
+        return 0;
+      }
+      synchronized (lock) {
+        if (population != null) {
+          population.removeAll(unAccessible);
+        }
+      }
     }
-    tracker.stop(
-        "",
-        "getActionSemanticProperties",
-        "actionSemanticPropertiesSize",
-        semanticPropertiesKeys.size());
-    return semanticPropertiesKeys;
+    tracker.stop("", "removeUnAccessible", "mutations", unAccessible.size());
+    return unAccessible.size();
   }
 }
@@ -29,6 +29,7 @@ import com.google.android.libraries.feed.api.store.SemanticPropertiesMutation;
 import com.google.android.libraries.feed.api.store.SessionMutation;
 import com.google.android.libraries.feed.api.store.StoreListener;
 import com.google.android.libraries.feed.common.Result;
+import com.google.android.libraries.feed.common.concurrent.TaskQueue;
 import com.google.android.libraries.feed.common.functional.Supplier;
 import com.google.android.libraries.feed.common.logging.Dumpable;
 import com.google.android.libraries.feed.common.logging.Dumper;
@@ -76,6 +77,7 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
   private final ThreadUtils threadUtils;
   private final Clock clock;
   private final FeedStoreHelper storeHelper;
+  private final ContentGc contentGc;
 
   public PersistentFeedStore(
       TimingUtils timingUtils,
@@ -83,6 +85,7 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
       ContentStorageDirect contentStorageDirect,
       JournalStorageDirect journalStorageDirect,
       ThreadUtils threadUtils,
+      TaskQueue taskQueue,
       Clock clock,
       FeedStoreHelper storeHelper) {
     this.timingUtils = timingUtils;
@@ -92,6 +95,7 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
     this.threadUtils = threadUtils;
     this.clock = clock;
     this.storeHelper = storeHelper;
+    this.contentGc = new ContentGc(contentStorageDirect, taskQueue, clock, timingUtils);
   }
 
   @Override
@@ -339,13 +343,7 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
           }
         };
 
-    return new ContentGc(
-            accessibleContent,
-            reservedContentIds,
-            dismissActionSupplier,
-            contentStorageDirect,
-            timingUtils)
-        ::gc;
+    return () -> contentGc.gc(accessibleContent, reservedContentIds, dismissActionSupplier);
   }
 
   @Override
@@ -382,11 +380,13 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
     threadUtils.checkNotMainThread();
     ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
     Builder mutationBuilder = new Builder();
+    List<String> keys = new ArrayList<>(semanticPropertiesMap.size());
     for (Map.Entry<String, ByteString> entry : semanticPropertiesMap.entrySet()) {
-      mutationBuilder.upsert(
-          SEMANTIC_PROPERTIES_PREFIX + entry.getKey(), entry.getValue().toByteArray());
+      String key = SEMANTIC_PROPERTIES_PREFIX + entry.getKey();
+      mutationBuilder.upsert(key, entry.getValue().toByteArray());
+      keys.add(key);
     }
-    CommitResult commitResult = contentStorageDirect.commit(mutationBuilder.build());
+    CommitResult commitResult = contentGc.commitContent(mutationBuilder.build(), keys);
     tracker.stop(
         "task", "commitSemanticPropertiesMutation", "mutations", semanticPropertiesMap.size());
     return commitResult;
@@ -405,6 +405,7 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
       mutation.append(streamStructure.toByteArray());
     }
     CommitResult mutationResult = journalStorageDirect.commit(mutation.build());
+    contentGc.onSessionCommitted(streamStructures);
     boolean result = CommitResult.SUCCESS.equals(mutationResult);
     tracker.stop("", "commitSessionMutation", "mutations", streamStructures.size());
     Logger.i(
@@ -420,22 +421,24 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
     ElapsedTimeTracker tracker = timingUtils.getElapsedTimeTracker(TAG);
 
     Builder contentMutationBuilder = new Builder();
+    List<String> keys = new ArrayList<>(mutations.size());
     for (PayloadWithId mutation : mutations) {
       String payloadId = mutation.contentId;
       StreamPayload payload = mutation.payload;
       if (mutation.payload.hasStreamSharedState()) {
         StreamSharedState streamSharedState = mutation.payload.getStreamSharedState();
-        contentMutationBuilder.upsert(
-            SHARED_STATE_PREFIX + streamSharedState.getContentId(),
-            streamSharedState.toByteArray());
+        String key = SHARED_STATE_PREFIX + streamSharedState.getContentId();
+        contentMutationBuilder.upsert(key, streamSharedState.toByteArray());
+        keys.add(key);
       } else {
         contentMutationBuilder.upsert(payloadId, payload.toByteArray());
+        keys.add(payloadId);
       }
     }
 
     // Block waiting for the response from storage, to make this method synchronous.
     // TODO: handle errors
-    CommitResult commitResult = contentStorageDirect.commit(contentMutationBuilder.build());
+    CommitResult commitResult = contentGc.commitContent(contentMutationBuilder.build(), keys);
     tracker.stop("task", "commitContentMutation", "mutations", mutations.size());
     return commitResult;
   }
@@ -503,6 +506,7 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
    * @return {@code true} when the clear succeeded
    */
   public boolean clearNonActionContent() {
+    contentGc.invalidatePopulation();
     try {
       if (!clearContentStorage()) {
         return false;
@@ -576,6 +580,7 @@ public final class PersistentFeedStore implements ClearableStore, Dumpable {
     threadUtils.checkNotMainThread();
 
     boolean success = true;
+    contentGc.invalidatePopulation();
     // Run clear on both content and journal
     CommitResult result = contentStorageDirect.commit(new Builder().deleteAll().build());
     CommitResult journalResult = journalStorageDirect.deleteAll();
@@ -0,0 +1,617 @@
+// Copyright 2019 The Feed Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.android.libraries.feed.hostimpl.storage;
+
+import static com.google.android.libraries.feed.host.storage.ContentOperation.Type.DELETE;
+import static com.google.android.libraries.feed.host.storage.ContentOperation.Type.DELETE_ALL;
+import static com.google.android.libraries.feed.host.storage.ContentOperation.Type.DELETE_BY_PREFIX;
+import static com.google.android.libraries.feed.host.storage.ContentOperation.Type.UPSERT;
+
+import android.content.Context;
+import com.google.android.libraries.feed.api.common.ThreadUtils;
+import com.google.android.libraries.feed.common.Result;
+import com.google.android.libraries.feed.common.functional.Consumer;
+import com.google.android.libraries.feed.common.logging.Logger;
+import com.google.android.libraries.feed.host.storage.CommitResult;
+import com.google.android.libraries.feed.host.storage.ContentMutation;
+import com.google.android.libraries.feed.host.storage.ContentOperation;
+import com.google.android.libraries.feed.host.storage.ContentOperation.Delete;
+import com.google.android.libraries.feed.host.storage.ContentOperation.DeleteByPrefix;
+import com.google.android.libraries.feed.host.storage.ContentOperation.Upsert;
+import com.google.android.libraries.feed.host.storage.ContentStorage;
+import com.google.android.libraries.feed.host.storage.ContentStorageDirect;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Implementation of {@link ContentStorage} that persists all the content in a single append-only
+ * data file, instead of one file per key as {@link PersistentContentStorage} does.
+ *
+ * <p>Each record of the data file holds a key and its value, a tombstone for a deleted key, or a
+ * marker. The records of a commit are followed by a commit marker, and are only applied on load if
+ * the marker made it to disk, so that an interrupted commit is dropped as a whole. Every record
+ * carries a CRC which is checked on load, and loading stops at the first invalid record.
+ *
+ * <p>The file is memory-mapped for reads, and an in-memory sorted index maps each live key to the
+ * location of its value, so that prefix scans are range lookups. Commits append all their records
+ * with a single write. The mapping is only extended once the unmapped tail of the file is large
+ * enough, the tail being read with positional reads meanwhile. When more than half of the file is
+ * made of overwritten or deleted records, the file is compacted on the executor.
+ */
+public final class IndexedContentStorage implements ContentStorage, ContentStorageDirect {
+
+  private static final String TAG = "IndexedContentStorage";
+  private static final String CONTENT_DIR = "indexed_content";
+  private static final String DATA_FILE = "content.dat";
+  private static final String COMPACTION_FILE = "content.dat.compact";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Size of a record header: CRC, key length and value length. */
+  private static final int HEADER_SIZE = 12;
+
+  /** Value length used for tombstones. */
+  private static final int TOMBSTONE = -1;
+
+  /** Value length of the marker ending the records of a commit. */
+  private static final int COMMIT_MARKER = -2;
+
+  /** Value length of the marker deleting all the records before it. */
+  private static final int DELETE_ALL_MARKER = -3;
+
+  /** Files smaller than this are never compacted. */
+  private static final long MIN_COMPACTION_SIZE = 256 * 1024;
+
+  /** The unmapped tail of the file is mapped once it reaches this size. */
+  private static final long MIN_REMAP_SIZE = 1024 * 1024;
+
+  /** Mapped buffers are indexed by int, commits growing the file past this size fail. */
+  private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+  /** Location of the value of a live key in the data file. */
+  private static final class Location {
+    final long recordOffset;
+    final int keyLength;
+    final int valueLength;
+
+    Location(long recordOffset, int keyLength, int valueLength) {
+      this.recordOffset = recordOffset;
+      this.keyLength = keyLength;
+      this.valueLength = valueLength;
+    }
+
+    int recordSize() {
+      return HEADER_SIZE + keyLength + valueLength;
+    }
+  }
+
+  private final Context context;
+  private final ThreadUtils threadUtils;
+  private final Executor executor;
+
+  // All the fields below are guarded by |lock|.
+  private final Object lock = new Object();
+  private final TreeMap<String, Location> index = new TreeMap<>();
+  /*@Nullable*/ private File dataFile;
+  /*@Nullable*/ private RandomAccessFile file;
+  /*@Nullable*/ private MappedByteBuffer mappedData;
+  private long mappedSize;
+  private long fileSize;
+  private long liveBytes;
+  private boolean compactionScheduled;
+
+  public IndexedContentStorage(Context context, Executor executor, ThreadUtils threadUtils) {
+    this.context = context;
+    this.executor = executor;
+    this.threadUtils = threadUtils;
+  }
+
+  @Override
+  public void get(List<String> keys, Consumer<Result<Map<String, byte[]>>> consumer) {
+    threadUtils.checkMainThread();
+    executor.execute(() -> consumer.accept(get(keys)));
+  }
+
+  @Override
+  public Result<Map<String, byte[]>> get(List<String> keys) {
+    synchronized (lock) {
+      if (!initialize()) {
+        return Result.failure();
+      }
+      Map<String, byte[]> valueMap = new HashMap<>(keys.size());
+      for (String key : keys) {
+        Location location = index.get(key);
+        if (location != null) {
+          byte[] value = readValue(key, location);
+          if (value == null) {
+            return Result.failure();
+          }
+          valueMap.put(key, value);
+        }
+      }
+      return Result.success(valueMap);
+    }
+  }
+
+  @Override
+  public void getAll(String prefix, Consumer<Result<Map<String, byte[]>>> consumer) {
+    threadUtils.checkMainThread();
+    executor.execute(() -> consumer.accept(getAll(prefix)));
+  }
+
+  @Override
+  public Result<Map<String, byte[]>> getAll(String prefix) {
+    synchronized (lock) {
+      if (!initialize()) {
+        return Result.failure();
+      }
+      Map<String, byte[]> valueMap = new HashMap<>();
+      for (Entry<String, Location> entry : index.tailMap(prefix).entrySet()) {
+        if (!entry.getKey().startsWith(prefix)) {
+          break;
+        }
+        byte[] value = readValue(entry.getKey(), entry.getValue());
+        if (value == null) {
+          return Result.failure();
+        }
+        valueMap.put(entry.getKey(), value);
+      }
+      return Result.success(valueMap);
+    }
+  }
+
+  @Override
+  public void commit(ContentMutation mutation, Consumer<CommitResult> consumer) {
+    threadUtils.checkMainThread();
+    executor.execute(() -> consumer.accept(commit(mutation)));
+  }
+
+  @Override
+  public CommitResult commit(ContentMutation mutation) {
+    synchronized (lock) {
+      if (!initialize()) {
+        return CommitResult.FAILURE;
+      }
+      // Records are buffered and appended with a single write. The index is only updated once the
+      // write succeeded, so |pendingIndex| shadows it until then: a null value is a deletion, and
+      // |deleteAll| hides the index entirely.
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      DataOutputStream records = new DataOutputStream(buffer);
+      Map<String, Location> pendingIndex = new HashMap<>();
+      boolean deleteAll = false;
+      try {
+        for (ContentOperation operation : mutation.getOperations()) {
+          if (operation.getType() == UPSERT) {
+            Upsert upsert = (Upsert) operation;
+            Location location =
+                writeRecord(records, fileSize + buffer.size(), upsert.getKey(), upsert.getValue());
+            pendingIndex.put(upsert.getKey(), location);
+          } else if (operation.getType() == DELETE) {
+            String key = ((Delete) operation).getKey();
+            if (containsKey(pendingIndex, deleteAll, key)) {
+              writeRecord(records, fileSize + buffer.size(), key, null);
+              pendingIndex.put(key, null);
+            }
+          } else if (operation.getType() == DELETE_BY_PREFIX) {
+            String prefix = ((DeleteByPrefix) operation).getPrefix();
+            for (String key : getKeysWithPrefix(pendingIndex, deleteAll, prefix)) {
+              writeRecord(records, fileSize + buffer.size(), key, null);
+              pendingIndex.put(key, null);
+            }
+          } else if (operation.getType() == DELETE_ALL) {
+            // The marker drops everything before it, including the records of this commit.
+            buffer.reset();
+            pendingIndex.clear();
+            deleteAll = true;
+            writeMarker(records, DELETE_ALL_MARKER);
+          } else {
+            Logger.e(TAG, "Unrecognized ContentOperation type: %s", operation.getType());
+          }
+        }
+        if (buffer.size() > 0) {
+          writeMarker(records, COMMIT_MARKER);
+        }
+      } catch (IOException e) {
+        Logger.e(TAG, e, "Error serializing content mutation");
+        return CommitResult.FAILURE;
+      }
+
+      if (!append(buffer, deleteAll, pendingIndex)) {
+        return CommitResult.FAILURE;
+      }
+      maybeScheduleCompaction();
+      return CommitResult.SUCCESS;
+    }
+  }
+
+  @Override
+  public void getAllKeys(Consumer<Result<List<String>>> consumer) {
+    threadUtils.checkMainThread();
+    executor.execute(() -> consumer.accept(getAllKeys()));
+  }
+
+  @Override
+  public Result<List<String>> getAllKeys() {
+    synchronized (lock) {
+      if (!initialize()) {
+        return Result.failure();
+      }
+      return Result.success(new ArrayList<>(index.keySet()));
+    }
+  }
+
+  /** Opens the data file and loads the index if needed. Returns false on failure. */
+  private boolean initialize() {
+    threadUtils.checkNotMainThread();
+    if (file != null) {
+      return true;
+    }
+    File contentDir = context.getDir(CONTENT_DIR, Context.MODE_PRIVATE);
+    if (!contentDir.exists() && !contentDir.mkdir()) {
+      Logger.e(TAG, "Error creating content directory");
+      return false;
+    }
+    dataFile = new File(contentDir, DATA_FILE);
+    try {
+      file = new RandomAccessFile(dataFile, "rw");
+      fileSize = file.length();
+      remap();
+      loadIndex();
+      return true;
+    } catch (IOException e) {
+      Logger.e(TAG, e, "Error opening content file");
+      closeFile();
+      return false;
+    }
+  }
+
+  /**
+   * Builds the index by scanning the records. The records of a commit are only applied when its
+   * commit marker is reached. Everything after the last complete commit, such as a commit torn by
+   * a crash or a record that fails its CRC check, is discarded.
+   */
+  private void loadIndex() throws IOException {
+    index.clear();
+    liveBytes = 0;
+    Map<String, Location> pendingIndex = new HashMap<>();
+    boolean deleteAll = false;
+    long offset = 0;
+    long committedSize = 0;
+    // The mapping covers at most MAX_FILE_SIZE bytes, anything beyond is discarded.
+    while (mappedSize - offset >= HEADER_SIZE) {
+      ByteBuffer header = read(offset, HEADER_SIZE);
+      int keyLength = header.getInt(4);
+      int valueLength = header.getInt(8);
+      long recordEnd = offset + HEADER_SIZE + (long) keyLength + Math.max(valueLength, 0);
+      if (keyLength < 0
+          || valueLength < DELETE_ALL_MARKER
+          || recordEnd > mappedSize
+          || !checkRecord(read(offset, (int) (recordEnd - offset)))) {
+        break;
+      }
+      if (valueLength == COMMIT_MARKER) {
+        applyToIndex(deleteAll, pendingIndex);
+        pendingIndex.clear();
+        deleteAll = false;
+        committedSize = recordEnd;
+      } else if (valueLength == DELETE_ALL_MARKER) {
+        pendingIndex.clear();
+        deleteAll = true;
+      } else {
+        String key = readKey(offset, keyLength);
+        pendingIndex.put(
+            key,
+            valueLength == TOMBSTONE ? null : new Location(offset, keyLength, valueLength));
+      }
+      offset = recordEnd;
+    }
+    if (committedSize != fileSize) {
+      Logger.w(TAG, "Discarding %d bytes of incomplete content", fileSize - committedSize);
+      file.setLength(committedSize);
+      fileSize = committedSize;
+      remap();
+    }
+  }
+
+  /**
+   * Appends |buffer| to the data file, syncs it and applies |pendingIndex| to the index, after
+   * clearing it if |deleteAll|.
+   */
+  private boolean append(
+      ByteArrayOutputStream buffer, boolean deleteAll, Map<String, Location> pendingIndex) {
+    if (buffer.size() > 0) {
+      if (fileSize + buffer.size() > MAX_FILE_SIZE) {
+        Logger.e(TAG, "Content file would exceed %d bytes", MAX_FILE_SIZE);
+        return false;
+      }
+      FileChannel channel = file.getChannel();
+      try {
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        long position = fileSize;
+        while (bytes.hasRemaining()) {
+          position += channel.write(bytes, position);
+        }
+        channel.force(false);
+        fileSize = position;
+        if (fileSize - mappedSize >= Math.max(MIN_REMAP_SIZE, mappedSize / 4)) {
+          remap();
+        }
+      } catch (IOException e) {
+        Logger.e(TAG, e, "Error appending content");
+        // Drop what was written, so that the commit cannot be loaded later on.
+        try {
+          file.setLength(fileSize);
+        } catch (IOException ignored) {
+          // The next load discards the records if their commit marker is missing.
+        }
+        return false;
+      }
+    }
+    applyToIndex(deleteAll, pendingIndex);
+    return true;
+  }
+
+  private void applyToIndex(boolean deleteAll, Map<String, Location> pendingIndex) {
+    if (deleteAll) {
+      index.clear();
+      liveBytes = 0;
+    }
+    for (Entry<String, Location> entry : pendingIndex.entrySet()) {
+      Location previous;
+      if (entry.getValue() == null) {
+        previous = index.remove(entry.getKey());
+      } else {
+        previous = index.put(entry.getKey(), entry.getValue());
+        liveBytes += entry.getValue().recordSize();
+      }
+      if (previous != null) {
+        liveBytes -= previous.recordSize();
+      }
+    }
+  }
+
+  private void maybeScheduleCompaction() {
+    if (compactionScheduled || fileSize < MIN_COMPACTION_SIZE || liveBytes * 2 > fileSize) {
+      return;
+    }
+    compactionScheduled = true;
+    executor.execute(this::compact);
+  }
+
+  /**
+   * Rewrites the live records into a new data file, which then atomically replaces the current
+   * one.
+   */
+  private void compact() {
+    synchronized (lock) {
+      compactionScheduled = false;
+      if (file == null || liveBytes * 2 > fileSize) {
+        return;
+      }
+      File compactionFile = new File(dataFile.getParentFile(), COMPACTION_FILE);
+      TreeMap<String, Location> compactedIndex = new TreeMap<>();
+      long compactedLiveBytes = 0;
+      try (RandomAccessFile output = new RandomAccessFile(compactionFile, "rw")) {
+        output.setLength(0);
+        FileChannel channel = output.getChannel();
+        long position = 0;
+        for (Entry<String, Location> entry : index.entrySet()) {
+          Location location = entry.getValue();
+          ByteBuffer record = read(location.recordOffset, location.recordSize());
+          compactedIndex.put(
+              entry.getKey(),
+              new Location(position, location.keyLength, location.valueLength));
+          while (record.hasRemaining()) {
+            position += channel.write(record, position);
+          }
+        }
+        compactedLiveBytes = position;
+        if (position > 0) {
+          ByteBuffer marker = ByteBuffer.wrap(getMarker(COMMIT_MARKER));
+          while (marker.hasRemaining()) {
+            position += channel.write(marker, position);
+          }
+        }
+        channel.force(false);
+      } catch (IOException e) {
+        Logger.e(TAG, e, "Error compacting content");
+        compactionFile.delete();
+        return;
+      }
+
+      closeFile();
+      if (!compactionFile.renameTo(dataFile)) {
+        Logger.e(TAG, "Error replacing content file after compaction");
+        compactionFile.delete();
+        // The next access reopens and reloads the previous data file.
+        return;
+      }
+      try {
+        file = new RandomAccessFile(dataFile, "rw");
+        fileSize = file.length();
+        remap();
+        index.clear();
+        index.putAll(compactedIndex);
+        liveBytes = compactedLiveBytes;
+      } catch (IOException e) {
+        Logger.e(TAG, e, "Error reopening content file after compaction");
+        closeFile();
+      }
+    }
+  }
+
+  /** Maps the whole file, up to MAX_FILE_SIZE bytes. */
+  private void remap() throws IOException {
+    mappedSize = Math.min(fileSize, MAX_FILE_SIZE);
+    mappedData = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mappedSize);
+  }
+
+  private void closeFile() {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        Logger.e(TAG, e, "Error closing content file");
+      }
+    }
+    file = null;
+    mappedData = null;
+    mappedSize = 0;
+    index.clear();
+  }
+
+  /**
+   * Returns the |length| bytes at |offset|, sliced from the mapping if it covers them or read from
+   * the file otherwise.
+   */
+  private ByteBuffer read(long offset, int length) throws IOException {
+    if (offset + length <= mappedSize) {
+      // The mapping is at most MAX_FILE_SIZE bytes long, so the offsets fit in an int.
+      ByteBuffer data = mappedData.duplicate();
+      data.position((int) offset);
+      data.limit((int) (offset + length));
+      return data.slice();
+    }
+    ByteBuffer data = ByteBuffer.allocate(length);
+    FileChannel channel = file.getChannel();
+    while (data.hasRemaining()) {
+      if (channel.read(data, offset + data.position()) < 0) {
+        throw new EOFException("Content file truncated at " + (offset + data.position()));
+      }
+    }
+    data.flip();
+    return data;
+  }
+
+  /** Returns the value at |location|, or null if its record cannot be read or is corrupted. */
+  /*@Nullable*/
+  private byte[] readValue(String key, Location location) {
+    ByteBuffer record;
+    try {
+      record = read(location.recordOffset, location.recordSize());
+    } catch (IOException e) {
+      Logger.e(TAG, e, "Error reading content for key %s", key);
+      return null;
+    }
+    if (!checkRecord(record)) {
+      Logger.e(TAG, "Corrupted content for key %s", key);
+      return null;
+    }
+    byte[] value = new byte[location.valueLength];
+    record.position(HEADER_SIZE + location.keyLength);
+    record.get(value);
+    return value;
+  }
+
+  private String readKey(long recordOffset, int keyLength) throws IOException {
+    byte[] key = new byte[keyLength];
+    read(recordOffset + HEADER_SIZE, keyLength).get(key);
+    return new String(key, UTF_8);
+  }
+
+  /** Returns whether the CRC of |record|, starting at index 0, is valid. */
+  private static boolean checkRecord(ByteBuffer record) {
+    ByteBuffer data = record.duplicate();
+    data.position(4);
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[Math.min(data.remaining(), 8192)];
+    while (data.hasRemaining()) {
+      int length = Math.min(chunk.length, data.remaining());
+      data.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    return (int) crc.getValue() == record.getInt(0);
+  }
+
+  /**
+   * Writes a record for |key| to |records|, which will be appended at |recordOffset|. A null
+   * |value| writes a tombstone. Returns the location of the record.
+   */
+  private static Location writeRecord(
+      DataOutputStream records, long recordOffset, String key, /*@Nullable*/ byte[] value)
+      throws IOException {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    int valueLength = value == null ? TOMBSTONE : value.length;
+    ByteBuffer body = ByteBuffer.allocate(8 + keyBytes.length + (value == null ? 0 : value.length));
+    body.putInt(keyBytes.length).putInt(valueLength).put(keyBytes);
+    if (value != null) {
+      body.put(value);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(body.array());
+    records.writeInt((int) crc.getValue());
+    records.write(body.array());
+    return new Location(recordOffset, keyBytes.length, value == null ? 0 : value.length);
+  }
+
+  private static void writeMarker(DataOutputStream records, int marker) throws IOException {
+    records.write(getMarker(marker));
+  }
+
+  /** Returns the record of |marker|, which has an empty key. */
+  private static byte[] getMarker(int marker) {
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE);
+    record.putInt(4, 0).putInt(8, marker);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, HEADER_SIZE - 4);
+    record.putInt(0, (int) crc.getValue());
+    return record.array();
+  }
+
+  private boolean containsKey(Map<String, Location> pendingIndex, boolean deleteAll, String key) {
+    if (pendingIndex.containsKey(key)) {
+      return pendingIndex.get(key) != null;
+    }
+    return !deleteAll && index.containsKey(key);
+  }
+
+  private List<String> getKeysWithPrefix(
+      Map<String, Location> pendingIndex, boolean deleteAll, String prefix) {
+    List<String> keys = new ArrayList<>();
+    if (!deleteAll) {
+      for (String key : index.tailMap(prefix).keySet()) {
+        if (!key.startsWith(prefix)) {
+          break;
+        }
+        if (!pendingIndex.containsKey(key) || pendingIndex.get(key) != null) {
+          keys.add(key);
+        }
+      }
+    }
+    for (Entry<String, Location> entry : pendingIndex.entrySet()) {
+      if (entry.getValue() != null
+          && entry.getKey().startsWith(prefix)
+          && (deleteAll || !index.containsKey(entry.getKey()))) {
+        keys.add(entry.getKey());
+      }
+    }
+    return keys;
+  }
+}
@@ -31,34 +31,51 @@ import com.google.android.libraries.feed.host.storage.JournalOperation.Append;
 import com.google.android.libraries.feed.host.storage.JournalOperation.Copy;
 import com.google.android.libraries.feed.host.storage.JournalStorage;
 import com.google.android.libraries.feed.host.storage.JournalStorageDirect;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
 
 /**
  * Implementation of {@link JournalStorage} that persists data to disk.
  *
- * <p>Data is stored in files, with each append consisting of first the size of the bytes to write,
- * followed by the bytes themselves. For example, for a byte array of size 4, a total of 8 bytes
- * will be written: the 4 bytes representing the integer 4 (size), followed by the 4 bytes for the
- * append.
+ * <p>Each journal is stored in a file starting with the id of its parent segment, or {@link
+ * #NO_PARENT}, followed by the records appended to the journal. Each record consists of the size of
+ * the bytes, a CRC32 of the size and the bytes, and the bytes themselves. The contents of a journal
+ * are the contents of its parent segment followed by its own records.
+ *
+ * <p>Segments are immutable files with the same format, and can be shared by several journals.
+ * Copying a journal turns its file into a new segment, and makes both the source and the
+ * destination journals point to it, so that no record is copied. The references to each segment
+ * are counted in memory, and a segment is deleted as soon as no journal or segment refers to it.
+ *
+ * <p>All the appends of a {@link JournalMutation} are written with a single write. A record failing
+ * its CRC check, torn by an interrupted write or corrupted, marks the end of the valid data: it is
+ * dropped along with anything after it.
  */
 public final class PersistentJournalStorage implements JournalStorage, JournalStorageDirect {
 
   private static final String TAG = "PersistentJournal";
   /** The schema version currently in use. */
-  private static final int SCHEMA_VERSION = 1;
+  private static final int SCHEMA_VERSION = 2;
 
   private static final String SHARED_PREFERENCES = "JOURNAL_SP";
   private static final String SCHEMA_KEY = "JOURNAL_SCHEMA";
@@ -70,12 +87,52 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
   private static final String ASTERISK = "_ATK_";
   private static final int MAX_BYTE_SIZE = 1000000;
 
+  /**
+   * Prefix of the files which are not journals. Sanitized journal names never contain {@code #}.
+   */
+  private static final String INTERNAL_FILE_PREFIX = "#";
+
+  private static final String SEGMENT_PREFIX = INTERNAL_FILE_PREFIX + "segment-";
+  private static final String TEMP_PREFIX = INTERNAL_FILE_PREFIX + "tmp-";
+
+  /** Parent id of a file that has no parent segment. */
+  private static final long NO_PARENT = -1;
+
+  private static final int PARENT_BYTE_SIZE = 8;
+  private static final int RECORD_HEADER_BYTE_SIZE = 2 * INTEGER_BYTE_SIZE;
+
+  /**
+   * Maximum length of a chain of segments. When copying a journal would exceed it, the contents of
+   * the journal are rewritten in a single segment instead.
+   */
+  private static final int MAX_SEGMENT_DEPTH = 8;
+
   private final Context context;
   private final ThreadUtils threadUtils;
   private final Executor executor;
   /*@Nullable*/ private final String persistenceDir;
   private File journalDir;
 
+  // Copies rename and delete files shared by several journals, so all the accesses to the journal
+  // directory are serialized.
+  private final Object lock = new Object();
+
+  /** Id of the next segment to create. */
+  private long nextSegmentId;
+
+  /**
+   * Journals whose file is known to end with a complete record, and which can be appended to
+   * without being checked first.
+   */
+  private final Set<String> verifiedJournals = new HashSet<>();
+
+  /**
+   * Parent and number of references of the segments read from the journal directory or created
+   * since. A segment missing from this map, because the directory could not be read, is never
+   * deleted.
+   */
+  private final Map<Long, SegmentReferences> segments = new HashMap<>();
+
   /**
    * The schema of existing content. If this does not match {@code SCHEMA_VERSION}, all existing
    * content will be wiped so there are no version mismatches where data cannot be read / written
@@ -107,55 +164,139 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
 
   @Override
   public Result<List<byte[]>> read(String journalName) {
-    initializeJournalDir();
-
-    String sanitizedJournalName = sanitize(journalName);
-    if (!sanitizedJournalName.isEmpty()) {
-      File journal = new File(journalDir, sanitizedJournalName);
-      try {
-        return Result.success(getJournalContents(journal));
-      } catch (IOException e) {
-        Logger.e(TAG, "Error occured reading journal %s", journalName);
-        return Result.failure();
+    synchronized (lock) {
+      initializeJournalDir();
+
+      String sanitizedJournalName = sanitize(journalName);
+      if (!sanitizedJournalName.isEmpty()) {
+        File journal = new File(journalDir, sanitizedJournalName);
+        try {
+          return Result.success(getJournalContents(journal));
+        } catch (IOException e) {
+          Logger.e(TAG, e, "Error occured reading journal %s", journalName);
+          return Result.failure();
+        }
       }
+      return Result.failure();
     }
-    return Result.failure();
   }
 
+  /**
+   * Returns the contents of |journal|. A torn record at the end of the journal file is truncated
+   * away.
+   */
   private List<byte[]> getJournalContents(File journal) throws IOException {
     threadUtils.checkNotMainThread();
 
     List<byte[]> journalContents = new ArrayList<>();
     if (journal.exists()) {
-      // Read byte size & bytes for each entry in the journal. See class comment for more info on
-      // format.
-      try (FileInputStream inputStream = new FileInputStream(journal)) {
-        byte[] lengthBytes = new byte[INTEGER_BYTE_SIZE];
-        while (inputStream.available() > 0) {
-          readBytes(inputStream, lengthBytes, INTEGER_BYTE_SIZE);
-          int size = ByteBuffer.wrap(lengthBytes).getInt();
-          if (size > MAX_BYTE_SIZE || size < 0) {
-            throw new IOException(String.format(Locale.US, "Unexpected byte size %d", size));
-          }
-
-          byte[] contentBytes = new byte[size];
-          readBytes(inputStream, contentBytes, size);
-          journalContents.add(contentBytes);
+      ByteBuffer journalBytes = readFile(journal);
+      long parentId = readParentId(journalBytes);
+      if (parentId != NO_PARENT) {
+        getSegmentContents(parentId, journalContents);
+      }
+      int validLength = readRecords(journalBytes, journalContents);
+      if (validLength < journalBytes.limit()) {
+        Logger.w(
+            TAG,
+            "Dropping %d bytes of invalid records from journal %s",
+            journalBytes.limit() - validLength,
+            journal.getName());
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+          file.setLength(validLength);
         }
-      } catch (IOException e) {
-        Logger.e(TAG, "Error reading file", e);
-        throw new IOException("Error reading journal file", e);
       }
     }
+    verifiedJournals.add(journal.getName());
     return journalContents;
   }
 
-  private void readBytes(FileInputStream inputStream, byte[] dest, int size) throws IOException {
-    int bytesRead = inputStream.read(dest, 0, size);
-    if (bytesRead != size) {
-      throw new IOException(
-          String.format(
-              Locale.US, "Expected to read %d bytes, but read %d bytes", size, bytesRead));
+  /** Adds the contents of the segment |segmentId| and of its ancestors to |journalContents|. */
+  private void getSegmentContents(long segmentId, List<byte[]> journalContents)
+      throws IOException {
+    Deque<ByteBuffer> chain = new ArrayDeque<>();
+    while (segmentId != NO_PARENT) {
+      ByteBuffer segmentBytes = readFile(getSegmentFile(segmentId));
+      long parentId = readParentId(segmentBytes);
+      // Parents are always created before their children, this prevents cycles.
+      if (parentId >= segmentId) {
+        throw new IOException(
+            String.format(Locale.US, "Invalid parent %d for segment %d", parentId, segmentId));
+      }
+      chain.push(segmentBytes);
+      segmentId = parentId;
+    }
+    while (!chain.isEmpty()) {
+      // Segments are immutable, an invalid record and what follows it are just ignored.
+      readRecords(chain.pop(), journalContents);
+    }
+  }
+
+  /**
+   * Reads the records from the current position of |fileBytes| into |journalContents|, and returns
+   * the length of the file up to the end of the last valid record. The first record which is torn
+   * or fails its CRC check ends the valid data.
+   */
+  private static int readRecords(ByteBuffer fileBytes, List<byte[]> journalContents) {
+    CRC32 crc = new CRC32();
+    while (fileBytes.hasRemaining()) {
+      int recordStart = fileBytes.position();
+      if (fileBytes.remaining() < RECORD_HEADER_BYTE_SIZE) {
+        return recordStart;
+      }
+      int size = fileBytes.getInt();
+      int checksum = fileBytes.getInt();
+      if (size > MAX_BYTE_SIZE || size < 0 || size > fileBytes.remaining()) {
+        return recordStart;
+      }
+
+      byte[] contentBytes = new byte[size];
+      fileBytes.get(contentBytes);
+      crc.reset();
+      crc.update(fileBytes.array(), recordStart, INTEGER_BYTE_SIZE);
+      crc.update(contentBytes);
+      if ((int) crc.getValue() != checksum) {
+        if (fileBytes.hasRemaining()) {
+          // Only the last record can be torn, the records after a corrupted one cannot be trusted.
+          Logger.w(TAG, "Unexpected checksum for record at %d", recordStart);
+        }
+        return recordStart;
+      }
+      journalContents.add(contentBytes);
+    }
+    return fileBytes.position();
+  }
+
+  /**
+   * Returns the parent id stored at the start of |fileBytes|, and moves its position to the first
+   * record.
+   */
+  private static long readParentId(ByteBuffer fileBytes) {
+    return fileBytes.remaining() < PARENT_BYTE_SIZE ? NO_PARENT : fileBytes.getLong();
+  }
+
+  /** Returns the parent id of |file| without reading its records. */
+  private static long readParentId(File file) throws IOException {
+    try (FileInputStream inputStream = new FileInputStream(file);
+        FileChannel channel = inputStream.getChannel()) {
+      ByteBuffer parentBytes = ByteBuffer.allocate(PARENT_BYTE_SIZE);
+      while (parentBytes.hasRemaining() && channel.read(parentBytes) >= 0) {}
+      parentBytes.flip();
+      return readParentId(parentBytes);
+    }
+  }
+
+  private static ByteBuffer readFile(File file) throws IOException {
+    try (FileInputStream inputStream = new FileInputStream(file);
+        FileChannel channel = inputStream.getChannel()) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(String.format(Locale.US, "Unexpected file size %d", size));
+      }
+      ByteBuffer fileBytes = ByteBuffer.allocate((int) size);
+      while (fileBytes.hasRemaining() && channel.read(fileBytes) >= 0) {}
+      fileBytes.flip();
+      return fileBytes;
     }
   }
 
@@ -167,46 +308,53 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
 
   @Override
   public CommitResult commit(JournalMutation mutation) {
-    initializeJournalDir();
-
-    String sanitizedJournalName = sanitize(mutation.getJournalName());
-    if (!sanitizedJournalName.isEmpty()) {
-      File journal = new File(journalDir, sanitizedJournalName);
-
-      for (JournalOperation operation : mutation.getOperations()) {
-        if (operation.getType() == APPEND) {
-          if (!append((Append) operation, journal)) {
-            return CommitResult.FAILURE;
-          }
-        } else if (operation.getType() == COPY) {
-          if (!copy((Copy) operation, journal)) {
-            return CommitResult.FAILURE;
-          }
-        } else if (operation.getType() == DELETE) {
-          if (!delete(journal)) {
-            return CommitResult.FAILURE;
+    synchronized (lock) {
+      initializeJournalDir();
+
+      String sanitizedJournalName = sanitize(mutation.getJournalName());
+      if (!sanitizedJournalName.isEmpty()) {
+        File journal = new File(journalDir, sanitizedJournalName);
+
+        // Consecutive appends are buffered and written at once.
+        ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+        for (JournalOperation operation : mutation.getOperations()) {
+          if (operation.getType() == APPEND) {
+            writeRecord(pendingRecords, ((Append) operation).getValue());
+          } else if (operation.getType() == COPY) {
+            if (!append(pendingRecords, journal) || !copy((Copy) operation, journal)) {
+              return CommitResult.FAILURE;
+            }
+          } else if (operation.getType() == DELETE) {
+            pendingRecords.reset();
+            if (!delete(journal)) {
+              return CommitResult.FAILURE;
+            }
+          } else {
+            Logger.e(TAG, "Unrecognized journal operation type %s", operation.getType());
           }
-        } else {
-          Logger.e(TAG, "Unrecognized journal operation type %s", operation.getType());
         }
+        if (!append(pendingRecords, journal)) {
+          return CommitResult.FAILURE;
+        }
+        return CommitResult.SUCCESS;
       }
-
-      return CommitResult.SUCCESS;
+      return CommitResult.FAILURE;
     }
-    return CommitResult.FAILURE;
   }
 
   @Override
   public void deleteAll(Consumer<CommitResult> consumer) {
     threadUtils.checkMainThread();
 
-    executor.execute(() -> consumer.accept(deleteAllInitialized()));
+    executor.execute(() -> consumer.accept(deleteAll()));
   }
 
   @Override
   public CommitResult deleteAll() {
-    initializeJournalDir();
-    return deleteAllInitialized();
+    synchronized (lock) {
+      initializeJournalDir();
+      return deleteAllInitialized();
+    }
   }
 
   private CommitResult deleteAllInitialized() {
@@ -223,6 +371,8 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
         }
       }
     }
+    verifiedJournals.clear();
+    segments.clear();
     success &= journalDir.delete();
     return success ? CommitResult.SUCCESS : CommitResult.FAILURE;
   }
@@ -230,12 +380,16 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
   private boolean delete(File journal) {
     threadUtils.checkNotMainThread();
 
+    verifiedJournals.remove(journal.getName());
     if (!journal.exists()) {
       // If the file doesn't exist, let's call it deleted.
       return true;
     }
+    long parentId = getParentIdToRelease(journal);
     boolean result = journal.delete();
-    if (!result) {
+    if (result) {
+      releaseSegment(parentId);
+    } else {
       Logger.e(TAG, "Error deleting journal %s", journal.getName());
     }
     return result;
@@ -245,15 +399,16 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
     threadUtils.checkNotMainThread();
 
     try {
-      if (!journal.exists()) {
-        Logger.w(TAG, "Journal file %s does not exist, creating empty version", journal.getName());
-        if (!journal.createNewFile()) {
-          Logger.e(TAG, "Journal file %s exists while trying to create it", journal.getName());
-        }
-      }
       String sanitizedDestJournalName = sanitize(operation.getToJournalName());
       if (!sanitizedDestJournalName.isEmpty()) {
-        copyFile(journal, sanitizedDestJournalName);
+        long segmentId = shareJournal(journal);
+        File destination = new File(journalDir, sanitizedDestJournalName);
+        long previousParentId = getParentIdToRelease(destination);
+        writeJournalFile(destination, segmentId, new byte[0]);
+        verifiedJournals.add(destination.getName());
+        // Acquired first, the segment is kept when the destination already pointed to it.
+        acquireSegment(segmentId);
+        releaseSegment(previousParentId);
         return true;
       }
     } catch (IOException e) {
@@ -267,62 +422,278 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
     return false;
   }
 
-  private void copyFile(File journal, String destinationFileName) throws IOException {
-    InputStream inputStream = null;
-    OutputStream outputStream = null;
-    try {
-      File destination = new File(journalDir, destinationFileName);
-      inputStream = new FileInputStream(journal);
-      outputStream = new FileOutputStream(destination);
-      byte[] bytes = new byte[512];
-      int length;
-      while ((length = inputStream.read(bytes)) > 0) {
-        outputStream.write(bytes, 0, length);
+  /**
+   * Moves the contents of |journal| to an immutable segment which its file then points to, and
+   * returns the id of this segment, or {@link #NO_PARENT} if the journal is empty.
+   */
+  private long shareJournal(File journal) throws IOException {
+    if (!journal.exists()) {
+      Logger.w(TAG, "Journal file %s does not exist, creating empty version", journal.getName());
+      writeJournalFile(journal, NO_PARENT, new byte[0]);
+      return NO_PARENT;
+    }
+    if (journal.length() <= PARENT_BYTE_SIZE) {
+      // The journal has no record of its own, its parent can be shared as is.
+      return readParentId(journal);
+    }
+
+    long segmentId = nextSegmentId++;
+    File segment = getSegmentFile(segmentId);
+    long parentId = readParentId(journal);
+    if (getSegmentDepth(parentId) >= MAX_SEGMENT_DEPTH) {
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      for (byte[] value : getJournalContents(journal)) {
+        writeRecord(records, value);
       }
-    } finally {
-      if (inputStream != null) {
-        inputStream.close();
+      writeJournalFile(segment, NO_PARENT, records.toByteArray());
+    } else {
+      if (!verifiedJournals.contains(journal.getName())) {
+        // Drops a torn record before the file becomes immutable.
+        getJournalContents(journal);
       }
-      if (outputStream != null) {
-        outputStream.close();
+      // The new journal file is written first, so that an interrupted copy can be completed by
+      // recoverTempFiles().
+      File tempJournal = writeTempFile(journal, segmentId, new byte[0]);
+      if (!journal.renameTo(segment)) {
+        tempJournal.delete();
+        throw new IOException("Error moving journal " + journal.getName() + " to a segment");
       }
+      replaceFile(tempJournal, journal);
+      // The reference of the journal to its parent now belongs to the segment.
+      segments.put(segmentId, new SegmentReferences(parentId, 1));
+      return segmentId;
     }
+    writeJournalFile(journal, segmentId, new byte[0]);
+    segments.put(segmentId, new SegmentReferences(NO_PARENT, 1));
+    releaseSegment(parentId);
+    return segmentId;
   }
 
-  private boolean append(Append operation, File journal) {
-    threadUtils.checkNotMainThread();
+  private int getSegmentDepth(long segmentId) throws IOException {
+    int depth = 0;
+    while (segmentId != NO_PARENT) {
+      depth++;
+      SegmentReferences references = segments.get(segmentId);
+      segmentId =
+          references != null ? references.parentId : readParentId(getSegmentFile(segmentId));
+    }
+    return depth;
+  }
 
-    if (!journal.exists()) {
-      try {
-        journal.createNewFile();
-      } catch (IOException e) {
-        Logger.e(TAG, "Could not create file to append to for journal %s.", journal.getName());
-        return false;
+  /** Atomically replaces |file| with a file pointing to |parentId| and holding |records|. */
+  private void writeJournalFile(File file, long parentId, byte[] records) throws IOException {
+    replaceFile(writeTempFile(file, parentId, records), file);
+  }
+
+  /**
+   * Writes and syncs the temporary file which will replace |file|, pointing to |parentId| and
+   * holding |records|.
+   */
+  private File writeTempFile(File file, long parentId, byte[] records) throws IOException {
+    File tempFile = new File(journalDir, TEMP_PREFIX + file.getName());
+    try (FileOutputStream outputStream = new FileOutputStream(tempFile);
+        FileChannel channel = outputStream.getChannel()) {
+      ByteBuffer[] buffers = {
+        ByteBuffer.allocate(PARENT_BYTE_SIZE).putLong(0, parentId), ByteBuffer.wrap(records)
+      };
+      while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+        channel.write(buffers);
       }
+      // The content has to reach the disk before the rename does, otherwise a crash could leave
+      // an empty or torn file in place of the journal or segment being replaced.
+      channel.force(true);
+    }
+    return tempFile;
+  }
+
+  private static void replaceFile(File tempFile, File file) throws IOException {
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      throw new IOException("Error replacing file " + file.getName());
     }
+  }
 
-    byte[] journalBytes = operation.getValue();
+  /**
+   * Completes the replacements interrupted after their temporary file was written, if the file to
+   * replace is missing.
+   */
+  private void recoverTempFiles() {
+    File[] files = journalDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().startsWith(TEMP_PREFIX)) {
+        File target = new File(journalDir, file.getName().substring(TEMP_PREFIX.length()));
+        if (!target.exists() && !file.renameTo(target)) {
+          Logger.w(TAG, "Error recovering journal file %s", target.getName());
+        }
+      }
+    }
+  }
+
+  /** Writes |journalBytes| as a record to |records|. See class comment for more info on format. */
+  private static void writeRecord(ByteArrayOutputStream records, byte[] journalBytes) {
     byte[] sizeBytes = ByteBuffer.allocate(INTEGER_BYTE_SIZE).putInt(journalBytes.length).array();
-    return writeBytes(journal, sizeBytes, journalBytes);
+    CRC32 crc = new CRC32();
+    crc.update(sizeBytes);
+    crc.update(journalBytes);
+    records.write(sizeBytes, 0, INTEGER_BYTE_SIZE);
+    records.write(
+        ByteBuffer.allocate(INTEGER_BYTE_SIZE).putInt((int) crc.getValue()).array(),
+        0,
+        INTEGER_BYTE_SIZE);
+    records.write(journalBytes, 0, journalBytes.length);
   }
 
-  /** Write byte size & bytes into the journal. See class comment for more info on format. */
-  private boolean writeBytes(File journal, byte[] sizeBytes, byte[] journalBytes) {
-    try (FileOutputStream out = new FileOutputStream(journal, /* append= */ true)) {
-      out.write(sizeBytes);
-      out.write(journalBytes);
+  /** Appends |pendingRecords| to |journal| with a single write, and then clears them. */
+  private boolean append(ByteArrayOutputStream pendingRecords, File journal) {
+    if (pendingRecords.size() == 0) {
+      return true;
+    }
+    threadUtils.checkNotMainThread();
+
+    try {
+      if (!verifiedJournals.contains(journal.getName()) && journal.exists()) {
+        // Records appended after a torn record would be unreadable.
+        getJournalContents(journal);
+      }
+      try (FileOutputStream out = new FileOutputStream(journal, /* append= */ true);
+          FileChannel channel = out.getChannel()) {
+        ByteBuffer parentBytes = ByteBuffer.allocate(PARENT_BYTE_SIZE).putLong(0, NO_PARENT);
+        if (channel.size() > 0) {
+          parentBytes.position(PARENT_BYTE_SIZE);
+        }
+        ByteBuffer[] buffers = {parentBytes, ByteBuffer.wrap(pendingRecords.toByteArray())};
+        while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+          channel.write(buffers);
+        }
+      }
+      verifiedJournals.add(journal.getName());
+      pendingRecords.reset();
       return true;
     } catch (IOException e) {
       Logger.e(
           TAG,
-          "Error appending byte[] %s (size byte[] %s) for journal %s",
-          journalBytes,
-          sizeBytes,
+          e,
+          "Error appending %d bytes of records for journal %s",
+          pendingRecords.size(),
           journal.getName());
+      // A partial write leaves a torn record to be dropped before the next append.
+      verifiedJournals.remove(journal.getName());
       return false;
     }
   }
 
+  /**
+   * Counts the references to each segment of the journal directory, and deletes the segments and
+   * temporary files which are not used by any journal.
+   */
+  private void loadSegments() {
+    segments.clear();
+    File[] files = journalDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Map<Long, SegmentReferences> loadedSegments = new HashMap<>();
+    List<Long> parentIds = new ArrayList<>();
+    try {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(SEGMENT_PREFIX)) {
+          long segmentId = getSegmentId(name);
+          if (segmentId != NO_PARENT) {
+            long parentId = readParentId(file);
+            loadedSegments.put(segmentId, new SegmentReferences(parentId, 0));
+            parentIds.add(parentId);
+          }
+        } else if (!name.startsWith(INTERNAL_FILE_PREFIX)) {
+          parentIds.add(readParentId(file));
+        }
+      }
+    } catch (IOException e) {
+      // Deleting anything now could lose data still referenced by a journal.
+      Logger.e(TAG, e, "Error reading journal segments, keeping all segments");
+      return;
+    }
+    for (long parentId : parentIds) {
+      SegmentReferences references = loadedSegments.get(parentId);
+      if (references != null) {
+        references.count++;
+      }
+    }
+    segments.putAll(loadedSegments);
+
+    for (File file : files) {
+      if (file.getName().startsWith(TEMP_PREFIX) && !file.delete()) {
+        Logger.w(TAG, "Error deleting temporary journal file %s", file.getName());
+      }
+    }
+    for (long segmentId : loadedSegments.keySet()) {
+      SegmentReferences references = segments.get(segmentId);
+      // Deleting a segment can release its parent, which is then already deleted.
+      if (references != null && references.count == 0) {
+        deleteSegment(segmentId);
+      }
+    }
+  }
+
+  /**
+   * Returns the parent segment of |journal|, whose reference is dropped when the journal is
+   * replaced or deleted. A parent which cannot be read is reported as {@link #NO_PARENT}, and is
+   * kept until the next start.
+   */
+  private long getParentIdToRelease(File journal) {
+    if (!journal.exists()) {
+      return NO_PARENT;
+    }
+    try {
+      return readParentId(journal);
+    } catch (IOException e) {
+      Logger.w(TAG, "Error reading the parent segment of journal %s", journal.getName());
+      return NO_PARENT;
+    }
+  }
+
+  /** Adds a reference to the segment |segmentId|. */
+  private void acquireSegment(long segmentId) {
+    SegmentReferences references = segments.get(segmentId);
+    if (references != null) {
+      references.count++;
+    }
+  }
+
+  /** Drops a reference to the segment |segmentId|, and deletes it if it was the last one. */
+  private void releaseSegment(long segmentId) {
+    SegmentReferences references = segments.get(segmentId);
+    if (references != null && --references.count == 0) {
+      deleteSegment(segmentId);
+    }
+  }
+
+  /** Deletes the unreferenced segment |segmentId|, and drops its reference to its parent. */
+  private void deleteSegment(long segmentId) {
+    SegmentReferences references = segments.remove(segmentId);
+    if (!getSegmentFile(segmentId).delete()) {
+      // The parent stays referenced by the file left behind.
+      Logger.w(TAG, "Error deleting unreferenced journal segment %d", segmentId);
+      return;
+    }
+    releaseSegment(references.parentId);
+  }
+
+  private File getSegmentFile(long segmentId) {
+    return new File(journalDir, SEGMENT_PREFIX + segmentId);
+  }
+
+  private static long getSegmentId(String segmentFileName) {
+    try {
+      return Long.parseLong(segmentFileName.substring(SEGMENT_PREFIX.length()));
+    } catch (NumberFormatException e) {
+      return NO_PARENT;
+    }
+  }
+
   @Override
   public void exists(String journalName, Consumer<Result<Boolean>> consumer) {
     threadUtils.checkMainThread();
@@ -331,14 +702,16 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
 
   @Override
   public Result<Boolean> exists(String journalName) {
-    initializeJournalDir();
+    synchronized (lock) {
+      initializeJournalDir();
 
-    String sanitizedJournalName = sanitize(journalName);
-    if (!sanitizedJournalName.isEmpty()) {
-      File journal = new File(journalDir, sanitizedJournalName);
-      return Result.success(journal.exists());
+      String sanitizedJournalName = sanitize(journalName);
+      if (!sanitizedJournalName.isEmpty()) {
+        File journal = new File(journalDir, sanitizedJournalName);
+        return Result.success(journal.exists());
+      }
+      return Result.failure();
     }
-    return Result.failure();
   }
 
   @Override
@@ -349,19 +722,24 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
 
   @Override
   public Result<List<String>> getAllJournals() {
-    initializeJournalDir();
-
-    File[] files = journalDir.listFiles();
-    List<String> journals = new ArrayList<>();
-    if (files != null) {
-      for (File file : files) {
-        String desanitizedFileName = desanitize(file.getName());
-        if (!desanitizedFileName.isEmpty()) {
-          journals.add(desanitizedFileName);
+    synchronized (lock) {
+      initializeJournalDir();
+
+      File[] files = journalDir.listFiles();
+      List<String> journals = new ArrayList<>();
+      if (files != null) {
+        for (File file : files) {
+          if (file.getName().startsWith(INTERNAL_FILE_PREFIX)) {
+            continue;
+          }
+          String desanitizedFileName = desanitize(file.getName());
+          if (!desanitizedFileName.isEmpty()) {
+            journals.add(desanitizedFileName);
+          }
         }
       }
+      return Result.success(journals);
     }
-    return Result.success(journals);
   }
 
   private void initializeJournalDir() {
@@ -404,6 +782,18 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
         Logger.w(TAG, "journal directory already exists");
       }
     }
+
+    // Clean up after an interrupted copy, and never reuse a segment id.
+    recoverTempFiles();
+    loadSegments();
+    File[] files = journalDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().startsWith(SEGMENT_PREFIX)) {
+          nextSegmentId = Math.max(nextSegmentId, getSegmentId(file.getName()) + 1);
+        }
+      }
+    }
   }
 
   @VisibleForTesting
@@ -431,4 +821,15 @@ public final class PersistentJournalStorage implements JournalStorage, JournalSt
       return "";
     }
   }
+
+  /** The parent of a segment, and the number of journals and segments pointing to it. */
+  private static final class SegmentReferences {
+    private final long parentId;
+    private int count;
+
+    private SegmentReferences(long parentId, int count) {
+      this.parentId = parentId;
+      this.count = count;
+    }
+  }
 }
@@ -73,9 +73,12 @@ class AdapterFactory<A extends ElementAdapter<?, M>, M> {
     this.statistics = new Statistics(keySupplier.getAdapterTag());
     if (keySupplier instanceof SingletonKeySupplier) {
       recyclingPool =
-          new SingleKeyRecyclerPool<>(SingletonKeySupplier.SINGLETON_KEY, DEFAULT_POOL_SIZE);
+          new SingleKeyRecyclerPool<>(
+              SingletonKeySupplier.SINGLETON_KEY, DEFAULT_POOL_SIZE, parameters.recyclerPoolBudget);
     } else {
-      recyclingPool = new KeyedRecyclerPool<>(DEFAULT_NUM_POOLS, DEFAULT_POOL_SIZE);
+      recyclingPool =
+          new KeyedRecyclerPool<>(
+              DEFAULT_NUM_POOLS, DEFAULT_POOL_SIZE, parameters.recyclerPoolBudget);
     }
   }
 
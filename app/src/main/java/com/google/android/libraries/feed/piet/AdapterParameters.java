@@ -32,13 +32,18 @@ class AdapterParameters {
   private static final int DEFAULT_TEMPLATE_POOL_SIZE = 100;
   private static final int DEFAULT_NUM_TEMPLATE_POOLS = 30;
 
+  // Total number of adapters held by the template and element pools.
+  private static final int DEFAULT_RECYCLER_POOL_BUDGET = 400;
+
   final Context context;
   final Supplier</*@Nullable*/ ViewGroup> parentViewSupplier;
   final HostProviders hostProviders;
   final ParameterizedTextEvaluator templatedStringEvaluator;
   final ElementAdapterFactory elementAdapterFactory;
   final TemplateBinder templateBinder;
+  final RecyclerPoolBudget recyclerPoolBudget;
   final StyleProvider defaultStyleProvider;
+  final ResolvedStyleCache resolvedStyleCache;
   final Clock clock;
 
   // Doesn't like passing "this" to the new ElementAdapterFactory; however, nothing in the factory's
@@ -56,13 +61,17 @@ class AdapterParameters {
 
     templatedStringEvaluator = new ParameterizedTextEvaluator(clock);
 
+    // Must be set before the ElementAdapterFactory creates the element pools.
+    recyclerPoolBudget = new RecyclerPoolBudget(DEFAULT_RECYCLER_POOL_BUDGET);
     KeyedRecyclerPool<ElementAdapter<? extends View, ?>> templateRecyclerPool =
-        new KeyedRecyclerPool<>(DEFAULT_NUM_TEMPLATE_POOLS, DEFAULT_TEMPLATE_POOL_SIZE);
+        new KeyedRecyclerPool<>(
+            DEFAULT_NUM_TEMPLATE_POOLS, DEFAULT_TEMPLATE_POOL_SIZE, recyclerPoolBudget);
     elementAdapterFactory = new ElementAdapterFactory(context, this, templateRecyclerPool);
     templateBinder = new TemplateBinder(templateRecyclerPool, elementAdapterFactory);
 
     this.defaultStyleProvider =
         new StyleProvider(StyleProvider.DEFAULT_STYLE, hostProviders.getAssetProvider());
+    this.resolvedStyleCache = new ResolvedStyleCache();
   }
 
   /** Testing-only constructor for mocking the internally-constructed objects. */
@@ -82,8 +91,10 @@ class AdapterParameters {
     this.templatedStringEvaluator = templatedStringEvaluator;
     this.elementAdapterFactory = elementAdapterFactory;
     this.templateBinder = templateBinder;
+    this.recyclerPoolBudget = new RecyclerPoolBudget(DEFAULT_RECYCLER_POOL_BUDGET);
     this.defaultStyleProvider =
         new StyleProvider(StyleProvider.DEFAULT_STYLE, hostProviders.getAssetProvider());
+    this.resolvedStyleCache = new ResolvedStyleCache();
     this.clock = clock;
   }
 }
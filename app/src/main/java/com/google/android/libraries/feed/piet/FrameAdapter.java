@@ -198,6 +198,7 @@ public class FrameAdapter {
         new DebugLogger(),
         actionHandler,
         parameters.hostProviders,
+        parameters.resolvedStyleCache,
         context,
         frameView);
   }
@@ -83,6 +83,9 @@ class FrameContext {
   // The Current Stylesheet as a map from style_id to Style.
   private final Map<String, Style> stylesheet;
 
+  // The Stylesheet the current stylesheet map was created from, which keys the resolved styles.
+  private final Stylesheet stylesheetSource;
+
   // The in-scope bindings as a map from state_id to binding value
   private final Map<String, BindingValue> bindingValues;
 
@@ -97,6 +100,7 @@ class FrameContext {
   FrameContext(
       Frame frame,
       Map<String, Style> stylesheet,
+      Stylesheet stylesheetSource,
       List<PietSharedState> pietSharedStates,
       PietStylesHelper pietStylesHelper,
       DebugBehavior debugBehavior,
@@ -107,6 +111,7 @@ class FrameContext {
     this(
         frame,
         stylesheet,
+        stylesheetSource,
         new ThrowingEmptyMap(),
         DEFAULT_STYLE,
         pietSharedStates,
@@ -132,6 +137,7 @@ class FrameContext {
   FrameContext(
       Frame frame,
       Map<String, Style> stylesheet,
+      Stylesheet stylesheetSource,
       Map<String, BindingValue> bindingValues,
       Style baseStyle,
       List<PietSharedState> pietSharedStates,
@@ -144,6 +150,7 @@ class FrameContext {
       View frameView) {
     currentFrame = frame;
     this.stylesheet = stylesheet;
+    this.stylesheetSource = stylesheetSource;
     this.bindingValues = bindingValues;
     this.baseStyle = baseStyle;
     this.stylesHelper = pietStylesHelper;
@@ -169,16 +176,27 @@ class FrameContext {
       DebugLogger debugLogger,
       ActionHandler actionHandler,
       HostProviders hostProviders,
+      ResolvedStyleCache resolvedStyleCache,
       Context context,
       View frameView) {
     PietStylesHelper pietStylesHelper =
         new PietStylesHelper(
-            pietSharedStates, frameWidthPx, hostProviders.getAssetProvider(), context);
+            pietSharedStates,
+            frameWidthPx,
+            hostProviders.getAssetProvider(),
+            context,
+            resolvedStyleCache);
     NoKeyOverwriteHashMap<String, Style> styleMap = null;
+    Stylesheet stylesheetSource = null;
     if (frame.hasStylesheetId()) {
       styleMap = pietStylesHelper.getStylesheetMap(frame.getStylesheetId());
+      stylesheetSource = pietStylesHelper.getStylesheet(frame.getStylesheetId());
     } else if (frame.hasStylesheet()) {
       styleMap = pietStylesHelper.createMapFromStylesheet(frame.getStylesheet());
+      stylesheetSource = frame.getStylesheet();
+    }
+    if (stylesheetSource == null) {
+      stylesheetSource = Stylesheet.getDefaultInstance();
     }
 
     if (styleMap == null) {
@@ -188,6 +206,7 @@ class FrameContext {
         new FrameContext(
             frame,
             styleMap,
+            stylesheetSource,
             pietSharedStates,
             pietStylesHelper,
             debugBehavior,
@@ -224,17 +243,23 @@ class FrameContext {
   FrameContext createTemplateContext(Template template, BindingContext bindingContext) {
     Map<String, BindingValue> bindingValues = createBindingValueMap(bindingContext);
     Map<String, Style> localStylesheet;
+    Stylesheet localStylesheetSource = null;
 
     switch (template.getTemplateStylesheetCase()) {
       case STYLESHEET:
         localStylesheet = stylesHelper.createMapFromStylesheet(template.getStylesheet());
+        localStylesheetSource = template.getStylesheet();
         break;
       case STYLESHEET_ID:
         localStylesheet = stylesHelper.getStylesheetMap(template.getStylesheetId());
+        localStylesheetSource = stylesHelper.getStylesheet(template.getStylesheetId());
         break;
       default:
         localStylesheet = new HashMap<>();
     }
+    if (localStylesheetSource == null) {
+      localStylesheetSource = Stylesheet.getDefaultInstance();
+    }
 
     Style templateBaseStyle;
     if (template.hasChildDefaultStyleIds()) {
@@ -251,18 +276,22 @@ class FrameContext {
         childDefaultStyleIds = childDefaultStyleIds.toBuilder().clearStyleBinding().build();
       }
       templateBaseStyle =
-          PietStylesHelper.mergeStyleIdsStack(
-              DEFAULT_STYLE,
-              childDefaultStyleIds,
-              localStylesheet,
-              null // Null because the new FrameContext has not been set up yet
-              );
+          stylesHelper
+              .getStyleProvider(
+                  DEFAULT_STYLE,
+                  childDefaultStyleIds,
+                  localStylesheet,
+                  localStylesheetSource,
+                  null // Null because the new FrameContext has not been set up yet
+                  )
+              .getStyle();
     } else {
       templateBaseStyle = DEFAULT_STYLE;
     }
     return new FrameContext(
         currentFrame,
         localStylesheet,
+        localStylesheetSource,
         bindingValues,
         templateBaseStyle,
         pietSharedStates,
@@ -310,9 +339,7 @@ class FrameContext {
 
   /** Return a {@link StyleProvider} for the style. */
   public StyleProvider makeStyleFor(StyleIdsStack styles) {
-    return new StyleProvider(
-        PietStylesHelper.mergeStyleIdsStack(baseStyle, styles, stylesheet, this),
-        hostProviders.getAssetProvider());
+    return stylesHelper.getStyleProvider(baseStyle, styles, stylesheet, stylesheetSource, this);
   }
 
   /**
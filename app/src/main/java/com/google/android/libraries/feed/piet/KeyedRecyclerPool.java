@@ -17,20 +17,39 @@ package com.google.android.libraries.feed.piet;
 import static com.google.android.libraries.feed.common.Validators.checkNotNull;
 
 import android.util.LruCache;
+import java.util.Map;
 
 /**
- * This is a simple implementation of a recycling pool for Adapters.
- *
- * <p>TODO: This should be made real so it supports control of the pool size
+ * A recycling pool for Adapters with a {@link SingleKeyRecyclerPool} per key. The least recently
+ * used keys are evicted when there are too many of them, and all the pools share a {@link
+ * RecyclerPoolBudget} bounding the total number of pooled adapters.
  */
 class KeyedRecyclerPool<A extends ElementAdapter<?, ?>> implements RecyclerPool<A> {
 
   private final LruCache<RecyclerKey, SingleKeyRecyclerPool<A>> poolMap;
   private final int capacityPerPool;
+  private final RecyclerPoolBudget budget;
 
-  KeyedRecyclerPool(int maxKeys, int capacityPerPool) {
-    poolMap = new LruCache<>(maxKeys);
+  // Statistics, see toString()
+  private int unknownKeyMissCount = 0;
+  private int removedKeyCount = 0;
+
+  KeyedRecyclerPool(int maxKeys, int capacityPerPool, RecyclerPoolBudget budget) {
+    poolMap =
+        new LruCache<RecyclerKey, SingleKeyRecyclerPool<A>>(maxKeys) {
+          @Override
+          protected void entryRemoved(
+              boolean evicted,
+              RecyclerKey key,
+              SingleKeyRecyclerPool<A> oldValue,
+              /*@Nullable*/ SingleKeyRecyclerPool<A> newValue) {
+            // Give the adapters of the removed key back to the budget.
+            oldValue.clear();
+            removedKeyCount++;
+          }
+        };
     this.capacityPerPool = capacityPerPool;
+    this.budget = budget;
   }
 
   @Override
@@ -41,6 +60,7 @@ class KeyedRecyclerPool<A extends ElementAdapter<?, ?>> implements RecyclerPool<
     }
     SingleKeyRecyclerPool<A> pool = poolMap.get(key);
     if (pool == null) {
+      unknownKeyMissCount++;
       return null;
     } else {
       return pool.get(key);
@@ -52,14 +72,39 @@ class KeyedRecyclerPool<A extends ElementAdapter<?, ?>> implements RecyclerPool<
     checkNotNull(key, "null key for %s", adapter);
     SingleKeyRecyclerPool<A> pool = poolMap.get(key);
     if (pool == null) {
-      pool = new SingleKeyRecyclerPool<>(key, capacityPerPool);
+      pool = new SingleKeyRecyclerPool<>(key, capacityPerPool, budget);
       poolMap.put(key, pool);
     }
     pool.put(key, adapter);
   }
 
+  /** Returns whether adapters have been pooled for {@code key} since it was last evicted. */
+  boolean hasPool(RecyclerKey key) {
+    return poolMap.get(key) != null;
+  }
+
   @Override
   public void clear() {
     poolMap.evictAll();
   }
+
+  @Override
+  public String toString() {
+    // String used to show statistics during debugging in Android Studio.
+    StringBuilder builder =
+        new StringBuilder("KeyedPool: Keys: ")
+            .append(poolMap.size())
+            .append(", Unknown key misses: ")
+            .append(unknownKeyMissCount)
+            .append(", Removed keys: ")
+            .append(removedKeyCount)
+            .append(", Budget: ")
+            .append(budget.getPooledAdapters())
+            .append("/")
+            .append(budget.getCapacity());
+    for (Map.Entry<RecyclerKey, SingleKeyRecyclerPool<A>> entry : poolMap.snapshot().entrySet()) {
+      builder.append("\n  ").append(entry.getValue());
+    }
+    return builder.toString();
+  }
 }
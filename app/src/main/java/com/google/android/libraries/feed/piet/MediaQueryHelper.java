@@ -38,6 +38,18 @@ public class MediaQueryHelper {
     this.context = context;
   }
 
+  int getFrameWidthPx() {
+    return frameWidthPx;
+  }
+
+  int getDeviceOrientation() {
+    return context.getResources().getConfiguration().orientation;
+  }
+
+  boolean isDarkTheme() {
+    return assetProvider.isDarkTheme();
+  }
+
   boolean areMediaQueriesMet(List<MediaQueryCondition> conditions) {
     for (MediaQueryCondition condition : conditions) {
       if (!isMediaQueryMet(condition)) {
@@ -69,7 +81,7 @@ public class MediaQueryHelper {
                     "Unhandled ComparisonCondition: %s", condition.getFrameWidth().getCondition()));
         }
       case ORIENTATION:
-        int deviceOrientation = context.getResources().getConfiguration().orientation;
+        int deviceOrientation = getDeviceOrientation();
         switch (condition.getOrientation().getOrientation()) {
           case LANDSCAPE:
             return deviceOrientation == Configuration.ORIENTATION_LANDSCAPE;
@@ -88,12 +100,12 @@ public class MediaQueryHelper {
       case DARK_LIGHT:
         switch (condition.getDarkLight().getMode()) {
           case DARK:
-            return assetProvider.isDarkTheme();
+            return isDarkTheme();
           case UNSPECIFIED:
             Logger.w(TAG, "Got UNSPECIFIED DarkLightMode; defaulting to LIGHT");
             // fall through
           case LIGHT:
-            return !assetProvider.isDarkTheme();
+            return !isDarkTheme();
           default:
             throw new PietFatalException(
                 ErrorCode.ERR_INVALID_MEDIA_QUERY_CONDITION,
@@ -80,6 +80,9 @@ public class PietManager {
   AdapterParameters getAdapterParameters(
       Context context, Supplier</*@Nullable*/ ViewGroup> cardViewProducer) {
     if (adapterParameters == null || adapterParameters.context != context) {
+      if (adapterParameters != null) {
+        adapterParameters.templateBinder.cancelWarmUps();
+      }
       adapterParameters =
           new AdapterParameters(
               context,
@@ -93,6 +96,7 @@ public class PietManager {
   public void purgeRecyclerPools() {
     if (adapterParameters != null) {
       adapterParameters.elementAdapterFactory.purgeRecyclerPools();
+      adapterParameters.templateBinder.cancelWarmUps();
     }
   }
 }
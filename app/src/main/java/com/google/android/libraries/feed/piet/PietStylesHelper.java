@@ -43,13 +43,19 @@ public class PietStylesHelper {
       new NoKeyOverwriteHashMap<>("Template", ErrorCode.ERR_DUPLICATE_TEMPLATE);
 
   private final MediaQueryHelper mediaQueryHelper;
+  private final AssetProvider assetProvider;
+  private final ResolvedStyleCache resolvedStyleCache;
 
   PietStylesHelper(
       List<PietSharedState> pietSharedStates,
       int frameWidthPx,
       AssetProvider assetProvider,
-      Context context) {
+      Context context,
+      ResolvedStyleCache resolvedStyleCache) {
     mediaQueryHelper = new MediaQueryHelper(frameWidthPx, assetProvider, context);
+    this.assetProvider = assetProvider;
+    this.resolvedStyleCache = resolvedStyleCache;
+    resolvedStyleCache.onMediaQueryState(mediaQueryHelper);
     for (PietSharedState sharedState : pietSharedStates) {
       if (sharedState.getStylesheetsCount() > 0) {
         for (Stylesheet stylesheet : sharedState.getStylesheetsList()) {
@@ -113,19 +119,61 @@ public class PietStylesHelper {
   }
 
   /**
-   * Given a StyleIdsStack, a base style, and a styleMap that contains the styles definition,
-   * returns a Style that is the proto-merge of all the styles in the stack, starting with the base.
+   * Returns a {@link StyleProvider} for the merge of the styles in the stack, starting with the
+   * base. {@code styleMap} must have been created from {@code stylesheet}. The merge of the style
+   * ids is cached across frames for shared stylesheets, only the style binding is applied on each
+   * call.
    */
-  static Style mergeStyleIdsStack(
+  StyleProvider getStyleProvider(
       Style baseStyle,
       StyleIdsStack stack,
       Map<String, Style> styleMap,
+      Stylesheet stylesheet,
       /*@Nullable*/ FrameContext frameContext) {
-    Style.Builder mergedStyle = baseStyle.toBuilder();
-    for (String style : stack.getStyleIdsList()) {
-      if (styleMap.containsKey(style)) {
-        mergedStyle.mergeFrom(styleMap.get(style)).build();
+    List<String> styleIds = stack.getStyleIdsList();
+    boolean cacheable = isSharedStylesheet(stylesheet);
+    StyleProvider resolvedStyle =
+        cacheable ? resolvedStyleCache.get(stylesheet, baseStyle, styleIds) : null;
+    if (resolvedStyle == null) {
+      Style.Builder mergedStyle = baseStyle.toBuilder();
+      boolean allStylesFound = mergeStyleIds(mergedStyle, styleIds, styleMap, frameContext);
+      resolvedStyle = new StyleProvider(mergedStyle.build(), assetProvider);
+      // Missing styles are not cached so that they are reported for every frame.
+      if (cacheable && allStylesFound) {
+        resolvedStyleCache.put(stylesheet, baseStyle, styleIds, resolvedStyle);
+      }
+    }
+    if (!stack.hasStyleBinding()) {
+      return resolvedStyle;
+    }
+    Style.Builder boundStyle = resolvedStyle.getStyle().toBuilder();
+    mergeStyleBinding(boundStyle, stack, frameContext);
+    return new StyleProvider(boundStyle.build(), assetProvider);
+  }
+
+  /**
+   * Returns whether {@code stylesheet} comes from the shared states rather than being inlined in a
+   * frame or template. The default stylesheet used when there is none is shared too.
+   */
+  @SuppressWarnings("ReferenceEquality")
+  private boolean isSharedStylesheet(Stylesheet stylesheet) {
+    return stylesheet == Stylesheet.getDefaultInstance()
+        || stylesheets.get(stylesheet.getStylesheetId()) == stylesheet;
+  }
+
+  /** Merges the styles into {@code mergedStyle}, returns false if a style was not found. */
+  private static boolean mergeStyleIds(
+      Style.Builder mergedStyle,
+      List<String> styleIds,
+      Map<String, Style> styleMap,
+      /*@Nullable*/ FrameContext frameContext) {
+    boolean allStylesFound = true;
+    for (String style : styleIds) {
+      Style styleDefinition = styleMap.get(style);
+      if (styleDefinition != null) {
+        mergedStyle.mergeFrom(styleDefinition);
       } else {
+        allStylesFound = false;
         String error =
             String.format("Unable to bind style [%s], style not found in Stylesheet", style);
         if (frameContext != null) {
@@ -134,6 +182,11 @@ public class PietStylesHelper {
         Logger.w(TAG, error);
       }
     }
+    return allStylesFound;
+  }
+
+  private static void mergeStyleBinding(
+      Style.Builder mergedStyle, StyleIdsStack stack, /*@Nullable*/ FrameContext frameContext) {
     if (stack.hasStyleBinding()) {
       // LINT.IfChange
       FrameContext localFrameContext =
@@ -158,6 +211,5 @@ public class PietStylesHelper {
       }
       // LINT.ThenChange
     }
-    return mergedStyle.build();
   }
 }
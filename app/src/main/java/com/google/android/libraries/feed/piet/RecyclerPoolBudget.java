@@ -0,0 +1,51 @@
+// Copyright 2019 The Feed Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.android.libraries.feed.piet;
+
+/**
+ * Limits the number of adapters held by all the {@link RecyclerPool}s sharing an instance, so that
+ * the memory held for recycling doesn't grow with the number of distinct keys. Only used on the
+ * main thread.
+ */
+class RecyclerPoolBudget {
+  private final int capacity;
+  private int pooledAdapters = 0;
+
+  RecyclerPoolBudget(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /** Reserves room for one more pooled adapter, returns false if the budget is exhausted. */
+  boolean tryAcquire() {
+    if (pooledAdapters >= capacity) {
+      return false;
+    }
+    pooledAdapters++;
+    return true;
+  }
+
+  /** Gives back the room of {@code count} adapters which left their pool. */
+  void release(int count) {
+    pooledAdapters -= count;
+  }
+
+  int getPooledAdapters() {
+    return pooledAdapters;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+}
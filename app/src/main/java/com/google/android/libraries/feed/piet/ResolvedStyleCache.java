@@ -0,0 +1,117 @@
+// Copyright 2019 The Feed Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.android.libraries.feed.piet;
+
+import android.util.LruCache;
+import com.google.search.now.ui.piet.PietProto.Stylesheet;
+import com.google.search.now.ui.piet.StylesProto.Style;
+import java.util.List;
+
+/**
+ * Bounded cache of the {@link StyleProvider} resolved from a {@link Stylesheet}, a base style and a
+ * list of style ids, shared by all the frames bound by a {@link PietManager}.
+ *
+ * <p>The styles of a stylesheet are filtered by media queries, so the cache is cleared whenever the
+ * media query state changes.
+ *
+ * <p>Only shared stylesheets, which are the same instance for all the frames bound from the same
+ * {@code PietSharedState}, are cached. They are keyed by id and instance rather than by content, so
+ * that lookups don't hash or compare the whole stylesheet, and a new shared state reusing a
+ * stylesheet id doesn't hit the styles resolved from the previous one.
+ */
+class ResolvedStyleCache {
+  private static final int DEFAULT_MAX_ENTRIES = 500;
+
+  private final LruCache<Key, StyleProvider> cache;
+
+  // Media query state the cached styles were resolved with.
+  private int frameWidthPx = -1;
+  private int deviceOrientation = -1;
+  private boolean darkTheme;
+
+  ResolvedStyleCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  ResolvedStyleCache(int maxEntries) {
+    cache = new LruCache<>(maxEntries);
+  }
+
+  /** Clears the cache if {@code mediaQueryHelper} doesn't match the state of the cached styles. */
+  void onMediaQueryState(MediaQueryHelper mediaQueryHelper) {
+    int newFrameWidthPx = mediaQueryHelper.getFrameWidthPx();
+    int newDeviceOrientation = mediaQueryHelper.getDeviceOrientation();
+    boolean newDarkTheme = mediaQueryHelper.isDarkTheme();
+    if (newFrameWidthPx != frameWidthPx
+        || newDeviceOrientation != deviceOrientation
+        || newDarkTheme != darkTheme) {
+      cache.evictAll();
+      frameWidthPx = newFrameWidthPx;
+      deviceOrientation = newDeviceOrientation;
+      darkTheme = newDarkTheme;
+    }
+  }
+
+  /** Returns the cached style, {@code stylesheet} must be a shared stylesheet. */
+  /*@Nullable*/
+  StyleProvider get(Stylesheet stylesheet, Style baseStyle, List<String> styleIds) {
+    return cache.get(new Key(stylesheet, baseStyle, styleIds));
+  }
+
+  /** Caches a resolved style, {@code stylesheet} must be a shared stylesheet. */
+  void put(
+      Stylesheet stylesheet, Style baseStyle, List<String> styleIds, StyleProvider styleProvider) {
+    cache.put(new Key(stylesheet, baseStyle, styleIds), styleProvider);
+  }
+
+  /** Identifies a resolved style. */
+  private static final class Key {
+    private final Stylesheet stylesheet;
+    private final Style baseStyle;
+    private final List<String> styleIds;
+    private final int hashCode;
+
+    private Key(Stylesheet stylesheet, Style baseStyle, List<String> styleIds) {
+      this.stylesheet = stylesheet;
+      this.baseStyle = baseStyle;
+      this.styleIds = styleIds;
+      int result = stylesheet.getStylesheetId().hashCode();
+      result = 31 * result + baseStyle.hashCode();
+      result = 31 * result + styleIds.hashCode();
+      hashCode = result;
+    }
+
+    @SuppressWarnings("ReferenceEquality")
+    @Override
+    public boolean equals(/*@Nullable*/ Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return hashCode == that.hashCode
+          && stylesheet == that.stylesheet
+          && styleIds.equals(that.styleIds)
+          && baseStyle.equals(that.baseStyle);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -14,30 +14,46 @@
 
 package com.google.android.libraries.feed.piet;
 
-import android.support.v4.util.Pools.SimplePool;
-
-/** A very simple, single pool version of a {@link RecyclerPool} */
+/**
+ * A very simple, single pool version of a {@link RecyclerPool}. Pooled adapters count against the
+ * shared {@link RecyclerPoolBudget}; adapters released while the pool or the budget is full are
+ * dropped.
+ */
 class SingleKeyRecyclerPool<A extends ElementAdapter<?, ?>> implements RecyclerPool<A> {
   private static final String KEY_ERROR_MESSAGE = "Given key %s does not match singleton key %s";
 
   private final RecyclerKey singletonKey;
-  private final int capacity;
+  private final RecyclerPoolBudget budget;
+  private final Object[] pool;
+  private int poolSize = 0;
 
-  private SimplePool<A> pool;
+  // Statistics, see toString()
+  private int hitCount = 0;
+  private int missCount = 0;
+  private int evictionCount = 0;
 
-  SingleKeyRecyclerPool(RecyclerKey key, int capacity) {
+  SingleKeyRecyclerPool(RecyclerKey key, int capacity, RecyclerPoolBudget budget) {
     singletonKey = key;
-    this.capacity = capacity;
-    pool = new SimplePool<>(capacity);
+    this.budget = budget;
+    pool = new Object[capacity];
   }
 
   /*@Nullable*/
   @Override
+  @SuppressWarnings("unchecked")
   public A get(RecyclerKey key) {
     if (!singletonKey.equals(key)) {
       throw new IllegalArgumentException(String.format(KEY_ERROR_MESSAGE, key, singletonKey));
     }
-    return pool.acquire();
+    if (poolSize == 0) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    A adapter = (A) pool[--poolSize];
+    pool[poolSize] = null;
+    budget.release(1);
+    return adapter;
   }
 
   @Override
@@ -48,11 +64,56 @@ class SingleKeyRecyclerPool<A extends ElementAdapter<?, ?>> implements RecyclerP
     if (!singletonKey.equals(key)) {
       throw new IllegalArgumentException(String.format(KEY_ERROR_MESSAGE, key, singletonKey));
     }
-    pool.release(adapter);
+    for (int i = 0; i < poolSize; i++) {
+      if (pool[i] == adapter) {
+        throw new IllegalStateException("Already in the pool!");
+      }
+    }
+    if (poolSize == pool.length || !budget.tryAcquire()) {
+      evictionCount++;
+      return;
+    }
+    pool[poolSize++] = adapter;
   }
 
   @Override
   public void clear() {
-    pool = new SimplePool<>(capacity);
+    evictionCount += poolSize;
+    budget.release(poolSize);
+    for (int i = 0; i < poolSize; i++) {
+      pool[i] = null;
+    }
+    poolSize = 0;
+  }
+
+  int size() {
+    return poolSize;
+  }
+
+  int getHitCount() {
+    return hitCount;
+  }
+
+  int getMissCount() {
+    return missCount;
+  }
+
+  int getEvictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public String toString() {
+    // String used to show statistics during debugging in Android Studio.
+    return "Pool: "
+        + singletonKey
+        + ", Size: "
+        + poolSize
+        + ", Hits: "
+        + hitCount
+        + ", Misses: "
+        + missCount
+        + ", Evictions: "
+        + evictionCount;
   }
 }
@@ -76,6 +76,11 @@ class StyleProvider {
     this.assetProvider = assetProvider;
   }
 
+  /** The merged style this provider reads from. */
+  Style getStyle() {
+    return style;
+  }
+
   /** Default font or foreground color */
   public int getColor() {
     return style.getColor();
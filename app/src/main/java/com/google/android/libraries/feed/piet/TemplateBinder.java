@@ -17,24 +17,36 @@ package com.google.android.libraries.feed.piet;
 import static com.google.android.libraries.feed.common.Validators.checkNotNull;
 import static com.google.android.libraries.feed.common.Validators.checkState;
 
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.view.View;
 import com.google.search.now.ui.piet.ElementsProto.BindingContext;
 import com.google.search.now.ui.piet.PietProto.PietSharedState;
 import com.google.search.now.ui.piet.PietProto.Stylesheet;
 import com.google.search.now.ui.piet.PietProto.Template;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Methods to enable creation and binding of Templates.
  *
  * <p>This class creates and binds adapters for templates allowing for reuse of full template
  * layouts as a unit. Release and recycling is handled by the ElementAdapterFactory.
+ *
+ * <p>The first time a template is seen, an extra adapter is created for it when the main thread is
+ * idle, so that the next cards using the template find an adapter in the pool. Pending warm-ups
+ * are cancelled when the pools are purged, and skipped if the frame they came from is gone.
  */
 class TemplateBinder {
 
   private final KeyedRecyclerPool<ElementAdapter<? extends View, ?>> templateRecyclerPool;
   private final ElementAdapterFactory adapterFactory;
 
+  // Templates for which an adapter will be created when the main thread is idle.
+  private final Map<TemplateKey, WarmUp> pendingWarmUps = new HashMap<>();
+
   TemplateBinder(
       KeyedRecyclerPool<ElementAdapter<? extends View, ?>> templateRecyclerPool,
       ElementAdapterFactory adapterFactory) {
@@ -60,6 +72,7 @@ class TemplateBinder {
           adapterFactory.createAdapterForElement(model.getTemplate().getElement(), templateContext);
 
       adapter.setKey(templateKey);
+      scheduleWarmUp(templateKey, model.getTemplate(), templateContext);
     }
 
     adapter.bindModel(model.getTemplate().getElement(), templateContext);
@@ -82,6 +95,7 @@ class TemplateBinder {
           adapterFactory.createAdapterForElement(model.getTemplate().getElement(), templateContext);
 
       adapter.setKey(templateKey);
+      scheduleWarmUp(templateKey, model.getTemplate(), templateContext);
     }
 
     return adapter;
@@ -105,6 +119,68 @@ class TemplateBinder {
     adapter.bindModel(model.getTemplate().getElement(), templateContext);
   }
 
+  /**
+   * Creates an adapter for a template seen for the first time once the main thread is idle, and
+   * puts it in the pool.
+   */
+  private void scheduleWarmUp(
+      TemplateKey templateKey, Template template, FrameContext templateContext) {
+    if (Looper.myLooper() == null
+        || templateRecyclerPool.hasPool(templateKey)
+        || pendingWarmUps.containsKey(templateKey)) {
+      return;
+    }
+    WarmUp warmUp = new WarmUp(Looper.myQueue(), templateKey, template, templateContext);
+    pendingWarmUps.put(templateKey, warmUp);
+    warmUp.queue.addIdleHandler(warmUp);
+  }
+
+  /** Cancels the warm-ups which haven't run yet, when the pools are purged. */
+  void cancelWarmUps() {
+    for (WarmUp warmUp : pendingWarmUps.values()) {
+      warmUp.queue.removeIdleHandler(warmUp);
+    }
+    pendingWarmUps.clear();
+  }
+
+  /**
+   * Creates an adapter for a template when the main thread is idle. The template context is only
+   * weakly referenced, so that a pending warm-up doesn't keep the frame, and the host objects it
+   * references, alive.
+   */
+  private final class WarmUp implements MessageQueue.IdleHandler {
+    final MessageQueue queue;
+    private final TemplateKey templateKey;
+    private final Template template;
+    private final WeakReference<FrameContext> templateContext;
+
+    WarmUp(
+        MessageQueue queue,
+        TemplateKey templateKey,
+        Template template,
+        FrameContext templateContext) {
+      this.queue = queue;
+      this.templateKey = templateKey;
+      this.template = template;
+      this.templateContext = new WeakReference<>(templateContext);
+    }
+
+    @Override
+    public boolean queueIdle() {
+      pendingWarmUps.remove(templateKey);
+      FrameContext frameContext = templateContext.get();
+      // Skip the warm-up if the frame is gone, or if an adapter has been released for the template
+      // meanwhile.
+      if (frameContext != null && !templateRecyclerPool.hasPool(templateKey)) {
+        ElementAdapter<? extends View, ?> adapter =
+            adapterFactory.createAdapterForElement(template.getElement(), frameContext);
+        adapter.setKey(templateKey);
+        templateRecyclerPool.put(templateKey, adapter);
+      }
+      return false;
+    }
+  }
+
   private static TemplateKey makeTemplateKey(
       TemplateAdapterModel model, FrameContext frameContext) {
     return new TemplateKey(
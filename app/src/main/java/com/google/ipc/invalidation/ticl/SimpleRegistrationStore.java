@@ -21,15 +21,21 @@ import com.google.ipc.invalidation.common.ObjectIdDigestUtils;
 import com.google.ipc.invalidation.ticl.proto.ClientProtocol.ObjectIdP;
 import com.google.ipc.invalidation.util.Bytes;
 import com.google.ipc.invalidation.util.InternalBase;
+import com.google.ipc.invalidation.util.Preconditions;
 import com.google.ipc.invalidation.util.TextBuilder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 /**
  * Simple, map-based implementation of {@link DigestStore}.
+ * <p>
+ * Registrations are sorted by object id digest, so the registrations of a digest prefix are a
+ * contiguous range of the map. The digest of the whole store is only recomputed when it is read
+ * after a change, which keeps bulk registration linear.
  *
  */
 class SimpleRegistrationStore extends InternalBase implements DigestStore<ObjectIdP> {
@@ -40,19 +46,21 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
   /** The function used to compute digests of objects. */
   private final DigestFunction digestFunction;
 
-  /** The memoized digest of all objects in registrations. */
+  /**
+   * The memoized digest of all objects in registrations, or {@code null} if registrations changed
+   * since it was computed.
+   */
   private Bytes digest;
 
   SimpleRegistrationStore(DigestFunction digestFunction) {
     this.digestFunction = digestFunction;
-    recomputeDigest();
   }
 
   @Override
   public boolean add(ObjectIdP oid) {
     if (registrations.put(ObjectIdDigestUtils.getDigest(oid.getSource(),
         oid.getName().getByteArray(), digestFunction), oid) == null) {
-      recomputeDigest();
+      invalidateDigest();
       return true;
     }
     return false;
@@ -69,8 +77,8 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
       }
     }
     if (!addedOids.isEmpty()) {
-      // Only recompute the digest if we made changes.
-      recomputeDigest();
+      // Only invalidate the digest if we made changes.
+      invalidateDigest();
     }
     return addedOids;
   }
@@ -79,7 +87,7 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
   public boolean remove(ObjectIdP oid) {
     if (registrations.remove(ObjectIdDigestUtils.getDigest(oid.getSource(),
         oid.getName().getByteArray(), digestFunction)) != null) {
-      recomputeDigest();
+      invalidateDigest();
       return true;
     }
     return false;
@@ -95,8 +103,8 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
       }
     }
     if (!removedOids.isEmpty()) {
-      // Only recompute the digest if we made changes.
-      recomputeDigest();
+      // Only invalidate the digest if we made changes.
+      invalidateDigest();
     }
     return removedOids;
   }
@@ -105,7 +113,7 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
   public Collection<ObjectIdP> removeAll() {
     Collection<ObjectIdP> result = new ArrayList<ObjectIdP>(registrations.values());
     registrations.clear();
-    recomputeDigest();
+    invalidateDigest();
     return result;
   }
 
@@ -122,18 +130,53 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
 
   @Override
   public byte[] getDigest() {
-    return digest.getByteArray();
+    return getMemoizedDigest().getByteArray();
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The bits of {@code oidDigestPrefix} are read most significant bit first.
+   */
   @Override
   public Collection<ObjectIdP> getElements(byte[] oidDigestPrefix, int prefixLen) {
-    // We always return all the registrations and let the Ticl sort it out.
-    return registrations.values();
+    if (prefixLen <= 0) {
+      return registrations.values();
+    }
+    Preconditions.checkArgument(prefixLen <= oidDigestPrefix.length * 8,
+        "prefixLen is longer than oidDigestPrefix");
+
+    // The digests starting with the prefix are those in [prefix + 0...0, next prefix + 0...0).
+    int prefixBytes = (prefixLen + 7) / 8;
+    byte[] lowerBound = Arrays.copyOf(oidDigestPrefix, prefixBytes);
+    int lastByteMask = 0xff << (prefixBytes * 8 - prefixLen);
+    lowerBound[prefixBytes - 1] &= lastByteMask;
+
+    byte[] upperBound = lowerBound.clone();
+    int increment = (~lastByteMask & 0xff) + 1;
+    for (int i = prefixBytes - 1; i >= 0; i--) {
+      int value = (upperBound[i] & 0xff) + increment;
+      upperBound[i] = (byte) value;
+      if (value <= 0xff) {
+        return registrations.subMap(new Bytes(lowerBound), new Bytes(upperBound)).values();
+      }
+      increment = 1;
+    }
+    // The prefix is all ones, there is no next prefix.
+    return registrations.tailMap(new Bytes(lowerBound)).values();
   }
 
-  /** Recomputes the digests over all objects and sets {@code this.digest}. */
-  private void recomputeDigest() {
-    this.digest = ObjectIdDigestUtils.getDigest(registrations.keySet(), digestFunction);
+  /** Marks the digest over all objects as stale. */
+  private void invalidateDigest() {
+    this.digest = null;
+  }
+
+  /** Returns the digest over all objects, computing it if needed. */
+  private Bytes getMemoizedDigest() {
+    if (digest == null) {
+      digest = ObjectIdDigestUtils.getDigest(registrations.keySet(), digestFunction);
+    }
+    return digest;
   }
 
   @Override
@@ -142,7 +185,7 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
         .append("<SimpleRegistrationStore: registrations=")
         .append(registrations.values())
         .append(", digest=")
-        .append(digest)
+        .append(getMemoizedDigest())
         .append(">");
   }
 }
@@ -15,26 +15,32 @@ import org.chromium.base.annotations.JNINamespace;
 import org.chromium.base.annotations.MainDex;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Support for early tracing, before the native library is loaded.
  *
  * This is limited, as:
  * - Arguments are not supported
- * - Thread time is not reported
+ * - Thread time is only reported with a millisecond resolution
  * - Two events with the same name cannot be in progress at the same time.
  *
  * Events recorded here are buffered in Java until the native library is available. Then it waits
  * for the completion of pending events, and sends the events to the native side.
  *
  * Locking: This class is threadsafe. It is enabled when general tracing is, and then disabled when
- *          tracing is enabled from the native side. Event completions are still processed as long
- *          as some are pending, then early tracing is permanently disabled after dumping the
- *          events.  This means that if any early event is still pending when tracing is disabled,
- *          all early events are dropped.
+ *          tracing is enabled from the native side. The completed events are then dumped, and
+ *          event completions are still processed and dumped as long as some are pending. Early
+ *          tracing is permanently disabled once none is left. This means that an early event
+ *          which never ends keeps early tracing active, but doesn't prevent the other events from
+ *          being dumped.
+ *
+ *          Events are recorded without locking in per-thread buffers, which are only merged when
+ *          the events are passed to the native side. The events of the buffers are released once
+ *          early tracing is finished.
  */
 @JNINamespace("base::android")
 @MainDex
@@ -42,53 +48,124 @@ public class EarlyTraceEvent {
     // Must be kept in sync with the native kAndroidTraceConfigFile.
     private static final String TRACE_CONFIG_FILENAME = "/data/local/chrome-trace-config.json";
 
-    /** Single trace event. */
+    private static final String TAG = "EarlyTraceEvent";
+
+    /**
+     * Events recorded by a single thread. Only the owning thread writes to a buffer, so recording
+     * takes no lock; other threads only read the completed events once no event is pending.
+     *
+     * Completed events are kept in a preallocated ring buffer of primitive arrays: when it is full,
+     * the oldest events are overwritten, and counted as dropped when the events are dumped.
+     */
     @VisibleForTesting
-    static final class Event {
-        final String mName;
-        final int mThreadId;
-        final long mBeginTimeNanos;
-        final long mBeginThreadTimeMillis;
-        long mEndTimeNanos;
-        long mEndThreadTimeMillis;
-
-        Event(String name) {
-            mName = name;
-            mThreadId = Process.myTid();
-            mBeginTimeNanos = elapsedRealtimeNanos();
-            mBeginThreadTimeMillis = SystemClock.currentThreadTimeMillis();
+    static final class ThreadBuffer {
+        static final int CAPACITY = 1024;
+        static final int MAX_PENDING_EVENTS = 64;
+
+        static final int TYPE_EVENT = 0;
+        static final int TYPE_START_ASYNC = 1;
+        static final int TYPE_FINISH_ASYNC = 2;
+
+        final int mThreadId = Process.myTid();
+
+        // Completed events. For async events, |mBeginTimesNanos| holds the timestamp and
+        // |mEndTimesNanos| the id. Released by releaseEvents().
+        String[] mNames = new String[CAPACITY];
+        int[] mTypes = new int[CAPACITY];
+        long[] mBeginTimesNanos = new long[CAPACITY];
+        long[] mEndTimesNanos = new long[CAPACITY];
+        long[] mThreadDurationsMillis = new long[CAPACITY];
+        // Total number of completed events recorded. Written after the event slot, so that a
+        // reader seeing a count also sees the events below it.
+        volatile long mCompletedCount;
+        // Number of completed events already dumped or dropped. Guarded by |sLock|.
+        long mDumpedCount;
+
+        // Events which have begun but not ended yet, in begin order.
+        private final String[] mPendingNames = new String[MAX_PENDING_EVENTS];
+        private final long[] mPendingBeginTimesNanos = new long[MAX_PENDING_EVENTS];
+        private final long[] mPendingBeginThreadTimesMillis = new long[MAX_PENDING_EVENTS];
+        private int mPendingCount;
+
+        /**
+         * Records the beginning of |name|. Returns false if an event with the same name is
+         * already pending on this thread.
+         */
+        boolean begin(String name, long timeNanos, long threadTimeMillis) {
+            if (findPending(name) != -1) return false;
+            if (mPendingCount == MAX_PENDING_EVENTS) {
+                throw new IllegalStateException("Too many nested early trace events");
+            }
+            mPendingNames[mPendingCount] = name;
+            mPendingBeginTimesNanos[mPendingCount] = timeNanos;
+            mPendingBeginThreadTimesMillis[mPendingCount] = threadTimeMillis;
+            mPendingCount++;
+            return true;
         }
 
-        void end() {
-            assert mEndTimeNanos == 0;
-            assert mEndThreadTimeMillis == 0;
-            mEndTimeNanos = elapsedRealtimeNanos();
-            mEndThreadTimeMillis = SystemClock.currentThreadTimeMillis();
+        /**
+         * Records the end of |name|. Returns false if no such event is pending on this thread.
+         */
+        boolean end(String name, long timeNanos, long threadTimeMillis) {
+            int index = findPending(name);
+            if (index == -1) return false;
+            add(TYPE_EVENT, name, mPendingBeginTimesNanos[index], timeNanos,
+                    threadTimeMillis - mPendingBeginThreadTimesMillis[index]);
+            mPendingCount--;
+            for (int i = index; i < mPendingCount; i++) {
+                mPendingNames[i] = mPendingNames[i + 1];
+                mPendingBeginTimesNanos[i] = mPendingBeginTimesNanos[i + 1];
+                mPendingBeginThreadTimesMillis[i] = mPendingBeginThreadTimesMillis[i + 1];
+            }
+            mPendingNames[mPendingCount] = null;
+            return true;
         }
 
-        @VisibleForTesting
-        @SuppressLint("NewApi")
-        static long elapsedRealtimeNanos() {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-                return SystemClock.elapsedRealtimeNanos();
-            } else {
-                return SystemClock.elapsedRealtime() * 1000000;
+        void addAsync(boolean isStart, String name, long id, long timeNanos) {
+            add(isStart ? TYPE_START_ASYNC : TYPE_FINISH_ASYNC, name, timeNanos, id, 0);
+        }
+
+        private void add(int type, String name, long beginTimeNanos, long endTimeNanos,
+                long threadDurationMillis) {
+            long count = mCompletedCount;
+            int slot = (int) (count % CAPACITY);
+            mTypes[slot] = type;
+            mNames[slot] = name;
+            mBeginTimesNanos[slot] = beginTimeNanos;
+            mEndTimesNanos[slot] = endTimeNanos;
+            mThreadDurationsMillis[slot] = threadDurationMillis;
+            mCompletedCount = count + 1;
+        }
+
+        /**
+         * Releases the completed events once early tracing is finished. Events are only completed
+         * while one is pending, which prevents early tracing from finishing, so none is recorded
+         * afterwards. The buffer stays referenced by its thread until the thread dies.
+         */
+        void releaseEvents() {
+            mNames = null;
+            mTypes = null;
+            mBeginTimesNanos = null;
+            mEndTimesNanos = null;
+            mThreadDurationsMillis = null;
+        }
+
+        private int findPending(String name) {
+            // Search from the most recent event, which is the most likely one to end first.
+            for (int i = mPendingCount - 1; i >= 0; i--) {
+                if (name.equals(mPendingNames[i])) return i;
             }
+            return -1;
         }
     }
 
     @VisibleForTesting
-    static final class AsyncEvent {
-        final boolean mIsStart;
-        final String mName;
-        final long mId;
-        final long mTimestampNanos;
-
-        AsyncEvent(String name, long id, boolean isStart) {
-            mName = name;
-            mId = id;
-            mIsStart = isStart;
-            mTimestampNanos = Event.elapsedRealtimeNanos();
+    @SuppressLint("NewApi")
+    static long elapsedRealtimeNanos() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return SystemClock.elapsedRealtimeNanos();
+        } else {
+            return SystemClock.elapsedRealtime() * 1000000;
         }
     }
 
@@ -104,16 +181,20 @@ public class EarlyTraceEvent {
     private static final String BACKGROUND_STARTUP_TRACING_ENABLED_KEY = "bg_startup_tracing";
     private static boolean sCachedBackgroundStartupTracingFlag;
 
-    // Locks the fields below.
+    // Serializes state transitions. Recording events does not take this lock.
     private static final Object sLock = new Object();
 
     @VisibleForTesting static volatile int sState = STATE_DISABLED;
-    // Not final as these object are not likely to be used at all.
-    @VisibleForTesting static List<Event> sCompletedEvents;
+    // Buffers of all the threads which have recorded an event.
     @VisibleForTesting
-    static Map<String, Event> sPendingEventByKey;
-    @VisibleForTesting static List<AsyncEvent> sAsyncEvents;
-    @VisibleForTesting static List<String> sPendingAsyncEvents;
+    static final List<ThreadBuffer> sThreadBuffers = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<ThreadBuffer> sThreadBuffer = new ThreadLocal<>();
+    // Number of events which have begun and not ended, including async ones.
+    @VisibleForTesting
+    static final AtomicInteger sPendingEventCount = new AtomicInteger();
+    // Names of the async events which have started and not finished.
+    @VisibleForTesting
+    static final Queue<String> sPendingAsyncEvents = new ConcurrentLinkedQueue<>();
 
     /** @see TraceEvent#MaybeEnableEarlyTracing().
      */
@@ -155,10 +236,6 @@ public class EarlyTraceEvent {
     static void enable() {
         synchronized (sLock) {
             if (sState != STATE_DISABLED) return;
-            sCompletedEvents = new ArrayList<Event>();
-            sPendingEventByKey = new HashMap<String, Event>();
-            sAsyncEvents = new ArrayList<AsyncEvent>();
-            sPendingAsyncEvents = new ArrayList<String>();
             sState = STATE_ENABLED;
         }
     }
@@ -166,16 +243,16 @@ public class EarlyTraceEvent {
     /**
      * Disables Early tracing.
      *
-     * Once this is called, no new event will be registered. However, end() calls are still recorded
-     * as long as there are pending events. Once there are none left, pass the events to the native
-     * side.
+     * Once this is called, no new event will be registered, and the completed events are passed to
+     * the native side. However, end() calls are still recorded and passed as long as there are
+     * pending events.
      */
     static void disable() {
         synchronized (sLock) {
             if (!enabled()) return;
             sState = STATE_FINISHING;
-            maybeFinishLocked();
         }
+        maybeFinish();
     }
 
     /**
@@ -216,119 +293,162 @@ public class EarlyTraceEvent {
 
     /** @see {@link TraceEvent#begin()}. */
     public static void begin(String name) {
-        // begin() and end() are going to be called once per TraceEvent, this avoids entering a
-        // synchronized block at each and every call.
         if (!enabled()) return;
-        Event event = new Event(name);
-        Event conflictingEvent;
-        synchronized (sLock) {
+        long timeNanos = elapsedRealtimeNanos();
+        long threadTimeMillis = SystemClock.currentThreadTimeMillis();
+        // Count the event as pending before recording it, so that early tracing doesn't finish
+        // while it is being recorded.
+        sPendingEventCount.incrementAndGet();
+        boolean begun = false;
+        try {
+            // Early tracing may have been disabled since the check above, and may have finished
+            // before the event was counted.
             if (!enabled()) return;
-            conflictingEvent = sPendingEventByKey.put(makeEventKeyForCurrentThread(name), event);
-        }
-        if (conflictingEvent != null) {
-            throw new IllegalArgumentException(
-                    "Multiple pending trace events can't have the same name");
+            if (!getThreadBuffer().begin(name, timeNanos, threadTimeMillis)) {
+                throw new IllegalArgumentException(
+                        "Multiple pending trace events can't have the same name");
+            }
+            begun = true;
+        } finally {
+            if (!begun) onEventCompleted();
         }
     }
 
     /** @see {@link TraceEvent#end()}. */
     public static void end(String name) {
         if (!isActive()) return;
-        synchronized (sLock) {
-            if (!isActive()) return;
-            Event event = sPendingEventByKey.remove(makeEventKeyForCurrentThread(name));
-            if (event == null) return;
-            event.end();
-            sCompletedEvents.add(event);
-            if (sState == STATE_FINISHING) maybeFinishLocked();
+        ThreadBuffer buffer = sThreadBuffer.get();
+        if (buffer == null) return;
+        long timeNanos = elapsedRealtimeNanos();
+        long threadTimeMillis = SystemClock.currentThreadTimeMillis();
+        boolean ended;
+        if (sState == STATE_FINISHING) {
+            // Events are dumped while finishing, don't overwrite one being dumped.
+            synchronized (sLock) {
+                ended = buffer.end(name, timeNanos, threadTimeMillis);
+            }
+        } else {
+            ended = buffer.end(name, timeNanos, threadTimeMillis);
         }
+        if (!ended) return;
+        onEventCompleted();
     }
 
     /** @see {@link TraceEvent#startAsync()}. */
     public static void startAsync(String name, long id) {
         if (!enabled()) return;
-        AsyncEvent event = new AsyncEvent(name, id, true /*isStart*/);
-        synchronized (sLock) {
-            if (!enabled()) return;
-            sAsyncEvents.add(event);
-            sPendingAsyncEvents.add(name);
+        long timeNanos = elapsedRealtimeNanos();
+        sPendingEventCount.incrementAndGet();
+        // See begin().
+        if (!enabled()) {
+            onEventCompleted();
+            return;
         }
+        sPendingAsyncEvents.add(name);
+        getThreadBuffer().addAsync(true /*isStart*/, name, id, timeNanos);
     }
 
     /** @see {@link TraceEvent#finishAsync()}. */
     public static void finishAsync(String name, long id) {
         if (!isActive()) return;
-        AsyncEvent event = new AsyncEvent(name, id, false /*isStart*/);
-        synchronized (sLock) {
-            if (!isActive()) return;
-            if (!sPendingAsyncEvents.remove(name)) return;
-            sAsyncEvents.add(event);
-            if (sState == STATE_FINISHING) maybeFinishLocked();
+        long timeNanos = elapsedRealtimeNanos();
+        if (!sPendingAsyncEvents.remove(name)) return;
+        ThreadBuffer buffer = getThreadBuffer();
+        if (sState == STATE_FINISHING) {
+            // See end().
+            synchronized (sLock) {
+                buffer.addAsync(false /*isStart*/, name, id, timeNanos);
+            }
+        } else {
+            buffer.addAsync(false /*isStart*/, name, id, timeNanos);
         }
+        onEventCompleted();
     }
 
     @VisibleForTesting
     static void resetForTesting() {
         sState = EarlyTraceEvent.STATE_DISABLED;
-        sCompletedEvents = null;
-        sPendingEventByKey = null;
-        sAsyncEvents = null;
-        sPendingAsyncEvents = null;
+        sThreadBuffers.clear();
+        sThreadBuffer.remove();
+        sPendingEventCount.set(0);
+        sPendingAsyncEvents.clear();
     }
 
-    private static void maybeFinishLocked() {
-        if (!sCompletedEvents.isEmpty()) {
-            dumpEvents(sCompletedEvents);
-            sCompletedEvents.clear();
-        }
-        if (!sAsyncEvents.isEmpty()) {
-            dumpAsyncEvents(sAsyncEvents);
-            sAsyncEvents.clear();
+    private static ThreadBuffer getThreadBuffer() {
+        ThreadBuffer buffer = sThreadBuffer.get();
+        if (buffer == null) {
+            buffer = new ThreadBuffer();
+            sThreadBuffer.set(buffer);
+            sThreadBuffers.add(buffer);
         }
-        if (sPendingEventByKey.isEmpty() && sPendingAsyncEvents.isEmpty()) {
+        return buffer;
+    }
+
+    private static void onEventCompleted() {
+        sPendingEventCount.decrementAndGet();
+        if (sState == STATE_FINISHING) maybeFinish();
+    }
+
+    /**
+     * Passes the completed events to the native side if early tracing is finishing, and finishes
+     * it if no event is pending anymore.
+     */
+    private static void maybeFinish() {
+        synchronized (sLock) {
+            if (sState != STATE_FINISHING) return;
+            long offsetNanos = getOffsetNanos();
+            for (ThreadBuffer buffer : sThreadBuffers) {
+                dumpEvents(buffer, offsetNanos);
+            }
+            if (sPendingEventCount.get() != 0) return;
             sState = STATE_FINISHED;
-            sPendingEventByKey = null;
-            sCompletedEvents = null;
-            sPendingAsyncEvents = null;
-            sAsyncEvents = null;
+            for (ThreadBuffer buffer : sThreadBuffers) buffer.releaseEvents();
+            sThreadBuffers.clear();
+            sThreadBuffer.remove();
         }
     }
 
-    private static void dumpEvents(List<Event> events) {
-        long offsetNanos = getOffsetNanos();
-        for (Event e : events) {
-            nativeRecordEarlyEvent(e.mName, e.mBeginTimeNanos + offsetNanos,
-                    e.mEndTimeNanos + offsetNanos, e.mThreadId,
-                    e.mEndThreadTimeMillis - e.mBeginThreadTimeMillis);
+    /** Passes the events of |buffer| completed since the last call to the native side. */
+    private static void dumpEvents(ThreadBuffer buffer, long offsetNanos) {
+        // Events completed while finishing are recorded under |sLock|. Only an event recorded
+        // without it, by a thread which hasn't seen the state change yet, may be written
+        // concurrently: skip the oldest slot, which it would overwrite.
+        long count = buffer.mCompletedCount;
+        long start = Math.max(buffer.mDumpedCount, count - ThreadBuffer.CAPACITY + 1);
+        if (start > buffer.mDumpedCount) {
+            Log.w(TAG, "Dropped %d early trace events of thread %d, the buffer was full.",
+                    start - buffer.mDumpedCount, buffer.mThreadId);
         }
-    }
-    private static void dumpAsyncEvents(List<AsyncEvent> events) {
-        long offsetNanos = getOffsetNanos();
-        for (AsyncEvent e : events) {
-            if (e.mIsStart) {
-                nativeRecordEarlyStartAsyncEvent(e.mName, e.mId, e.mTimestampNanos + offsetNanos);
-            } else {
-                nativeRecordEarlyFinishAsyncEvent(e.mName, e.mId, e.mTimestampNanos + offsetNanos);
+        buffer.mDumpedCount = count;
+        for (long i = start; i < count; i++) {
+            int slot = (int) (i % ThreadBuffer.CAPACITY);
+            String name = buffer.mNames[slot];
+            switch (buffer.mTypes[slot]) {
+                case ThreadBuffer.TYPE_EVENT:
+                    nativeRecordEarlyEvent(name, buffer.mBeginTimesNanos[slot] + offsetNanos,
+                            buffer.mEndTimesNanos[slot] + offsetNanos, buffer.mThreadId,
+                            buffer.mThreadDurationsMillis[slot]);
+                    break;
+                case ThreadBuffer.TYPE_START_ASYNC:
+                    nativeRecordEarlyStartAsyncEvent(name, buffer.mEndTimesNanos[slot],
+                            buffer.mBeginTimesNanos[slot] + offsetNanos);
+                    break;
+                case ThreadBuffer.TYPE_FINISH_ASYNC:
+                    nativeRecordEarlyFinishAsyncEvent(name, buffer.mEndTimesNanos[slot],
+                            buffer.mBeginTimesNanos[slot] + offsetNanos);
+                    break;
+                default:
+                    assert false;
             }
         }
     }
 
     private static long getOffsetNanos() {
         long nativeNowNanos = TimeUtils.nativeGetTimeTicksNowUs() * 1000;
-        long javaNowNanos = Event.elapsedRealtimeNanos();
+        long javaNowNanos = elapsedRealtimeNanos();
         return nativeNowNanos - javaNowNanos;
     }
 
-    /**
-     * Returns a key which consists of |name| and the ID of the current thread.
-     * The key is used with pending events making them thread-specific, thus avoiding
-     * an exception when similarly named events are started from multiple threads.
-     */
-    @VisibleForTesting
-    static String makeEventKeyForCurrentThread(String name) {
-        return name + "@" + Process.myTid();
-    }
-
     private static native void nativeRecordEarlyEvent(String name, long beginTimNanos,
             long endTimeNanos, int threadId, long threadDurationMillis);
     private static native void nativeRecordEarlyStartAsyncEvent(
@@ -6,14 +6,22 @@ package org.chromium.base.metrics;
 
 import org.chromium.base.library_loader.LibraryLoader;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Utility classes for recording UMA metrics before the native library
  * may have been loaded.  Metrics are cached until the library is known
  * to be loaded, then committed to the MetricsService all at once.
+ *
+ * Samples are cached as per-bucket counts, using the same bucket layout as the native
+ * histograms, so that the memory used by a metric is bounded by its number of buckets and
+ * recording a sample neither allocates nor takes a lock.
  */
 public class CachedMetrics {
     /**
@@ -22,10 +30,10 @@ public class CachedMetrics {
      * commit operation when the native library is loaded.
      */
     private abstract static class CachedMetric {
-        private static final List<CachedMetric> sMetrics = new ArrayList<CachedMetric>();
+        private static final Queue<CachedMetric> sMetrics = new ConcurrentLinkedQueue<>();
 
         protected final String mName;
-        protected boolean mCached;
+        private final AtomicBoolean mCached = new AtomicBoolean();
 
         /**
          * @param name Name of the metric to record.
@@ -35,44 +43,94 @@ public class CachedMetrics {
         }
 
         /**
-         * Adds this object to the sMetrics cache, if it hasn't been added already.
-         * Must be called while holding the synchronized(sMetrics) lock.
-         * Note: The synchronization is not done inside this function because subclasses
-         * need to increment their held values under lock to ensure thread-safety.
+         * Adds this object to the sMetrics cache, if it hasn't been added already. Must be called
+         * after the sample has been cached. If the native library has been loaded in the meantime,
+         * commits the cached samples right away, as commitCachedMetrics() may have missed them.
          */
         protected final void addToCache() {
-            assert Thread.holdsLock(sMetrics);
-
-            if (mCached) return;
-            sMetrics.add(this);
-            mCached = true;
+            if (!mCached.get() && mCached.compareAndSet(false, true)) sMetrics.add(this);
+            if (LibraryLoader.getInstance().isInitialized()) commitAndClear();
         }
 
         /**
-         * Commits the metric. Expects the native library to be loaded.
-         * Must be called while holding the synchronized(sMetrics) lock.
+         * Commits the metric. Expects the native library to be loaded. Must be safe to call
+         * concurrently with itself and with sample recording: each cached sample is committed
+         * exactly once.
          */
         protected abstract void commitAndClear();
     }
 
+    /**
+     * Counts of samples bucketed like a native exponential histogram. Samples are committed as the
+     * lower bound of their bucket, which the native histogram puts in the same bucket.
+     */
+    private static final class ExponentialBuckets {
+        private final int[] mRanges;
+        private final AtomicIntegerArray mCounts;
+
+        /**
+         * Mirrors base::Histogram::InitializeBucketRanges().
+         */
+        ExponentialBuckets(int min, int max, int numBuckets) {
+            if (min < 1) min = 1;
+            if (max >= Integer.MAX_VALUE) max = Integer.MAX_VALUE - 1;
+            mRanges = new int[numBuckets];
+            double logMax = Math.log(max);
+            int current = min;
+            mRanges[1] = current;
+            for (int bucketIndex = 2; bucketIndex < numBuckets; bucketIndex++) {
+                double logCurrent = Math.log(current);
+                double logRatio = (logMax - logCurrent) / (numBuckets - bucketIndex);
+                int next = (int) Math.round(Math.exp(logCurrent + logRatio));
+                current = next > current ? next : current + 1;
+                mRanges[bucketIndex] = current;
+            }
+            mCounts = new AtomicIntegerArray(numBuckets);
+        }
+
+        void record(long sample) {
+            int clampedSample = (int) Math.max(0, Math.min(sample, Integer.MAX_VALUE));
+            int index = Arrays.binarySearch(mRanges, clampedSample);
+            // For samples between two ranges, binarySearch returns -(insertion point) - 1.
+            if (index < 0) index = -index - 2;
+            mCounts.incrementAndGet(index);
+        }
+
+        /**
+         * Returns the lower bound of the bucket |index|.
+         */
+        int sampleForBucket(int index) {
+            return mRanges[index];
+        }
+
+        int bucketCount() {
+            return mRanges.length;
+        }
+
+        /**
+         * Returns and resets the number of samples cached in the bucket |index|.
+         */
+        int takeCount(int index) {
+            return mCounts.get(index) == 0 ? 0 : mCounts.getAndSet(index, 0);
+        }
+    }
+
     /**
      * Caches an action that will be recorded after native side is loaded.
      */
     public static class ActionEvent extends CachedMetric {
-        private int mCount;
+        private final AtomicInteger mCount = new AtomicInteger();
 
         public ActionEvent(String actionName) {
             super(actionName);
         }
 
         public void record() {
-            synchronized (CachedMetric.sMetrics) {
-                if (LibraryLoader.getInstance().isInitialized()) {
-                    recordWithNative();
-                } else {
-                    mCount++;
-                    addToCache();
-                }
+            if (LibraryLoader.getInstance().isInitialized()) {
+                recordWithNative();
+            } else {
+                mCount.incrementAndGet();
+                addToCache();
             }
         }
 
@@ -82,30 +140,47 @@ public class CachedMetrics {
 
         @Override
         protected void commitAndClear() {
-            while (mCount > 0) {
+            for (int count = mCount.getAndSet(0); count > 0; count--) {
                 recordWithNative();
-                mCount--;
             }
         }
     }
 
     /** Caches a set of integer histogram samples. */
     public static class SparseHistogramSample extends CachedMetric {
-        private final List<Integer> mSamples = new ArrayList<Integer>();
+        // Distinct sample values and their counts, guarded by |this|. Sparse histograms are
+        // expected to only see a few distinct values.
+        private int[] mValues = new int[4];
+        private int[] mCounts = new int[4];
+        private int mSize;
 
         public SparseHistogramSample(String histogramName) {
             super(histogramName);
         }
 
         public void record(int sample) {
-            synchronized (CachedMetric.sMetrics) {
-                if (LibraryLoader.getInstance().isInitialized()) {
-                    recordWithNative(sample);
-                } else {
-                    mSamples.add(sample);
-                    addToCache();
+            if (LibraryLoader.getInstance().isInitialized()) {
+                recordWithNative(sample);
+            } else {
+                cacheSample(sample);
+                addToCache();
+            }
+        }
+
+        private synchronized void cacheSample(int sample) {
+            for (int i = 0; i < mSize; i++) {
+                if (mValues[i] == sample) {
+                    mCounts[i]++;
+                    return;
                 }
             }
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+                mCounts = Arrays.copyOf(mCounts, mSize * 2);
+            }
+            mValues[mSize] = sample;
+            mCounts[mSize] = 1;
+            mSize++;
         }
 
         private void recordWithNative(int sample) {
@@ -114,31 +189,43 @@ public class CachedMetrics {
 
         @Override
         protected void commitAndClear() {
-            for (Integer sample : mSamples) {
-                recordWithNative(sample);
+            int[] values;
+            int[] counts;
+            int size;
+            synchronized (this) {
+                values = mValues;
+                counts = mCounts;
+                size = mSize;
+                mValues = new int[4];
+                mCounts = new int[4];
+                mSize = 0;
+            }
+            for (int i = 0; i < size; i++) {
+                for (int count = counts[i]; count > 0; count--) {
+                    recordWithNative(values[i]);
+                }
             }
-            mSamples.clear();
         }
     }
 
     /** Caches a set of enumerated histogram samples. */
     public static class EnumeratedHistogramSample extends CachedMetric {
-        private final List<Integer> mSamples = new ArrayList<Integer>();
+        // Count of samples per value. The last entry counts the overflowing samples.
+        private final AtomicIntegerArray mCounts;
         private final int mMaxValue;
 
         public EnumeratedHistogramSample(String histogramName, int maxValue) {
             super(histogramName);
             mMaxValue = maxValue;
+            mCounts = new AtomicIntegerArray(maxValue + 1);
         }
 
         public void record(int sample) {
-            synchronized (CachedMetric.sMetrics) {
-                if (LibraryLoader.getInstance().isInitialized()) {
-                    recordWithNative(sample);
-                } else {
-                    mSamples.add(sample);
-                    addToCache();
-                }
+            if (LibraryLoader.getInstance().isInitialized()) {
+                recordWithNative(sample);
+            } else {
+                mCounts.incrementAndGet(Math.max(0, Math.min(sample, mMaxValue)));
+                addToCache();
             }
         }
 
@@ -148,45 +235,56 @@ public class CachedMetrics {
 
         @Override
         protected void commitAndClear() {
-            for (Integer sample : mSamples) {
-                recordWithNative(sample);
+            for (int sample = 0; sample <= mMaxValue; sample++) {
+                if (mCounts.get(sample) == 0) continue;
+                for (int count = mCounts.getAndSet(sample, 0); count > 0; count--) {
+                    recordWithNative(sample);
+                }
             }
-            mSamples.clear();
         }
     }
 
     /** Caches a set of times histogram samples. */
     public static class TimesHistogramSample extends CachedMetric {
-        private final List<Long> mSamples = new ArrayList<Long>();
+        private final ExponentialBuckets mBuckets;
         protected final TimeUnit mTimeUnit;
 
         public TimesHistogramSample(String histogramName, TimeUnit timeUnit) {
+            this(histogramName, timeUnit, 1, TimeUnit.SECONDS.toMillis(10));
+        }
+
+        /**
+         * @param minMillis Lower bound of the native histogram, in milliseconds.
+         * @param maxMillis Upper bound of the native histogram, in milliseconds.
+         */
+        TimesHistogramSample(
+                String histogramName, TimeUnit timeUnit, long minMillis, long maxMillis) {
             super(histogramName);
             RecordHistogram.assertTimesHistogramSupportsUnit(timeUnit);
             mTimeUnit = timeUnit;
+            mBuckets = new ExponentialBuckets((int) minMillis, (int) maxMillis, 50);
         }
 
         public void record(long sample) {
-            synchronized (CachedMetric.sMetrics) {
-                if (LibraryLoader.getInstance().isInitialized()) {
-                    recordWithNative(sample);
-                } else {
-                    mSamples.add(sample);
-                    addToCache();
-                }
+            if (LibraryLoader.getInstance().isInitialized()) {
+                recordWithNative(sample, mTimeUnit);
+            } else {
+                mBuckets.record(mTimeUnit.toMillis(sample));
+                addToCache();
             }
         }
 
-        protected void recordWithNative(long sample) {
-            RecordHistogram.recordTimesHistogram(mName, sample, mTimeUnit);
+        protected void recordWithNative(long sample, TimeUnit timeUnit) {
+            RecordHistogram.recordTimesHistogram(mName, sample, timeUnit);
         }
 
         @Override
         protected void commitAndClear() {
-            for (Long sample : mSamples) {
-                recordWithNative(sample);
+            for (int i = 0; i < mBuckets.bucketCount(); i++) {
+                for (int count = mBuckets.takeCount(i); count > 0; count--) {
+                    recordWithNative(mBuckets.sampleForBucket(i), TimeUnit.MILLISECONDS);
+                }
             }
-            mSamples.clear();
         }
     }
 
@@ -196,31 +294,30 @@ public class CachedMetrics {
      */
     public static class MediumTimesHistogramSample extends TimesHistogramSample {
         public MediumTimesHistogramSample(String histogramName, TimeUnit timeUnit) {
-            super(histogramName, timeUnit);
+            super(histogramName, timeUnit, 10, TimeUnit.MINUTES.toMillis(3));
         }
 
         @Override
-        protected void recordWithNative(long sample) {
-            RecordHistogram.recordMediumTimesHistogram(mName, sample, mTimeUnit);
+        protected void recordWithNative(long sample, TimeUnit timeUnit) {
+            RecordHistogram.recordMediumTimesHistogram(mName, sample, timeUnit);
         }
     }
 
     /** Caches a set of boolean histogram samples. */
     public static class BooleanHistogramSample extends CachedMetric {
-        private final List<Boolean> mSamples = new ArrayList<Boolean>();
+        private final AtomicInteger mTrueCount = new AtomicInteger();
+        private final AtomicInteger mFalseCount = new AtomicInteger();
 
         public BooleanHistogramSample(String histogramName) {
             super(histogramName);
         }
 
         public void record(boolean sample) {
-            synchronized (CachedMetric.sMetrics) {
-                if (LibraryLoader.getInstance().isInitialized()) {
-                    recordWithNative(sample);
-                } else {
-                    mSamples.add(sample);
-                    addToCache();
-                }
+            if (LibraryLoader.getInstance().isInitialized()) {
+                recordWithNative(sample);
+            } else {
+                (sample ? mTrueCount : mFalseCount).incrementAndGet();
+                addToCache();
             }
         }
 
@@ -230,10 +327,12 @@ public class CachedMetrics {
 
         @Override
         protected void commitAndClear() {
-            for (Boolean sample : mSamples) {
-                recordWithNative(sample);
+            for (int count = mTrueCount.getAndSet(0); count > 0; count--) {
+                recordWithNative(true);
+            }
+            for (int count = mFalseCount.getAndSet(0); count > 0; count--) {
+                recordWithNative(false);
             }
-            mSamples.clear();
         }
     }
 
@@ -242,7 +341,7 @@ public class CachedMetrics {
      * Corresponds to UMA_HISTOGRAM_CUSTOM_COUNTS C++ macro.
      */
     public static class CustomCountHistogramSample extends CachedMetric {
-        private final List<Integer> mSamples = new ArrayList<Integer>();
+        private final ExponentialBuckets mBuckets;
         private final int mMin;
         private final int mMax;
         private final int mNumBuckets;
@@ -252,16 +351,15 @@ public class CachedMetrics {
             mMin = min;
             mMax = max;
             mNumBuckets = numBuckets;
+            mBuckets = new ExponentialBuckets(min, max, numBuckets);
         }
 
         public void record(int sample) {
-            synchronized (CachedMetric.sMetrics) {
-                if (LibraryLoader.getInstance().isInitialized()) {
-                    recordWithNative(sample);
-                } else {
-                    mSamples.add(sample);
-                    addToCache();
-                }
+            if (LibraryLoader.getInstance().isInitialized()) {
+                recordWithNative(sample);
+            } else {
+                mBuckets.record(sample);
+                addToCache();
             }
         }
 
@@ -271,10 +369,11 @@ public class CachedMetrics {
 
         @Override
         protected void commitAndClear() {
-            for (Integer sample : mSamples) {
-                recordWithNative(sample);
+            for (int i = 0; i < mBuckets.bucketCount(); i++) {
+                for (int count = mBuckets.takeCount(i); count > 0; count--) {
+                    recordWithNative(mBuckets.sampleForBucket(i));
+                }
             }
-            mSamples.clear();
         }
     }
 
@@ -313,10 +412,8 @@ public class CachedMetrics {
      * Should be called once the native library has been loaded.
      */
     public static void commitCachedMetrics() {
-        synchronized (CachedMetric.sMetrics) {
-            for (CachedMetric metric : CachedMetric.sMetrics) {
-                metric.commitAndClear();
-            }
+        for (CachedMetric metric : CachedMetric.sMetrics) {
+            metric.commitAndClear();
         }
     }
 }
@@ -8,9 +8,8 @@ import org.chromium.base.VisibleForTesting;
 import org.chromium.base.annotations.JNINamespace;
 import org.chromium.base.annotations.MainDex;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -28,8 +27,8 @@ import java.util.concurrent.TimeUnit;
 @MainDex
 public class RecordHistogram {
     private static Throwable sDisabledBy;
-    private static Map<String, Long> sCache =
-            Collections.synchronizedMap(new HashMap<String, Long>());
+    // Read on every record, written once per histogram: lookups must not take a lock.
+    private static Map<String, Long> sCache = new ConcurrentHashMap<String, Long>();
 
     /**
      * Tests may not have native initialized, so they may need to disable metrics. The value should
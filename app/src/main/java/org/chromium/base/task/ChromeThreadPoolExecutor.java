@@ -58,15 +58,14 @@ class ChromeThreadPoolExecutor extends ThreadPoolExecutor {
 
     @SuppressWarnings("NoAndroidAsyncTaskCheck")
     private static String getClassName(Runnable runnable) {
-        Class blamedClass = runnable.getClass();
+        Class blamedClass = TaskStats.getBlamedClass(runnable);
         try {
-            if (blamedClass == AsyncTask.NamedFutureTask.class) {
-                blamedClass = ((AsyncTask.NamedFutureTask) runnable).getBlamedClass();
-            } else if (blamedClass.getEnclosingClass() == android.os.AsyncTask.class) {
+            if (blamedClass.getEnclosingClass() == android.os.AsyncTask.class) {
                 // This gets the AsyncTask that produced the runnable.
                 Field field = blamedClass.getDeclaredField("this$0");
                 field.setAccessible(true);
-                blamedClass = field.get(runnable).getClass();
+                Object task = unwrap(runnable);
+                if (blamedClass.isInstance(task)) blamedClass = field.get(task).getClass();
             }
         } catch (NoSuchFieldException e) {
             if (BuildConfig.DCHECK_IS_ON) {
@@ -80,6 +79,21 @@ class ChromeThreadPoolExecutor extends ThreadPoolExecutor {
         return blamedClass.getName();
     }
 
+    /**
+     * Strips the wrappers that {@link TaskStats#getBlamedClass} looks through.
+     */
+    private static Runnable unwrap(Runnable runnable) {
+        while (true) {
+            if (runnable instanceof TaskStats.InstrumentedTask) {
+                runnable = ((TaskStats.InstrumentedTask) runnable).mTask;
+            } else if (runnable instanceof SerialExecutor.SerialTask) {
+                runnable = ((SerialExecutor.SerialTask) runnable).mTask;
+            } else {
+                return runnable;
+            }
+        }
+    }
+
     private Map<String, Integer> getNumberOfClassNameOccurrencesInQueue() {
         Map<String, Integer> counts = new HashMap<>();
         Runnable[] copiedQueue = getQueue().toArray(new Runnable[0]);
@@ -111,7 +125,7 @@ class ChromeThreadPoolExecutor extends ThreadPoolExecutor {
     @Override
     public void execute(Runnable command) {
         try {
-            super.execute(command);
+            super.execute(TaskStats.instrument(command));
         } catch (RejectedExecutionException e) {
             Map<String, Integer> counts = getNumberOfClassNameOccurrencesInQueue();
 
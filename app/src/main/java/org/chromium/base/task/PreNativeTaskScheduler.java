@@ -0,0 +1,78 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.base.task;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+
+/**
+ * Java side scheduler used by {@link TaskRunnerImpl} until the native scheduler is ready. Runner
+ * closures are queued per {@link TaskPriority} and dispatched to {@link
+ * AsyncTask#THREAD_POOL_EXECUTOR} highest priority first, so that USER_BLOCKING work posted during
+ * startup does not wait behind BEST_EFFORT work. Delayed tasks are timed on the main looper.
+ */
+class PreNativeTaskScheduler {
+    private static final Object sLock = new Object();
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<Runnable>[] sQueues =
+            new ArrayDeque[TaskPriority.HIGHEST + 1];
+    static {
+        for (int i = 0; i < sQueues.length; i++) sQueues[i] = new ArrayDeque<>();
+    }
+
+    /** Not instrumented by {@link TaskStats}, the closures it runs are. */
+    static final Runnable sRunNextClosure = PreNativeTaskScheduler::runNextClosure;
+
+    private static Handler sTimerHandler;
+
+    /**
+     * Schedules |closure| to run on the thread pool. Closures with a higher priority run first,
+     * closures with the same priority run in the order they have been scheduled.
+     */
+    static void schedule(Runnable closure, @TaskPriority int priority) {
+        synchronized (sLock) {
+            sQueues[priority].add(closure);
+        }
+        // Every call adds one closure and one dispatch, but the dispatch runs whichever closure
+        // has the highest priority at the time a pool thread is available.
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(sRunNextClosure);
+    }
+
+    /**
+     * Runs |timer| on the main looper after |delay| milliseconds.
+     */
+    static void postTimer(Runnable timer, long delay) {
+        getTimerHandler().postDelayed(timer, delay);
+    }
+
+    /**
+     * Cancels a timer posted with {@link #postTimer}.
+     */
+    static void cancelTimer(Runnable timer) {
+        getTimerHandler().removeCallbacks(timer);
+    }
+
+    private static Handler getTimerHandler() {
+        synchronized (sLock) {
+            if (sTimerHandler == null) sTimerHandler = new Handler(Looper.getMainLooper());
+            return sTimerHandler;
+        }
+    }
+
+    private static void runNextClosure() {
+        Runnable closure = null;
+        synchronized (sLock) {
+            for (int priority = TaskPriority.HIGHEST; priority >= TaskPriority.LOWEST;
+                    priority--) {
+                closure = sQueues[priority].poll();
+                if (closure != null) break;
+            }
+        }
+        if (closure != null) closure.run();
+    }
+}
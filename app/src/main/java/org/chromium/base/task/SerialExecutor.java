@@ -11,18 +11,30 @@ class SerialExecutor implements Executor {
     final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
     Runnable mActive;
 
+    /**
+     * Runs a task and schedules the next one. Named so that {@link TaskStats} can blame the
+     * wrapped task.
+     */
+    class SerialTask implements Runnable {
+        final Runnable mTask;
+
+        SerialTask(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } finally {
+                scheduleNext();
+            }
+        }
+    }
+
     @Override
     public synchronized void execute(final Runnable r) {
-        mTasks.offer(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    r.run();
-                } finally {
-                    scheduleNext();
-                }
-            }
-        });
+        mTasks.offer(new SerialTask(r));
         if (mActive == null) {
             scheduleNext();
         }
@@ -4,20 +4,20 @@
 
 package org.chromium.base.task;
 
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
-import android.util.Pair;
 
 import org.chromium.base.GcStateAssert;
 import org.chromium.base.TraceEvent;
 import org.chromium.base.annotations.JNINamespace;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
- * Implementation of the abstract class {@link TaskRunnerImpl}. Uses AsyncTasks until
- * native APIs are available.
+ * Implementation of the abstract class {@link TaskRunnerImpl}. Uses the
+ * {@link PreNativeTaskScheduler} until native APIs are available.
  */
 @JNINamespace("base")
 public class TaskRunnerImpl implements TaskRunner {
@@ -32,9 +32,32 @@ public class TaskRunnerImpl implements TaskRunner {
     private final GcStateAssert mGcStateAssert = GcStateAssert.create(this, true);
 
     @Nullable
-    protected LinkedList<Runnable> mPreNativeTasks = new LinkedList<>();
+    protected ArrayDeque<Runnable> mPreNativeTasks = new ArrayDeque<>();
     @Nullable
-    protected List<Pair<Runnable, Long>> mPreNativeDelayedTasks = new ArrayList<>();
+    protected List<PreNativeDelayedTask> mPreNativeDelayedTasks = new ArrayList<>();
+
+    /**
+     * A task posted with a delay before native is loaded. It is moved to |mPreNativeTasks| when
+     * its delay expires, or handed to the native task runner with its remaining delay.
+     */
+    protected class PreNativeDelayedTask implements Runnable {
+        private final Runnable mTask;
+        private final long mTargetTimeMs;
+
+        PreNativeDelayedTask(Runnable task, long delay) {
+            mTask = task;
+            mTargetTimeMs = SystemClock.uptimeMillis() + delay;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mPreNativeDelayedTasks == null || !mPreNativeDelayedTasks.remove(this)) return;
+                mPreNativeTasks.add(TaskStats.instrument(mTask));
+                schedulePreNativeTask();
+            }
+        }
+    }
 
     /**
      * @param traits The TaskTraits associated with this TaskRunnerImpl.
@@ -80,16 +103,19 @@ public class TaskRunnerImpl implements TaskRunner {
                 nativePostDelayedTask(mNativeTaskRunnerAndroid, task, delay);
                 return;
             }
-            // We don't expect a whole lot of these, if that changes consider pooling them.
             // If a task is scheduled for immediate execution, we post it on the
-            // pre-native task runner. Tasks scheduled to run with a delay will
-            // wait until the native task runner is initialised.
+            // pre-native task runner. Tasks scheduled to run with a delay are
+            // queued there once their delay expires, unless the native task
+            // runner is initialised first.
             if (delay == 0) {
-                mPreNativeTasks.add(task);
+                // Instrumented here so that TaskStats blames the posting class rather than the
+                // closure that runs the pre-native tasks.
+                mPreNativeTasks.add(TaskStats.instrument(task));
                 schedulePreNativeTask();
             } else {
-                Pair<Runnable, Long> preNativeDelayedTask = new Pair<>(task, delay);
+                PreNativeDelayedTask preNativeDelayedTask = new PreNativeDelayedTask(task, delay);
                 mPreNativeDelayedTasks.add(preNativeDelayedTask);
+                PreNativeTaskScheduler.postTimer(preNativeDelayedTask, delay);
             }
         }
     }
@@ -99,7 +125,7 @@ public class TaskRunnerImpl implements TaskRunner {
      * time.
      */
     protected void schedulePreNativeTask() {
-        AsyncTask.THREAD_POOL_EXECUTOR.execute(mRunPreNativeTaskClosure);
+        PreNativeTaskScheduler.schedule(mRunPreNativeTaskClosure, mTaskTraits.mPriority);
     }
 
     /**
@@ -130,10 +156,14 @@ public class TaskRunnerImpl implements TaskRunner {
                                 mTaskTraits.mPriority, mTaskTraits.mMayBlock,
                                 mTaskTraits.mExtensionId, mTaskTraits.mExtensionData);
                 for (Runnable task : mPreNativeTasks) {
-                    nativePostDelayedTask(mNativeTaskRunnerAndroid, task, 0);
+                    nativePostDelayedTask(
+                            mNativeTaskRunnerAndroid, TaskStats.uninstrument(task), 0);
                 }
-                for (Pair<Runnable, Long> task : mPreNativeDelayedTasks) {
-                    nativePostDelayedTask(mNativeTaskRunnerAndroid, task.first, task.second);
+                long now = SystemClock.uptimeMillis();
+                for (PreNativeDelayedTask task : mPreNativeDelayedTasks) {
+                    PreNativeTaskScheduler.cancelTimer(task);
+                    nativePostDelayedTask(mNativeTaskRunnerAndroid, task.mTask,
+                            Math.max(0, task.mTargetTimeMs - now));
                 }
                 mPreNativeTasks = null;
                 mPreNativeDelayedTasks = null;
@@ -0,0 +1,204 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.base.task;
+
+import org.chromium.base.TraceEvent;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on statistics of the tasks run by {@link AsyncTask#THREAD_POOL_EXECUTOR}, which backs
+ * {@link AsyncTask} and pre-native {@link PostTask} tasks. For each posting class, the time spent
+ * waiting in the queue and the time spent running are recorded in log2 histograms.
+ * <p>
+ * Samples are recorded without locking in histograms shared by all the threads and keyed by
+ * posting class only, so that the memory used does not grow with the number of worker threads the
+ * pool has started over time.
+ */
+public final class TaskStats {
+    /**
+     * Number of histogram buckets. Bucket i counts durations in [2^(i-1), 2^i) microseconds, the
+     * first bucket counts durations under a microsecond and the last one is open ended.
+     */
+    static final int BUCKET_COUNT = 24;
+
+    /** Offsets of the fields in the array backing a {@link ClassStats}. */
+    private static final int TASK_COUNT = 0;
+    private static final int TOTAL_WAIT_NANOS = 1;
+    private static final int TOTAL_RUN_NANOS = 2;
+    private static final int WAIT_BUCKETS = 3;
+    private static final int RUN_BUCKETS = WAIT_BUCKETS + BUCKET_COUNT;
+    private static final int FIELD_COUNT = RUN_BUCKETS + BUCKET_COUNT;
+
+    /**
+     * Statistics of the tasks of a single posting class. Can be written and read from any thread.
+     */
+    private static final class ClassStats {
+        final AtomicLongArray mFields = new AtomicLongArray(FIELD_COUNT);
+
+        void record(long waitNanos, long runNanos) {
+            increment(TASK_COUNT, 1);
+            increment(TOTAL_WAIT_NANOS, waitNanos);
+            increment(TOTAL_RUN_NANOS, runNanos);
+            increment(WAIT_BUCKETS + bucketFor(waitNanos), 1);
+            increment(RUN_BUCKETS + bucketFor(runNanos), 1);
+        }
+
+        private void increment(int field, long value) {
+            mFields.getAndAdd(field, value);
+        }
+    }
+
+    /**
+     * Merged statistics of a posting class, as returned by {@link #getSnapshot()}.
+     */
+    public static final class Snapshot {
+        public long taskCount;
+        public long totalWaitNanos;
+        public long totalRunNanos;
+        public final long[] waitHistogram = new long[BUCKET_COUNT];
+        public final long[] runHistogram = new long[BUCKET_COUNT];
+
+        private void add(AtomicLongArray fields) {
+            taskCount += fields.get(TASK_COUNT);
+            totalWaitNanos += fields.get(TOTAL_WAIT_NANOS);
+            totalRunNanos += fields.get(TOTAL_RUN_NANOS);
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                waitHistogram[i] += fields.get(WAIT_BUCKETS + i);
+                runHistogram[i] += fields.get(RUN_BUCKETS + i);
+            }
+        }
+    }
+
+    /** Statistics of all the threads, keyed by posting class. */
+    private static final ConcurrentHashMap<Class<?>, ClassStats> sStats =
+            new ConcurrentHashMap<>();
+
+    private TaskStats() {}
+
+    /**
+     * Wraps |task| so that its queueing and running times are recorded when it runs.
+     */
+    static Runnable instrument(Runnable task) {
+        // The pre-native dispatch closure runs tasks that were instrumented when they were posted,
+        // see TaskRunnerImpl, so that they are blamed on their own class.
+        if (task == PreNativeTaskScheduler.sRunNextClosure) return task;
+        return new InstrumentedTask(task, getBlamedClass(task), System.nanoTime());
+    }
+
+    /**
+     * Returns the task wrapped by {@link #instrument}, or |task| if it is not instrumented.
+     */
+    static Runnable uninstrument(Runnable task) {
+        return task instanceof InstrumentedTask ? ((InstrumentedTask) task).mTask : task;
+    }
+
+    /**
+     * Returns the class to blame for |task|, looking through the wrappers used by the task
+     * executors.
+     */
+    static Class<?> getBlamedClass(Runnable task) {
+        while (true) {
+            if (task instanceof InstrumentedTask) {
+                return ((InstrumentedTask) task).mBlamedClass;
+            } else if (task instanceof SerialExecutor.SerialTask) {
+                task = ((SerialExecutor.SerialTask) task).mTask;
+            } else if (task instanceof AsyncTask.NamedFutureTask) {
+                return ((AsyncTask.NamedFutureTask) task).getBlamedClass();
+            } else {
+                return task.getClass();
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of all the tasks run so far, keyed by posting class name.
+     */
+    public static Map<String, Snapshot> getSnapshot() {
+        Map<String, Snapshot> snapshot = new HashMap<>();
+        for (Map.Entry<Class<?>, ClassStats> entry : sStats.entrySet()) {
+            // Classes with the same name from different class loaders are merged.
+            String className = entry.getKey().getName();
+            Snapshot classSnapshot = snapshot.get(className);
+            if (classSnapshot == null) {
+                classSnapshot = new Snapshot();
+                snapshot.put(className, classSnapshot);
+            }
+            classSnapshot.add(entry.getValue().mFields);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns a human readable summary of {@link #getSnapshot()}, one posting class per line.
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Snapshot> entry : getSnapshot().entrySet()) {
+            builder.append(format(entry.getKey(), entry.getValue())).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Emits one instant trace event per posting class with its statistics as argument.
+     */
+    public static void emitTraceEvents() {
+        if (!TraceEvent.enabled()) return;
+        for (Map.Entry<String, Snapshot> entry : getSnapshot().entrySet()) {
+            TraceEvent.instant("TaskStats", format(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static String format(String className, Snapshot snapshot) {
+        long count = Math.max(1, snapshot.taskCount);
+        return String.format(Locale.US, "%s: tasks=%d meanWaitUs=%d meanRunUs=%d", className,
+                snapshot.taskCount, snapshot.totalWaitNanos / count / 1000,
+                snapshot.totalRunNanos / count / 1000);
+    }
+
+    private static void record(Class<?> blamedClass, long waitNanos, long runNanos) {
+        ClassStats stats = sStats.get(blamedClass);
+        if (stats == null) {
+            ClassStats newStats = new ClassStats();
+            stats = sStats.putIfAbsent(blamedClass, newStats);
+            if (stats == null) stats = newStats;
+        }
+        stats.record(waitNanos, runNanos);
+    }
+
+    private static int bucketFor(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    static final class InstrumentedTask implements Runnable {
+        final Runnable mTask;
+        final Class<?> mBlamedClass;
+        private final long mPostTimeNanos;
+
+        InstrumentedTask(Runnable task, Class<?> blamedClass, long postTimeNanos) {
+            mTask = task;
+            mBlamedClass = blamedClass;
+            mPostTimeNanos = postTimeNanos;
+        }
+
+        @Override
+        public void run() {
+            long startTimeNanos = System.nanoTime();
+            try {
+                mTask.run();
+            } finally {
+                record(mBlamedClass, startTimeNanos - mPostTimeNanos,
+                        System.nanoTime() - startTimeNanos);
+            }
+        }
+    }
+}
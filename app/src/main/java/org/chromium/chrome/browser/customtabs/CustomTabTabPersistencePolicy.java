@@ -26,6 +26,7 @@ import org.chromium.chrome.browser.tabmodel.TabModel;
 import org.chromium.chrome.browser.tabmodel.TabModelSelector;
 import org.chromium.chrome.browser.tabmodel.TabPersistencePolicy;
 import org.chromium.chrome.browser.tabmodel.TabPersistentStore;
+import org.chromium.chrome.browser.tabmodel.TabStateArchive;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
@@ -341,6 +342,10 @@ public class CustomTabTabPersistencePolicy implements TabPersistencePolicy {
                 allTabIds.add(tabInfo.first);
             }
 
+            for (int tabId : TabStateArchive.get(getOrCreateStateDirectory()).getTabIds()) {
+                allTabIds.add(tabId);
+            }
+
             mUnreferencedTabIds.addAll(allTabIds);
             mUnreferencedTabIds.removeAll(allReferencedTabIds);
 
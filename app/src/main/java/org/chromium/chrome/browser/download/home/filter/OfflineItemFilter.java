@@ -56,21 +56,19 @@ public abstract class OfflineItemFilter
      * {@link OfflineItemFilterObserver#onItemsRemoved(Collection)} calls to observers downstream.
      */
     protected void onFilterChanged() {
-        Set<OfflineItem> removed = new HashSet<>();
-        for (Iterator<OfflineItem> iter = mItems.iterator(); iter.hasNext();) {
-            OfflineItem item = iter.next();
-            if (isFilteredOut(item)) {
-                iter.remove();
-                removed.add(item);
-            }
-        }
-        if (!removed.isEmpty()) {
-            for (OfflineItemFilterObserver obs : mObservers) obs.onItemsRemoved(removed);
-        }
-
+        removeFilteredOutItems();
         addItems(mSource.getItems());
     }
 
+    /**
+     * Called by subclasses instead of {@link #onFilterChanged()} when the filtering criteria have
+     * only become stricter, so that no item filtered out before can pass the filter now.  Only the
+     * items currently exposed by this class are reevaluated.
+     */
+    protected void onFilterNarrowed() {
+        removeFilteredOutItems();
+    }
+
     // OfflineItemFilterSource implementation.
     @Override
     public Set<OfflineItem> getItems() {
@@ -133,6 +131,21 @@ public abstract class OfflineItemFilter
         for (OfflineItemFilterObserver obs : mObservers) obs.onItemsAvailable();
     }
 
+    // Helper method to remove the exposed items that are now filtered out.
+    private void removeFilteredOutItems() {
+        Set<OfflineItem> removed = new HashSet<>();
+        for (Iterator<OfflineItem> iter = mItems.iterator(); iter.hasNext();) {
+            OfflineItem item = iter.next();
+            if (isFilteredOut(item)) {
+                iter.remove();
+                removed.add(item);
+            }
+        }
+        if (!removed.isEmpty()) {
+            for (OfflineItemFilterObserver obs : mObservers) obs.onItemsRemoved(removed);
+        }
+    }
+
     // Helper method to help incorporate a collection of items into this filtered version.
     private void addItems(Collection<OfflineItem> items) {
         Set<OfflineItem> added = new HashSet<>();
@@ -7,16 +7,46 @@ package org.chromium.chrome.browser.download.home.filter;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
+import org.chromium.components.offline_items_collection.ContentId;
 import org.chromium.components.offline_items_collection.OfflineItem;
 import org.chromium.components.url_formatter.UrlFormatter;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * An {@link OfflineItemFilter} responsible for pruning out items that don't match a specific search
  * query.
+ *
+ * The formatted URL and the title of each item are normalized once and kept in an index as items
+ * are added, updated and removed, so a keystroke doesn't format or lowercase any field.  When the
+ * new query contains the previous one, only the items matching the previous query are checked.
  */
 public class SearchOfflineItemFilter extends OfflineItemFilter {
+    /** The normalized fields of an {@link OfflineItem} that queries are matched against. */
+    private static class SearchEntry {
+        public final String title;
+        public final String originalUrl;
+        public final String normalizedTitle;
+        public final String normalizedUrl;
+
+        public SearchEntry(String title, String originalUrl, String normalizedTitle,
+                String normalizedUrl) {
+            this.title = title;
+            this.originalUrl = originalUrl;
+            this.normalizedTitle = normalizedTitle;
+            this.normalizedUrl = normalizedUrl;
+        }
+
+        public boolean contains(String query) {
+            return normalizedUrl.contains(query) || normalizedTitle.contains(query);
+        }
+    }
+
+    private final Map<ContentId, SearchEntry> mSearchEntries = new HashMap<>();
+
     private String mQuery;
 
     /** Creates an instance of this fitler and wraps {@code source}. */
@@ -36,21 +66,48 @@ public class SearchOfflineItemFilter extends OfflineItemFilter {
         query = query.toLowerCase(Locale.getDefault());
         if (TextUtils.equals(mQuery, query)) return;
 
+        // Every item matching the new query matches the previous one.
+        boolean narrowed = query.contains(mQuery == null ? "" : mQuery);
         mQuery = query;
-        onFilterChanged();
+        if (narrowed) {
+            onFilterNarrowed();
+        } else {
+            onFilterChanged();
+        }
+    }
+
+    // OfflineItemFilterObserver implementation.
+    @Override
+    public void onItemsRemoved(Collection<OfflineItem> items) {
+        for (OfflineItem item : items) mSearchEntries.remove(item.id);
+        super.onItemsRemoved(items);
     }
 
     // OfflineItemFilter implementation.
     @Override
     protected boolean isFilteredOut(OfflineItem item) {
         if (TextUtils.isEmpty(mQuery)) return false;
-        return !fieldContainsQuery(formatUrl(item.originalUrl)) && !fieldContainsQuery(item.title);
+        return !getSearchEntry(item).contains(mQuery);
+    }
+
+    // Returns the index entry of |item|, creating or refreshing it if its fields changed.
+    private SearchEntry getSearchEntry(OfflineItem item) {
+        SearchEntry entry = mSearchEntries.get(item.id);
+        if (entry != null && TextUtils.equals(entry.title, item.title)
+                && TextUtils.equals(entry.originalUrl, item.originalUrl)) {
+            return entry;
+        }
+
+        entry = new SearchEntry(item.title, item.originalUrl, normalize(item.title),
+                normalize(formatUrl(item.originalUrl)));
+        mSearchEntries.put(item.id, entry);
+        return entry;
     }
 
-    private boolean fieldContainsQuery(String field) {
-        if (TextUtils.isEmpty(field)) return false;
+    private static String normalize(String field) {
+        if (TextUtils.isEmpty(field)) return "";
 
-        return field.toLowerCase(Locale.getDefault()).contains(mQuery);
+        return field.toLowerCase(Locale.getDefault());
     }
 
     /** Visible to allow tests to avoid calls to native. */
@@ -4,7 +4,7 @@
 
 package org.chromium.chrome.browser.download.home.list;
 
-import org.chromium.base.CollectionUtil;
+import org.chromium.base.VisibleForTesting;
 import org.chromium.chrome.browser.download.home.DownloadManagerUiConfig;
 import org.chromium.chrome.browser.download.home.JustNowProvider;
 import org.chromium.chrome.browser.download.home.filter.Filters;
@@ -15,12 +15,16 @@ import org.chromium.chrome.browser.download.home.list.ListItem.SectionHeaderList
 import org.chromium.components.offline_items_collection.ContentId;
 import org.chromium.components.offline_items_collection.OfflineItem;
 import org.chromium.components.offline_items_collection.OfflineItemFilter;
+import org.chromium.ui.modelutil.ListModel;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 /**
@@ -30,11 +34,10 @@ import java.util.TreeMap;
  * - Separated by date headers for each individual day.
  * - Converts changes in the form of {@link Collection}s to delta changes on the list.
  *
- * TODO(dtrainor): This should be optimized in the near future.  There are a few key things that can
- * be changed:
- * - Do a single iterating across each list to merge/unmerge them.  This requires sorting and
- *   tracking the current position across both as iterating (see {@link #onItemsRemoved(Collection)}
- *   for an example since that is close to doing what we want - minus the contains() call).
+ * The {@link ListItem}s are kept across changes, so that a change only inserts, removes and updates
+ * the rows it affects, in ranges, and only re-derives the section headers of the sections it
+ * touches. Updates which don't move an item find its row through a {@link ContentId} to position
+ * index, which is only rebuilt after the rows have moved.
  */
 class DateOrderedListMutator implements OfflineItemFilterObserver {
     private static final Date JUST_NOW_DATE = new Date(Long.MAX_VALUE);
@@ -45,6 +48,19 @@ class DateOrderedListMutator implements OfflineItemFilterObserver {
     private final Map<Date, DateGroup> mDateGroups =
             new TreeMap<>((lhs, rhs) -> { return rhs.compareTo(lhs); });
 
+    /** The list item of each {@link OfflineItem} in {@link #mDateGroups}. */
+    private final Map<ContentId, OfflineItemListItem> mListItems = new HashMap<>();
+
+    /** The position of each {@link OfflineItemListItem} in the model, if valid. */
+    private final Map<ContentId, Integer> mPositions = new HashMap<>();
+    private boolean mPositionsValid;
+
+    // The changes to push to the model since the last push.
+    private final List<ListItem> mFlattenedList = new ArrayList<>();
+    private final Set<ListItem> mAddedListItems = new HashSet<>();
+    private final Set<ListItem> mRemovedListItems = new HashSet<>();
+    private final Set<ListItem> mChangedListItems = new HashSet<>();
+
     private boolean mHideAllHeaders;
     private boolean mHideSectionHeaders;
 
@@ -86,14 +102,7 @@ class DateOrderedListMutator implements OfflineItemFilterObserver {
     @Override
     public void onItemsRemoved(Collection<OfflineItem> items) {
         for (OfflineItem item : items) {
-            Date date = getSectionDateFromOfflineItem(item);
-            DateGroup dateGroup = mDateGroups.get(date);
-            if (dateGroup == null) continue;
-
-            dateGroup.removeItem(item);
-            if (dateGroup.sections.isEmpty()) {
-                mDateGroups.remove(date);
-            }
+            removeItemFromDateGroups(item);
         }
 
         pushItemsToModel();
@@ -108,25 +117,30 @@ class DateOrderedListMutator implements OfflineItemFilterObserver {
         if (oldItem.creationTimeMs != item.creationTimeMs || oldItem.filter != item.filter
                 || shouldShowInJustNowSection(oldItem) != shouldShowInJustNowSection((item))) {
             // TODO(shaktisahu): Collect UMA when this happens.
-            onItemsRemoved(CollectionUtil.newArrayList(oldItem));
-            onItemsAdded(CollectionUtil.newArrayList(item));
-        } else {
+            removeItemFromDateGroups(oldItem);
             addOrUpdateItemToDateGroups(item);
+            pushItemsToModel();
+            return;
+        }
 
-            int sectionHeaderIndex = -1;
-            for (int i = 0; i < mModel.size(); i++) {
-                ListItem listItem = mModel.get(i);
-                if (listItem instanceof SectionHeaderListItem) sectionHeaderIndex = i;
-                if (!(listItem instanceof OfflineItemListItem)) continue;
+        Section section = getSection(item);
+        OfflineItemListItem listItem = mListItems.get(item.id);
+        int position = getPosition(item.id);
+        if (section == null || listItem == null || position < 0
+                || !isInSection(section, item)) {
+            // The item isn't shown yet.
+            addOrUpdateItemToDateGroups(item);
+            pushItemsToModel();
+            return;
+        }
 
-                OfflineItemListItem existingItem = (OfflineItemListItem) listItem;
-                if (item.id.equals(existingItem.item.id)) {
-                    existingItem.item = item;
-                    mModel.update(i, existingItem);
-                    if (oldItem.state != item.state) updateSectionHeader(sectionHeaderIndex, i);
-                    break;
-                }
-            }
+        section.items.put(new Date(item.creationTimeMs), item);
+        listItem.item = item;
+        mModel.update(position, listItem);
+        if (section.header != null) {
+            int sectionHeaderIndex = getPosition(section.items.firstEntry().getValue().id) - 1;
+            section.header.items.set(position - sectionHeaderIndex - 1, item);
+            if (oldItem.state != item.state) mModel.update(sectionHeaderIndex, section.header);
         }
 
         mModel.dispatchLastEvent();
@@ -139,53 +153,103 @@ class DateOrderedListMutator implements OfflineItemFilterObserver {
             dateGroup = new DateGroup();
             mDateGroups.put(date, dateGroup);
         }
-        dateGroup.addOrUpdateItem(item);
+
+        Section section = dateGroup.sections.get(item.filter);
+        if (section == null) {
+            section = new Section();
+            dateGroup.sections.put(item.filter, section);
+        }
+
+        OfflineItem previousItem = section.items.put(new Date(item.creationTimeMs), item);
+        section.dirty = true;
+        if (previousItem != null && !previousItem.id.equals(item.id)) {
+            removeListItem(previousItem.id);
+        }
+
+        // Items without a list item get one when the list is flattened.
+        OfflineItemListItem listItem = mListItems.get(item.id);
+        if (listItem != null) {
+            listItem.item = item;
+            mChangedListItems.add(listItem);
+        }
+    }
+
+    private void removeItemFromDateGroups(OfflineItem item) {
+        Date date = getSectionDateFromOfflineItem(item);
+        DateGroup dateGroup = mDateGroups.get(date);
+        if (dateGroup == null) return;
+
+        Section section = dateGroup.sections.get(item.filter);
+        if (section == null) return;
+
+        OfflineItem removedItem = section.items.remove(new Date(item.creationTimeMs));
+        if (removedItem == null) return;
+
+        removeListItem(removedItem.id);
+        section.dirty = true;
+        if (section.items.isEmpty()) {
+            removeSectionHeader(section);
+            dateGroup.sections.remove(item.filter);
+        }
+        if (dateGroup.sections.isEmpty()) {
+            mDateGroups.remove(date);
+        }
     }
 
-    private void updateSectionHeader(int sectionHeaderIndex, int offlineItemIndex) {
-        if (sectionHeaderIndex < 0) return;
+    private void removeListItem(ContentId id) {
+        OfflineItemListItem listItem = mListItems.remove(id);
+        if (listItem != null) mRemovedListItems.add(listItem);
+    }
 
-        SectionHeaderListItem sectionHeader =
-                (SectionHeaderListItem) mModel.get(sectionHeaderIndex);
-        OfflineItem offlineItem = ((OfflineItemListItem) mModel.get(offlineItemIndex)).item;
-        sectionHeader.items.set(offlineItemIndex - sectionHeaderIndex - 1, offlineItem);
-        mModel.update(sectionHeaderIndex, sectionHeader);
+    private void removeSectionHeader(Section section) {
+        if (section.header == null) return;
+        mRemovedListItems.add(section.header);
+        section.header = null;
     }
 
-    // Flattens out the hierarchical data and adds items to the model in the order they should be
-    // displayed. Date headers and section headers are added wherever necessary. The existing items
-    // in the model are replaced by the new set of items computed.
+    // Flattens out the hierarchical data in the order it should be displayed, with date headers
+    // and section headers wherever necessary, and applies the difference with the items in the
+    // model to the model.
     private void pushItemsToModel() {
-        List<ListItem> listItems = new ArrayList<>();
+        mFlattenedList.clear();
         int dateIndex = 0;
-        for (Date date : mDateGroups.keySet()) {
-            DateGroup dateGroup = mDateGroups.get(date);
+        for (Map.Entry<Date, DateGroup> dateEntry : mDateGroups.entrySet()) {
+            Date date = dateEntry.getKey();
             int sectionIndex = 0;
 
             // For each section.
-            for (Integer filter : dateGroup.sections.keySet()) {
-                Section section = dateGroup.sections.get(filter);
+            for (Map.Entry<Integer, Section> sectionEntry :
+                    dateEntry.getValue().sections.entrySet()) {
+                int filter = sectionEntry.getKey();
+                Section section = sectionEntry.getValue();
 
                 // Add a section header.
-                if (!mHideAllHeaders) {
-                    SectionHeaderListItem sectionHeaderItem = new SectionHeaderListItem(filter,
-                            date.getTime(), sectionIndex == 0 /* showDate */,
-                            date.equals(JUST_NOW_DATE) /* isJustNow */,
-                            sectionIndex == 0 && dateIndex > 0 /* showDivider */);
-                    sectionHeaderItem.showTitle = !mHideSectionHeaders;
-                    sectionHeaderItem.showMenu = filter == OfflineItemFilter.FILTER_IMAGE;
-                    sectionHeaderItem.items = new ArrayList<>(section.items.values());
-                    listItems.add(sectionHeaderItem);
+                if (mHideAllHeaders) {
+                    removeSectionHeader(section);
+                } else {
+                    mFlattenedList.add(updateSectionHeader(section, filter, date,
+                            sectionIndex == 0 /* showDate */,
+                            sectionIndex == 0 && dateIndex > 0 /* showDivider */));
                 }
+                section.dirty = false;
 
                 // Add the items in the section.
                 for (OfflineItem offlineItem : section.items.values()) {
-                    OfflineItemListItem item = new OfflineItemListItem(offlineItem);
-                    if (mConfig.supportFullWidthImages && section.items.size() == 1
-                            && offlineItem.filter == OfflineItemFilter.FILTER_IMAGE) {
-                        item.spanFullWidth = true;
+                    OfflineItemListItem item = mListItems.get(offlineItem.id);
+                    if (item == null) {
+                        item = new OfflineItemListItem(offlineItem);
+                        mListItems.put(offlineItem.id, item);
+                        mAddedListItems.add(item);
                     }
-                    listItems.add(item);
+
+                    boolean spanFullWidth = mConfig.supportFullWidthImages
+                            && section.items.size() == 1
+                            && offlineItem.filter == OfflineItemFilter.FILTER_IMAGE;
+                    if (item.spanFullWidth != spanFullWidth) {
+                        item.spanFullWidth = spanFullWidth;
+                        mChangedListItems.add(item);
+                    }
+                    mFlattenedList.add(item);
                 }
 
                 sectionIndex++;
@@ -194,10 +258,123 @@ class DateOrderedListMutator implements OfflineItemFilterObserver {
             dateIndex++;
         }
 
-        mModel.set(listItems);
+        applyFlattenedList(
+                mModel, mFlattenedList, mRemovedListItems, mAddedListItems, mChangedListItems);
+        mFlattenedList.clear();
+        mAddedListItems.clear();
+        mRemovedListItems.clear();
+        mChangedListItems.clear();
+        mPositionsValid = false;
         mModel.dispatchLastEvent();
     }
 
+    /**
+     * Returns the header of {@code section}, created if needed, and records whether it changed.
+     * The items of the header are only re-derived if the section changed.
+     */
+    private SectionHeaderListItem updateSectionHeader(
+            Section section, int filter, Date date, boolean showDate, boolean showDivider) {
+        boolean isJustNow = date.equals(JUST_NOW_DATE);
+        SectionHeaderListItem header = section.header;
+
+        // The stable ID of the Just Now header depends on whether it shows the date.
+        if (header != null && isJustNow && header.showDate != showDate) {
+            removeSectionHeader(section);
+            header = null;
+        }
+
+        if (header == null) {
+            header = new SectionHeaderListItem(
+                    filter, date.getTime(), showDate, isJustNow, showDivider);
+            header.showTitle = !mHideSectionHeaders;
+            header.showMenu = filter == OfflineItemFilter.FILTER_IMAGE;
+            header.items = new ArrayList<>(section.items.values());
+            section.header = header;
+            mAddedListItems.add(header);
+            return header;
+        }
+
+        boolean changed = section.dirty;
+        if (section.dirty) header.items = new ArrayList<>(section.items.values());
+        if (header.showDate != showDate || header.showDivider != showDivider
+                || header.showTitle == mHideSectionHeaders) {
+            header.showDate = showDate;
+            header.showDivider = showDivider;
+            header.showTitle = !mHideSectionHeaders;
+            changed = true;
+        }
+        if (changed) mChangedListItems.add(header);
+        return header;
+    }
+
+    /**
+     * Turns the items in {@code model} into {@code items}. Both lists must be in the same order
+     * once {@code removedItems} and {@code addedItems} are left out, so that a single pass over
+     * both finds the ranges to remove and insert. The kept items of {@code changedItems} are
+     * updated in place.
+     */
+    @VisibleForTesting
+    static <T> void applyFlattenedList(ListModel<T> model, List<T> items, Set<T> removedItems,
+            Set<T> addedItems, Set<T> changedItems) {
+        int position = 0;
+        int index = 0;
+        while (index < items.size() || position < model.size()) {
+            int end = position;
+            while (end < model.size() && removedItems.contains(model.get(end))) end++;
+            if (end > position) {
+                model.removeRange(position, end - position);
+                continue;
+            }
+
+            end = index;
+            while (end < items.size() && addedItems.contains(items.get(end))) end++;
+            if (end > index) {
+                model.addAll(items.subList(index, end), position);
+                position += end - index;
+                index = end;
+                continue;
+            }
+
+            if (index == items.size() || position == model.size()
+                    || model.get(position) != items.get(index)) {
+                // The lists are out of sync, e.g. because the source reported the same item twice.
+                model.set(items);
+                return;
+            }
+
+            T item = items.get(index);
+            if (changedItems.contains(item)) model.update(position, item);
+            position++;
+            index++;
+        }
+    }
+
+    /** @return The position of the item with {@code id} in the model, or -1 if it isn't there. */
+    private int getPosition(ContentId id) {
+        if (!mPositionsValid) {
+            mPositions.clear();
+            for (int i = 0; i < mModel.size(); i++) {
+                ListItem listItem = mModel.get(i);
+                if (!(listItem instanceof OfflineItemListItem)) continue;
+                mPositions.put(((OfflineItemListItem) listItem).item.id, i);
+            }
+            mPositionsValid = true;
+        }
+
+        Integer position = mPositions.get(id);
+        return position == null ? -1 : position;
+    }
+
+    private Section getSection(OfflineItem item) {
+        DateGroup dateGroup = mDateGroups.get(getSectionDateFromOfflineItem(item));
+        return dateGroup == null ? null : dateGroup.sections.get(item.filter);
+    }
+
+    private static boolean isInSection(Section section, OfflineItem item) {
+        OfflineItem existingItem = section.items.get(new Date(item.creationTimeMs));
+        return existingItem != null && existingItem.id.equals(item.id);
+    }
+
     private Date getSectionDateFromOfflineItem(OfflineItem offlineItem) {
         return shouldShowInJustNowSection(offlineItem)
                 ? JUST_NOW_DATE
@@ -224,25 +401,6 @@ class DateOrderedListMutator implements OfflineItemFilterObserver {
                     Filters.fromOfflineItem(lhs), Filters.fromOfflineItem(rhs));
         });
 
-        public void addOrUpdateItem(OfflineItem item) {
-            Section section = sections.get(item.filter);
-            if (section == null) {
-                section = new Section();
-                sections.put(item.filter, section);
-            }
-            section.addOrUpdateItem(item);
-        }
-
-        public void removeItem(OfflineItem item) {
-            Section section = sections.get(item.filter);
-            if (section == null) return;
-
-            section.removeItem(item);
-            if (section.items.isEmpty()) {
-                sections.remove(item.filter);
-            }
-        }
-
         public boolean contains(ContentId id) {
             for (Section section : sections.values()) {
                 for (OfflineItem item : section.items.values()) {
@@ -255,15 +413,13 @@ class DateOrderedListMutator implements OfflineItemFilterObserver {
 
     /** Represents a group of items having the same filter type. */
     private static class Section {
-        public Map<Date, OfflineItem> items =
+        public TreeMap<Date, OfflineItem> items =
                 new TreeMap<>((lhs, rhs) -> { return rhs.compareTo(lhs); });
 
-        public void addOrUpdateItem(OfflineItem item) {
-            items.put(new Date(item.creationTimeMs), item);
-        }
+        /** The header shown for this section, if any. */
+        public SectionHeaderListItem header;
 
-        public void removeItem(OfflineItem item) {
-            items.remove(new Date(item.creationTimeMs));
-        }
+        /** Whether items were added or removed since the header was derived. */
+        public boolean dirty;
     }
 }
@@ -5,6 +5,7 @@
 package org.chromium.chrome.browser.history;
 
 import org.chromium.base.annotations.CalledByNative;
+import org.chromium.chrome.browser.omnibox.suggestions.AutocompleteController;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -45,6 +46,7 @@ public class BrowsingHistoryBridge implements HistoryProvider {
 
     @Override
     public void markItemForRemoval(HistoryItem item) {
+        AutocompleteController.removeCachedSuggestion(item.getUrl());
         nativeMarkItemForRemoval(mNativeHistoryBridge, item.getUrl(), item.getNativeTimestamps());
     }
 
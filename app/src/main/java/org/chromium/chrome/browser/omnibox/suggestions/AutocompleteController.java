@@ -90,6 +90,37 @@ public class AutocompleteController {
         List<OmniboxSuggestion> suggestions =
                 OmniboxSuggestion.getCachedOmniboxSuggestionsForZeroSuggest();
         if (suggestions != null) mListener.onSuggestionsReceived(suggestions, "");
+        UrlPrefixIndex.getInstance().load();
+    }
+
+    /**
+     * Deletes the URLs cached for suggestions before native is loaded. Must be called when the
+     * browsing history is cleared.
+     */
+    public static void clearCachedSuggestions() {
+        UrlPrefixIndex.getInstance().clear();
+    }
+
+    /**
+     * Deletes a URL cached for suggestions before native is loaded. Must be called when the URL is
+     * removed from the browsing history.
+     * @param url The URL removed from history.
+     */
+    public static void removeCachedSuggestion(String url) {
+        UrlPrefixIndex.getInstance().remove(url);
+    }
+
+    /**
+     * Suggests the cached URLs matching a given text, until native autocomplete is available.
+     * Only has an effect after {@link #startCachedZeroSuggest()}.
+     *
+     * @param text The text to query cached suggestions for.
+     */
+    public void startCachedSuggest(String text) {
+        if (!mUseCachedZeroSuggestResults) return;
+        mListener.onSuggestionsReceived(
+                UrlPrefixIndex.getInstance().getSuggestions(text, MAX_DEFAULT_SUGGESTION_COUNT),
+                "");
     }
 
     /**
@@ -91,6 +91,18 @@ public class AutocompleteCoordinator implements UrlFocusChangeListener, UrlTextC
          * @param position The position of the suggestion in the list.
          */
         void populateModel(OmniboxSuggestion suggestion, PropertyModel model, int position);
+
+        /**
+         * Update a model that this processor populated for an equal suggestion, which may now be
+         * at a different position or shown for different user text.  By default the model is
+         * populated again; properties keeping the same value don't notify the view.
+         * @param suggestion The suggestion to update the model for.
+         * @param model The model to update.
+         * @param position The position of the suggestion in the list.
+         */
+        default void updateModel(OmniboxSuggestion suggestion, PropertyModel model, int position) {
+            populateModel(suggestion, model, position);
+        }
     }
 
     /**
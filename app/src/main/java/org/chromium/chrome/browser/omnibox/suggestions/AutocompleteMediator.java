@@ -13,11 +13,13 @@ import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Pair;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.TextView;
 
 import org.chromium.base.Log;
 import org.chromium.base.VisibleForTesting;
+import org.chromium.base.metrics.RecordHistogram;
 import org.chromium.base.metrics.RecordUserAction;
 import org.chromium.chrome.R;
 import org.chromium.chrome.browser.ActivityTabProvider;
@@ -49,6 +51,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles updating the model state for the currently visible omnibox suggestions.
@@ -62,14 +65,18 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
         /** The model the view uses to render the suggestion. */
         public final PropertyModel model;
 
+        /** The processor that populated the model. */
+        public final SuggestionProcessor processor;
+
         /** The view type ID. */
         public final int typeId;
 
-        public SuggestionViewInfo(
-                OmniboxSuggestion omniboxSuggestion, PropertyModel propertyModel, int id) {
+        public SuggestionViewInfo(OmniboxSuggestion omniboxSuggestion, PropertyModel propertyModel,
+                SuggestionProcessor suggestionProcessor) {
             suggestion = omniboxSuggestion;
             model = propertyModel;
-            typeId = id;
+            processor = suggestionProcessor;
+            typeId = suggestionProcessor.getViewTypeId();
         }
     }
 
@@ -111,6 +118,9 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
     // Set to true when the user has started typing new input in the omnibox, set to false
     // when the omnibox loses focus or becomes empty.
     private boolean mHasStartedNewOmniboxEditSession;
+    // The timestamp (using SystemClock.elapsedRealtime()) of the last text change that requested
+    // suggestions, or -1 if the suggestions for it were already received.
+    private long mTextChangedTimestamp = -1;
 
     /**
      * The text shown in the URL bar (user text + inline autocomplete) after the most recent set of
@@ -297,6 +307,7 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
             // Prevent any upcoming omnibox suggestions from showing once a URL is loaded (and as
             // a consequence the omnibox is unfocused).
             hideSuggestions();
+            if (mShowCachedZeroSuggestResults) UrlPrefixIndex.getInstance().persist();
         }
         if (mEditUrlProcessor != null) mEditUrlProcessor.onUrlFocusChange(hasFocus);
         mAnswerSuggestionProcessor.onUrlFocusChange(hasFocus);
@@ -474,6 +485,7 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
                 if (buttonType == ModalDialogProperties.ButtonType.POSITIVE) {
                     RecordUserAction.record("MobileOmniboxDeleteRequested");
                     mAutocomplete.deleteSuggestion(position, suggestion.hashCode());
+                    UrlPrefixIndex.getInstance().remove(suggestion.getUrl());
                     manager.dismissDialog(model, DialogDismissalCause.POSITIVE_BUTTON_CLICKED);
                 } else if (buttonType == ModalDialogProperties.ButtonType.NEGATIVE) {
                     manager.dismissDialog(model, DialogDismissalCause.NEGATIVE_BUTTON_CLICKED);
@@ -609,6 +621,7 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
             startZeroSuggest();
         } else {
             assert mRequestSuggestions == null : "Multiple omnibox requests in flight.";
+            mTextChangedTimestamp = SystemClock.elapsedRealtime();
             mRequestSuggestions = () -> {
                 String textWithoutAutocomplete =
                         mUrlBarEditingTextProvider.getTextWithoutAutocomplete();
@@ -637,6 +650,11 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
                 mHandler.postDelayed(mRequestSuggestions, OMNIBOX_SUGGESTION_START_DELAY_MS);
             } else {
                 mDeferredNativeRunnables.add(mRequestSuggestions);
+                // Until native is loaded, suggest the cached URLs matching the text.
+                if (mShowCachedZeroSuggestResults) {
+                    mAutocomplete.startCachedSuggest(
+                            mUrlBarEditingTextProvider.getTextWithoutAutocomplete());
+                }
             }
         }
 
@@ -681,6 +699,10 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
         }
         String userText = mUrlBarEditingTextProvider.getTextWithoutAutocomplete();
         mUrlTextAfterSuggestionsReceived = userText + inlineAutocompleteText;
+        recordTextChangeToFrameTime();
+        if (shouldUpdateUrlPrefixIndex()) {
+            UrlPrefixIndex.getInstance().onNativeSuggestionsReceived(newSuggestions);
+        }
 
         if (mCurrentModels.size() == newSuggestions.size()) {
             boolean sameSuggestions = true;
@@ -697,10 +719,22 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
         resetMaxTextWidths();
         // Ensure the list is fully replaced before broadcasting any change notifications.
         mPreventSuggestionListPropertyChanges = true;
+        List<SuggestionViewInfo> previousModels = new ArrayList<>(mCurrentModels);
         mCurrentModels.clear();
         for (int i = 0; i < newSuggestions.size(); i++) {
             OmniboxSuggestion suggestion = newSuggestions.get(i);
             SuggestionProcessor processor = getProcessorForSuggestion(suggestion);
+
+            // Reuse the model of an equal suggestion, wherever it was in the list, so that only the
+            // properties that changed are bound to the view again.
+            PropertyModel previousModel =
+                    takeModelForSuggestion(previousModels, suggestion, processor);
+            if (previousModel != null) {
+                mCurrentModels.add(new SuggestionViewInfo(suggestion, previousModel, processor));
+                processor.updateModel(suggestion, previousModel, i);
+                continue;
+            }
+
             PropertyModel model = processor.createModelForSuggestion(suggestion);
             model.set(SuggestionCommonProperties.LAYOUT_DIRECTION, mLayoutDirection);
             model.set(SuggestionCommonProperties.USE_DARK_COLORS, mUseDarkColors);
@@ -708,8 +742,7 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
             // Before populating the model, add it to the list of current models.  If the suggestion
             // has an image and the image was already cached, it will be updated synchronously and
             // the model will only have the image populated if it is tracked as a current model.
-            mCurrentModels.add(
-                    new SuggestionViewInfo(suggestion, model, processor.getViewTypeId()));
+            mCurrentModels.add(new SuggestionViewInfo(suggestion, model, processor));
 
             processor.populateModel(suggestion, model, i);
         }
@@ -724,6 +757,37 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
         updateOmniboxSuggestionsVisibility();
     }
 
+    /**
+     * Removes and returns the model of the suggestion equal to {@code suggestion} from
+     * {@code models}, if it was populated by {@code processor}.
+     */
+    private static PropertyModel takeModelForSuggestion(List<SuggestionViewInfo> models,
+            OmniboxSuggestion suggestion, SuggestionProcessor processor) {
+        for (int i = 0; i < models.size(); i++) {
+            SuggestionViewInfo info = models.get(i);
+            if (info.processor == processor && info.suggestion.equals(suggestion)) {
+                models.remove(i);
+                return info.model;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the time from the last text change to the start of the first frame showing the
+     * suggestions received for it.
+     */
+    private void recordTextChangeToFrameTime() {
+        if (mTextChangedTimestamp < 0 || !mNativeInitialized) return;
+
+        final long textChangedTimestamp = mTextChangedTimestamp;
+        mTextChangedTimestamp = -1;
+        Choreographer.getInstance().postFrameCallback((frameTimeNanos) -> {
+            RecordHistogram.recordTimesHistogram("Android.Omnibox.TextChangeToSuggestionsFrameTime",
+                    SystemClock.elapsedRealtime() - textChangedTimestamp, TimeUnit.MILLISECONDS);
+        });
+    }
+
     /**
      * Load the url corresponding to the typed omnibox text.
      * @param eventTime The timestamp the load was triggered by the user.
@@ -817,9 +881,20 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener, SuggestionH
 
             transition = PageTransition.LINK;
         }
+        if (shouldUpdateUrlPrefixIndex()) UrlPrefixIndex.getInstance().onNavigation(suggestion);
         mDelegate.loadUrl(url, transition, inputStart);
     }
 
+    /**
+     * @return Whether the URLs suggested and loaded should be recorded in the {@link
+     *         UrlPrefixIndex}, which is only used if cached suggestions are shown. Incognito URLs
+     *         are never recorded, as the index is persisted.
+     */
+    private boolean shouldUpdateUrlPrefixIndex() {
+        return mShowCachedZeroSuggestResults && mNativeInitialized && mDataProvider != null
+                && !mDataProvider.isIncognito();
+    }
+
     /**
      * Make a zero suggest request if:
      * - Native is loaded.
@@ -0,0 +1,534 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.omnibox.suggestions;
+
+import android.text.TextUtils;
+
+import org.chromium.base.ContextUtils;
+import org.chromium.base.Log;
+import org.chromium.base.StreamUtil;
+import org.chromium.base.ThreadUtils;
+import org.chromium.base.VisibleForTesting;
+import org.chromium.base.task.AsyncTask;
+import org.chromium.chrome.browser.omnibox.MatchClassificationStyle;
+import org.chromium.chrome.browser.omnibox.OmniboxSuggestionType;
+import org.chromium.chrome.browser.omnibox.suggestions.OmniboxSuggestion.MatchClassification;
+import org.chromium.ui.base.PageTransition;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persisted index of the URLs suggested by native autocomplete and loaded from the omnibox, used
+ * to suggest URLs for text typed before the native library is loaded.
+ * <p>
+ * The index is a table of entries sorted by normalized URL. The keys are front-coded in blocks of
+ * {@link #BLOCK_SIZE} entries, and the offset of each block is stored in the header, so a lookup
+ * reads the memory-mapped file in place: a binary search over the first key of each block, then a
+ * scan of the keys starting with the typed text. Only the matching entries are decoded.
+ * <p>
+ * URLs recorded while native is running are kept in memory and merged into the table, off the UI
+ * thread, when {@link #persist()} is called. The whole index is deleted when history is cleared,
+ * and the URL of a suggestion deleted from the omnibox is removed from it.
+ */
+final class UrlPrefixIndex {
+    private static final String TAG = "UrlPrefixIndex";
+
+    private static final String FILE_NAME = "omnibox_url_index";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x4f555049;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    /** Number of entries per front-coded block. */
+    private static final int BLOCK_SIZE = 16;
+
+    /** Maximum number of entries in the table. The least recently used ones are dropped. */
+    private static final int MAX_ENTRIES = 1000;
+
+    /** Maximum length of the stored URLs and titles. Longer URLs are not indexed. */
+    private static final int MAX_FIELD_LENGTH = 2048;
+
+    /** Relevance added to an entry for each time its URL was loaded from the omnibox. */
+    private static final int NAVIGATION_RELEVANCE_BONUS = 100;
+
+    private static final String[] IGNORED_PREFIXES = {"https://", "http://", "www."};
+
+    private static UrlPrefixIndex sInstance;
+
+    /** An entry of the index. */
+    @VisibleForTesting
+    static final class Entry {
+        final String key;
+        String url;
+        String title;
+        /** The last relevance given by native autocomplete, or -1 if none. */
+        int relevance = -1;
+        int navigationCount;
+        long lastUsedMs;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        int getRank() {
+            return Math.max(relevance, 0) + navigationCount * NAVIGATION_RELEVANCE_BONUS;
+        }
+    }
+
+    /** The mapped table, null until loaded or if there is none. */
+    private volatile ByteBuffer mTable;
+    private boolean mLoadRequested;
+
+    /** The entries recorded since the last call to {@link #persist()}, keyed by normalized URL. */
+    private Map<String, Entry> mPendingEntries = new HashMap<>();
+
+    /** The keys removed from the index, hidden from the suggestions until the table is written. */
+    private final Set<String> mRemovedKeys = new HashSet<>();
+
+    /** @return The index shared by all omniboxes. */
+    static UrlPrefixIndex getInstance() {
+        ThreadUtils.assertOnUiThread();
+        if (sInstance == null) sInstance = new UrlPrefixIndex();
+        return sInstance;
+    }
+
+    private UrlPrefixIndex() {}
+
+    /** Maps the table in the background, if not requested before. */
+    void load() {
+        if (mLoadRequested) return;
+        mLoadRequested = true;
+        AsyncTask.SERIAL_EXECUTOR.execute(() -> mTable = mapTable(getFile()));
+    }
+
+    /**
+     * @param text The text typed in the omnibox.
+     * @param maxCount The maximum number of suggestions to return.
+     * @return The indexed URLs starting with {@code text}, by decreasing relevance. Empty if the
+     *         table isn't loaded yet.
+     */
+    List<OmniboxSuggestion> getSuggestions(String text, int maxCount) {
+        List<OmniboxSuggestion> suggestions = new ArrayList<>();
+        ByteBuffer table = mTable;
+        String prefix = normalize(text.trim());
+        if (table == null || prefix.isEmpty()) return suggestions;
+
+        List<Entry> entries = new ArrayList<>();
+        try {
+            findEntries(table, prefix.getBytes(StandardCharsets.UTF_8), entries);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            Log.w(TAG, "Corrupted URL index.");
+            mTable = null;
+            return suggestions;
+        }
+        if (!mRemovedKeys.isEmpty()) {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (mRemovedKeys.contains(entries.get(i).key)) entries.remove(i);
+            }
+        }
+        Collections.sort(entries, (lhs, rhs) -> rhs.getRank() - lhs.getRank());
+
+        List<MatchClassification> classifications = new ArrayList<>();
+        classifications.add(new MatchClassification(0, MatchClassificationStyle.NONE));
+        for (int i = 0; i < entries.size() && i < maxCount; i++) {
+            Entry entry = entries.get(i);
+            suggestions.add(new OmniboxSuggestion(OmniboxSuggestionType.HISTORY_URL, false,
+                    entry.getRank(), PageTransition.TYPED, stripScheme(entry.url), classifications,
+                    entry.title, classifications, null, entry.url, entry.url, false, false));
+        }
+        return suggestions;
+    }
+
+    /** Records the URL suggestions among {@code suggestions}, received from native. */
+    void onNativeSuggestionsReceived(List<OmniboxSuggestion> suggestions) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < suggestions.size(); i++) {
+            OmniboxSuggestion suggestion = suggestions.get(i);
+            if (suggestion.getType() == OmniboxSuggestionType.URL_WHAT_YOU_TYPED) continue;
+
+            Entry entry = getPendingEntry(suggestion);
+            if (entry == null) continue;
+            entry.relevance = suggestion.getRelevance();
+            entry.lastUsedMs = now;
+        }
+    }
+
+    /** Records that the URL of {@code suggestion} was loaded from the omnibox. */
+    void onNavigation(OmniboxSuggestion suggestion) {
+        Entry entry = getPendingEntry(suggestion);
+        if (entry == null) return;
+        entry.navigationCount++;
+        entry.lastUsedMs = System.currentTimeMillis();
+    }
+
+    /** Removes {@code url}, which was deleted from history by the user, from the index. */
+    void remove(String url) {
+        if (TextUtils.isEmpty(url)) return;
+
+        String key = normalize(url);
+        mPendingEntries.remove(key);
+        mRemovedKeys.add(key);
+        persist();
+    }
+
+    /** Deletes the whole index, e.g. because history was cleared. */
+    void clear() {
+        mPendingEntries.clear();
+        mRemovedKeys.clear();
+        mTable = null;
+        // Runs after any pending write of the table.
+        AsyncTask.SERIAL_EXECUTOR.execute(() -> {
+            mTable = null;
+            File file = getFile();
+            File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+            if (file.exists() && !file.delete()) Log.w(TAG, "Failed to delete URL index.");
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Failed to delete temporary URL index.");
+            }
+        });
+    }
+
+    /**
+     * Merges the entries recorded and removed since the last call into the table, in the
+     * background.
+     */
+    void persist() {
+        if (mPendingEntries.isEmpty() && mRemovedKeys.isEmpty()) return;
+
+        final Map<String, Entry> pendingEntries = mPendingEntries;
+        final Set<String> removedKeys = new HashSet<>(mRemovedKeys);
+        mPendingEntries = new HashMap<>();
+        AsyncTask.SERIAL_EXECUTOR.execute(() -> {
+            File file = getFile();
+            ByteBuffer table = mTable != null ? mTable : mapTable(file);
+            List<Entry> entries = mergeEntries(table, pendingEntries, removedKeys);
+            if (!writeTable(file, entries)) return;
+            mTable = mapTable(file);
+            ThreadUtils.postOnUiThread(() -> mRemovedKeys.removeAll(removedKeys));
+        });
+    }
+
+    private Entry getPendingEntry(OmniboxSuggestion suggestion) {
+        String url = suggestion.getUrl();
+        if (!suggestion.isUrlSuggestion() || TextUtils.isEmpty(url)
+                || url.length() > MAX_FIELD_LENGTH) {
+            return null;
+        }
+
+        String key = normalize(url);
+        mRemovedKeys.remove(key);
+        Entry entry = mPendingEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            mPendingEntries.put(key, entry);
+        }
+        entry.url = url;
+        String title = suggestion.getDescription();
+        if (!TextUtils.isEmpty(title)) {
+            entry.title = title.length() > MAX_FIELD_LENGTH
+                    ? title.substring(0, MAX_FIELD_LENGTH)
+                    : title;
+        }
+        return entry;
+    }
+
+    private static File getFile() {
+        return new File(ContextUtils.getApplicationContext().getFilesDir(), FILE_NAME);
+    }
+
+    /** Lowercases {@code url} and removes the scheme and "www." prefixes that users rarely type. */
+    private static String normalize(String url) {
+        String key = url.toLowerCase(Locale.US);
+        for (String prefix : IGNORED_PREFIXES) {
+            if (key.startsWith(prefix)) key = key.substring(prefix.length());
+        }
+        return key;
+    }
+
+    private static String stripScheme(String url) {
+        for (int i = 0; i < 2; i++) {
+            if (url.regionMatches(true, 0, IGNORED_PREFIXES[i], 0, IGNORED_PREFIXES[i].length())) {
+                return url.substring(IGNORED_PREFIXES[i].length());
+            }
+        }
+        return url;
+    }
+
+    /** @return A read-only mapping of the table in {@code file}, or null if it isn't valid. */
+    @VisibleForTesting
+    static ByteBuffer mapTable(File file) {
+        if (!file.exists()) return null;
+
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (table.limit() < HEADER_SIZE || table.getInt(0) != MAGIC
+                    || table.getInt(4) != VERSION) {
+                Log.w(TAG, "Ignoring URL index with an unknown format.");
+                return null;
+            }
+            int count = table.getInt(8);
+            int blockCount = table.getInt(12);
+            if (count < 0 || blockCount != (count + BLOCK_SIZE - 1) / BLOCK_SIZE
+                    || HEADER_SIZE + 4L * blockCount > table.limit()) {
+                Log.w(TAG, "Ignoring corrupted URL index.");
+                return null;
+            }
+            return table;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map URL index.", e);
+            return null;
+        } finally {
+            StreamUtil.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Adds the entries of {@code table} whose key starts with {@code prefix} to {@code out}.
+     * @throws IndexOutOfBoundsException or {@link BufferUnderflowException} if the table is
+     *         corrupted.
+     */
+    @VisibleForTesting
+    static void findEntries(ByteBuffer table, byte[] prefix, List<Entry> out) {
+        int count = table.getInt(8);
+        int blockCount = table.getInt(12);
+
+        // Find the last block starting with a key smaller than the prefix.
+        byte[] key = new byte[256];
+        int startBlock = 0;
+        int low = 0;
+        int high = blockCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int position = getBlockOffset(table, mid);
+            int keyLength = table.getShort(position + 1) & 0xffff;
+            key = readBytes(table, position + 3, key, 0, keyLength);
+            if (compareToPrefix(key, keyLength, prefix) < 0) {
+                startBlock = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        for (int block = startBlock; block < blockCount; block++) {
+            int position = getBlockOffset(table, block);
+            int keyLength = 0;
+            int entryCount = Math.min(BLOCK_SIZE, count - block * BLOCK_SIZE);
+            for (int i = 0; i < entryCount; i++) {
+                int shared = table.get(position) & 0xff;
+                int suffixLength = table.getShort(position + 1) & 0xffff;
+                keyLength = shared + suffixLength;
+                key = readBytes(table, position + 3, key, shared, suffixLength);
+                position += 3 + suffixLength;
+
+                int comparison = compareToPrefix(key, keyLength, prefix);
+                if (comparison > 0) return;
+
+                int urlLength = table.getShort(position) & 0xffff;
+                int titleLength = table.getShort(position + 2 + urlLength) & 0xffff;
+                int fieldsPosition = position + 4 + urlLength + titleLength;
+                if (comparison == 0) {
+                    Entry entry = new Entry(new String(key, 0, keyLength, StandardCharsets.UTF_8));
+                    entry.url = readString(table, position + 2, urlLength);
+                    entry.title = readString(table, position + 4 + urlLength, titleLength);
+                    entry.relevance = table.getInt(fieldsPosition);
+                    entry.navigationCount = table.getInt(fieldsPosition + 4);
+                    entry.lastUsedMs = table.getLong(fieldsPosition + 8);
+                    out.add(entry);
+                }
+                position = fieldsPosition + 16;
+            }
+        }
+    }
+
+    private static int getBlockOffset(ByteBuffer table, int block) {
+        return table.getInt(HEADER_SIZE + 4 * block);
+    }
+
+    /**
+     * Copies {@code length} bytes at {@code position} of {@code table} to {@code offset} in
+     * {@code buffer}, or in a larger copy of it if needed.
+     * @return The buffer containing the bytes.
+     */
+    private static byte[] readBytes(
+            ByteBuffer table, int position, byte[] buffer, int offset, int length) {
+        if (buffer.length < offset + length) {
+            byte[] largerBuffer = new byte[Math.max(offset + length, buffer.length * 2)];
+            System.arraycopy(buffer, 0, largerBuffer, 0, offset);
+            buffer = largerBuffer;
+        }
+        ByteBuffer source = table.duplicate();
+        source.position(position);
+        source.get(buffer, offset, length);
+        return buffer;
+    }
+
+    private static String readString(ByteBuffer table, int position, int length) {
+        return new String(readBytes(table, position, new byte[length], 0, length), 0, length,
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 0 if {@code key} starts with {@code prefix}, otherwise the sign of the comparison of
+     *         {@code key} with {@code prefix}.
+     */
+    private static int compareToPrefix(byte[] key, int keyLength, byte[] prefix) {
+        int length = Math.min(keyLength, prefix.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (key[i] & 0xff) - (prefix[i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return keyLength < prefix.length ? -1 : 0;
+    }
+
+    private static int compareKeys(byte[] lhs, byte[] rhs) {
+        int length = Math.min(lhs.length, rhs.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (lhs[i] & 0xff) - (rhs[i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return lhs.length - rhs.length;
+    }
+
+    /**
+     * @return The entries of {@code table} without {@code removedKeys} and updated with
+     *         {@code pendingEntries}, limited to the {@link #MAX_ENTRIES} most recently used.
+     */
+    @VisibleForTesting
+    static List<Entry> mergeEntries(
+            ByteBuffer table, Map<String, Entry> pendingEntries, Set<String> removedKeys) {
+        List<Entry> entries = new ArrayList<>();
+        if (table != null) {
+            try {
+                findEntries(table, new byte[0], entries);
+            } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+                Log.w(TAG, "Dropping corrupted URL index.");
+                entries.clear();
+            }
+        }
+
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (removedKeys.contains(entries.get(i).key)) entries.remove(i);
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            Entry pendingEntry = pendingEntries.remove(entry.key);
+            if (pendingEntry == null) continue;
+
+            entry.url = pendingEntry.url;
+            if (pendingEntry.title != null) entry.title = pendingEntry.title;
+            if (pendingEntry.relevance >= 0) entry.relevance = pendingEntry.relevance;
+            entry.navigationCount += pendingEntry.navigationCount;
+            entry.lastUsedMs = Math.max(entry.lastUsedMs, pendingEntry.lastUsedMs);
+        }
+        entries.addAll(pendingEntries.values());
+
+        if (entries.size() > MAX_ENTRIES) {
+            Collections.sort(entries, (lhs, rhs) -> Long.compare(rhs.lastUsedMs, lhs.lastUsedMs));
+            entries.subList(MAX_ENTRIES, entries.size()).clear();
+        }
+        return entries;
+    }
+
+    /** Writes {@code entries} to {@code file}, replacing it atomically. */
+    @VisibleForTesting
+    static boolean writeTable(File file, List<Entry> entries) {
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        Map<byte[], Entry> entriesByKey = new HashMap<>();
+        for (Entry entry : entries) {
+            byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+            if (key.length > MAX_FIELD_LENGTH) continue;
+            keys.add(key);
+            entriesByKey.put(key, entry);
+        }
+        Collections.sort(keys, UrlPrefixIndex::compareKeys);
+
+        int blockCount = (keys.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] blockOffsets = new int[blockCount];
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyStream = new DataOutputStream(body);
+        File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        FileOutputStream outputStream = null;
+        boolean written = false;
+        try {
+            byte[] previousKey = null;
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                int shared = 0;
+                if (i % BLOCK_SIZE == 0) {
+                    blockOffsets[i / BLOCK_SIZE] = HEADER_SIZE + 4 * blockCount + bodyStream.size();
+                } else {
+                    int maxShared = Math.min(255, Math.min(key.length, previousKey.length));
+                    while (shared < maxShared && key[shared] == previousKey[shared]) shared++;
+                }
+                previousKey = key;
+
+                Entry entry = entriesByKey.get(key);
+                bodyStream.writeByte(shared);
+                bodyStream.writeShort(key.length - shared);
+                bodyStream.write(key, shared, key.length - shared);
+                writeString(bodyStream, entry.url);
+                writeString(bodyStream, entry.title);
+                bodyStream.writeInt(entry.relevance);
+                bodyStream.writeInt(entry.navigationCount);
+                bodyStream.writeLong(entry.lastUsedMs);
+            }
+            bodyStream.flush();
+
+            outputStream = new FileOutputStream(tempFile);
+            DataOutputStream stream = new DataOutputStream(outputStream);
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(keys.size());
+            stream.writeInt(blockCount);
+            for (int blockOffset : blockOffsets) stream.writeInt(blockOffset);
+            body.writeTo(stream);
+            stream.flush();
+            outputStream.getFD().sync();
+            written = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write URL index.", e);
+        } finally {
+            StreamUtil.closeQuietly(outputStream);
+        }
+
+        if (!written || !tempFile.renameTo(file)) {
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Failed to delete temporary URL index.");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeString(DataOutputStream stream, String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        // Titles are truncated in characters, their encoding may still exceed a short.
+        int length = Math.min(bytes.length, 0xffff);
+        stream.writeShort(length);
+        stream.write(bytes, 0, length);
+    }
+}
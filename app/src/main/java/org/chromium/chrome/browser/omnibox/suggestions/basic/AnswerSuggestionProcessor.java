@@ -81,6 +81,23 @@ public class AnswerSuggestionProcessor implements SuggestionProcessor {
         setStateForSuggestion(model, suggestion.getAnswer());
     }
 
+    @Override
+    public void updateModel(OmniboxSuggestion suggestion, PropertyModel model, int position) {
+        // The answer text and image only depend on the suggestion, which is unchanged. Only fetch
+        // the image again if it never arrived.
+        if (model.get(SuggestionViewProperties.ANSWER_IMAGE) == null) {
+            maybeFetchAnswerIcon(suggestion, model);
+        }
+
+        model.set(SuggestionViewProperties.DELEGATE,
+                mSuggestionHost.createSuggestionViewDelegate(suggestion, position));
+
+        int textColor = SuggestionViewViewBinder.getStandardFontColor(
+                mContext, model.get(SuggestionCommonProperties.USE_DARK_COLORS));
+        model.set(SuggestionViewProperties.TEXT_LINE_1_TEXT_COLOR, textColor);
+        model.set(SuggestionViewProperties.TEXT_LINE_2_TEXT_COLOR, textColor);
+    }
+
     @Override
     public void onUrlFocusChange(boolean hasFocus) {
         if (!hasFocus) mImageFetcher.clearCache();
@@ -9,6 +9,7 @@ import org.chromium.base.VisibleForTesting;
 import org.chromium.base.annotations.CalledByNative;
 import org.chromium.chrome.browser.browsing_data.BrowsingDataType;
 import org.chromium.chrome.browser.browsing_data.TimePeriod;
+import org.chromium.chrome.browser.omnibox.suggestions.AutocompleteController;
 import org.chromium.chrome.browser.profiles.Profile;
 
 /**
@@ -117,6 +118,12 @@ public final class BrowsingDataBridge {
             int[] blacklistedDomainReasons, String[] ignoredDomains, int[] ignoredDomainReasons) {
         assert mClearBrowsingDataListener == null;
         mClearBrowsingDataListener = listener;
+        for (int dataType : dataTypes) {
+            // The omnibox keeps visited URLs to suggest them before native is loaded.
+            if (dataType == BrowsingDataType.HISTORY) {
+                AutocompleteController.clearCachedSuggestions();
+            }
+        }
         nativeClearBrowsingData(getProfile(), dataTypes, timePeriod, blacklistDomains,
                 blacklistedDomainReasons, ignoredDomains, ignoredDomainReasons);
     }
@@ -19,22 +19,20 @@ import org.chromium.chrome.browser.tabmodel.TabLaunchType;
 import org.chromium.chrome.browser.util.ColorUtils;
 import org.chromium.content_public.browser.WebContents;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 
 /**
  * Object that contains the state of a tab, including its navigation history.
@@ -58,7 +56,7 @@ public class TabState {
     private static final long TIMESTAMP_NOT_SET = -1;
 
     /** Checks if the TabState header is loaded properly. */
-    private static final long KEY_CHECKER = 0;
+    static final long KEY_CHECKER = 0;
 
     /**
      * There's no official maximum size for a bundle, but if a Binder transaction fails and the
@@ -206,6 +204,39 @@ public class TabState {
         return tabState;
     }
 
+    /**
+     * Restores a TabState from an unencrypted TabState file held in memory, as produced by
+     * {@link #serializeState}. The navigation history isn't copied: it is a view of |buffer|.
+     * @param buffer Contents of the TabState file, from its position to its limit.
+     * @return TabState that has been restored, or null if it failed.
+     */
+    public static TabState restoreTabState(ByteBuffer buffer) {
+        ByteBuffer input = buffer.duplicate();
+        try {
+            TabState tabState = new TabState();
+            tabState.timestampMillis = input.getLong();
+            int size = input.getInt();
+            if (size < 0 || size > input.remaining()) {
+                Log.e(TAG, "Failed to restore tab state: invalid size " + size);
+                return null;
+            }
+            ByteBuffer contents = input.slice();
+            contents.limit(size);
+            tabState.contentsState = new WebContentsState(contents);
+            input.position(input.position() + size);
+
+            // The trailer is small, read it through a stream to share the parsing of files.
+            byte[] trailer = new byte[input.remaining()];
+            input.get(trailer);
+            tabState.mIsIncognito = false;
+            readTrailer(new DataInputStream(new ByteArrayInputStream(trailer)), tabState);
+            return tabState;
+        } catch (BufferUnderflowException | IOException exception) {
+            Log.e(TAG, "Failed to restore tab state.", exception);
+            return null;
+        }
+    }
+
     /**
      * Restores a particular TabState file from the provided Bundle.
      * @param bundle The Bundle to restore TabState from.
@@ -270,68 +301,77 @@ public class TabState {
                                     + "been skipped. Tab restore may fail.");
                 }
             }
-            tabState.parentId = stream.readInt();
-            try {
-                tabState.openerAppId = stream.readUTF();
-                if ("".equals(tabState.openerAppId)) tabState.openerAppId = null;
-            } catch (EOFException eof) {
-                // Could happen if reading a version of a TabState that does not include the app id.
-                Log.w(TAG, "Failed to read opener app id state from tab state");
-            }
-            try {
-                tabState.contentsState.setVersion(stream.readInt());
-            } catch (EOFException eof) {
-                // On the stable channel, the first release is version 18. For all other channels,
-                // chrome 25 is the first release.
-                tabState.contentsState.setVersion(isStableChannelBuild() ? 0 : 1);
-
-                // Could happen if reading a version of a TabState that does not include the
-                // version id.
-                Log.w(TAG,
-                        "Failed to read saved state version id from tab state. Assuming "
-                                + "version " + tabState.contentsState.version());
-            }
-            try {
-                // Skip obsolete sync ID.
-                stream.readLong();
-            } catch (EOFException eof) {
-            }
-            try {
-                tabState.shouldPreserve = stream.readBoolean();
-            } catch (EOFException eof) {
-                // Could happen if reading a version of TabState without this flag set.
-                tabState.shouldPreserve = false;
-                Log.w(TAG,
-                        "Failed to read shouldPreserve flag from tab state. "
-                                + "Assuming shouldPreserve is false");
-            }
             tabState.mIsIncognito = encrypted;
-            try {
-                tabState.themeColor = stream.readInt();
-                tabState.mHasThemeColor = ColorUtils.isValidThemeColor(tabState.themeColor);
-            } catch (EOFException eof) {
-                // Could happen if reading a version of TabState without a theme color.
-                tabState.themeColor = Color.WHITE;
-                tabState.mHasThemeColor = false;
-                Log.w(TAG,
-                        "Failed to read theme color from tab state. "
-                                + "Assuming theme color is white");
-            }
-            try {
-                tabState.tabLaunchTypeAtCreation = stream.readInt();
-                if (tabState.tabLaunchTypeAtCreation == -1) tabState.tabLaunchTypeAtCreation = null;
-            } catch (EOFException eof) {
-                tabState.tabLaunchTypeAtCreation = null;
-                Log.w(TAG,
-                        "Failed to read tab launch type at creation from tab state. "
-                                + "Assuming tab launch type is null");
-            }
+            readTrailer(stream, tabState);
             return tabState;
         } finally {
             stream.close();
         }
     }
 
+    /**
+     * Reads the fields following the navigation history of a TabState file.
+     * @param stream Stream positioned right after the navigation history.
+     * @param tabState TabState to read the fields into.
+     */
+    private static void readTrailer(DataInputStream stream, TabState tabState) throws IOException {
+        tabState.parentId = stream.readInt();
+        try {
+            tabState.openerAppId = stream.readUTF();
+            if ("".equals(tabState.openerAppId)) tabState.openerAppId = null;
+        } catch (EOFException eof) {
+            // Could happen if reading a version of a TabState that does not include the app id.
+            Log.w(TAG, "Failed to read opener app id state from tab state");
+        }
+        try {
+            tabState.contentsState.setVersion(stream.readInt());
+        } catch (EOFException eof) {
+            // On the stable channel, the first release is version 18. For all other channels,
+            // chrome 25 is the first release.
+            tabState.contentsState.setVersion(isStableChannelBuild() ? 0 : 1);
+
+            // Could happen if reading a version of a TabState that does not include the
+            // version id.
+            Log.w(TAG,
+                    "Failed to read saved state version id from tab state. Assuming "
+                            + "version " + tabState.contentsState.version());
+        }
+        try {
+            // Skip obsolete sync ID.
+            stream.readLong();
+        } catch (EOFException eof) {
+        }
+        try {
+            tabState.shouldPreserve = stream.readBoolean();
+        } catch (EOFException eof) {
+            // Could happen if reading a version of TabState without this flag set.
+            tabState.shouldPreserve = false;
+            Log.w(TAG,
+                    "Failed to read shouldPreserve flag from tab state. "
+                            + "Assuming shouldPreserve is false");
+        }
+        try {
+            tabState.themeColor = stream.readInt();
+            tabState.mHasThemeColor = ColorUtils.isValidThemeColor(tabState.themeColor);
+        } catch (EOFException eof) {
+            // Could happen if reading a version of TabState without a theme color.
+            tabState.themeColor = Color.WHITE;
+            tabState.mHasThemeColor = false;
+            Log.w(TAG,
+                    "Failed to read theme color from tab state. "
+                            + "Assuming theme color is white");
+        }
+        try {
+            tabState.tabLaunchTypeAtCreation = stream.readInt();
+            if (tabState.tabLaunchTypeAtCreation == -1) tabState.tabLaunchTypeAtCreation = null;
+        } catch (EOFException eof) {
+            tabState.tabLaunchTypeAtCreation = null;
+            Log.w(TAG,
+                    "Failed to read tab launch type at creation from tab state. "
+                            + "Assuming tab launch type is null");
+        }
+    }
+
     private static byte[] getContentStateByteArray(ByteBuffer buffer) {
         byte[] contentsStateBytes = new byte[buffer.limit()];
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
@@ -348,58 +388,24 @@ public class TabState {
 
     /**
      * Writes the TabState to disk. This method may be called on either the UI or background thread.
+     * The file is replaced atomically, and isn't rewritten if it already contains the same state.
      * @param file File to write the tab's state to.
      * @param state State object obtained from from {@link Tab#getState()}.
      * @param encrypted Whether or not the TabState should be encrypted.
      */
     public static void saveState(File file, TabState state, boolean encrypted) {
         if (state == null || state.contentsState == null) return;
+        TabStateFileWriter.write(file, state, encrypted);
+    }
 
-        // Create the byte array from contentsState before opening the FileOutputStream, in case
-        // contentsState.buffer is an instance of MappedByteBuffer that is mapped to
-        // the tab state file.
-        byte[] contentsStateBytes = getContentStateByteArray(state.contentsState.buffer());
-
-        DataOutputStream dataOutputStream = null;
-        FileOutputStream fileOutputStream = null;
-        try {
-            fileOutputStream = new FileOutputStream(file);
-
-            if (encrypted) {
-                Cipher cipher = CipherFactory.getInstance().getCipher(Cipher.ENCRYPT_MODE);
-                if (cipher != null) {
-                    dataOutputStream = new DataOutputStream(new BufferedOutputStream(
-                            new CipherOutputStream(fileOutputStream, cipher)));
-                } else {
-                    // If cipher is null, getRandomBytes failed, which means encryption is
-                    // meaningless. Therefore, do not save anything. This will cause users
-                    // to lose Incognito state in certain cases. That is annoying, but is
-                    // better than failing to provide the guarantee of Incognito Mode.
-                    return;
-                }
-            } else {
-                dataOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
-            }
-            if (encrypted) dataOutputStream.writeLong(KEY_CHECKER);
-            dataOutputStream.writeLong(state.timestampMillis);
-            dataOutputStream.writeInt(contentsStateBytes.length);
-            dataOutputStream.write(contentsStateBytes);
-            dataOutputStream.writeInt(state.parentId);
-            dataOutputStream.writeUTF(state.openerAppId != null ? state.openerAppId : "");
-            dataOutputStream.writeInt(state.contentsState.version());
-            dataOutputStream.writeLong(-1); // Obsolete sync ID.
-            dataOutputStream.writeBoolean(state.shouldPreserve);
-            dataOutputStream.writeInt(state.themeColor);
-            dataOutputStream.writeInt(
-                    state.tabLaunchTypeAtCreation != null ? state.tabLaunchTypeAtCreation : -1);
-        } catch (FileNotFoundException e) {
-            Log.w(TAG, "FileNotFoundException while attempting to save TabState.");
-        } catch (IOException e) {
-            Log.w(TAG, "IOException while attempting to save TabState.");
-        } finally {
-            StreamUtil.closeQuietly(dataOutputStream);
-            StreamUtil.closeQuietly(fileOutputStream);
-        }
+    /**
+     * Serializes the TabState in the format of an unencrypted TabState file, which can be read back
+     * by {@link #restoreTabState(ByteBuffer)}. The navigation history is not copied.
+     * @param state State object obtained from from {@link Tab#getState()}.
+     * @return The buffers which, written one after the other, form the serialized state.
+     */
+    public static ByteBuffer[] serializeState(TabState state) throws IOException {
+        return TabStateFileWriter.serialize(state);
     }
 
     /**
@@ -449,6 +455,7 @@ public class TabState {
     public static void deleteTabState(File directory, int tabId, boolean encrypted) {
         File file = getTabStateFile(directory, tabId, encrypted);
         if (file.exists() && !file.delete()) Log.e(TAG, "Failed to delete TabState: " + file);
+        TabStateFileWriter.onFileDeleted(file);
     }
 
     /** @return Title currently being displayed in the saved state's current entry. */
@@ -0,0 +1,248 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.tab;
+
+import org.chromium.base.Log;
+import org.chromium.base.StreamUtil;
+import org.chromium.chrome.browser.crypto.CipherFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+
+/**
+ * Writes {@link TabState} files in the format read by {@link TabState#restoreTabState}.
+ * <p>
+ * The navigation history is written straight from its direct {@link ByteBuffer}, together with
+ * the header and the trailer, with a gathering write. Incognito state is encrypted chunk by chunk
+ * into a small reusable buffer. The state is written to a temporary file which is synced and then
+ * renamed over the tab state file, so that a crash never leaves a truncated file behind. This also
+ * makes it safe to write a buffer which is a mapping of the file being replaced.
+ * <p>
+ * Saving a state identical to the last one written to the same file is skipped.
+ */
+final class TabStateFileWriter {
+    private static final String TAG = "TabStateWriter";
+
+    /** Suffix of the temporary file a tab state is written to before replacing the state file. */
+    static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** Size of the chunks the navigation history is hashed and encrypted by. */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /** Last state written to a file, used to detect that the file doesn't need to be rewritten. */
+    private static final class WrittenState {
+        final long mHash;
+        final long mLength;
+        final long mLastModified;
+
+        WrittenState(long hash, long length, long lastModified) {
+            mHash = hash;
+            mLength = length;
+            mLastModified = lastModified;
+        }
+
+        boolean matches(long hash, File file) {
+            // Also check the file itself in case it was deleted or replaced by other means.
+            return mHash == hash && mLength == file.length()
+                    && mLastModified == file.lastModified();
+        }
+    }
+
+    /** The last state written to each file, keyed by path. */
+    private static final Map<String, WrittenState> sWrittenStates = new HashMap<>();
+
+    private TabStateFileWriter() {}
+
+    /**
+     * Writes |state| to |file|.
+     * @return Whether the state is in the file, either written now or by a previous call.
+     */
+    static boolean write(File file, TabState state, boolean encrypted) {
+        ByteBuffer contents = getContents(state);
+
+        ByteBuffer header;
+        ByteBuffer trailer;
+        try {
+            header = createHeader(state, contents.remaining(), encrypted);
+            trailer = createTrailer(state);
+        } catch (IOException e) {
+            Log.w(TAG, "IOException while attempting to serialize TabState.");
+            return false;
+        }
+
+        long hash = computeHash(encrypted, header, contents, trailer);
+        synchronized (sWrittenStates) {
+            WrittenState writtenState = sWrittenStates.get(file.getPath());
+            if (writtenState != null && writtenState.matches(hash, file)) return true;
+        }
+
+        Cipher cipher = null;
+        if (encrypted) {
+            cipher = CipherFactory.getInstance().getCipher(Cipher.ENCRYPT_MODE);
+            // If cipher is null, getRandomBytes failed, which means encryption is meaningless.
+            // Therefore, do not save anything. This will cause users to lose Incognito state in
+            // certain cases. That is annoying, but is better than failing to provide the
+            // guarantee of Incognito Mode.
+            if (cipher == null) return false;
+        }
+
+        File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        FileOutputStream outputStream = null;
+        boolean written = false;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            FileChannel channel = outputStream.getChannel();
+            ByteBuffer[] buffers = new ByteBuffer[] {header, contents, trailer};
+            if (cipher == null) {
+                writeFully(channel, buffers);
+            } else {
+                writeEncrypted(channel, cipher, buffers);
+            }
+            outputStream.getFD().sync();
+            written = true;
+        } catch (IOException e) {
+            Log.w(TAG, "IOException while attempting to save TabState.");
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Failed to encrypt TabState.");
+        } finally {
+            StreamUtil.closeQuietly(outputStream);
+        }
+
+        if (!written || !tempFile.renameTo(file)) {
+            if (written) Log.w(TAG, "Failed to replace TabState file: " + file);
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Failed to delete temporary TabState file: " + tempFile);
+            }
+            forget(file);
+            return false;
+        }
+        synchronized (sWrittenStates) {
+            sWrittenStates.put(
+                    file.getPath(), new WrittenState(hash, file.length(), file.lastModified()));
+        }
+        return true;
+    }
+
+    /** Returns the buffers forming the unencrypted serialization of |state|. */
+    static ByteBuffer[] serialize(TabState state) throws IOException {
+        ByteBuffer contents = getContents(state);
+        return new ByteBuffer[] {
+                createHeader(state, contents.remaining(), false), contents, createTrailer(state)};
+    }
+
+    /** Deletes the temporary file of |file| if any, and forgets the state written to |file|. */
+    static void onFileDeleted(File file) {
+        forget(file);
+        File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        if (tempFile.exists() && !tempFile.delete()) {
+            Log.w(TAG, "Failed to delete temporary TabState file: " + tempFile);
+        }
+    }
+
+    private static void forget(File file) {
+        synchronized (sWrittenStates) {
+            sWrittenStates.remove(file.getPath());
+        }
+    }
+
+    private static ByteBuffer getContents(TabState state) {
+        ByteBuffer contents = state.contentsState.buffer().duplicate();
+        // The whole buffer is saved, wherever its position is.
+        contents.position(0);
+        return contents;
+    }
+
+    private static ByteBuffer createHeader(TabState state, int contentsSize, boolean encrypted)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        if (encrypted) stream.writeLong(TabState.KEY_CHECKER);
+        stream.writeLong(state.timestampMillis);
+        stream.writeInt(contentsSize);
+        stream.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static ByteBuffer createTrailer(TabState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        stream.writeInt(state.parentId);
+        stream.writeUTF(state.openerAppId != null ? state.openerAppId : "");
+        stream.writeInt(state.contentsState.version());
+        stream.writeLong(-1); // Obsolete sync ID.
+        stream.writeBoolean(state.shouldPreserve);
+        stream.writeInt(state.themeColor);
+        stream.writeInt(state.tabLaunchTypeAtCreation != null ? state.tabLaunchTypeAtCreation : -1);
+        stream.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static long computeHash(boolean encrypted, ByteBuffer... buffers) {
+        CRC32 crc = new CRC32();
+        crc.update(encrypted ? 1 : 0);
+        byte[] chunk = null;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasArray()) {
+                crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                continue;
+            }
+            // Direct buffers are hashed through a small chunk to avoid copying the whole state.
+            if (chunk == null) chunk = new byte[CHUNK_SIZE];
+            ByteBuffer source = buffer.duplicate();
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Encrypts |buffers| with |cipher| and writes the result. This produces the same output as a
+     * CipherOutputStream, which is what {@link TabState#restoreTabState} reads.
+     */
+    private static void writeEncrypted(FileChannel channel, Cipher cipher, ByteBuffer[] buffers)
+            throws IOException, GeneralSecurityException {
+        ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(CHUNK_SIZE));
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer input = buffer.duplicate();
+            while (input.hasRemaining()) {
+                input.limit(Math.min(buffer.limit(), input.position() + CHUNK_SIZE));
+                output.clear();
+                cipher.update(input, output);
+                writeOutput(channel, output);
+            }
+        }
+        output.clear();
+        cipher.doFinal(ByteBuffer.allocate(0), output);
+        writeOutput(channel, output);
+    }
+
+    private static void writeOutput(FileChannel channel, ByteBuffer output) throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+    }
+}
@@ -46,6 +46,7 @@ import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
@@ -82,6 +83,12 @@ public class TabPersistentStore extends TabPersister {
     /** Prevents two TabPersistentStores from saving the same file simultaneously. */
     private static final Object SAVE_LIST_LOCK = new Object();
 
+    /** Maximum number of TabStates read in parallel while restoring tabs. */
+    private static final int MAX_PARALLEL_TAB_LOADS = 4;
+
+    /** Time after which a restore step yields the UI thread, to keep frames flowing. */
+    private static final long RESTORE_STEP_BUDGET_MS = 8;
+
     /**
      * Callback interface to use while reading the persisted TabModelSelector info from disk.
      */
@@ -169,7 +176,13 @@ public class TabPersistentStore extends TabPersister {
     private final Deque<TabRestoreDetails> mTabsToRestore;
     private final Set<Integer> mTabIdsToRestore;
 
-    private LoadTabTask mLoadTabTask;
+    /**
+     * Tabs whose TabState is being read or waits to be restored, in restore order. Reads run in
+     * parallel, but tabs are restored in order.
+     */
+    private final Deque<LoadTabTask> mLoadTabTasks = new ArrayDeque<>();
+    private boolean mRestoreStepPosted;
+    private final Runnable mRestoreStepRunnable = this::runRestoreStep;
     private SaveTabTask mSaveTabTask;
     private SaveListTask mSaveListTask;
 
@@ -196,6 +209,12 @@ public class TabPersistentStore extends TabPersister {
     // restore per tab.
     private long mRestoreMergedTabsStartTime;
 
+    // Time spent by the tabs restored by the current load in each stage of the restore pipeline.
+    private int mRestoredTabCount;
+    private long mTotalReadTimeMs;
+    private long mTotalWaitTimeMs;
+    private long mTotalUiTimeMs;
+
     @VisibleForTesting
     AsyncTask<TabState> mPrefetchActiveTabTask;
 
@@ -248,6 +267,47 @@ public class TabPersistentStore extends TabPersister {
         return mPersistencePolicy.getOrCreateStateDirectory();
     }
 
+    private TabStateArchive getTabStateArchive() {
+        return TabStateArchive.get(getStateDirectory());
+    }
+
+    /**
+     * Saves the TabState with the given ID. Incognito states are saved to their own encrypted file,
+     * other states are saved to the {@link TabStateArchive} of the state directory.
+     */
+    @Override
+    public boolean saveTabState(int tabId, boolean encrypted, TabState state) {
+        if (encrypted) return super.saveTabState(tabId, encrypted, state);
+        if (state == null || state.contentsState == null) return false;
+
+        try {
+            if (!getTabStateArchive().write(tabId, state)) return false;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory error while attempting to save tab state.  Erasing.");
+            deleteTabState(tabId, encrypted);
+            return false;
+        }
+        // Drop the file the state may have been saved to by a previous version.
+        super.deleteTabState(tabId, false);
+        return true;
+    }
+
+    @Override
+    public void deleteTabState(int id, boolean encrypted) {
+        super.deleteTabState(id, encrypted);
+        if (!encrypted) getTabStateArchive().delete(id);
+    }
+
+    /**
+     * Restores the TabState with the given ID from the archive, or from its own file if the state
+     * is incognito or was saved by a previous version.
+     */
+    private TabState restoreTabState(int tabId) {
+        TabState state = getTabStateArchive().read(tabId);
+        if (state != null) return state;
+        return TabState.restoreTabState(getStateDirectory(), tabId);
+    }
+
     /**
      * Waits for the task that migrates all state files to their new location to finish.
      */
@@ -315,9 +375,7 @@ public class TabPersistentStore extends TabPersister {
                 boolean incognito = tab.isIncognito();
                 try {
                     TabState state = tab.getState();
-                    if (state != null) {
-                        TabState.saveState(getTabStateFile(id, incognito), state, incognito);
-                    }
+                    if (state != null) saveTabState(id, incognito, state);
                 } catch (OutOfMemoryError e) {
                     Log.e(TAG, "Out of memory error while attempting to save tab state.  Erasing.");
                     deleteTabState(id, incognito);
@@ -476,6 +534,10 @@ public class TabPersistentStore extends TabPersister {
      * Restore tab state.  Tab state is loaded asynchronously, other than the active tab which
      * can be forced to load synchronously.
      *
+     * The other tabs are restored by visibility: the neighbors of the active tab in its model
+     * first, then the rest. Their states are read in parallel on background threads, and restored
+     * on the UI thread in steps bounded in time.
+     *
      * @param setActiveTab If true the last active tab given in the saved state is loaded
      *                     synchronously and set as the current active tab. If false all tabs are
      *                     loaded asynchronously.
@@ -490,11 +552,43 @@ public class TabPersistentStore extends TabPersister {
                     && mIncognitoTabsRestored.size() == 0) {
                 TabRestoreDetails tabToRestore = mTabsToRestore.removeFirst();
                 restoreTab(tabToRestore, true);
+                prioritizeTabsToRestore(tabToRestore);
             }
         }
         loadNextTab();
     }
 
+    /** Orders the tabs left to restore once |activeTab| has been restored. */
+    private void prioritizeTabsToRestore(TabRestoreDetails activeTab) {
+        List<TabRestoreDetails> tabsToRestore = new ArrayList<>(mTabsToRestore);
+        sortTabsToRestore(tabsToRestore, activeTab);
+        mTabsToRestore.clear();
+        mTabsToRestore.addAll(tabsToRestore);
+    }
+
+    /**
+     * Orders |tabsToRestore| by their distance to |activeTab| in its model. Tabs of the other
+     * model and tabs being merged come next, in their original order.
+     */
+    @VisibleForTesting
+    static void sortTabsToRestore(
+            List<TabRestoreDetails> tabsToRestore, final TabRestoreDetails activeTab) {
+        final boolean activeIsIncognito = Boolean.TRUE.equals(activeTab.isIncognito);
+        // The sort is stable, so tabs with the same priority keep their original order.
+        Collections.sort(tabsToRestore,
+                (a, b) -> Integer.compare(getRestorePriority(a, activeTab, activeIsIncognito),
+                        getRestorePriority(b, activeTab, activeIsIncognito)));
+    }
+
+    /** @return The priority of restoring |tab| when |activeTab| is active, lower first. */
+    private static int getRestorePriority(
+            TabRestoreDetails tab, TabRestoreDetails activeTab, boolean activeIsIncognito) {
+        boolean isSameModel = !tab.fromMerge && tab.isIncognito != null
+                && tab.isIncognito == activeIsIncognito;
+        if (!isSameModel) return Integer.MAX_VALUE;
+        return Math.abs(tab.originalIndex - activeTab.originalIndex);
+    }
+
     /**
      * If a tab is being restored with the given url, then restore the tab in a frozen state
      * synchronously.
@@ -513,13 +607,15 @@ public class TabPersistentStore extends TabPersister {
 
     private void restoreTabStateInternal(String url, int id) {
         TabRestoreDetails tabToRestore = null;
-        if (mLoadTabTask != null) {
-            if ((url == null && mLoadTabTask.mTabToRestore.id == id)
-                    || (url != null && TextUtils.equals(mLoadTabTask.mTabToRestore.url, url))) {
-                // Steal the task of restoring the tab from the active load tab task.
-                mLoadTabTask.cancel(false);
-                tabToRestore = mLoadTabTask.mTabToRestore;
+        for (LoadTabTask loadTabTask : mLoadTabTasks) {
+            if ((url == null && loadTabTask.mTabToRestore.id == id)
+                    || (url != null && TextUtils.equals(loadTabTask.mTabToRestore.url, url))) {
+                // Steal the task of restoring the tab from the load tab task.
+                loadTabTask.cancel(false);
+                mLoadTabTasks.remove(loadTabTask);
+                tabToRestore = loadTabTask.mTabToRestore;
                 loadNextTab();  // Queue up async task to load next tab after we're done here.
+                break;
             }
         }
 
@@ -553,7 +649,7 @@ public class TabPersistentStore extends TabPersister {
                 logExecutionTime("RestoreTabPrefetchTime", timeWaitingForPrefetch);
             } else {
                 // Necessary to do on the UI thread as a last resort.
-                state = TabState.restoreTabState(getStateDirectory(), tabToRestore.id);
+                state = restoreTabState(tabToRestore.id);
             }
             logExecutionTime("RestoreTabTime", time);
             restoreTab(tabToRestore, state, setAsActive);
@@ -680,6 +776,7 @@ public class TabPersistentStore extends TabPersister {
         AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
             @Override
             public void run() {
+                TabStateArchive.closeAll();
                 File[] baseStateFiles = getOrCreateBaseStateDirectory().listFiles();
                 if (baseStateFiles == null) return;
                 for (File baseStateFile : baseStateFiles) {
@@ -750,10 +847,13 @@ public class TabPersistentStore extends TabPersister {
         mTabsToSave.remove(tab);
         mTabsToRestore.remove(getTabToRestoreById(tab.getId()));
 
-        if (mLoadTabTask != null && mLoadTabTask.mTabToRestore.id == tab.getId()) {
-            mLoadTabTask.cancel(false);
-            mLoadTabTask = null;
-            loadNextTab();
+        for (LoadTabTask loadTabTask : mLoadTabTasks) {
+            if (loadTabTask.mTabToRestore.id == tab.getId()) {
+                loadTabTask.cancel(false);
+                mLoadTabTasks.remove(loadTabTask);
+                loadNextTab();
+                break;
+            }
         }
 
         if (mSaveTabTask != null && mSaveTabTask.mId == tab.getId()) {
@@ -786,7 +886,8 @@ public class TabPersistentStore extends TabPersister {
     public void destroy() {
         mDestroyed = true;
         mPersistencePolicy.destroy();
-        if (mLoadTabTask != null) mLoadTabTask.cancel(true);
+        for (LoadTabTask loadTabTask : mLoadTabTasks) loadTabTask.cancel(true);
+        mLoadTabTasks.clear();
         mTabsToSave.clear();
         mTabsToRestore.clear();
         if (mSaveTabTask != null) mSaveTabTask.cancel(false);
@@ -804,7 +905,9 @@ public class TabPersistentStore extends TabPersister {
 
         // The metadata file may be being written out before all of the Tabs have been restored.
         // Save that information out, as well.
-        if (mLoadTabTask != null) tabsToRestore.add(mLoadTabTask.mTabToRestore);
+        for (LoadTabTask loadTabTask : mLoadTabTasks) {
+            tabsToRestore.add(loadTabTask.mTabToRestore);
+        }
         for (TabRestoreDetails details : mTabsToRestore) {
             tabsToRestore.add(details);
         }
@@ -1021,6 +1124,10 @@ public class TabPersistentStore extends TabPersister {
                                 TabState.parseInfoFromFilename(file.getName());
                         if (tabStateInfo != null) {
                             maxId = Math.max(maxId, tabStateInfo.first);
+                        } else if (TabStateArchive.isArchiveFile(file.getName())) {
+                            for (int id : TabStateArchive.get(subDirectory).getTabIds()) {
+                                maxId = Math.max(maxId, id);
+                            }
                         } else if (isStateFile(file.getName())) {
                             DataInputStream stream = null;
                             try {
@@ -1225,8 +1332,13 @@ public class TabPersistentStore extends TabPersister {
 
     private void loadNextTab() {
         if (mDestroyed) return;
+        if (!ThreadUtils.runningOnUiThread()) {
+            // #mergeState() restores the tabs from a background task.
+            ThreadUtils.postOnUiThread(this::loadNextTab);
+            return;
+        }
 
-        if (mTabsToRestore.isEmpty()) {
+        if (mTabsToRestore.isEmpty() && mLoadTabTasks.isEmpty()) {
             mNormalTabsRestored = null;
             mIncognitoTabsRestored = null;
             mLoadInProgress = false;
@@ -1261,14 +1373,78 @@ public class TabPersistentStore extends TabPersister {
 
             cleanUpPersistentData();
             onStateLoaded();
-            mLoadTabTask = null;
+            logRestoreTimes();
             Log.d(TAG, "Loaded tab lists; counts: " + mTabModelSelector.getModel(false).getCount()
                     + "," + mTabModelSelector.getModel(true).getCount());
-        } else {
-            TabRestoreDetails tabToRestore = mTabsToRestore.removeFirst();
-            mLoadTabTask = new LoadTabTask(tabToRestore);
-            mLoadTabTask.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+            return;
+        }
+
+        // Keep a bounded number of TabStates being read ahead of the tabs being restored.
+        while (mLoadTabTasks.size() < MAX_PARALLEL_TAB_LOADS && !mTabsToRestore.isEmpty()) {
+            LoadTabTask loadTabTask = new LoadTabTask(mTabsToRestore.removeFirst());
+            mLoadTabTasks.addLast(loadTabTask);
+            loadTabTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
+        if (isNextTabLoaded()) postRestoreStep();
+    }
+
+    private boolean isNextTabLoaded() {
+        return !mLoadTabTasks.isEmpty() && mLoadTabTasks.peekFirst().mLoaded;
+    }
+
+    private void postRestoreStep() {
+        if (mRestoreStepPosted) return;
+        mRestoreStepPosted = true;
+        ThreadUtils.postOnUiThread(mRestoreStepRunnable);
+    }
+
+    /**
+     * Restores the tabs whose TabState has been read, in order, until the step runs out of time.
+     * The remaining tabs are restored by the next step, which lets the UI thread draw a frame in
+     * between.
+     */
+    private void runRestoreStep() {
+        mRestoreStepPosted = false;
+        if (mDestroyed) return;
+
+        long deadline = SystemClock.uptimeMillis() + RESTORE_STEP_BUDGET_MS;
+        while (isNextTabLoaded() && SystemClock.uptimeMillis() < deadline) {
+            LoadTabTask loadTabTask = mLoadTabTasks.removeFirst();
+            long startTime = SystemClock.uptimeMillis();
+            TabState tabState = loadTabTask.mTabState;
+            TabRestoreDetails tabToRestore = loadTabTask.mTabToRestore;
+            boolean isIncognito = isIncognitoTabBeingRestored(tabToRestore, tabState);
+            boolean isLoadCancelled = (isIncognito && mCancelIncognitoTabLoads)
+                    || (!isIncognito && mCancelNormalTabLoads);
+            if (!isLoadCancelled) restoreTab(tabToRestore, tabState, false);
+
+            long endTime = SystemClock.uptimeMillis();
+            mRestoredTabCount++;
+            mTotalReadTimeMs += loadTabTask.mReadTimeMs;
+            mTotalWaitTimeMs += startTime - loadTabTask.mLoadedTime;
+            mTotalUiTimeMs += endTime - startTime;
+        }
+        loadNextTab();
+    }
+
+    /** Records the time spent by the restored tabs in each stage of the restore pipeline. */
+    private void logRestoreTimes() {
+        if (mRestoredTabCount == 0) return;
+        if (LibraryLoader.getInstance().isInitialized()) {
+            RecordHistogram.recordTimesHistogram("Android.TabPersistentStore.RestoreTabReadTime",
+                    mTotalReadTimeMs / mRestoredTabCount, TimeUnit.MILLISECONDS);
+            RecordHistogram.recordTimesHistogram("Android.TabPersistentStore.RestoreTabWaitTime",
+                    mTotalWaitTimeMs / mRestoredTabCount, TimeUnit.MILLISECONDS);
+            RecordHistogram.recordTimesHistogram("Android.TabPersistentStore.RestoreTabUiTime",
+                    mTotalUiTimeMs / mRestoredTabCount, TimeUnit.MILLISECONDS);
+        }
+        Log.d(TAG, "Restored " + mRestoredTabCount + " tabs; read: " + mTotalReadTimeMs
+                + "ms, waiting for the UI thread: " + mTotalWaitTimeMs
+                + "ms, on the UI thread: " + mTotalUiTimeMs + "ms");
+        mRestoredTabCount = 0;
+        mTotalReadTimeMs = 0;
+        mTotalWaitTimeMs = 0;
+        mTotalUiTimeMs = 0;
     }
 
     /**
@@ -1290,12 +1466,18 @@ public class TabPersistentStore extends TabPersister {
      * File mutations (e.g. saving & deleting) are explicitly serialized to ensure that they occur
      * in the correct order.
      *
-     * @param file Name of file under the state directory to be deleted.
+     * @param file Name of file under the state directory to be deleted. For a tab state file, the
+     *             state is deleted from the {@link TabStateArchive} as well.
      */
     private void deleteFileAsync(final String file) {
         new AsyncTask<Void>() {
             @Override
             protected Void doInBackground() {
+                Pair<Integer, Boolean> tabStateInfo = TabState.parseInfoFromFilename(file);
+                if (tabStateInfo != null && !tabStateInfo.second) {
+                    getTabStateArchive().delete(tabStateInfo.first);
+                }
+
                 File stateFile = new File(getStateDirectory(), file);
                 if (stateFile.exists()) {
                     if (!stateFile.delete()) Log.e(TAG, "Failed to delete file: " + stateFile);
@@ -1315,9 +1497,18 @@ public class TabPersistentStore extends TabPersister {
         // executor.
     }
 
+    /**
+     * Reads the TabState of a tab in the background. The tab is restored by the restore steps once
+     * the tabs before it have been restored.
+     */
     private class LoadTabTask extends AsyncTask<TabState> {
         public final TabRestoreDetails mTabToRestore;
 
+        boolean mLoaded;
+        TabState mTabState;
+        long mReadTimeMs;
+        long mLoadedTime;
+
         public LoadTabTask(TabRestoreDetails tabToRestore) {
             mTabToRestore = tabToRestore;
         }
@@ -1325,11 +1516,14 @@ public class TabPersistentStore extends TabPersister {
         @Override
         protected TabState doInBackground() {
             if (mDestroyed || isCancelled()) return null;
+            long startTime = SystemClock.uptimeMillis();
             try {
-                return TabState.restoreTabState(getStateDirectory(), mTabToRestore.id);
+                return restoreTabState(mTabToRestore.id);
             } catch (Exception e) {
                 Log.w(TAG, "Unable to read state: " + e);
                 return null;
+            } finally {
+                mReadTimeMs = SystemClock.uptimeMillis() - startTime;
             }
         }
 
@@ -1337,12 +1531,10 @@ public class TabPersistentStore extends TabPersister {
         protected void onPostExecute(TabState tabState) {
             if (mDestroyed || isCancelled()) return;
 
-            boolean isIncognito = isIncognitoTabBeingRestored(mTabToRestore, tabState);
-            boolean isLoadCancelled = (isIncognito && mCancelIncognitoTabLoads)
-                    || (!isIncognito && mCancelNormalTabLoads);
-            if (!isLoadCancelled) restoreTab(mTabToRestore, tabState, false);
-
-            loadNextTab();
+            mTabState = tabState;
+            mLoaded = true;
+            mLoadedTime = SystemClock.uptimeMillis();
+            if (isNextTabLoaded()) postRestoreStep();
         }
     }
 
@@ -1434,7 +1626,7 @@ public class TabPersistentStore extends TabPersister {
         mPrefetchActiveTabTask = new AsyncTask<TabState>() {
             @Override
             protected TabState doInBackground() {
-                return TabState.restoreTabState(getStateDirectory(), activeTabId);
+                return restoreTabState(activeTabId);
             }
         }.executeOnExecutor(executor);
     }
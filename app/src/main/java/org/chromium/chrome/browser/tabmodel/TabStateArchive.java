@@ -0,0 +1,499 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.tabmodel;
+
+import org.chromium.base.Log;
+import org.chromium.base.StreamUtil;
+import org.chromium.base.VisibleForTesting;
+import org.chromium.chrome.browser.tab.TabState;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the unencrypted {@link TabState}s of a state directory in a single file, instead of one
+ * file per tab.
+ * <p>
+ * The archive is a log: a saved state is appended as a record keyed by the tab id, superseding the
+ * previous record of the tab, and a deleted state is recorded with a tombstone. The index of the
+ * live records is rebuilt when the archive is first used, and states are read from a read-only
+ * mapping of the file without copying. When the superseded records outweigh the live ones, the
+ * live records are copied to a new archive which atomically replaces the old one. Mappings of the
+ * old archive stay valid, so restored states can keep referencing it.
+ * <p>
+ * Each append is synced to disk before it is reported as saved. Each record carries a CRC32 of its
+ * state, checked when the archive is loaded and again when the state is read. The first record
+ * failing the check, torn by a crash, ends the log: it is dropped with whatever follows it, and the
+ * previous state of the tab is used instead.
+ * <p>
+ * Incognito states are encrypted with a per-session key and keep using their own files.
+ */
+public final class TabStateArchive {
+    private static final String TAG = "TabStateArchive";
+
+    /** Name of the archive file in a state directory. */
+    private static final String ARCHIVE_FILE_NAME = "tab_archive";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x54534152;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    /** A record is made of the tab id, the length of the state, its CRC32, then the state. */
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    /** Length of a record recording the deletion of a state. */
+    private static final int TOMBSTONE = -1;
+
+    /** Archives smaller than this are never compacted. */
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    /** Size of the chunks mapped states are hashed by. */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /** The archive of each state directory, keyed by path. */
+    private static final Map<String, TabStateArchive> sArchives = new HashMap<>();
+
+    /** Location of the state of a tab in the archive. */
+    private static final class Entry {
+        /** Offset of the record in the archive. */
+        final long mOffset;
+        final int mLength;
+        final int mCrc;
+
+        Entry(long offset, int length, int crc) {
+            mOffset = offset;
+            mLength = length;
+            mCrc = crc;
+        }
+
+        long getRecordSize() {
+            return RECORD_HEADER_SIZE + mLength;
+        }
+    }
+
+    private final File mFile;
+    private final Map<Integer, Entry> mEntries = new HashMap<>();
+
+    private boolean mLoaded;
+
+    /** Whether the archive was closed by {@link #closeAll()}, after which it can't be used. */
+    private boolean mClosed;
+
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mMapping;
+
+    /** Size of the valid part of the archive, where the next record is appended. */
+    private long mSize;
+
+    /** Size of the records of the live states, including the file header. */
+    private long mLiveSize;
+
+    private TabStateArchive(File directory) {
+        mFile = new File(directory, ARCHIVE_FILE_NAME);
+    }
+
+    /** @return The archive of the state directory |directory|. */
+    public static TabStateArchive get(File directory) {
+        synchronized (sArchives) {
+            TabStateArchive archive = sArchives.get(directory.getPath());
+            if (archive == null) {
+                archive = new TabStateArchive(directory);
+                sArchives.put(directory.getPath(), archive);
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Closes all the archives. Must be called before deleting archive files. Archives obtained
+     * before this call can't be used anymore, the next call to {@link #get} reloads the archive
+     * from disk.
+     */
+    public static void closeAll() {
+        synchronized (sArchives) {
+            for (TabStateArchive archive : sArchives.values()) archive.close();
+            sArchives.clear();
+        }
+    }
+
+    /** @return Whether |fileName| is the name of an archive file. */
+    public static boolean isArchiveFile(String fileName) {
+        return fileName.equals(ARCHIVE_FILE_NAME)
+                || fileName.equals(ARCHIVE_FILE_NAME + TEMP_FILE_SUFFIX);
+    }
+
+    /** @return The ids of the tabs whose state is in the archive. */
+    public synchronized int[] getTabIds() {
+        if (!ensureLoaded()) return new int[0];
+        int[] ids = new int[mEntries.size()];
+        int i = 0;
+        for (int id : mEntries.keySet()) ids[i++] = id;
+        return ids;
+    }
+
+    /** @return Whether the archive holds a state for the tab |tabId|. */
+    public synchronized boolean contains(int tabId) {
+        if (!ensureLoaded()) return false;
+        return mEntries.containsKey(tabId);
+    }
+
+    /**
+     * Reads the state of a tab. The navigation history of the state references the mapped
+     * archive rather than being copied.
+     * @param tabId ID of the tab.
+     * @return The state of the tab, or null if it isn't in the archive or is corrupted.
+     */
+    public TabState read(int tabId) {
+        ByteBuffer record = readRecord(tabId);
+        return record == null ? null : TabState.restoreTabState(record);
+    }
+
+    /**
+     * Reads the serialized state of a tab from the mapped archive.
+     * @param tabId ID of the tab.
+     * @return The state of the tab, or null if it isn't in the archive or is corrupted.
+     */
+    @VisibleForTesting
+    ByteBuffer readRecord(int tabId) {
+        ByteBuffer record;
+        int crc;
+        synchronized (this) {
+            if (!ensureLoaded()) return null;
+            Entry entry = mEntries.get(tabId);
+            if (entry == null) return null;
+            record = getMappedRecord(entry);
+            if (record == null) return null;
+            crc = entry.mCrc;
+        }
+
+        // Hashing the mapped state doesn't need the lock.
+        if (computeCrc(record) != crc) {
+            Log.e(TAG, "Corrupted state for tab " + tabId);
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Saves the state of a tab, superseding its previous state. Nothing is written if the archive
+     * already holds the same state.
+     * @param tabId ID of the tab.
+     * @param state Unencrypted state of the tab.
+     * @return Whether the state is in the archive.
+     */
+    public boolean write(int tabId, TabState state) {
+        ByteBuffer[] buffers;
+        try {
+            buffers = TabState.serializeState(state);
+        } catch (IOException e) {
+            Log.w(TAG, "IOException while attempting to serialize TabState.");
+            return false;
+        }
+        return writeRecord(tabId, buffers);
+    }
+
+    /**
+     * Saves the serialized state of a tab, superseding its previous state.
+     * @param tabId ID of the tab.
+     * @param buffers The buffers which, written one after the other, form the state.
+     * @return Whether the state is in the archive.
+     */
+    @VisibleForTesting
+    synchronized boolean writeRecord(int tabId, ByteBuffer[] buffers) {
+        if (!ensureLoaded()) return false;
+        long length = 0;
+        for (ByteBuffer buffer : buffers) length += buffer.remaining();
+        if (length > Integer.MAX_VALUE - RECORD_HEADER_SIZE) return false;
+        int crc = computeCrc(buffers);
+
+        Entry previous = mEntries.get(tabId);
+        if (previous != null && previous.mLength == length && previous.mCrc == crc) return true;
+
+        ByteBuffer header = createRecordHeader(tabId, (int) length, crc);
+        ByteBuffer[] record = new ByteBuffer[buffers.length + 1];
+        record[0] = header;
+        System.arraycopy(buffers, 0, record, 1, buffers.length);
+        if (!append(record)) return false;
+
+        Entry entry = new Entry(mSize, (int) length, crc);
+        mSize += entry.getRecordSize();
+        mLiveSize += entry.getRecordSize();
+        if (previous != null) mLiveSize -= previous.getRecordSize();
+        mEntries.put(tabId, entry);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Deletes the state of a tab.
+     * @param tabId ID of the tab.
+     */
+    public synchronized void delete(int tabId) {
+        if (!ensureLoaded()) return;
+        Entry previous = mEntries.get(tabId);
+        if (previous == null) return;
+
+        // Remove the entry even if the tombstone can't be written, the state is then dropped when
+        // the archive is compacted.
+        mEntries.remove(tabId);
+        mLiveSize -= previous.getRecordSize();
+        if (append(new ByteBuffer[] {createRecordHeader(tabId, TOMBSTONE, 0)})) {
+            mSize += RECORD_HEADER_SIZE;
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Loads the index of the archive if needed.
+     * @return Whether the archive is loaded and can be used. Loading is attempted again on the next
+     *         call when the archive couldn't be mapped.
+     */
+    private boolean ensureLoaded() {
+        if (mClosed) {
+            Log.w(TAG, "Using closed archive " + mFile);
+            return false;
+        }
+        if (mLoaded) return true;
+        mEntries.clear();
+        mSize = FILE_HEADER_SIZE;
+        mLiveSize = FILE_HEADER_SIZE;
+        if (!mFile.exists()) {
+            mLoaded = true;
+            return true;
+        }
+
+        long fileSize = mFile.length();
+        if (fileSize < FILE_HEADER_SIZE) {
+            // The header is written with the first record, the archive holds no state.
+            Log.w(TAG, "Discarding archive without header " + mFile);
+            discard();
+            return true;
+        }
+        ByteBuffer mapping = getMapping(fileSize);
+        if (mapping == null) {
+            // Mapping may fail temporarily, e.g. when the address space is exhausted. Keep the
+            // states, and don't append to an archive whose valid size is unknown.
+            Log.e(TAG, "Failed to load archive " + mFile);
+            release();
+            return false;
+        }
+        if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+            Log.w(TAG, "Discarding unreadable archive " + mFile);
+            discard();
+            return true;
+        }
+        mLoaded = true;
+
+        long offset = FILE_HEADER_SIZE;
+        while (fileSize - offset >= RECORD_HEADER_SIZE) {
+            int tabId = mapping.getInt((int) offset);
+            int length = mapping.getInt((int) offset + 4);
+            int crc = mapping.getInt((int) offset + 8);
+            if (length == TOMBSTONE) {
+                Entry previous = mEntries.get(tabId);
+                if (previous != null) mLiveSize -= previous.getRecordSize();
+                mEntries.remove(tabId);
+                offset += RECORD_HEADER_SIZE;
+                continue;
+            }
+            // A zeroed or truncated record is the tail of an interrupted append.
+            if (length <= 0 || length > fileSize - offset - RECORD_HEADER_SIZE) break;
+
+            Entry entry = new Entry(offset, length, crc);
+            // So is a record of the right length whose contents weren't all written.
+            ByteBuffer record = getMappedRecord(entry);
+            if (record == null || computeCrc(record) != crc) break;
+
+            Entry previous = mEntries.get(tabId);
+            if (previous != null) mLiveSize -= previous.getRecordSize();
+            mEntries.put(tabId, entry);
+            mLiveSize += entry.getRecordSize();
+            offset += entry.getRecordSize();
+        }
+        mSize = offset;
+        if (mSize != fileSize) {
+            Log.w(TAG, "Dropping " + (fileSize - mSize) + " bytes of incomplete records");
+        }
+        return true;
+    }
+
+    /** @return The state of |entry|, read from the mapped archive. */
+    private ByteBuffer getMappedRecord(Entry entry) {
+        long end = entry.mOffset + entry.getRecordSize();
+        ByteBuffer mapping = getMapping(end);
+        if (mapping == null) return null;
+        ByteBuffer record = mapping.duplicate();
+        record.limit((int) end);
+        record.position((int) entry.mOffset + RECORD_HEADER_SIZE);
+        return record.slice();
+    }
+
+    /** @return A mapping of the archive covering at least |size| bytes, or null on failure. */
+    private ByteBuffer getMapping(long size) {
+        if (mMapping != null && mMapping.capacity() >= size) return mMapping;
+        if (size > Integer.MAX_VALUE) return null;
+        try {
+            // Map the whole file, so that the next states appended are mapped as well when the
+            // archive is read after being written.
+            FileChannel channel = getRandomAccessFile().getChannel();
+            long fileSize = channel.size();
+            if (fileSize < size || fileSize > Integer.MAX_VALUE) return null;
+            mMapping = channel.map(MapMode.READ_ONLY, 0, fileSize);
+            return mMapping;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to map archive.", e);
+            return null;
+        }
+    }
+
+    private RandomAccessFile getRandomAccessFile() throws IOException {
+        if (mRandomAccessFile == null) mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        return mRandomAccessFile;
+    }
+
+    /** Writes |buffers| at the end of the valid part of the archive. */
+    private boolean append(ByteBuffer[] buffers) {
+        try {
+            FileChannel channel = getRandomAccessFile().getChannel();
+            if (mSize == FILE_HEADER_SIZE && channel.size() < FILE_HEADER_SIZE) {
+                writeFully(channel.position(0), new ByteBuffer[] {createFileHeader()});
+            }
+            // Overwrite whatever is left of an interrupted append.
+            if (channel.size() > mSize) channel.truncate(mSize);
+            writeFully(channel.position(mSize), buffers);
+            // All the normal tabs depend on this file, make sure the state is on disk like the
+            // per-tab files, which are synced before being renamed.
+            channel.force(false);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write archive.", e);
+            // The file may end with part of the record, which the next append truncates.
+            release();
+            mLoaded = true;
+            return false;
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (mSize < MIN_COMPACTION_SIZE || mSize - mLiveSize <= mLiveSize) return;
+        compact();
+    }
+
+    /** Replaces the archive with a copy of its live records. */
+    private void compact() {
+        File tempFile = new File(mFile.getPath() + TEMP_FILE_SUFFIX);
+        Map<Integer, Entry> entries = new HashMap<>();
+        FileOutputStream outputStream = null;
+        boolean written = false;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            FileChannel channel = outputStream.getChannel();
+            writeFully(channel, new ByteBuffer[] {createFileHeader()});
+            long offset = FILE_HEADER_SIZE;
+            for (Map.Entry<Integer, Entry> mapEntry : mEntries.entrySet()) {
+                int tabId = mapEntry.getKey();
+                Entry entry = mapEntry.getValue();
+                ByteBuffer record = getMappedRecord(entry);
+                if (record == null) throw new IOException("Unable to map record");
+                ByteBuffer header = createRecordHeader(tabId, entry.mLength, entry.mCrc);
+                writeFully(channel, new ByteBuffer[] {header, record});
+                entries.put(tabId, new Entry(offset, entry.mLength, entry.mCrc));
+                offset += entry.getRecordSize();
+            }
+            outputStream.getFD().sync();
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact archive.", e);
+        } finally {
+            StreamUtil.closeQuietly(outputStream);
+        }
+
+        if (!written || !tempFile.renameTo(mFile)) {
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Failed to delete file: " + tempFile);
+            }
+            return;
+        }
+
+        // States restored from the old archive keep their mapping of it.
+        StreamUtil.closeQuietly(mRandomAccessFile);
+        mRandomAccessFile = null;
+        mMapping = null;
+        mEntries.clear();
+        mEntries.putAll(entries);
+        mSize = mLiveSize;
+    }
+
+    /** Deletes an unreadable archive. */
+    private void discard() {
+        release();
+        mLoaded = true;
+        if (mFile.exists() && !mFile.delete()) Log.e(TAG, "Failed to delete file: " + mFile);
+    }
+
+    /** Closes the archive for good, waiting for the operations in progress to complete. */
+    private synchronized void close() {
+        release();
+        mClosed = true;
+    }
+
+    /** Closes the file of the archive, which is reloaded on its next use. */
+    private void release() {
+        StreamUtil.closeQuietly(mRandomAccessFile);
+        mRandomAccessFile = null;
+        mMapping = null;
+        mLoaded = false;
+    }
+
+    private static ByteBuffer createFileHeader() {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        return header;
+    }
+
+    private static ByteBuffer createRecordHeader(int tabId, int length, int crc) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(tabId).putInt(length).putInt(crc).flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    private static int computeCrc(ByteBuffer... buffers) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = null;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasArray()) {
+                crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                continue;
+            }
+            // Direct buffers are hashed through a small chunk to avoid copying the whole state.
+            if (chunk == null) chunk = new byte[CHUNK_SIZE];
+            ByteBuffer source = buffer.duplicate();
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return (int) crc.getValue();
+    }
+}
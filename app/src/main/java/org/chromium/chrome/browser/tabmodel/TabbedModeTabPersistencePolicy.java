@@ -388,6 +388,7 @@ public class TabbedModeTabPersistencePolicy implements TabPersistencePolicy {
         private final Callback<List<String>> mFilesToDeleteCallback;
 
         private String[] mTabFileNames;
+        private int[] mArchivedTabIds;
         private String[] mThumbnailFileNames;
         private SparseBooleanArray mOtherTabIds;
 
@@ -400,6 +401,7 @@ public class TabbedModeTabPersistencePolicy implements TabPersistencePolicy {
             if (mDestroyed) return null;
 
             mTabFileNames = getOrCreateStateDirectory().list();
+            mArchivedTabIds = TabStateArchive.get(getOrCreateStateDirectory()).getTabIds();
             String thumbnailDirectory = PathUtils.getThumbnailCacheDirectory();
             mThumbnailFileNames = new File(thumbnailDirectory).list();
 
@@ -424,6 +426,12 @@ public class TabbedModeTabPersistencePolicy implements TabPersistencePolicy {
                         }
                     }
                 }
+                // Archived states are deleted through the name of the file they would have.
+                for (int tabId : mArchivedTabIds) {
+                    if (shouldDeleteTabFile(tabId, tabWindowManager)) {
+                        filesToDelete.add(TabState.getTabStateFilename(tabId, false));
+                    }
+                }
                 mFilesToDeleteCallback.onResult(filesToDelete);
             }
             if (mTabContentManager != null && mThumbnailFileNames != null) {
@@ -0,0 +1,517 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.widget;
+
+import android.support.annotation.Nullable;
+import android.support.v4.util.AtomicFile;
+import android.support.v4.util.Pair;
+
+import org.chromium.base.Log;
+import org.chromium.base.StreamUtil;
+import org.chromium.base.ThreadUtils;
+import org.chromium.base.VisibleForTesting;
+import org.chromium.base.task.AsyncTask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the compressed thumbnails of {@link ThumbnailDiskStorage} in a single blob file, with a
+ * small index file mapping each pair of content ID and size to the location of its thumbnail.
+ * <p>
+ * Thumbnails are appended to the blob and read from a read-only mapping of it. Identical
+ * thumbnails, e.g. the same image requested at several sizes, are stored once. Loading only reads
+ * the index, and the size of the cache is known without reading any thumbnail. The index is
+ * rewritten in the background after changes, and once the thumbnails no longer referenced outweigh
+ * the live ones, the live thumbnails are copied to a new blob which replaces the old one.
+ * <p>
+ * The blob and the index carry the same generation, changed by each compaction, so that an index
+ * is never used with a blob it doesn't describe. Each thumbnail is checked against its CRC32 when
+ * read. Must be used on the background thread only.
+ */
+final class ThumbnailBlobStore {
+    private static final String TAG = "ThumbnailStorage";
+
+    private static final String BLOB_FILE_NAME = "thumbnails.blob";
+    private static final String INDEX_FILE_NAME = "thumbnails.index";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** Suffix of the files of the previous storage, with one file per thumbnail. */
+    private static final String LEGACY_FILE_SUFFIX = ".entry";
+
+    private static final int BLOB_MAGIC = 0x54484d42;
+    private static final int INDEX_MAGIC = 0x54484d49;
+    private static final int VERSION = 1;
+
+    /** The blob starts with its magic number, version and generation. */
+    private static final int BLOB_HEADER_SIZE = 16;
+
+    /** Blobs smaller than this are never compacted. */
+    private static final long MIN_COMPACTION_SIZE = 256 * 1024;
+
+    /** A thumbnail in the blob, shared by all the entries with identical thumbnails. */
+    private static final class Payload {
+        long mOffset;
+        final int mLength;
+        final int mCrc;
+        int mRefCount;
+
+        Payload(long offset, int length, int crc) {
+            mOffset = offset;
+            mLength = length;
+            mCrc = crc;
+        }
+
+        long getDigest() {
+            return getDigest(mCrc, mLength);
+        }
+
+        static long getDigest(int crc, int length) {
+            return ((long) crc << 32) | (length & 0xffffffffL);
+        }
+    }
+
+    private static final class Entry {
+        final Payload mPayload;
+        long mLastAccessMs;
+
+        Entry(Payload payload, long lastAccessMs) {
+            mPayload = payload;
+            mLastAccessMs = lastAccessMs;
+        }
+    }
+
+    private final File mDirectory;
+    private final File mBlobFile;
+    private final AtomicFile mIndexFile;
+
+    /** Runs the index writes and compactions after the tasks queued before them. */
+    private final Executor mExecutor;
+
+    /** The entries, from the least to the most recently used. */
+    private final LinkedHashMap<Pair<String, Integer>, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The payloads of the blob, keyed by digest, including those no longer referenced. */
+    private final Map<Long, Payload> mPayloads = new HashMap<>();
+
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mMapping;
+    private long mGeneration;
+
+    /** Size of the blob, where the next thumbnail is appended. */
+    private long mBlobSize;
+
+    /** Size of the payloads referenced by entries. */
+    private long mLiveBytes;
+
+    private boolean mIndexWriteScheduled;
+    private boolean mCompactionScheduled;
+
+    ThumbnailBlobStore(File directory) {
+        this(directory, AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    @VisibleForTesting
+    ThumbnailBlobStore(File directory, Executor executor) {
+        mDirectory = directory;
+        mBlobFile = new File(directory, BLOB_FILE_NAME);
+        mIndexFile = new AtomicFile(new File(directory, INDEX_FILE_NAME));
+        mExecutor = executor;
+    }
+
+    /**
+     * Reads the index, dropping the entries that aren't in the blob. Starts with an empty store if
+     * the index or the blob are missing or invalid.
+     * @return The keys of the stored thumbnails, from the least to the most recently used.
+     */
+    List<Pair<String, Integer>> load() {
+        ThreadUtils.assertOnBackgroundThread();
+        List<Pair<String, Integer>> keys = new ArrayList<>();
+        if (!mIndexFile.getBaseFile().exists()) {
+            deleteLegacyFiles();
+            reset();
+            return keys;
+        }
+
+        DataInputStream stream = null;
+        boolean loaded = false;
+        try {
+            openBlob();
+            stream = new DataInputStream(new BufferedInputStream(mIndexFile.openRead()));
+            if (stream.readInt() != INDEX_MAGIC || stream.readInt() != VERSION
+                    || stream.readLong() != mGeneration) {
+                throw new IOException("Index doesn't match the blob");
+            }
+
+            int payloadCount = stream.readInt();
+            if (payloadCount < 0) throw new IOException("Invalid payload count");
+            Payload[] payloads = new Payload[payloadCount];
+            for (int i = 0; i < payloadCount; i++) {
+                Payload payload =
+                        new Payload(stream.readLong(), stream.readInt(), stream.readInt());
+                // Thumbnails appended after the last write of the index may have been lost.
+                if (payload.mOffset < BLOB_HEADER_SIZE || payload.mLength < 0
+                        || payload.mOffset + payload.mLength > mBlobSize) {
+                    continue;
+                }
+                payloads[i] = payload;
+                mPayloads.put(payload.getDigest(), payload);
+            }
+
+            int entryCount = stream.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                Pair<String, Integer> key = Pair.create(stream.readUTF(), stream.readInt());
+                int payloadIndex = stream.readInt();
+                long lastAccessMs = stream.readLong();
+                if (payloadIndex < 0 || payloadIndex >= payloadCount) {
+                    throw new IOException("Invalid payload index");
+                }
+                Payload payload = payloads[payloadIndex];
+                if (payload == null) continue;
+
+                mEntries.put(key, new Entry(payload, lastAccessMs));
+                if (payload.mRefCount++ == 0) mLiveBytes += payload.mLength;
+                keys.add(key);
+            }
+            loaded = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error while reading thumbnail index.", e);
+        } finally {
+            StreamUtil.closeQuietly(stream);
+        }
+
+        if (!loaded) {
+            reset();
+            keys.clear();
+        }
+        return keys;
+    }
+
+    /** @return The size in bytes of the stored thumbnails. */
+    long getSizeBytes() {
+        return mLiveBytes;
+    }
+
+    /** @return Whether a thumbnail is stored for {@code key}. */
+    boolean contains(Pair<String, Integer> key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Stores {@code bytes} as the thumbnail of {@code key}, replacing the previous one if any.
+     * @return Whether the thumbnail was stored.
+     */
+    boolean put(Pair<String, Integer> key, byte[] bytes) {
+        ThreadUtils.assertOnBackgroundThread();
+        remove(key);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        int crc = (int) crc32.getValue();
+        long digest = Payload.getDigest(crc, bytes.length);
+        Payload payload = mPayloads.get(digest);
+        if (payload == null || !payloadEquals(payload, bytes)) {
+            payload = append(bytes, crc);
+            if (payload == null) return false;
+            if (!mPayloads.containsKey(digest)) mPayloads.put(digest, payload);
+        }
+
+        mEntries.put(key, new Entry(payload, System.currentTimeMillis()));
+        if (payload.mRefCount++ == 0) mLiveBytes += payload.mLength;
+        scheduleIndexWrite();
+        return true;
+    }
+
+    /**
+     * @return The thumbnail of {@code key}, or null if there is none or if it is corrupted, in
+     *         which case it is removed.
+     */
+    @Nullable
+    byte[] get(Pair<String, Integer> key) {
+        ThreadUtils.assertOnBackgroundThread();
+        Entry entry = mEntries.get(key);
+        if (entry == null) return null;
+
+        byte[] bytes = readPayload(entry.mPayload);
+        if (bytes == null) {
+            remove(key);
+            return null;
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        if ((int) crc32.getValue() != entry.mPayload.mCrc) {
+            Log.e(TAG, "Dropping corrupted thumbnail.");
+            remove(key);
+            return null;
+        }
+        entry.mLastAccessMs = System.currentTimeMillis();
+        scheduleIndexWrite();
+        return bytes;
+    }
+
+    /** Removes the thumbnail of {@code key}, if any. */
+    void remove(Pair<String, Integer> key) {
+        ThreadUtils.assertOnBackgroundThread();
+        Entry entry = mEntries.remove(key);
+        if (entry == null) return;
+
+        if (--entry.mPayload.mRefCount == 0) mLiveBytes -= entry.mPayload.mLength;
+        scheduleIndexWrite();
+        scheduleCompactionIfNeeded();
+    }
+
+    private void scheduleIndexWrite() {
+        if (mIndexWriteScheduled) return;
+        mIndexWriteScheduled = true;
+        // Changes made by the tasks already queued are written at once.
+        mExecutor.execute(() -> {
+            mIndexWriteScheduled = false;
+            writeIndex();
+        });
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (mCompactionScheduled || mBlobSize < MIN_COMPACTION_SIZE
+                || mBlobSize - BLOB_HEADER_SIZE - mLiveBytes <= mLiveBytes) {
+            return;
+        }
+        mCompactionScheduled = true;
+        mExecutor.execute(() -> {
+            mCompactionScheduled = false;
+            compact();
+        });
+    }
+
+    private void writeIndex() {
+        // The payloads are numbered in the index, only those still referenced are written.
+        Map<Payload, Integer> payloadIndices = new IdentityHashMap<>();
+        List<Payload> payloads = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (payloadIndices.containsKey(entry.mPayload)) continue;
+            payloadIndices.put(entry.mPayload, payloads.size());
+            payloads.add(entry.mPayload);
+        }
+
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = mIndexFile.startWrite();
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(outputStream));
+            stream.writeInt(INDEX_MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeLong(mGeneration);
+            stream.writeInt(payloads.size());
+            for (Payload payload : payloads) {
+                stream.writeLong(payload.mOffset);
+                stream.writeInt(payload.mLength);
+                stream.writeInt(payload.mCrc);
+            }
+            stream.writeInt(mEntries.size());
+            for (Map.Entry<Pair<String, Integer>, Entry> entry : mEntries.entrySet()) {
+                stream.writeUTF(entry.getKey().first);
+                stream.writeInt(entry.getKey().second);
+                stream.writeInt(payloadIndices.get(entry.getValue().mPayload));
+                stream.writeLong(entry.getValue().mLastAccessMs);
+            }
+            stream.flush();
+            mIndexFile.finishWrite(outputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "Error while writing thumbnail index.", e);
+            mIndexFile.failWrite(outputStream);
+        }
+    }
+
+    /** Copies the referenced payloads to a new blob, which replaces the current one. */
+    private void compact() {
+        File tempFile = new File(mBlobFile.getPath() + TEMP_FILE_SUFFIX);
+        long generation = createGeneration();
+        Map<Payload, Long> offsets = new IdentityHashMap<>();
+        FileOutputStream outputStream = null;
+        boolean written = false;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            FileChannel channel = outputStream.getChannel();
+            writeFully(channel, createBlobHeader(generation));
+            long offset = BLOB_HEADER_SIZE;
+            for (Entry entry : mEntries.values()) {
+                Payload payload = entry.mPayload;
+                if (offsets.containsKey(payload)) continue;
+                ByteBuffer buffer = getMappedPayload(payload);
+                if (buffer == null) throw new IOException("Unable to map thumbnail");
+                writeFully(channel, buffer);
+                offsets.put(payload, offset);
+                offset += payload.mLength;
+            }
+            outputStream.getFD().sync();
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error while compacting thumbnails.", e);
+        } finally {
+            StreamUtil.closeQuietly(outputStream);
+        }
+
+        if (!written || !tempFile.renameTo(mBlobFile)) {
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Failed to delete file: " + tempFile);
+            }
+            return;
+        }
+
+        closeBlob();
+        mGeneration = generation;
+        mPayloads.clear();
+        for (Map.Entry<Payload, Long> entry : offsets.entrySet()) {
+            Payload payload = entry.getKey();
+            payload.mOffset = entry.getValue();
+            mPayloads.put(payload.getDigest(), payload);
+        }
+        try {
+            openBlob();
+        } catch (IOException e) {
+            Log.e(TAG, "Error while opening compacted thumbnails.", e);
+            reset();
+            return;
+        }
+        // Until the index is written, the generation of the blob no longer matches the one of the
+        // index, and all the thumbnails would be dropped if the browser stopped now.
+        writeIndex();
+    }
+
+    /** Opens the blob and reads its header. */
+    private void openBlob() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mBlobFile, "rw");
+        mBlobSize = mRandomAccessFile.length();
+        if (mBlobSize < BLOB_HEADER_SIZE || mRandomAccessFile.readInt() != BLOB_MAGIC
+                || mRandomAccessFile.readInt() != VERSION) {
+            throw new IOException("Invalid thumbnail blob");
+        }
+        mGeneration = mRandomAccessFile.readLong();
+    }
+
+    private void closeBlob() {
+        StreamUtil.closeQuietly(mRandomAccessFile);
+        mRandomAccessFile = null;
+        mMapping = null;
+    }
+
+    /** Discards all the thumbnails and starts a new blob, with its empty index. */
+    private void reset() {
+        closeBlob();
+        mEntries.clear();
+        mPayloads.clear();
+        mLiveBytes = 0;
+        mGeneration = createGeneration();
+        try {
+            mRandomAccessFile = new RandomAccessFile(mBlobFile, "rw");
+            mRandomAccessFile.setLength(0);
+            writeFully(mRandomAccessFile.getChannel(), createBlobHeader(mGeneration));
+            mBlobSize = BLOB_HEADER_SIZE;
+        } catch (IOException e) {
+            Log.e(TAG, "Error while creating thumbnail blob.", e);
+            closeBlob();
+            return;
+        }
+        writeIndex();
+    }
+
+    /** Deletes the files of the previous storage, without reading them. */
+    private void deleteLegacyFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            // AtomicFile may have left a backup next to the file.
+            if (!name.endsWith(LEGACY_FILE_SUFFIX) && !name.endsWith(LEGACY_FILE_SUFFIX + ".bak")) {
+                continue;
+            }
+            if (!file.delete()) Log.w(TAG, "Failed to delete file: " + file);
+        }
+    }
+
+    @Nullable
+    private Payload append(byte[] bytes, int crc) {
+        if (mRandomAccessFile == null) return null;
+        try {
+            FileChannel channel = mRandomAccessFile.getChannel();
+            channel.position(mBlobSize);
+            writeFully(channel, ByteBuffer.wrap(bytes));
+        } catch (IOException e) {
+            Log.e(TAG, "Error while writing to disk.", e);
+            return null;
+        }
+        Payload payload = new Payload(mBlobSize, bytes.length, crc);
+        mBlobSize += bytes.length;
+        return payload;
+    }
+
+    private boolean payloadEquals(Payload payload, byte[] bytes) {
+        ByteBuffer buffer = getMappedPayload(payload);
+        return buffer != null && buffer.equals(ByteBuffer.wrap(bytes));
+    }
+
+    @Nullable
+    private byte[] readPayload(Payload payload) {
+        ByteBuffer buffer = getMappedPayload(payload);
+        if (buffer == null) return null;
+        byte[] bytes = new byte[payload.mLength];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /** @return A view of {@code payload} in the mapping of the blob, or null on failure. */
+    @Nullable
+    private ByteBuffer getMappedPayload(Payload payload) {
+        if (mRandomAccessFile == null) return null;
+        long end = payload.mOffset + payload.mLength;
+        if (mMapping == null || mMapping.capacity() < end) {
+            try {
+                mMapping = mRandomAccessFile.getChannel().map(MapMode.READ_ONLY, 0, mBlobSize);
+            } catch (IOException e) {
+                Log.e(TAG, "Error while reading from disk.", e);
+                return null;
+            }
+        }
+        ByteBuffer buffer = mMapping.duplicate();
+        buffer.limit((int) end);
+        buffer.position((int) payload.mOffset);
+        return buffer.slice();
+    }
+
+    private static long createGeneration() {
+        return new Random().nextLong();
+    }
+
+    private static ByteBuffer createBlobHeader(long generation) {
+        ByteBuffer header = ByteBuffer.allocate(BLOB_HEADER_SIZE);
+        header.putInt(BLOB_MAGIC).putInt(VERSION).putLong(generation);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -9,27 +9,18 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.util.AtomicFile;
 import android.support.v4.util.Pair;
 import android.text.TextUtils;
 
-import com.google.protobuf.ByteString;
-
 import org.chromium.base.ContextUtils;
 import org.chromium.base.Log;
-import org.chromium.base.StreamUtil;
 import org.chromium.base.ThreadUtils;
 import org.chromium.base.VisibleForTesting;
 import org.chromium.base.task.AsyncTask;
 import org.chromium.chrome.browser.util.ConversionUtils;
-import org.chromium.chrome.browser.widget.ThumbnailCacheEntry.ContentId;
-import org.chromium.chrome.browser.widget.ThumbnailCacheEntry.ThumbnailEntry;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -45,8 +36,10 @@ import java.util.LinkedHashSet;
  * The caller should use {@link ThumbnailDiskStorage#create()} to create an instance.
  *
  * This class removes thumbnails from disk only if the file was removed in Download Home. It relies
- * on restart (when initDiskCache is called) and trim to sync to disk if file was removed
- * elsewhere (e.g. manually from disk).
+ * on trim to eventually drop the thumbnails of files removed elsewhere (e.g. manually from disk).
+ *
+ * Thumbnails are stored in a single file by {@link ThumbnailBlobStore}, whose index is all that is
+ * read at initialization.
  */
 public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
     private static final String TAG = "ThumbnailStorage";
@@ -55,8 +48,7 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
 
     // LRU cache of a pair of thumbnail's contentID and size. The order is based on the sequence of
     // add and get with the most recent at the end. The order at initialization (i.e. browser
-    // restart) is based on the order of files in the directory. It is accessed only on the
-    // background thread.
+    // restart) is the one persisted by the store. It is accessed only on the background thread.
     // It is static because cached thumbnails are shared across all instances of the class.
     @VisibleForTesting
     static final LinkedHashSet<Pair<String, Integer>> sDiskLruCache =
@@ -68,6 +60,10 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
     static final HashMap<String, HashSet<Integer>> sIconSizesMap =
             new HashMap<String, HashSet<Integer>>();
 
+    // Stores the thumbnails on disk. It is accessed only on the background thread.
+    // It is static for the same reason as the maps above, and is created once.
+    private static ThumbnailBlobStore sStore;
+
     @VisibleForTesting
     final ThumbnailGenerator mThumbnailGenerator;
 
@@ -267,34 +263,13 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
             }
             if (!dirCreated) return;
         }
-        File[] cachedFiles = mDirectory.listFiles();
-        if (cachedFiles == null) return;
-
-        for (File file : cachedFiles) {
-            AtomicFile atomicFile = new AtomicFile(file);
-            try {
-                ThumbnailEntry entry = ThumbnailEntry.parseFrom(atomicFile.readFully());
-                if (!entry.hasContentId()) continue;
-
-                String contentId = entry.getContentId().getId();
-                if (!entry.hasSizePx()) continue;
-
-                int iconSizePx = entry.getSizePx();
-
-                // Update internal cache state.
-                sDiskLruCache.add(Pair.create(contentId, iconSizePx));
-                if (sIconSizesMap.containsKey(contentId)) {
-                    sIconSizesMap.get(contentId).add(iconSizePx);
-                } else {
-                    HashSet<Integer> iconSizes = new HashSet<Integer>();
-                    iconSizes.add(iconSizePx);
-                    sIconSizesMap.put(contentId, iconSizes);
-                }
-                mSizeBytes += file.length();
-            } catch (IOException e) {
-                Log.e(TAG, "Error while reading from disk.", e);
+        if (sStore == null) {
+            sStore = new ThumbnailBlobStore(mDirectory);
+            for (Pair<String, Integer> contentIdSizePair : sStore.load()) {
+                addToInternalCache(contentIdSizePair);
             }
         }
+        mSizeBytes = sStore.getSizeBytes();
     }
 
     /**
@@ -312,49 +287,33 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
         ThreadUtils.assertOnBackgroundThread();
         if (!isInitialized()) return;
 
-        if (sDiskLruCache.contains(Pair.create(contentId, iconSizePx))) {
-            removeFromDiskHelper(Pair.create(contentId, iconSizePx));
+        // Compress bitmap to PNG.
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
+
+        Pair<String, Integer> contentIdSizePair = Pair.create(contentId, iconSizePx);
+        if (!sStore.put(contentIdSizePair, baos.toByteArray())) {
+            Log.e(TAG, "Error while writing to disk.");
+            if (sDiskLruCache.contains(contentIdSizePair)) removeFromDiskHelper(contentIdSizePair);
+            return;
         }
 
-        FileOutputStream fos = null;
-        AtomicFile atomicFile = null;
-        try {
-            // Compress bitmap to PNG.
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
-            byte[] compressedBitmapBytes = baos.toByteArray();
-
-            // Construct proto.
-            ThumbnailEntry newEntry =
-                    ThumbnailEntry.newBuilder()
-                            .setContentId(ContentId.newBuilder().setId(contentId))
-                            .setSizePx(iconSizePx)
-                            .setCompressedPng(ByteString.copyFrom(compressedBitmapBytes))
-                            .build();
-
-            // Write proto to disk.
-            File newFile = new File(getThumbnailFilePath(contentId, iconSizePx));
-            atomicFile = new AtomicFile(newFile);
-            fos = atomicFile.startWrite();
-            fos.write(newEntry.toByteArray());
-            atomicFile.finishWrite(fos);
-
-            // Update internal cache state.
-            sDiskLruCache.add(Pair.create(contentId, iconSizePx));
-            if (sIconSizesMap.containsKey(contentId)) {
-                sIconSizesMap.get(contentId).add(iconSizePx);
-            } else {
-                HashSet<Integer> iconSizes = new HashSet<Integer>();
-                iconSizes.add(iconSizePx);
-                sIconSizesMap.put(contentId, iconSizes);
-            }
-            mSizeBytes += newFile.length();
+        // Update internal cache state.
+        sDiskLruCache.remove(contentIdSizePair);
+        addToInternalCache(contentIdSizePair);
+        mSizeBytes = sStore.getSizeBytes();
+
+        trim();
+    }
 
-            trim();
-        } catch (IOException e) {
-            Log.e(TAG, "Error while writing to disk.", e);
-            atomicFile.failWrite(fos);
+    private static void addToInternalCache(Pair<String, Integer> contentIdSizePair) {
+        sDiskLruCache.add(contentIdSizePair);
+        HashSet<Integer> iconSizes = sIconSizesMap.get(contentIdSizePair.first);
+        if (iconSizes == null) {
+            iconSizes = new HashSet<Integer>();
+            sIconSizesMap.put(contentIdSizePair.first, iconSizes);
         }
+        iconSizes.add(contentIdSizePair.second);
     }
 
     private boolean isInitialized() {
@@ -375,31 +334,20 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
         ThreadUtils.assertOnBackgroundThread();
         if (!isInitialized()) return null;
 
-        if (!sDiskLruCache.contains(Pair.create(contentId, iconSizePx))) return null;
-
-        Bitmap bitmap = null;
-        FileInputStream fis = null;
-        try {
-            String thumbnailFilePath = getThumbnailFilePath(contentId, iconSizePx);
-            File file = new File(thumbnailFilePath);
-            // If file doesn't exist, {@link mSizeBytes} cannot be updated to account for the
-            // removal but this is fine in the long-run when trim happens.
-            if (!file.exists()) return null;
-
-            AtomicFile atomicFile = new AtomicFile(file);
-            fis = atomicFile.openRead();
-            ThumbnailEntry entry = ThumbnailEntry.parseFrom(atomicFile.readFully());
-            if (!entry.hasCompressedPng()) return null;
-
-            bitmap = BitmapFactory.decodeByteArray(
-                    entry.getCompressedPng().toByteArray(), 0, entry.getCompressedPng().size());
-        } catch (IOException e) {
-            Log.e(TAG, "Error while reading from disk.", e);
-        } finally {
-            StreamUtil.closeQuietly(fis);
+        Pair<String, Integer> contentIdSizePair = Pair.create(contentId, iconSizePx);
+        if (!sDiskLruCache.contains(contentIdSizePair)) return null;
+
+        byte[] compressedPng = sStore.get(contentIdSizePair);
+        if (compressedPng == null) {
+            // The store dropped the thumbnail if it was unreadable.
+            if (!sStore.contains(contentIdSizePair)) removeFromDiskHelper(contentIdSizePair);
+            return null;
         }
 
-        return bitmap;
+        // Mark as most recently used.
+        sDiskLruCache.remove(contentIdSizePair);
+        sDiskLruCache.add(contentIdSizePair);
+        return BitmapFactory.decodeByteArray(compressedPng, 0, compressedPng.length);
     }
 
     /**
@@ -408,7 +356,7 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
     @VisibleForTesting
     void trim() {
         ThreadUtils.assertOnBackgroundThread();
-        while (mSizeBytes > mMaxCacheBytes) {
+        while (mSizeBytes > mMaxCacheBytes && !sDiskLruCache.isEmpty()) {
             removeFromDiskHelper(sDiskLruCache.iterator().next());
         }
     }
@@ -419,7 +367,7 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
     @VisibleForTesting
     void clearDiskCache() {
         ThreadUtils.assertOnBackgroundThread();
-        while (mSizeBytes > 0) {
+        while (!sDiskLruCache.isEmpty()) {
             removeFromDiskHelper(sDiskLruCache.iterator().next());
         }
     }
@@ -436,28 +384,16 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
 
         String contentId = contentIdSizePair.first;
         int iconSizePx = contentIdSizePair.second;
-        File file = new File(getThumbnailFilePath(contentId, iconSizePx));
-        if (!file.exists()) {
-            Log.e(TAG, "Error while removing from disk. File does not exist.");
-            return;
-        }
-
-        long fileSizeBytes = 0;
-        try {
-            fileSizeBytes = file.length();
-        } catch (SecurityException se) {
-            Log.e(TAG, "Error while removing from disk. File denied read access.", se);
-        }
-        AtomicFile atomicFile = new AtomicFile(file);
-        atomicFile.delete();
+        sStore.remove(contentIdSizePair);
 
         // Update internal cache state.
         sDiskLruCache.remove(contentIdSizePair);
-        sIconSizesMap.get(contentId).remove(iconSizePx);
-        if (sIconSizesMap.get(contentId).size() == 0) {
-            sIconSizesMap.remove(contentId);
+        HashSet<Integer> iconSizes = sIconSizesMap.get(contentId);
+        if (iconSizes != null) {
+            iconSizes.remove(iconSizePx);
+            if (iconSizes.size() == 0) sIconSizesMap.remove(contentId);
         }
-        mSizeBytes -= fileSizeBytes;
+        mSizeBytes = sStore.getSizeBytes();
     }
 
     /**
@@ -473,17 +409,6 @@ public class ThumbnailDiskStorage implements ThumbnailGeneratorCallback {
         new RemoveThumbnailTask(contentId).executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
     }
 
-    /**
-     * Gets the file path for a thumbnail with the given content ID and size.
-     * @param contentId Content ID for the thumbnail.
-     * @param iconSizePx Requested size (maximum dimension (pixel) of the smaller side) of
-     * thumbnail.
-     * @return File path.
-     */
-    private String getThumbnailFilePath(String contentId, int iconSizePx) {
-        return mDirectory.getPath() + File.separator + contentId + iconSizePx + ".entry";
-    }
-
     /**
      * Get directory for thumbnail entries in the designated app (internal) cache directory.
      * The directory's name must be unique.
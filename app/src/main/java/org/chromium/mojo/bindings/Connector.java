@@ -89,6 +89,10 @@ public class Connector implements MessageReceiver, HandleOwner<MessagePipeHandle
     }
 
     /**
+     * Writes |message| to the owned message pipe. If the message has been produced by an
+     * {@link Encoder}, its buffer is recycled once written, and the message must not be used
+     * anymore.
+     *
      * @see MessageReceiver#accept(Message)
      */
     @Override
@@ -96,6 +100,7 @@ public class Connector implements MessageReceiver, HandleOwner<MessagePipeHandle
         try {
             mMessagePipeHandle.writeMessage(message.getData(),
                     message.getHandles(), MessagePipeHandle.WriteFlags.NONE);
+            message.releasePooledBuffer();
             return true;
         } catch (MojoException e) {
             onError(e);
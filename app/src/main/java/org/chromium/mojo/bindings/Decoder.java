@@ -12,6 +12,7 @@ import org.chromium.mojo.system.MessagePipeHandle;
 import org.chromium.mojo.system.SharedBufferHandle;
 import org.chromium.mojo.system.UntypedHandle;
 
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 
@@ -20,6 +21,7 @@ import java.nio.charset.Charset;
  * types from a {@link Message} object at a given offset into it's byte buffer.
  */
 public class Decoder {
+    private static final Charset UTF8 = Charset.forName("utf8");
 
     /**
      * Helper class to validate the decoded message.
@@ -535,11 +537,12 @@ public class Decoder {
      */
     public String readString(int offset, boolean nullable) {
         final int arrayNullability = nullable ? BindingsHelper.ARRAY_NULLABLE : 0;
-        byte[] bytes = readBytes(offset, arrayNullability, BindingsHelper.UNSPECIFIED_ARRAY_LENGTH);
+        ByteBuffer bytes = readArraySlice(
+                offset, arrayNullability, BindingsHelper.UNSPECIFIED_ARRAY_LENGTH, 1);
         if (bytes == null) {
             return null;
         }
-        return new String(bytes, Charset.forName("utf8"));
+        return decodeUtf8(bytes);
     }
 
     /**
@@ -726,6 +729,38 @@ public class Decoder {
         return new Decoder(mMessage, mValidator, offset);
     }
 
+    /**
+     * Validates the array at the given offset and returns a slice of the message data covering its
+     * elements. The slice must not be exposed outside of the decoder as it is writable.
+     */
+    private ByteBuffer readArraySlice(
+            int offset, int arrayNullability, int expectedLength, int elementSize) {
+        Decoder d = readPointer(offset, BindingsHelper.isArrayNullable(arrayNullability));
+        if (d == null) {
+            return null;
+        }
+        DataHeader si = d.readDataHeaderForArray(elementSize, expectedLength);
+        ByteBuffer slice = d.mMessage.getData().duplicate();
+        int start = d.mBaseOffset + DataHeader.HEADER_SIZE;
+        slice.limit(start + si.elementsOrVersion * elementSize);
+        slice.position(start);
+        slice = slice.slice();
+        slice.order(ByteOrder.LITTLE_ENDIAN);
+        return slice;
+    }
+
+    /**
+     * Decodes the UTF-8 string contained between the position and the limit of |bytes|, without
+     * copying the bytes to an intermediate array.
+     */
+    private static String decodeUtf8(ByteBuffer bytes) {
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                    bytes.remaining(), UTF8);
+        }
+        return UTF8.decode(bytes).toString();
+    }
+
     /**
      * Deserializes a {@link DataHeader} at the given offset and checks if it is correct for an
      * array of booleans.
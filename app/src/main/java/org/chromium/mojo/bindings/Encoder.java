@@ -11,7 +11,6 @@ import org.chromium.mojo.system.MessagePipeHandle;
 import org.chromium.mojo.system.Pair;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -57,9 +56,8 @@ public class Encoder {
         private EncoderState(Core core, int bufferSize) {
             assert bufferSize % BindingsHelper.ALIGNMENT == 0;
             this.core = core;
-            byteBuffer = ByteBuffer.allocateDirect(
+            byteBuffer = EncoderBufferPool.acquire(
                     bufferSize > 0 ? bufferSize : INITIAL_BUFFER_SIZE);
-            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
             dataEnd = 0;
         }
 
@@ -67,14 +65,17 @@ public class Encoder {
          * Claim the given amount of memory at the end of the buffer, resizing it if needed.
          */
         public void claimMemory(int size) {
+            int usedBytes = dataEnd;
             dataEnd += size;
-            growIfNeeded();
+            growIfNeeded(usedBytes);
         }
 
         /**
-         * Grow the associated ByteBuffer if needed.
+         * Grow the associated ByteBuffer if needed. Only the first |usedBytes| bytes of the current
+         * buffer have been written to, and need to be copied. The previous buffer is returned to
+         * the {@link EncoderBufferPool}.
          */
-        private void growIfNeeded() {
+        private void growIfNeeded(int usedBytes) {
             if (byteBuffer.capacity() >= dataEnd) {
                 return;
             }
@@ -82,11 +83,11 @@ public class Encoder {
             while (targetSize < dataEnd) {
                 targetSize *= 2;
             }
-            ByteBuffer newBuffer = ByteBuffer.allocateDirect(targetSize);
-            newBuffer.order(ByteOrder.nativeOrder());
+            ByteBuffer newBuffer = EncoderBufferPool.acquire(targetSize);
             byteBuffer.position(0);
-            byteBuffer.limit(byteBuffer.capacity());
+            byteBuffer.limit(usedBytes);
             newBuffer.put(byteBuffer);
+            EncoderBufferPool.release(byteBuffer, usedBytes);
             byteBuffer = newBuffer;
         }
     }
@@ -107,12 +108,14 @@ public class Encoder {
     private final EncoderState mEncoderState;
 
     /**
-     * Returns the result message.
+     * Returns the result message. The buffer of the message comes from the
+     * {@link EncoderBufferPool} and is recycled once the message has been written by a
+     * {@link Connector}.
      */
     public Message getMessage() {
         mEncoderState.byteBuffer.position(0);
         mEncoderState.byteBuffer.limit(mEncoderState.dataEnd);
-        return new Message(mEncoderState.byteBuffer, mEncoderState.handles);
+        return new Message(mEncoderState.byteBuffer, mEncoderState.handles, true);
     }
 
     /**
@@ -0,0 +1,180 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.mojo.bindings;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-thread pool of direct {@link ByteBuffer}s used by {@link Encoder}. Buffers are bucketed in
+ * power of two size classes and are returned to the pool by {@link Connector} once the message
+ * they hold has been written to the message pipe.
+ * <p>
+ * The pool also learns the recent encoded sizes of each {@link Struct} class, so that the first
+ * buffer acquired to encode it is usually large enough not to require growing.
+ * <p>
+ * All buffers held by the pool are zero-filled, as the encoding relies on unwritten memory being
+ * zero.
+ */
+final class EncoderBufferPool {
+    /**
+     * Smallest pooled buffer. This must be a multiple of {@link BindingsHelper#ALIGNMENT}.
+     */
+    private static final int MIN_POOLED_SIZE_LOG2 = 6;
+
+    /**
+     * Largest pooled buffer. Bigger buffers are allocated on demand and left to the GC.
+     */
+    private static final int MAX_POOLED_SIZE_LOG2 = 16;
+
+    /**
+     * Number of buffers kept per size class and per thread.
+     */
+    private static final int MAX_BUFFERS_PER_SIZE_CLASS = 4;
+
+    /**
+     * A size hint moves 1 / 2^SIZE_HINT_DECAY_LOG2 of the way down to each smaller encoded size.
+     */
+    private static final int SIZE_HINT_DECAY_LOG2 = 3;
+
+    private static final int SIZE_CLASS_COUNT = MAX_POOLED_SIZE_LOG2 - MIN_POOLED_SIZE_LOG2 + 1;
+
+    /**
+     * Source of zeros used to clear buffers before returning them to the pool.
+     */
+    private static final byte[] ZEROS = new byte[1024];
+
+    private static final ThreadLocal<EncoderBufferPool> sPool =
+            new ThreadLocal<EncoderBufferPool>() {
+                @Override
+                protected EncoderBufferPool initialValue() {
+                    return new EncoderBufferPool();
+                }
+            };
+
+    /**
+     * Decaying maximum of the encoded sizes of each serialized {@link Struct} class, or 0 until an
+     * instance of the class has been encoded. It rises to a larger size at once and decays towards
+     * smaller ones, so that it tracks the high end of the recent sizes rather than the largest size
+     * ever seen. The hints are updated in place, so that recording a size does not allocate.
+     */
+    private static final ConcurrentHashMap<Class<?>, AtomicInteger> sSizeHints =
+            new ConcurrentHashMap<>();
+
+    private final ByteBuffer[][] mFreeBuffers =
+            new ByteBuffer[SIZE_CLASS_COUNT][MAX_BUFFERS_PER_SIZE_CLASS];
+    private final int[] mFreeCounts = new int[SIZE_CLASS_COUNT];
+
+    private EncoderBufferPool() {}
+
+    /**
+     * Returns a zero-filled, little endian, direct buffer of at least |minSize| bytes.
+     */
+    static ByteBuffer acquire(int minSize) {
+        int sizeClass = sizeClassFor(minSize);
+        if (sizeClass >= SIZE_CLASS_COUNT) {
+            return allocate(minSize);
+        }
+        return sPool.get().acquireFromSizeClass(sizeClass);
+    }
+
+    /**
+     * Returns |buffer| to the pool of the current thread. Only the first |usedBytes| bytes of the
+     * buffer can have been written to. The buffer must not be used after this call.
+     */
+    static void release(ByteBuffer buffer, int usedBytes) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClassFor(capacity);
+        if (sizeClass >= SIZE_CLASS_COUNT || sizeClassCapacity(sizeClass) != capacity) {
+            return;
+        }
+        EncoderBufferPool pool = sPool.get();
+        if (pool.mFreeCounts[sizeClass] == MAX_BUFFERS_PER_SIZE_CLASS) {
+            return;
+        }
+        clear(buffer, Math.min(usedBytes, capacity));
+        pool.mFreeBuffers[sizeClass][pool.mFreeCounts[sizeClass]++] = buffer;
+    }
+
+    /**
+     * Returns the size hint of |type|, to pass to {@link #getInitialSize} and
+     * {@link #recordEncodedSize} when encoding an instance of |type|.
+     */
+    static AtomicInteger getSizeHint(Class<?> type) {
+        AtomicInteger sizeHint = sSizeHints.get(type);
+        if (sizeHint == null) {
+            AtomicInteger newSizeHint = new AtomicInteger();
+            sizeHint = sSizeHints.putIfAbsent(type, newSizeHint);
+            if (sizeHint == null) sizeHint = newSizeHint;
+        }
+        return sizeHint;
+    }
+
+    /**
+     * Returns the size to use for the initial buffer when encoding a struct with |sizeHint|.
+     */
+    static int getInitialSize(AtomicInteger sizeHint, int defaultSize) {
+        return Math.max(BindingsHelper.align(sizeHint.get()), defaultSize);
+    }
+
+    /**
+     * Records that a struct with |sizeHint| has been encoded in |encodedSize| bytes.
+     */
+    static void recordEncodedSize(AtomicInteger sizeHint, int encodedSize) {
+        // Do not let a single huge message force large allocations for all later ones.
+        int size = Math.min(encodedSize, 1 << MAX_POOLED_SIZE_LOG2);
+        while (true) {
+            int hint = sizeHint.get();
+            int newHint = size;
+            if (hint > size) {
+                // Rounded up so that the hint always reaches |size| eventually.
+                newHint = hint
+                        - ((hint - size + (1 << SIZE_HINT_DECAY_LOG2) - 1) >> SIZE_HINT_DECAY_LOG2);
+            }
+            if (hint == newHint || sizeHint.compareAndSet(hint, newHint)) return;
+        }
+    }
+
+    private ByteBuffer acquireFromSizeClass(int sizeClass) {
+        if (mFreeCounts[sizeClass] == 0) {
+            return allocate(sizeClassCapacity(sizeClass));
+        }
+        int index = --mFreeCounts[sizeClass];
+        ByteBuffer buffer = mFreeBuffers[sizeClass][index];
+        mFreeBuffers[sizeClass][index] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static void clear(ByteBuffer buffer, int length) {
+        buffer.clear();
+        while (length > 0) {
+            int chunk = Math.min(length, ZEROS.length);
+            buffer.put(ZEROS, 0, chunk);
+            length -= chunk;
+        }
+        buffer.clear();
+    }
+
+    private static int sizeClassFor(int size) {
+        if (size <= (1 << MIN_POOLED_SIZE_LOG2)) {
+            return 0;
+        }
+        int log2 = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return log2 - MIN_POOLED_SIZE_LOG2;
+    }
+
+    private static int sizeClassCapacity(int sizeClass) {
+        return 1 << (sizeClass + MIN_POOLED_SIZE_LOG2);
+    }
+}
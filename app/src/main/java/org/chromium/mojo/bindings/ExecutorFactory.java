@@ -15,9 +15,10 @@ import org.chromium.mojo.system.Watcher;
 import org.chromium.mojo.system.Watcher.Callback;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A factory which provides per-thread executors, which enable execution on the thread from which
@@ -37,10 +38,19 @@ class ExecutorFactory {
      * on which it was created. Other threads can call execute with a {@link Runnable}, and the
      * executor will queue the {@link Runnable} and write a message on the other end of the handle.
      * This will wake up the executor which is waiting on the handle, which will then dequeue the
-     * {@link Runnable} and execute it on the original thread.
+     * queued {@link Runnable}s and execute them on the original thread.
+     * <p>
+     * The queue is lock-free, and wake ups are coalesced: at most one message is in flight on the
+     * pipe while the queue is non-empty, and each wake up runs a batch of queued actions.
      */
     private static class PipedExecutor implements Executor, Callback {
 
+        /**
+         * Maximum number of actions run for a single wake up, so that other handles watched on the
+         * executor thread are not starved.
+         */
+        private static final int MAX_ACTIONS_PER_WAKE_UP = 64;
+
         /**
          * The handle which is written to. Access to this object must be protected with |mLock|.
          */
@@ -50,11 +60,16 @@ class ExecutorFactory {
          */
         private final MessagePipeHandle mReadHandle;
         /**
-         * The list of actions left to be run. Access to this object must be protected with |mLock|.
+         * The queue of actions left to be run.
          */
-        private final List<Runnable> mPendingActions;
+        private final Queue<Runnable> mPendingActions;
         /**
-         * Lock protecting access to |mWriteHandle| and |mPendingActions|.
+         * Whether a notification message has been written and not yet consumed by the executor
+         * thread.
+         */
+        private final AtomicBoolean mNotificationPending;
+        /**
+         * Lock protecting access to |mWriteHandle|.
          */
         private final Object mLock;
         /**
@@ -73,7 +88,8 @@ class ExecutorFactory {
                     new MessagePipeHandle.CreateOptions());
             mReadHandle = handles.first;
             mWriteHandle = handles.second;
-            mPendingActions = new ArrayList<Runnable>();
+            mPendingActions = new ConcurrentLinkedQueue<Runnable>();
+            mNotificationPending = new AtomicBoolean();
             mWatcher.start(mReadHandle, Core.HandleSignals.READABLE, this);
         }
 
@@ -83,7 +99,7 @@ class ExecutorFactory {
         @Override
         public void onResult(int result) {
             if (result == MojoResult.OK && readNotifyBufferMessage()) {
-                runNextAction();
+                runPendingActions();
             } else {
                 close();
             }
@@ -95,8 +111,10 @@ class ExecutorFactory {
         private void close() {
             synchronized (mLock) {
                 mWriteHandle.close();
-                mPendingActions.clear();
             }
+            // Let the next call to |execute| find out that the executor is closed.
+            mNotificationPending.set(false);
+            mPendingActions.clear();
             mWatcher.cancel();
             mWatcher.destroy();
             mReadHandle.close();
@@ -120,32 +138,70 @@ class ExecutorFactory {
         }
 
         /**
-         * Run the next action in the |mPendingActions| queue.
+         * Run a batch of the actions in the |mPendingActions| queue. If actions are left in the
+         * queue, a new notification is sent so that they are run on the next wake up.
          */
-        private void runNextAction() {
-            Runnable toRun = null;
-            synchronized (mLock) {
-                toRun = mPendingActions.remove(0);
+        private void runPendingActions() {
+            // Actions queued from now on will need a new notification, as this batch may not see
+            // them.
+            mNotificationPending.set(false);
+            try {
+                for (int i = 0; i < MAX_ACTIONS_PER_WAKE_UP; ++i) {
+                    Runnable toRun = mPendingActions.poll();
+                    if (toRun == null) {
+                        return;
+                    }
+                    toRun.run();
+                }
+            } finally {
+                if (!mPendingActions.isEmpty()) {
+                    notifyIfNeeded();
+                }
             }
-            toRun.run();
         }
 
         /**
-         * Execute the given |command| in the executor thread. This can be called on any thread.
-         *
-         * @see Executor#execute(Runnable)
+         * Write a notification message on |mWriteHandle| unless one is already pending.
          */
-        @Override
-        public void execute(Runnable command) {
+        private void notifyIfNeeded() {
+            if (!mNotificationPending.compareAndSet(false, true)) {
+                return;
+            }
             // Accessing the write handle must be protected by the lock, because it can be closed
             // from the executor's thread.
             synchronized (mLock) {
                 if (!mWriteHandle.isValid()) {
+                    // Leave the flag unset so that every later call finds out the executor is
+                    // closed, instead of assuming a notification is on its way.
+                    mNotificationPending.set(false);
                     throw new IllegalStateException(
                             "Trying to execute an action on a closed executor.");
                 }
-                mPendingActions.add(command);
-                mWriteHandle.writeMessage(NOTIFY_BUFFER, null, MessagePipeHandle.WriteFlags.NONE);
+                try {
+                    mWriteHandle.writeMessage(
+                            NOTIFY_BUFFER, null, MessagePipeHandle.WriteFlags.NONE);
+                } catch (MojoException e) {
+                    // No notification is on its way, the next call must try again.
+                    mNotificationPending.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Execute the given |command| in the executor thread. This can be called on any thread.
+         *
+         * @see Executor#execute(Runnable)
+         */
+        @Override
+        public void execute(Runnable command) {
+            mPendingActions.add(command);
+            try {
+                notifyIfNeeded();
+            } catch (IllegalStateException | MojoException e) {
+                // The command is reported as rejected, don't run it later.
+                mPendingActions.remove(command);
+                throw e;
             }
         }
     }
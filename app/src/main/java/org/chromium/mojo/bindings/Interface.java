@@ -405,7 +405,7 @@ public interface Interface extends ConnectionErrorHandler, Closeable {
             // The router (and by consequence the handle) is intentionally leaked. It will close
             // itself when the connected handle is closed and the proxy receives the connection
             // error.
-            Router router = new RouterImpl(handle);
+            Router router = new RouterImpl(handle, getName());
             bind(handle.getCore(), impl, router);
             router.start();
         }
@@ -422,7 +422,7 @@ public interface Interface extends ConnectionErrorHandler, Closeable {
          * other end of the handle must be bound to an implementation of the interface.
          */
         public final P attachProxy(MessagePipeHandle handle, int version) {
-            RouterImpl router = new RouterImpl(handle);
+            RouterImpl router = new RouterImpl(handle, getName());
             P proxy = attachProxy(handle.getCore(), router);
             DelegatingConnectionErrorHandler handlers = new DelegatingConnectionErrorHandler();
             handlers.addConnectionErrorHandler(proxy);
@@ -459,7 +459,7 @@ public interface Interface extends ConnectionErrorHandler, Closeable {
             Core core = handlerImpl.getCore();
             int version = handlerImpl.getVersion();
 
-            Router router = new RouterImpl(handlerImpl.passHandle());
+            Router router = new RouterImpl(handlerImpl.passHandle(), getName());
             // Close the original proxy now that its handle has been passed.
             proxy.close();
 
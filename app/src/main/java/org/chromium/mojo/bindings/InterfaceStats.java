@@ -0,0 +1,106 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.mojo.bindings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counters of all the {@link RouterImpl}s bound to a given interface. They can be used to
+ * find slow or overloaded services.
+ */
+public final class InterfaceStats {
+    private static final ConcurrentHashMap<String, InterfaceStats> sStats =
+            new ConcurrentHashMap<>();
+
+    private final String mInterfaceName;
+    private final AtomicInteger mInFlightRequests = new AtomicInteger();
+    private final AtomicLong mResponseCount = new AtomicLong();
+    private final AtomicLong mTotalResponseLatencyNanos = new AtomicLong();
+    private final AtomicLong mMaxResponseLatencyNanos = new AtomicLong();
+
+    private InterfaceStats(String interfaceName) {
+        mInterfaceName = interfaceName;
+    }
+
+    /**
+     * Returns the counters for the interface |interfaceName|, creating them if needed.
+     */
+    static InterfaceStats forInterface(String interfaceName) {
+        InterfaceStats stats = sStats.get(interfaceName);
+        if (stats == null) {
+            stats = new InterfaceStats(interfaceName);
+            InterfaceStats previous = sStats.putIfAbsent(interfaceName, stats);
+            if (previous != null) stats = previous;
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the counters of all the interfaces which have sent at least one request.
+     */
+    public static List<InterfaceStats> getAll() {
+        return new ArrayList<>(sStats.values());
+    }
+
+    /**
+     * Returns the name of the interface.
+     */
+    public String getInterfaceName() {
+        return mInterfaceName;
+    }
+
+    /**
+     * Returns the number of requests sent on the interface and still waiting for a response.
+     */
+    public int getInFlightRequests() {
+        return mInFlightRequests.get();
+    }
+
+    /**
+     * Returns the number of responses received on the interface.
+     */
+    public long getResponseCount() {
+        return mResponseCount.get();
+    }
+
+    /**
+     * Returns the mean time between sending a request and receiving its response, in nanoseconds.
+     */
+    public long getMeanResponseLatencyNanos() {
+        long count = mResponseCount.get();
+        return count == 0 ? 0 : mTotalResponseLatencyNanos.get() / count;
+    }
+
+    /**
+     * Returns the longest time between sending a request and receiving its response, in
+     * nanoseconds.
+     */
+    public long getMaxResponseLatencyNanos() {
+        return mMaxResponseLatencyNanos.get();
+    }
+
+    void onRequestSent() {
+        mInFlightRequests.incrementAndGet();
+    }
+
+    void onResponseReceived(long latencyNanos) {
+        mInFlightRequests.decrementAndGet();
+        mResponseCount.incrementAndGet();
+        mTotalResponseLatencyNanos.addAndGet(latencyNanos);
+        long max;
+        do {
+            max = mMaxResponseLatencyNanos.get();
+        } while (latencyNanos > max
+                && !mMaxResponseLatencyNanos.compareAndSet(max, latencyNanos));
+    }
+
+    void onRequestsAbandoned(int count) {
+        mInFlightRequests.addAndGet(-count);
+    }
+}
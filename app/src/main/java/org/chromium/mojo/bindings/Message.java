@@ -26,6 +26,12 @@ public class Message {
      */
     private final List<? extends Handle> mHandles;
 
+    /**
+     * Whether this message owns |mBuffer| and must return it to the {@link EncoderBufferPool} once
+     * it has been sent.
+     */
+    private boolean mOwnsPooledBuffer;
+
     /**
      * This message interpreted as a message for a mojo service with an appropriate header.
      */
@@ -38,8 +44,21 @@ public class Message {
      * @param handles The list of handles to send.
      */
     public Message(ByteBuffer buffer, List<? extends Handle> handles) {
+        this(buffer, handles, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param buffer The buffer containing the bytes to send. This must be a direct buffer.
+     * @param handles The list of handles to send.
+     * @param ownsPooledBuffer Whether |buffer| has been acquired from the
+     *            {@link EncoderBufferPool} and must be released to it once the message is sent.
+     */
+    Message(ByteBuffer buffer, List<? extends Handle> handles, boolean ownsPooledBuffer) {
         mBuffer = buffer;
         mHandles = handles;
+        mOwnsPooledBuffer = ownsPooledBuffer;
     }
 
     /**
@@ -65,4 +84,24 @@ public class Message {
         }
         return mWithHeader;
     }
+
+    /**
+     * Transfers the ownership of the pooled buffer of this message, if any, to the caller. Returns
+     * whether this message owned a pooled buffer.
+     */
+    boolean passPooledBufferOwnership() {
+        boolean ownsPooledBuffer = mOwnsPooledBuffer;
+        mOwnsPooledBuffer = false;
+        return ownsPooledBuffer;
+    }
+
+    /**
+     * Returns the buffer of this message to the {@link EncoderBufferPool} if it came from it. The
+     * data of the message must not be accessed after this call.
+     */
+    void releasePooledBuffer() {
+        if (passPooledBufferOwnership()) {
+            EncoderBufferPool.release(mBuffer, mBuffer.limit());
+        }
+    }
 }
@@ -0,0 +1,150 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.mojo.bindings;
+
+/**
+ * Open addressing map from request ids to the {@link MessageReceiver} waiting for the response,
+ * used by {@link RouterImpl}. Keys are stored unboxed, and the time at which each request has been
+ * sent is kept alongside its responder.
+ * <p>
+ * The request id 0 is reserved by {@link RouterImpl} and used here to mark empty slots.
+ */
+final class ResponderMap {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] mRequestIds = new long[INITIAL_CAPACITY];
+    private MessageReceiver[] mResponders = new MessageReceiver[INITIAL_CAPACITY];
+    private long[] mSendTimesNanos = new long[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Returns the number of requests in flight.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns whether a responder is registered for |requestId|. Never true for the reserved id 0,
+     * which a peer may still send.
+     */
+    boolean containsKey(long requestId) {
+        return requestId != 0 && mRequestIds[indexOf(requestId)] == requestId;
+    }
+
+    /**
+     * Registers |responder| for |requestId|, which must not already be registered.
+     */
+    void put(long requestId, MessageReceiver responder, long sendTimeNanos) {
+        assert requestId != 0;
+        if ((mSize + 1) * 2 > mRequestIds.length) {
+            resize(mRequestIds.length * 2);
+        }
+        int index = indexOf(requestId);
+        assert mRequestIds[index] == 0;
+        mRequestIds[index] = requestId;
+        mResponders[index] = responder;
+        mSendTimesNanos[index] = sendTimeNanos;
+        ++mSize;
+    }
+
+    /**
+     * Returns the time at which the request |requestId| has been sent. The request must be
+     * registered.
+     */
+    long getSendTimeNanos(long requestId) {
+        assert requestId != 0;
+        int index = indexOf(requestId);
+        assert mRequestIds[index] == requestId;
+        return mSendTimesNanos[index];
+    }
+
+    /**
+     * Removes and returns the responder registered for |requestId|, or null if there is none.
+     */
+    MessageReceiver remove(long requestId) {
+        if (requestId == 0) {
+            return null;
+        }
+        int index = indexOf(requestId);
+        if (mRequestIds[index] != requestId) {
+            return null;
+        }
+        MessageReceiver responder = mResponders[index];
+        deleteAt(index);
+        --mSize;
+        return responder;
+    }
+
+    /**
+     * Removes all responders.
+     */
+    void clear() {
+        for (int i = 0; i < mRequestIds.length; ++i) {
+            mRequestIds[i] = 0;
+            mResponders[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Returns the slot holding |requestId|, or the empty slot where it would be inserted.
+     */
+    private int indexOf(long requestId) {
+        int mask = mRequestIds.length - 1;
+        int index = hash(requestId) & mask;
+        while (mRequestIds[index] != 0 && mRequestIds[index] != requestId) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Empties the slot at |index|, shifting back the following entries of the probe sequence so
+     * that lookups do not need tombstones.
+     */
+    private void deleteAt(int index) {
+        int mask = mRequestIds.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (mRequestIds[next] != 0) {
+            int home = hash(mRequestIds[next]) & mask;
+            // Move the entry into the hole if the hole lies between its home slot and its current
+            // slot, taking wrap-around into account.
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mRequestIds[hole] = mRequestIds[next];
+                mResponders[hole] = mResponders[next];
+                mSendTimesNanos[hole] = mSendTimesNanos[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mRequestIds[hole] = 0;
+        mResponders[hole] = null;
+    }
+
+    private void resize(int capacity) {
+        long[] requestIds = mRequestIds;
+        MessageReceiver[] responders = mResponders;
+        long[] sendTimesNanos = mSendTimesNanos;
+        mRequestIds = new long[capacity];
+        mResponders = new MessageReceiver[capacity];
+        mSendTimesNanos = new long[capacity];
+        for (int i = 0; i < requestIds.length; ++i) {
+            if (requestIds[i] != 0) {
+                int index = indexOf(requestIds[i]);
+                mRequestIds[index] = requestIds[i];
+                mResponders[index] = responders[i];
+                mSendTimesNanos[index] = sendTimesNanos[i];
+            }
+        }
+    }
+
+    private static int hash(long requestId) {
+        // Request ids are sequential: mix the bits so that they spread over the table.
+        long h = requestId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
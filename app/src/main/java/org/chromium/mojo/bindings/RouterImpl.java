@@ -4,20 +4,15 @@
 
 package org.chromium.mojo.bindings;
 
-import android.annotation.SuppressLint;
-
 import org.chromium.mojo.system.Core;
 import org.chromium.mojo.system.MessagePipeHandle;
 import org.chromium.mojo.system.Watcher;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.Executor;
 
 /**
  * Implementation of {@link Router}.
  */
-@SuppressLint("UseSparseArrays")  // https://crbug.com/600699
 public class RouterImpl implements Router {
 
     /**
@@ -99,7 +94,12 @@ public class RouterImpl implements Router {
     /**
      * The map from request ids to {@link MessageReceiver} of request currently in flight.
      */
-    private Map<Long, MessageReceiver> mResponders = new HashMap<Long, MessageReceiver>();
+    private final ResponderMap mResponders = new ResponderMap();
+
+    /**
+     * The counters of the interface this router is bound to, or null if the interface is unknown.
+     */
+    private final InterfaceStats mInterfaceStats;
 
     /**
      * An Executor that will run on the thread associated with the MessagePipe to which
@@ -125,6 +125,32 @@ public class RouterImpl implements Router {
      *            handle.
      */
     public RouterImpl(MessagePipeHandle messagePipeHandle, Watcher watcher) {
+        this(messagePipeHandle, watcher, null);
+    }
+
+    /**
+     * Constructor that will use the default {@link Watcher} and record the requests sent by the
+     * router in the {@link InterfaceStats} of the given interface.
+     *
+     * @param messagePipeHandle The {@link MessagePipeHandle} to route message for.
+     * @param interfaceName The name of the interface bound to the handle.
+     */
+    public RouterImpl(MessagePipeHandle messagePipeHandle, String interfaceName) {
+        this(messagePipeHandle, BindingsHelper.getWatcherForHandle(messagePipeHandle),
+                interfaceName);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param messagePipeHandle The {@link MessagePipeHandle} to route message for.
+     * @param watcher the {@link Watcher} to use to get notification of new messages on the
+     *            handle.
+     * @param interfaceName The name of the interface bound to the handle, used to record the
+     *            requests in {@link InterfaceStats}. Can be null.
+     */
+    public RouterImpl(MessagePipeHandle messagePipeHandle, Watcher watcher, String interfaceName) {
+        mInterfaceStats = interfaceName == null ? null : InterfaceStats.forInterface(interfaceName);
         mConnector = new Connector(messagePipeHandle, watcher);
         mConnector.setIncomingMessageReceiver(new HandleIncomingMessageThunk());
         Core core = messagePipeHandle.getCore();
@@ -184,7 +210,10 @@ public class RouterImpl implements Router {
             return false;
         }
         // Only keep the responder is the message has been accepted.
-        mResponders.put(requestId, responder);
+        mResponders.put(requestId, responder, mInterfaceStats == null ? 0 : System.nanoTime());
+        if (mInterfaceStats != null) {
+            mInterfaceStats.onRequestSent();
+        }
         return true;
     }
 
@@ -227,11 +256,17 @@ public class RouterImpl implements Router {
             return false;
         } else if (header.hasFlag(MessageHeader.MESSAGE_IS_RESPONSE_FLAG)) {
             long requestId = header.getRequestId();
-            MessageReceiver responder = mResponders.get(requestId);
+            if (!mResponders.containsKey(requestId)) {
+                return false;
+            }
+            long sendTimeNanos = mResponders.getSendTimeNanos(requestId);
+            MessageReceiver responder = mResponders.remove(requestId);
             if (responder == null) {
                 return false;
             }
-            mResponders.remove(requestId);
+            if (mInterfaceStats != null) {
+                mInterfaceStats.onResponseReceived(System.nanoTime() - sendTimeNanos);
+            }
             return responder.accept(message);
         } else {
             if (mIncomingMessageReceiver != null) {
@@ -243,6 +278,11 @@ public class RouterImpl implements Router {
     }
 
     private void handleConnectorClose() {
+        // No response will be received for the requests still in flight.
+        if (mInterfaceStats != null) {
+            mInterfaceStats.onRequestsAbandoned(mResponders.size());
+        }
+        mResponders.clear();
         if (mIncomingMessageReceiver != null) {
             mIncomingMessageReceiver.close();
         }
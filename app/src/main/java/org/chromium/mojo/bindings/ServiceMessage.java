@@ -21,7 +21,8 @@ public class ServiceMessage extends Message {
      * contain the |header| as the start of its raw data.
      */
     public ServiceMessage(Message baseMessage, MessageHeader header) {
-        super(baseMessage.getData(), baseMessage.getHandles());
+        super(baseMessage.getData(), baseMessage.getHandles(),
+                baseMessage.passPooledBufferOwnership());
         assert header.equals(new org.chromium.mojo.bindings.MessageHeader(baseMessage));
         this.mHeader = header;
     }
@@ -7,6 +7,7 @@ package org.chromium.mojo.bindings;
 import org.chromium.mojo.system.Core;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Base class for all mojo structs.
@@ -75,10 +76,14 @@ public abstract class Struct {
      *            being encoded contains interfaces, can be |null| otherwise.
      */
     public ServiceMessage serializeWithHeader(Core core, MessageHeader header) {
-        Encoder encoder = new Encoder(core, mEncodedBaseSize + header.getSize());
+        AtomicInteger sizeHint = EncoderBufferPool.getSizeHint(getClass());
+        Encoder encoder = new Encoder(core,
+                EncoderBufferPool.getInitialSize(sizeHint, mEncodedBaseSize + header.getSize()));
         header.encode(encoder);
         encode(encoder);
-        return new ServiceMessage(encoder.getMessage(), header);
+        Message message = encoder.getMessage();
+        EncoderBufferPool.recordEncodedSize(sizeHint, message.getData().limit());
+        return new ServiceMessage(message, header);
     }
 
     /**
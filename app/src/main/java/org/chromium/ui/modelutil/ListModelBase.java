@@ -65,6 +65,17 @@ public class ListModelBase<T, P> extends ListObservableImpl<P> implements Simple
         notifyItemRangeInserted(insertionIndex, items.size());
     }
 
+    /**
+     * Inserts all given {@code items} at the given position of the held {@link List}.
+     * Notifies observers about the inserted items.
+     * @param items The items to be stored.
+     * @param insertionIndex The position at which the first item is inserted.
+     */
+    public void addAll(Collection<T> items, int insertionIndex) {
+        mItems.addAll(insertionIndex, items);
+        notifyItemRangeInserted(insertionIndex, items.size());
+    }
+
     /**
      * Removes a given item from the held {@link List}. Notifies observers about the removal.
      * @param item The item to be removed.
@@ -16,21 +16,36 @@ import android.support.v7.content.res.AppCompatResources;
 import org.chromium.base.annotations.RemovableInRelease;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Generic property model that aims to provide an extensible and efficient model for ease of use.
+ *
+ * The keys of a model are compiled into a {@link Layout} shared by all the models with the same
+ * keys, which assigns each key a slot in arrays of primitive values. Getting or setting a property
+ * is a couple of array accesses, and doesn't allocate.
  */
 public class PropertyModel extends PropertyObservable<PropertyKey> {
     /**
      * A PropertyKey implementation that associates a name with the property for easy debugging.
      */
     private static class NamedPropertyKey implements PropertyKey {
+        private static final AtomicInteger sNextId = new AtomicInteger();
+
         private final String mPropertyName;
 
+        /**
+         * Identifies the key in the {@link Layout}s. Keys declared together get consecutive ids,
+         * which keeps the lookup tables of the layouts small.
+         */
+        private final int mId = sNextId.getAndIncrement();
+
         public NamedPropertyKey(@Nullable String propertyName) {
             mPropertyName = propertyName;
         }
@@ -212,7 +227,112 @@ public class PropertyModel extends PropertyObservable<PropertyKey> {
         }
     }
 
-    private final Map<PropertyKey, ValueContainer> mData;
+    /**
+     * The slots assigned to a list of keys. Booleans and ints are stored in an int array, floats in
+     * a float array and objects in an object array.
+     */
+    private static final class Layout {
+        /**
+         * The layouts of the key lists models were created with. Keys are constants, so there are
+         * as many layouts as kinds of models.
+         */
+        private static final Map<List<PropertyKey>, Layout> sLayouts = new HashMap<>();
+
+        /** The keys, in slot order. */
+        final PropertyKey[] mKeys;
+
+        /** Index of the value of each slot in the array of its type, or -1 if it has no value. */
+        final int[] mValueIndices;
+
+        final int mIntCount;
+        final int mFloatCount;
+        final int mObjectCount;
+
+        /** Slot of each key, indexed by the key id minus {@link #mMinKeyId}, or -1. */
+        private final int[] mSlotsByKeyId;
+        private final int mMinKeyId;
+
+        private Layout(PropertyKey[] keys) {
+            mKeys = keys;
+            mValueIndices = new int[keys.length];
+            int intCount = 0;
+            int floatCount = 0;
+            int objectCount = 0;
+            int minKeyId = Integer.MAX_VALUE;
+            int maxKeyId = Integer.MIN_VALUE;
+            for (int i = 0; i < keys.length; i++) {
+                PropertyKey key = keys[i];
+                if (key instanceof ReadableBooleanPropertyKey
+                        || key instanceof ReadableIntPropertyKey) {
+                    mValueIndices[i] = intCount++;
+                } else if (key instanceof ReadableFloatPropertyKey) {
+                    mValueIndices[i] = floatCount++;
+                } else if (key instanceof ReadableObjectPropertyKey) {
+                    mValueIndices[i] = objectCount++;
+                } else {
+                    mValueIndices[i] = -1;
+                }
+                if (key instanceof NamedPropertyKey) {
+                    int id = ((NamedPropertyKey) key).mId;
+                    minKeyId = Math.min(minKeyId, id);
+                    maxKeyId = Math.max(maxKeyId, id);
+                }
+            }
+            mIntCount = intCount;
+            mFloatCount = floatCount;
+            mObjectCount = objectCount;
+
+            mMinKeyId = minKeyId;
+            mSlotsByKeyId = new int[maxKeyId < minKeyId ? 0 : maxKeyId - minKeyId + 1];
+            Arrays.fill(mSlotsByKeyId, -1);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] instanceof NamedPropertyKey) {
+                    mSlotsByKeyId[((NamedPropertyKey) keys[i]).mId - minKeyId] = i;
+                }
+            }
+        }
+
+        /** @return The layout of |keys|, shared with the other models with the same keys. */
+        static Layout get(PropertyKey[] keys) {
+            List<PropertyKey> keyList = Arrays.asList(keys);
+            synchronized (sLayouts) {
+                Layout layout = sLayouts.get(keyList);
+                if (layout == null) {
+                    if (keys.length != new HashSet<>(keyList).size()) {
+                        for (int i = 0; i < keys.length; i++) {
+                            if (keyList.indexOf(keys[i]) != i) {
+                                throw new IllegalArgumentException("Duplicate key: " + keys[i]);
+                            }
+                        }
+                    }
+                    // Copy the keys, the caller may modify its array.
+                    PropertyKey[] layoutKeys = keys.clone();
+                    layout = new Layout(layoutKeys);
+                    sLayouts.put(Arrays.asList(layoutKeys), layout);
+                }
+                return layout;
+            }
+        }
+
+        /** @return The slot of |key|, or -1 if it isn't part of the layout. */
+        int getSlot(NamedPropertyKey key) {
+            int offset = key.mId - mMinKeyId;
+            if (offset < 0 || offset >= mSlotsByKeyId.length) return -1;
+            return mSlotsByKeyId[offset];
+        }
+    }
+
+    private final Layout mLayout;
+    private final int[] mInts;
+    private final float[] mFloats;
+    private final Object[] mObjects;
+
+    /** Bits of the slots whose value has been set. */
+    private final long[] mSetSlots;
+
+    /** Bits of the slots changed during the current batch edit. */
+    private final long[] mDirtySlots;
+    private int mBatchEditDepth;
 
     /**
      * Constructs a model for the given list of keys.
@@ -220,7 +340,7 @@ public class PropertyModel extends PropertyObservable<PropertyKey> {
      * @param keys The key types supported by this model.
      */
     public PropertyModel(PropertyKey... keys) {
-        this(buildData(keys));
+        this(Layout.get(keys));
     }
 
     /**
@@ -229,96 +349,140 @@ public class PropertyModel extends PropertyObservable<PropertyKey> {
      * @param keys The key types supported by this model.
      */
     public PropertyModel(Collection<PropertyKey> keys) {
-        this(buildData(keys.toArray(new PropertyKey[keys.size()])));
+        this(Layout.get(keys.toArray(new PropertyKey[keys.size()])));
     }
 
-    private PropertyModel(Map<PropertyKey, ValueContainer> startingValues) {
-        mData = startingValues;
+    private PropertyModel(Layout layout) {
+        mLayout = layout;
+        mInts = new int[layout.mIntCount];
+        mFloats = new float[layout.mFloatCount];
+        mObjects = new Object[layout.mObjectCount];
+        mSetSlots = new long[(layout.mKeys.length + 63) / 64];
+        mDirtySlots = new long[mSetSlots.length];
     }
 
     @RemovableInRelease
-    private void validateKey(PropertyKey key) {
-        if (!mData.containsKey(key)) {
+    private static void validateSlot(int slot, PropertyKey key) {
+        if (slot < 0) {
             throw new IllegalArgumentException("Invalid key passed in: " + key);
         }
     }
 
+    /**
+     * @return The slot of |key|, or -1 if it isn't a key of this model.
+     */
+    private int getSlot(NamedPropertyKey key) {
+        int slot = mLayout.getSlot(key);
+        validateSlot(slot, key);
+        return slot;
+    }
+
+    private boolean isSet(int slot) {
+        return (mSetSlots[slot >> 6] & (1L << slot)) != 0;
+    }
+
+    /**
+     * Marks the value of |slot| as set, and notifies the change of |key| or defers it to the end
+     * of the batch edit in progress.
+     */
+    private void onValueChanged(int slot, PropertyKey key) {
+        mSetSlots[slot >> 6] |= 1L << slot;
+        if (mBatchEditDepth > 0) {
+            mDirtySlots[slot >> 6] |= 1L << slot;
+            return;
+        }
+        notifyPropertyChanged(key);
+    }
+
+    /**
+     * Starts a batch edit: the notifications of property changes are deferred until the matching
+     * call to {@link #endBatchEdit()}, and a property changed several times is notified once.
+     * Batch edits can be nested.
+     */
+    public void beginBatchEdit() {
+        mBatchEditDepth++;
+    }
+
+    /**
+     * Ends a batch edit, notifying the properties which changed during the outermost batch edit in
+     * the order of the keys of the model.
+     */
+    public void endBatchEdit() {
+        assert mBatchEditDepth > 0;
+        if (--mBatchEditDepth > 0) return;
+        for (int i = 0; i < mDirtySlots.length; i++) {
+            while (mDirtySlots[i] != 0) {
+                int bit = Long.numberOfTrailingZeros(mDirtySlots[i]);
+                mDirtySlots[i] &= ~(1L << bit);
+                notifyPropertyChanged(mLayout.mKeys[i * 64 + bit]);
+                // An observer may have started another batch edit.
+                if (mBatchEditDepth > 0) return;
+            }
+        }
+    }
+
     /**
      * Get the current value from the float based key.
      */
     public float get(ReadableFloatPropertyKey key) {
-        validateKey(key);
-        FloatContainer container = (FloatContainer) mData.get(key);
-        return container == null ? 0f : container.value;
+        int slot = getSlot(key);
+        return slot < 0 ? 0f : mFloats[mLayout.mValueIndices[slot]];
     }
 
     /**
      * Set the value for the float based key.
      */
     public void set(WritableFloatPropertyKey key, float value) {
-        validateKey(key);
-        FloatContainer container = (FloatContainer) mData.get(key);
-        if (container == null) {
-            container = new FloatContainer();
-            mData.put(key, container);
-        } else if (container.value == value) {
-            return;
-        }
+        int slot = getSlot(key);
+        if (slot < 0) return;
+        int index = mLayout.mValueIndices[slot];
+        if (isSet(slot) && mFloats[index] == value) return;
 
-        container.value = value;
-        notifyPropertyChanged(key);
+        mFloats[index] = value;
+        onValueChanged(slot, key);
     }
 
     /**
      * Get the current value from the int based key.
      */
     public int get(ReadableIntPropertyKey key) {
-        validateKey(key);
-        IntContainer container = (IntContainer) mData.get(key);
-        return container == null ? 0 : container.value;
+        int slot = getSlot(key);
+        return slot < 0 ? 0 : mInts[mLayout.mValueIndices[slot]];
     }
 
     /**
      * Set the value for the int based key.
      */
     public void set(WritableIntPropertyKey key, int value) {
-        validateKey(key);
-        IntContainer container = (IntContainer) mData.get(key);
-        if (container == null) {
-            container = new IntContainer();
-            mData.put(key, container);
-        } else if (container.value == value) {
-            return;
-        }
+        int slot = getSlot(key);
+        if (slot < 0) return;
+        int index = mLayout.mValueIndices[slot];
+        if (isSet(slot) && mInts[index] == value) return;
 
-        container.value = value;
-        notifyPropertyChanged(key);
+        mInts[index] = value;
+        onValueChanged(slot, key);
     }
 
     /**
      * Get the current value from the boolean based key.
      */
     public boolean get(ReadableBooleanPropertyKey key) {
-        validateKey(key);
-        BooleanContainer container = (BooleanContainer) mData.get(key);
-        return container == null ? false : container.value;
+        int slot = getSlot(key);
+        return slot >= 0 && mInts[mLayout.mValueIndices[slot]] != 0;
     }
 
     /**
      * Set the value for the boolean based key.
      */
     public void set(WritableBooleanPropertyKey key, boolean value) {
-        validateKey(key);
-        BooleanContainer container = (BooleanContainer) mData.get(key);
-        if (container == null) {
-            container = new BooleanContainer();
-            mData.put(key, container);
-        } else if (container.value == value) {
-            return;
-        }
-
-        container.value = value;
-        notifyPropertyChanged(key);
+        int slot = getSlot(key);
+        if (slot < 0) return;
+        int index = mLayout.mValueIndices[slot];
+        int intValue = value ? 1 : 0;
+        if (isSet(slot) && mInts[index] == intValue) return;
+
+        mInts[index] = intValue;
+        onValueChanged(slot, key);
     }
 
     /**
@@ -326,97 +490,78 @@ public class PropertyModel extends PropertyObservable<PropertyKey> {
      */
     @SuppressWarnings("unchecked")
     public <T> T get(ReadableObjectPropertyKey<T> key) {
-        validateKey(key);
-        ObjectContainer<T> container = (ObjectContainer<T>) mData.get(key);
-        return container == null ? null : container.value;
+        int slot = getSlot(key);
+        return slot < 0 ? null : (T) mObjects[mLayout.mValueIndices[slot]];
     }
 
     /**
      * Set the value for the Object based key.
      */
-    @SuppressWarnings("unchecked")
     public <T> void set(WritableObjectPropertyKey<T> key, T value) {
-        validateKey(key);
-        ObjectContainer<T> container = (ObjectContainer<T>) mData.get(key);
-        if (container == null) {
-            container = new ObjectContainer<T>();
-            mData.put(key, container);
-        } else if (!key.mSkipEquality && ObjectsCompat.equals(container.value, value)) {
+        int slot = getSlot(key);
+        if (slot < 0) return;
+        int index = mLayout.mValueIndices[slot];
+        if (isSet(slot) && !key.mSkipEquality && ObjectsCompat.equals(mObjects[index], value)) {
             return;
         }
 
-        container.value = value;
-        notifyPropertyChanged(key);
+        mObjects[index] = value;
+        onValueChanged(slot, key);
     }
 
     @Override
     public Collection<PropertyKey> getAllSetProperties() {
         List<PropertyKey> properties = new ArrayList<>();
-        for (Map.Entry<PropertyKey, ValueContainer> entry : mData.entrySet()) {
-            if (entry.getValue() != null) properties.add(entry.getKey());
+        for (int i = 0; i < mLayout.mKeys.length; i++) {
+            if (isSet(i)) properties.add(mLayout.mKeys[i]);
         }
         return properties;
     }
 
     @Override
     public Collection<PropertyKey> getAllProperties() {
-        List<PropertyKey> properties = new ArrayList<>();
-        for (Map.Entry<PropertyKey, ValueContainer> entry : mData.entrySet()) {
-            properties.add(entry.getKey());
-        }
-        return properties;
+        return Arrays.asList(mLayout.mKeys.clone());
     }
 
     /**
      * Allows constructing a new {@link PropertyModel} with read-only properties.
      */
     public static class Builder {
-        private final Map<PropertyKey, ValueContainer> mData;
+        private final PropertyModel mModel;
 
         public Builder(PropertyKey... keys) {
-            this(buildData(keys));
-        }
-
-        private Builder(Map<PropertyKey, ValueContainer> values) {
-            mData = values;
-        }
-
-        @RemovableInRelease
-        private void validateKey(PropertyKey key) {
-            if (!mData.containsKey(key)) {
-                throw new IllegalArgumentException("Invalid key passed in: " + key);
-            }
+            mModel = new PropertyModel(Layout.get(keys));
         }
 
         public Builder with(ReadableFloatPropertyKey key, float value) {
-            validateKey(key);
-            FloatContainer container = new FloatContainer();
-            container.value = value;
-            mData.put(key, container);
+            int slot = mModel.getSlot(key);
+            if (slot < 0) return this;
+            mModel.mFloats[mModel.mLayout.mValueIndices[slot]] = value;
+            mModel.mSetSlots[slot >> 6] |= 1L << slot;
             return this;
         }
 
         public Builder with(ReadableIntPropertyKey key, int value) {
-            validateKey(key);
-            IntContainer container = new IntContainer();
-            container.value = value;
-            mData.put(key, container);
+            int slot = mModel.getSlot(key);
+            if (slot < 0) return this;
+            mModel.mInts[mModel.mLayout.mValueIndices[slot]] = value;
+            mModel.mSetSlots[slot >> 6] |= 1L << slot;
             return this;
         }
 
         public Builder with(ReadableBooleanPropertyKey key, boolean value) {
-            validateKey(key);
-            BooleanContainer container = new BooleanContainer();
-            container.value = value;
-            mData.put(key, container);
+            int slot = mModel.getSlot(key);
+            if (slot < 0) return this;
+            mModel.mInts[mModel.mLayout.mValueIndices[slot]] = value ? 1 : 0;
+            mModel.mSetSlots[slot >> 6] |= 1L << slot;
             return this;
         }
 
         public <T> Builder with(ReadableObjectPropertyKey<T> key, T value) {
-            validateKey(key);
-            ObjectContainer<T> container = new ObjectContainer<>();
-            container.value = value;
-            mData.put(key, container);
+            int slot = mModel.getSlot(key);
+            if (slot < 0) return this;
+            mModel.mObjects[mModel.mLayout.mValueIndices[slot]] = value;
+            mModel.mSetSlots[slot >> 6] |= 1L << slot;
             return this;
         }
 
@@ -445,7 +590,7 @@ public class PropertyModel extends PropertyObservable<PropertyKey> {
         }
 
         public PropertyModel build() {
-            return new PropertyModel(mData);
+            return mModel;
         }
     }
 
@@ -461,52 +606,4 @@ public class PropertyModel extends PropertyObservable<PropertyKey> {
         System.arraycopy(k2, 0, outList, k1.length, k2.length);
         return outList;
     }
-
-    private static Map<PropertyKey, ValueContainer> buildData(PropertyKey[] keys) {
-        Map<PropertyKey, ValueContainer> data = new HashMap<>();
-        for (PropertyKey key : keys) {
-            if (data.containsKey(key)) {
-                throw new IllegalArgumentException("Duplicate key: " + key);
-            }
-            data.put(key, null);
-        }
-        return data;
-    }
-
-    private static class ValueContainer {}
-    private static class FloatContainer extends ValueContainer {
-        public float value;
-
-        @Override
-        public String toString() {
-            return value + " in " + super.toString();
-        }
-    }
-
-    private static class IntContainer extends ValueContainer {
-        public int value;
-
-        @Override
-        public String toString() {
-            return value + " in " + super.toString();
-        }
-    }
-
-    private static class BooleanContainer extends ValueContainer {
-        public boolean value;
-
-        @Override
-        public String toString() {
-            return value + " in " + super.toString();
-        }
-    }
-
-    private static class ObjectContainer<T> extends ValueContainer {
-        public T value;
-
-        @Override
-        public String toString() {
-            return value + " in " + super.toString();
-        }
-    }
 }
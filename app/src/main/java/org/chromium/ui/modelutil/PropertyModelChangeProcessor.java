@@ -66,7 +66,8 @@ public class PropertyModelChangeProcessor<M extends PropertyObservable<P>, V, P>
     private void onPropertyChanged(PropertyObservable<P> source, P propertyKey) {
         assert source == mModel;
 
-        // TODO(bauerb): Add support for batching updates.
+        // Updates made in a batch edit of a PropertyModel are coalesced by the model, see
+        // PropertyModel#beginBatchEdit().
         mViewBinder.bind(mModel, mView, propertyKey);
     }
 }
\ No newline at end of file
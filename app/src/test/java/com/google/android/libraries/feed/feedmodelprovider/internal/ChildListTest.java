@@ -0,0 +1,255 @@
+// Copyright 2019 The Feed Authors.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.android.libraries.feed.feedmodelprovider.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests of the {@link ChildList} class. */
+public class ChildListTest {
+  // More than a chunk, so that the operations cross chunk boundaries.
+  private static final int CHILD_COUNT = 100;
+
+  @Test
+  public void testAppend() {
+    List<UpdatableModelChild> expected = createChildren(CHILD_COUNT);
+    ChildList children = new ChildList();
+    for (UpdatableModelChild child : expected) {
+      children.add(child);
+    }
+    assertContents(expected, children);
+  }
+
+  @Test
+  public void testInsert() {
+    List<UpdatableModelChild> expected = createChildren(CHILD_COUNT);
+    ChildList children = createChildList(expected);
+
+    // Inserting into full chunks splits them.
+    int[] indices = {0, 5, 20, 31, 32, 33, 64, CHILD_COUNT / 2, expected.size()};
+    for (int index : indices) {
+      UpdatableModelChild child = new UpdatableModelChild("inserted" + index, null);
+      expected.add(index, child);
+      children.add(index, child);
+      assertContents(expected, children);
+    }
+  }
+
+  @Test
+  public void testRemove() {
+    List<UpdatableModelChild> expected = createChildren(CHILD_COUNT);
+    ChildList children = createChildList(expected);
+
+    assertSame(expected.remove(0), children.remove(0));
+    assertSame(expected.remove(expected.size() - 1), children.remove(children.size() - 1));
+    assertSame(expected.remove(40), children.remove(40));
+    assertContents(expected, children);
+
+    // Emptying the first chunk drops it.
+    for (int i = 0; i < 40; i++) {
+      assertSame(expected.remove(0), children.remove(0));
+    }
+    assertContents(expected, children);
+
+    while (!expected.isEmpty()) {
+      assertSame(expected.remove(expected.size() / 2), children.remove(children.size() / 2));
+    }
+    assertContents(expected, children);
+  }
+
+  @Test
+  public void testMove() {
+    List<UpdatableModelChild> expected = createChildren(CHILD_COUNT);
+    ChildList children = createChildList(expected);
+
+    int[][] moves = {{0, CHILD_COUNT - 1}, {CHILD_COUNT - 1, 0}, {10, 70}, {70, 10}, {31, 32}};
+    for (int[] move : moves) {
+      expected.add(move[1], expected.remove(move[0]));
+      children.add(move[1], children.remove(move[0]));
+      assertContents(expected, children);
+    }
+  }
+
+  @Test
+  public void testSet() {
+    List<UpdatableModelChild> expected = createChildren(CHILD_COUNT);
+    List<UpdatableModelChild> original = new ArrayList<>(expected);
+    ChildList children = createChildList(expected);
+    ChildList snapshot = children.snapshot();
+
+    UpdatableModelChild child = new UpdatableModelChild("set", null);
+    assertSame(expected.set(50, child), children.set(50, child));
+    assertContents(expected, children);
+    assertContents(original, snapshot);
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    List<UpdatableModelChild> expected = createChildren(CHILD_COUNT);
+    ChildList children = createChildList(expected);
+
+    Iterator<UpdatableModelChild> iterator = children.iterator();
+    for (int i = 0; iterator.hasNext(); i++) {
+      iterator.next();
+      if (i % 3 == 0) {
+        iterator.remove();
+      }
+    }
+    Iterator<UpdatableModelChild> expectedIterator = expected.iterator();
+    for (int i = 0; expectedIterator.hasNext(); i++) {
+      expectedIterator.next();
+      if (i % 3 == 0) {
+        expectedIterator.remove();
+      }
+    }
+    assertContents(expected, children);
+  }
+
+  @Test
+  public void testSnapshotIsIndependent() {
+    List<UpdatableModelChild> original = createChildren(CHILD_COUNT);
+    ChildList children = createChildList(original);
+    ChildList snapshot = children.snapshot();
+    assertContents(original, snapshot);
+
+    List<UpdatableModelChild> expected = new ArrayList<>(original);
+    UpdatableModelChild child = new UpdatableModelChild("added", null);
+    expected.add(40, child);
+    children.add(40, child);
+    expected.remove(0);
+    children.remove(0);
+    assertContents(expected, children);
+    assertContents(original, snapshot);
+
+    List<UpdatableModelChild> expectedSnapshot = new ArrayList<>(original);
+    expectedSnapshot.remove(70);
+    snapshot.remove(70);
+    assertContents(expectedSnapshot, snapshot);
+    assertContents(expected, children);
+  }
+
+  @Test
+  public void testSnapshotFromIndex() {
+    List<UpdatableModelChild> original = createChildren(CHILD_COUNT);
+    ChildList children = createChildList(original);
+
+    ChildList range = children.snapshot(40);
+    assertContents(original.subList(40, CHILD_COUNT), range);
+
+    // Neither list sees the changes of the other.
+    children.remove(50);
+    range.add(0, new UpdatableModelChild("added", null));
+    assertContents(original.subList(0, 50), children.subList(0, 50));
+    assertContents(original.subList(51, CHILD_COUNT), children.subList(50, CHILD_COUNT - 1));
+    assertContents(original.subList(40, CHILD_COUNT), range.subList(1, range.size()));
+
+    assertEquals(0, children.snapshot(children.size()).size());
+    assertContents(children, children.snapshot(0));
+  }
+
+  @Test
+  public void testSnapshotFromIndex_outOfBounds() {
+    ChildList children = createChildList(createChildren(10));
+    try {
+      children.snapshot(-1);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+      // Expected.
+    }
+    try {
+      children.snapshot(11);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testClear() {
+    ChildList children = createChildList(createChildren(CHILD_COUNT));
+    ChildList snapshot = children.snapshot();
+    children.clear();
+    assertTrue(children.isEmpty());
+    assertEquals(CHILD_COUNT, snapshot.size());
+
+    UpdatableModelChild child = new UpdatableModelChild("added", null);
+    children.add(child);
+    assertSame(child, children.get(0));
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random random = new Random(0);
+    List<UpdatableModelChild> expected = new ArrayList<>();
+    ChildList children = new ChildList();
+    List<List<UpdatableModelChild>> expectedSnapshots = new ArrayList<>();
+    List<ChildList> snapshots = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      int operation = random.nextInt(10);
+      if (operation < 5 || expected.isEmpty()) {
+        int index = random.nextInt(expected.size() + 1);
+        UpdatableModelChild child = new UpdatableModelChild("child" + i, null);
+        expected.add(index, child);
+        children.add(index, child);
+      } else if (operation < 9) {
+        int index = random.nextInt(expected.size());
+        assertSame(expected.remove(index), children.remove(index));
+      } else {
+        int fromIndex = random.nextInt(expected.size() + 1);
+        expectedSnapshots.add(new ArrayList<>(expected.subList(fromIndex, expected.size())));
+        snapshots.add(fromIndex == 0 ? children.snapshot() : children.snapshot(fromIndex));
+      }
+    }
+    assertContents(expected, children);
+    for (int i = 0; i < snapshots.size(); i++) {
+      assertContents(expectedSnapshots.get(i), snapshots.get(i));
+    }
+  }
+
+  private static List<UpdatableModelChild> createChildren(int count) {
+    List<UpdatableModelChild> children = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      children.add(new UpdatableModelChild("child" + i, null));
+    }
+    return children;
+  }
+
+  private static ChildList createChildList(List<UpdatableModelChild> children) {
+    ChildList childList = new ChildList();
+    childList.addAll(children);
+    return childList;
+  }
+
+  private static void assertContents(
+      List<UpdatableModelChild> expected, List<UpdatableModelChild> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertSame("Child " + i, expected.get(i), actual.get(i));
+    }
+    // Also check iteration, which locates the chunks incrementally.
+    int i = 0;
+    for (UpdatableModelChild child : actual) {
+      assertSame("Iterated child " + i, expected.get(i++), child);
+    }
+  }
+}
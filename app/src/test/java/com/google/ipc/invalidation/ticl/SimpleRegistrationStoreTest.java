@@ -0,0 +1,243 @@
+/*
+ * Copyright 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ipc.invalidation.ticl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.ipc.invalidation.common.DigestFunction;
+import com.google.ipc.invalidation.ticl.proto.ClientProtocol.ObjectIdP;
+import com.google.ipc.invalidation.util.Bytes;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for {@link SimpleRegistrationStore}, in particular the registrations returned for a digest
+ * prefix.
+ */
+public class SimpleRegistrationStoreTest {
+  /** Length of the test digests, longer than 64 bits. */
+  private static final int DIGEST_LENGTH = 9;
+
+  /**
+   * Digest function whose digest of an object id is the name of the object id, so that the tests
+   * choose the digests.
+   */
+  private static class NameDigestFunction implements DigestFunction {
+    private byte[] lastData;
+
+    @Override
+    public void reset() {
+      lastData = null;
+    }
+
+    @Override
+    public void update(byte[] data) {
+      lastData = data;
+    }
+
+    @Override
+    public byte[] getDigest() {
+      return lastData;
+    }
+  }
+
+  private final SimpleRegistrationStore store =
+      new SimpleRegistrationStore(new NameDigestFunction());
+
+  @Test
+  public void testEmptyStore() {
+    assertTrue(store.getElements(new byte[0], 0).isEmpty());
+    assertTrue(store.getElements(new byte[] {0}, 1).isEmpty());
+    assertTrue(store.getElements(new byte[] {(byte) 0xff}, 8).isEmpty());
+  }
+
+  @Test
+  public void testEmptyPrefix() {
+    List<ObjectIdP> oids = addAll(0x00, 0x7f, 0x80, 0xff);
+    assertEquals(new HashSet<ObjectIdP>(oids), toSet(store.getElements(new byte[0], 0)));
+    // The prefix bytes are ignored when the length is 0.
+    assertEquals(new HashSet<ObjectIdP>(oids), toSet(store.getElements(new byte[] {1}, 0)));
+  }
+
+  @Test
+  public void testFirstBit() {
+    List<ObjectIdP> oids = addAll(0x00, 0x7f, 0x80, 0xff);
+    assertEquals(toSet(oids.get(0), oids.get(1)),
+        toSet(store.getElements(new byte[] {0x00}, 1)));
+    // The bits after the prefix length are ignored.
+    assertEquals(toSet(oids.get(0), oids.get(1)),
+        toSet(store.getElements(new byte[] {0x7f}, 1)));
+    assertEquals(toSet(oids.get(2), oids.get(3)),
+        toSet(store.getElements(new byte[] {(byte) 0x80}, 1)));
+  }
+
+  @Test
+  public void testBitsAroundSixtyFour() {
+    // Digests differing only in their 63rd, 64th or 65th bit.
+    byte[] base = new byte[DIGEST_LENGTH];
+    ObjectIdP oid = add(base);
+    ObjectIdP oid63 = add(withBit(base, 62));
+    ObjectIdP oid64 = add(withBit(base, 63));
+    ObjectIdP oid65 = add(withBit(base, 64));
+
+    assertEquals(toSet(oid, oid63, oid64, oid65), toSet(store.getElements(base, 62)));
+    assertEquals(toSet(oid, oid64, oid65), toSet(store.getElements(base, 63)));
+    assertEquals(toSet(oid, oid65), toSet(store.getElements(base, 64)));
+    assertEquals(toSet(oid), toSet(store.getElements(base, 65)));
+    assertEquals(toSet(oid63), toSet(store.getElements(withBit(base, 62), 63)));
+    assertEquals(toSet(oid64), toSet(store.getElements(withBit(base, 63), 64)));
+    assertEquals(toSet(oid65), toSet(store.getElements(withBit(base, 64), 72)));
+  }
+
+  @Test
+  public void testAllOnesPrefix() {
+    // There is no next prefix, the range extends to the end of the map.
+    byte[] ones = new byte[DIGEST_LENGTH];
+    for (int i = 0; i < ones.length; i++) {
+      ones[i] = (byte) 0xff;
+    }
+    ObjectIdP last = add(ones);
+    add(new byte[DIGEST_LENGTH]);
+    for (int prefixLen : new int[] {1, 8, 63, 64, 72}) {
+      assertEquals(toSet(last), toSet(store.getElements(ones, prefixLen)));
+    }
+  }
+
+  @Test
+  public void testCarryIntoPreviousByte() {
+    // The next prefix of 0x00ff is 0x0100, which must not be included.
+    ObjectIdP inside = add(bytes(0x00, 0xff, 0x12));
+    add(bytes(0x01, 0x00, 0x00));
+    add(bytes(0x00, 0xfe, 0xff));
+    assertEquals(toSet(inside), toSet(store.getElements(bytes(0x00, 0xff), 16)));
+  }
+
+  @Test
+  public void testNextPrefixEndingWithOnes() {
+    // The next prefix of 0xfe is 0xff, whose digests must not be included.
+    ObjectIdP inside = add(bytes(0xfe, 0xff));
+    add(bytes(0xff, 0x00));
+    assertEquals(toSet(inside), toSet(store.getElements(bytes(0xfe), 8)));
+  }
+
+  @Test
+  public void testPrefixLongerThanDigestPrefix() {
+    try {
+      store.getElements(new byte[1], 9);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testRandomPrefixes() {
+    Random random = new Random(0);
+    List<byte[]> digests = new ArrayList<byte[]>();
+    for (int i = 0; i < 300; i++) {
+      byte[] digest = new byte[DIGEST_LENGTH];
+      random.nextBytes(digest);
+      // Share long prefixes between digests.
+      if (!digests.isEmpty() && random.nextBoolean()) {
+        byte[] other = digests.get(random.nextInt(digests.size()));
+        System.arraycopy(other, 0, digest, 0, random.nextInt(DIGEST_LENGTH));
+      }
+      digests.add(digest);
+      add(digest);
+    }
+    for (int i = 0; i < 500; i++) {
+      byte[] prefix = digests.get(random.nextInt(digests.size())).clone();
+      if (random.nextInt(4) == 0) {
+        prefix[random.nextInt(DIGEST_LENGTH)] ^= (byte) (1 << random.nextInt(8));
+      }
+      int prefixLen = random.nextInt(DIGEST_LENGTH * 8 + 1);
+      Set<ObjectIdP> expected = new HashSet<ObjectIdP>();
+      for (byte[] digest : digests) {
+        if (startsWith(digest, prefix, prefixLen)) {
+          expected.add(oid(digest));
+        }
+      }
+      assertEquals(expected, toSet(store.getElements(prefix, prefixLen)));
+    }
+  }
+
+  private ObjectIdP add(byte[] digest) {
+    ObjectIdP oid = oid(digest);
+    assertTrue(store.add(oid));
+    return oid;
+  }
+
+  private List<ObjectIdP> addAll(int... firstBytes) {
+    List<ObjectIdP> oids = new ArrayList<ObjectIdP>();
+    for (int firstByte : firstBytes) {
+      byte[] digest = new byte[DIGEST_LENGTH];
+      digest[0] = (byte) firstByte;
+      oids.add(add(digest));
+    }
+    return oids;
+  }
+
+  private static ObjectIdP oid(byte[] digest) {
+    return ObjectIdP.create(1, new Bytes(digest));
+  }
+
+  private static byte[] bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return bytes;
+  }
+
+  /** Returns a copy of {@code digest} with the bit at {@code index} set, most significant first. */
+  private static byte[] withBit(byte[] digest, int index) {
+    byte[] result = digest.clone();
+    result[index / 8] |= (byte) (0x80 >>> (index % 8));
+    return result;
+  }
+
+  private static boolean startsWith(byte[] digest, byte[] prefix, int prefixLen) {
+    for (int i = 0; i < prefixLen; i++) {
+      int mask = 0x80 >>> (i % 8);
+      if ((digest[i / 8] & mask) != (prefix[i / 8] & mask)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Set<ObjectIdP> toSet(Collection<ObjectIdP> oids) {
+    return new HashSet<ObjectIdP>(oids);
+  }
+
+  private static Set<ObjectIdP> toSet(ObjectIdP... oids) {
+    Set<ObjectIdP> set = new HashSet<ObjectIdP>();
+    for (ObjectIdP oid : oids) {
+      set.add(oid);
+    }
+    return set;
+  }
+}
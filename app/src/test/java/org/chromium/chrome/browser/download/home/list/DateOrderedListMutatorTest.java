@@ -0,0 +1,153 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.download.home.list;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.chromium.ui.modelutil.ListModel;
+import org.chromium.ui.modelutil.ListObservable;
+import org.chromium.ui.modelutil.ListObservable.ListObserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Tests for how {@link DateOrderedListMutator} applies a new list to its model. */
+public class DateOrderedListMutatorTest {
+    private final ListModel<String> mModel = new ListModel<>();
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mModel.addObserver(new ListObserver<Void>() {
+            @Override
+            public void onItemRangeInserted(ListObservable source, int index, int count) {
+                mEvents.add("insert " + index + " " + count);
+            }
+
+            @Override
+            public void onItemRangeRemoved(ListObservable source, int index, int count) {
+                mEvents.add("remove " + index + " " + count);
+            }
+
+            @Override
+            public void onItemRangeChanged(
+                    ListObservable<Void> source, int index, int count, Void payload) {
+                mEvents.add("change " + index + " " + count);
+            }
+        });
+    }
+
+    @Test
+    public void testAddToEmptyModel() {
+        apply(list("a", "b", "c"), set(), set("a", "b", "c"), set());
+        assertModel("a", "b", "c");
+        assertEvents("insert 0 3");
+    }
+
+    @Test
+    public void testRemoveRange() {
+        setModel("a", "b", "c", "d", "e");
+        apply(list("a", "d", "e"), set("b", "c"), set(), set());
+        assertModel("a", "d", "e");
+        assertEvents("remove 1 2");
+    }
+
+    @Test
+    public void testRemoveAll() {
+        setModel("a", "b", "c");
+        apply(list(), set("a", "b", "c"), set(), set());
+        assertModel();
+        assertEvents("remove 0 3");
+    }
+
+    @Test
+    public void testInsertRanges() {
+        setModel("a", "d");
+        apply(list("a", "b", "c", "d", "e"), set(), set("b", "c", "e"), set());
+        assertModel("a", "b", "c", "d", "e");
+        assertEvents("insert 1 2", "insert 4 1");
+    }
+
+    @Test
+    public void testUpdateChangedItems() {
+        setModel("a", "b", "c");
+        apply(list("a", "b", "c"), set(), set(), set("a", "c"));
+        assertModel("a", "b", "c");
+        assertEvents("change 0 1", "change 2 1");
+    }
+
+    @Test
+    public void testMixedChanges() {
+        setModel("header1", "a", "b", "header2", "c");
+        apply(list("header1", "a", "x", "header2", "c", "y"), set("b"), set("x", "y"),
+                set("header1", "b"));
+        assertModel("header1", "a", "x", "header2", "c", "y");
+        // The removed item isn't updated.
+        assertEvents("change 0 1", "remove 2 1", "insert 2 1", "insert 5 1");
+    }
+
+    @Test
+    public void testReplaceMovedItem() {
+        // A moved item is removed and added back as a new item.
+        setModel("a", "b", "c");
+        apply(list("b", "c", "a2"), set("a"), set("a2"), set());
+        assertModel("b", "c", "a2");
+        assertEvents("remove 0 1", "insert 2 1");
+    }
+
+    @Test
+    public void testOutOfSyncListsReplaceModel() {
+        setModel("a", "b");
+        apply(list("b", "a"), set(), set(), set());
+        assertModel("b", "a");
+        assertEvents("change 0 2");
+    }
+
+    @Test
+    public void testMissingItemReplacesModel() {
+        setModel("a", "b");
+        apply(list("a", "b", "c"), set(), set(), set());
+        assertModel("a", "b", "c");
+        assertEvents("change 0 2", "insert 2 1");
+    }
+
+    private void setModel(String... items) {
+        mModel.set(items);
+        mEvents.clear();
+    }
+
+    private void apply(List<String> items, Set<String> removedItems, Set<String> addedItems,
+            Set<String> changedItems) {
+        DateOrderedListMutator.applyFlattenedList(
+                mModel, items, removedItems, addedItems, changedItems);
+    }
+
+    private void assertModel(String... items) {
+        List<String> modelItems = new ArrayList<>();
+        for (String item : mModel) modelItems.add(item);
+        assertEquals(Arrays.asList(items), modelItems);
+    }
+
+    private void assertEvents(String... events) {
+        assertEquals(Arrays.asList(events), mEvents);
+    }
+
+    private static List<String> list(String... items) {
+        return Arrays.asList(items);
+    }
+
+    private static Set<String> set(String... items) {
+        Set<String> set = new HashSet<>();
+        Collections.addAll(set, items);
+        return set;
+    }
+}
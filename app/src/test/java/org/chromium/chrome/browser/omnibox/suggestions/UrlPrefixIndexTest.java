@@ -0,0 +1,246 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.omnibox.suggestions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.chromium.chrome.browser.omnibox.suggestions.UrlPrefixIndex.Entry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for the on-disk table of {@link UrlPrefixIndex}: writing and reading it back, prefix
+ * lookups across blocks, merging, and reading corrupted tables.
+ */
+public class UrlPrefixIndexTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<Entry> entries = createEntries(100);
+        // Titles may be missing or contain characters encoded on several bytes.
+        entries.get(3).title = null;
+        entries.get(4).title = "été 日本";
+        File file = writeTable(entries);
+
+        ByteBuffer table = UrlPrefixIndex.mapTable(file);
+        assertNotNull(table);
+        assertEntries(entries, findEntries(table, ""));
+    }
+
+    @Test
+    public void testPrefixLookup() throws IOException {
+        List<Entry> entries = createEntries(100);
+        ByteBuffer table = UrlPrefixIndex.mapTable(writeTable(entries));
+
+        String[] prefixes = {"a", "example.com/", "example.com/page1", "example.com/page5",
+                "example.com/page99", "example.com/page999", "m.", "z", "é"};
+        for (String prefix : prefixes) {
+            List<Entry> expected = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (entry.key.startsWith(prefix)) expected.add(entry);
+            }
+            assertEntries(expected, findEntries(table, prefix));
+        }
+    }
+
+    @Test
+    public void testEmptyTable() throws IOException {
+        ByteBuffer table = UrlPrefixIndex.mapTable(writeTable(new ArrayList<>()));
+        assertNotNull(table);
+        assertTrue(findEntries(table, "").isEmpty());
+        assertTrue(findEntries(table, "example").isEmpty());
+    }
+
+    @Test
+    public void testMergeEntries() throws IOException {
+        List<Entry> entries = createEntries(20);
+        ByteBuffer table = UrlPrefixIndex.mapTable(writeTable(entries));
+
+        Map<String, Entry> pendingEntries = new HashMap<>();
+        Entry updated = createEntry("example.com/page1", 10);
+        updated.title = null;
+        updated.relevance = -1;
+        updated.navigationCount = 2;
+        pendingEntries.put(updated.key, updated);
+        Entry added = createEntry("new.example.com/", 100);
+        pendingEntries.put(added.key, added);
+        Set<String> removedKeys = new HashSet<>();
+        removedKeys.add("example.com/page2");
+
+        List<Entry> merged = UrlPrefixIndex.mergeEntries(table, pendingEntries, removedKeys);
+        Map<String, Entry> mergedByKey = new HashMap<>();
+        for (Entry entry : merged) mergedByKey.put(entry.key, entry);
+        assertEquals(entries.size(), merged.size());
+        assertNull(mergedByKey.get("example.com/page2"));
+        assertEntry(added, mergedByKey.get(added.key));
+
+        // The missing fields of a pending entry keep their value from the table.
+        Entry original = entries.get(1);
+        Entry result = mergedByKey.get(updated.key);
+        assertEquals(updated.url, result.url);
+        assertEquals(original.title, result.title);
+        assertEquals(original.relevance, result.relevance);
+        assertEquals(original.navigationCount + 2, result.navigationCount);
+        assertEquals(Math.max(original.lastUsedMs, updated.lastUsedMs), result.lastUsedMs);
+    }
+
+    @Test
+    public void testUnknownFormat() throws IOException {
+        byte[] valid = readFile(writeTable(createEntries(40)));
+
+        // Bad magic, bad version, then an entry count inconsistent with the block count.
+        for (int offset : new int[] {0, 4, 8}) {
+            byte[] bytes = valid.clone();
+            bytes[offset] ^= 0x40;
+            assertNull(UrlPrefixIndex.mapTable(writeFile(bytes)));
+        }
+        // Header, then block offsets, cut short.
+        for (int length : new int[] {0, 15, 16 + 4}) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(valid, 0, bytes, 0, length);
+            assertNull(UrlPrefixIndex.mapTable(writeFile(bytes)));
+        }
+        assertNull(UrlPrefixIndex.mapTable(new File(mTemporaryFolder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void testCorruptedTable() throws IOException {
+        byte[] valid = readFile(writeTable(createEntries(40)));
+        Random random = new Random(0);
+        for (int i = 0; i < 500; i++) {
+            byte[] bytes;
+            if (i % 2 == 0) {
+                bytes = new byte[random.nextInt(valid.length)];
+                System.arraycopy(valid, 0, bytes, 0, bytes.length);
+            } else {
+                bytes = valid.clone();
+                for (int j = 0; j < 4; j++) bytes[random.nextInt(bytes.length)] ^= 0xff;
+            }
+            ByteBuffer table = UrlPrefixIndex.mapTable(writeFile(bytes));
+            if (table == null) continue;
+
+            // Lookups either succeed or fail with the exceptions the callers handle.
+            for (String prefix : new String[] {"", "example.com/page2", "z"}) {
+                try {
+                    findEntries(table, prefix);
+                } catch (IndexOutOfBoundsException | BufferUnderflowException expected) {
+                    // Expected.
+                }
+            }
+            // A corrupted table is dropped when merging.
+            Map<String, Entry> pendingEntries = new HashMap<>();
+            Entry entry = createEntry("new.example.com/", 0);
+            entry.lastUsedMs = Long.MAX_VALUE;
+            pendingEntries.put(entry.key, entry);
+            List<Entry> merged =
+                    UrlPrefixIndex.mergeEntries(table, pendingEntries, new HashSet<>());
+            assertTrue(merged.contains(entry));
+        }
+    }
+
+    private static List<Entry> createEntries(int count) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) entries.add(createEntry("example.com/page" + i, i));
+        entries.add(createEntry("a.example.com/", count));
+        entries.add(createEntry("m.example.com/", count + 1));
+        entries.add(createEntry("éxample.fr/", count + 2));
+        return entries;
+    }
+
+    private static Entry createEntry(String key, int index) {
+        Entry entry = new Entry(key);
+        entry.url = "https://www." + key;
+        entry.title = "Title " + index;
+        entry.relevance = 1000 + index;
+        entry.navigationCount = index % 3;
+        entry.lastUsedMs = 1000000L * index;
+        return entry;
+    }
+
+    private File writeTable(List<Entry> entries) throws IOException {
+        File file = new File(mTemporaryFolder.newFolder(), "index");
+        assertTrue(UrlPrefixIndex.writeTable(file, entries));
+        return file;
+    }
+
+    private File writeFile(byte[] bytes) throws IOException {
+        File file = new File(mTemporaryFolder.newFolder(), "index");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.write(bytes);
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    private static List<Entry> findEntries(ByteBuffer table, String prefix) {
+        List<Entry> entries = new ArrayList<>();
+        UrlPrefixIndex.findEntries(table, prefix.getBytes(StandardCharsets.UTF_8), entries);
+        return entries;
+    }
+
+    /** Checks that |actual| holds the entries of |expected|, in any order. */
+    private static void assertEntries(List<Entry> expected, List<Entry> actual) {
+        assertEquals(expected.size(), actual.size());
+        Map<String, Entry> actualByKey = new HashMap<>();
+        for (Entry entry : actual) actualByKey.put(entry.key, entry);
+        for (Entry entry : expected) assertEntry(entry, actualByKey.get(entry.key));
+        // Entries are found in key order.
+        List<String> keys = new ArrayList<>();
+        for (Entry entry : actual) keys.add(entry.key);
+        List<String> sortedKeys = new ArrayList<>(keys);
+        Collections.sort(sortedKeys, (lhs, rhs) -> compareUtf8(lhs, rhs));
+        assertEquals(sortedKeys, keys);
+    }
+
+    private static void assertEntry(Entry expected, Entry actual) {
+        assertNotNull("Missing entry " + expected.key, actual);
+        assertEquals(expected.key, actual.key);
+        assertEquals(expected.url, actual.url);
+        // Missing titles are read back as empty.
+        assertEquals(expected.title == null ? "" : expected.title, actual.title);
+        assertEquals(expected.relevance, actual.relevance);
+        assertEquals(expected.navigationCount, actual.navigationCount);
+        assertEquals(expected.lastUsedMs, actual.lastUsedMs);
+    }
+
+    private static int compareUtf8(String lhs, String rhs) {
+        byte[] lhsBytes = lhs.getBytes(StandardCharsets.UTF_8);
+        byte[] rhsBytes = rhs.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < Math.min(lhsBytes.length, rhsBytes.length); i++) {
+            int difference = (lhsBytes[i] & 0xff) - (rhsBytes[i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return lhsBytes.length - rhsBytes.length;
+    }
+}
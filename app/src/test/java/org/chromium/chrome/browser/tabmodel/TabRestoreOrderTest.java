@@ -0,0 +1,94 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.tabmodel;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import org.chromium.chrome.browser.tabmodel.TabPersistentStore.TabRestoreDetails;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for the order in which {@link TabPersistentStore} restores tabs. */
+public class TabRestoreOrderTest {
+    @Test
+    public void testNeighborsOfActiveTabFirst() {
+        TabRestoreDetails activeTab = createTab(3, 3, false, false);
+        List<TabRestoreDetails> tabs = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            if (i != 3) tabs.add(createTab(i, i, false, false));
+        }
+
+        TabPersistentStore.sortTabsToRestore(tabs, activeTab);
+        // Tabs at the same distance keep their original order.
+        assertArrayEquals(new int[] {2, 4, 1, 5, 0, 6}, getIds(tabs));
+    }
+
+    @Test
+    public void testActiveTabAtEndOfModel() {
+        TabRestoreDetails activeTab = createTab(4, 4, false, false);
+        List<TabRestoreDetails> tabs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) tabs.add(createTab(i, i, false, false));
+
+        TabPersistentStore.sortTabsToRestore(tabs, activeTab);
+        assertArrayEquals(new int[] {3, 2, 1, 0}, getIds(tabs));
+    }
+
+    @Test
+    public void testOtherModelAfterActiveModel() {
+        TabRestoreDetails activeTab = createTab(10, 1, true, false);
+        List<TabRestoreDetails> tabs = new ArrayList<>();
+        tabs.add(createTab(0, 0, false, false));
+        tabs.add(createTab(1, 1, false, false));
+        tabs.add(createTab(2, 2, false, false));
+        tabs.add(createTab(11, 0, true, false));
+        tabs.add(createTab(12, 2, true, false));
+        tabs.add(createTab(13, 3, true, false));
+
+        TabPersistentStore.sortTabsToRestore(tabs, activeTab);
+        // The normal tabs keep their order, even the one at the index of the active tab.
+        assertArrayEquals(new int[] {11, 12, 13, 0, 1, 2}, getIds(tabs));
+    }
+
+    @Test
+    public void testMergedAndUnknownTabsLast() {
+        TabRestoreDetails activeTab = createTab(0, 0, false, false);
+        List<TabRestoreDetails> tabs = new ArrayList<>();
+        tabs.add(createTab(5, 1, false, true));
+        tabs.add(createTab(6, 5, null, false));
+        tabs.add(createTab(1, 3, false, false));
+        tabs.add(createTab(2, 1, false, false));
+
+        TabPersistentStore.sortTabsToRestore(tabs, activeTab);
+        assertArrayEquals(new int[] {2, 1, 5, 6}, getIds(tabs));
+    }
+
+    @Test
+    public void testActiveTabOfUnknownModel() {
+        // A tab whose model is unknown is restored as a normal tab.
+        TabRestoreDetails activeTab = createTab(0, 2, null, false);
+        List<TabRestoreDetails> tabs = new ArrayList<>();
+        tabs.add(createTab(1, 0, true, false));
+        tabs.add(createTab(2, 0, false, false));
+        tabs.add(createTab(3, 1, false, false));
+
+        TabPersistentStore.sortTabsToRestore(tabs, activeTab);
+        assertArrayEquals(new int[] {3, 2, 1}, getIds(tabs));
+    }
+
+    private static TabRestoreDetails createTab(
+            int id, int index, Boolean isIncognito, boolean fromMerge) {
+        return new TabRestoreDetails(id, index, isIncognito, "https://example.com/" + id,
+                fromMerge);
+    }
+
+    private static int[] getIds(List<TabRestoreDetails> tabs) {
+        int[] ids = new int[tabs.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = tabs.get(i).id;
+        return ids;
+    }
+}
@@ -0,0 +1,303 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.tabmodel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/** Tests for {@link TabStateArchive}. */
+public class TabStateArchiveTest {
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mTemporaryFolder.newFolder();
+        mFile = new File(mDirectory, "tab_archive");
+    }
+
+    @After
+    public void tearDown() {
+        TabStateArchive.closeAll();
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertEquals(0, archive.getTabIds().length);
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        assertTrue(archive.writeRecord(2, createState(20, 2)));
+
+        assertStateEquals(createState(10, 1), archive.readRecord(1));
+        assertStateEquals(createState(20, 2), archive.readRecord(2));
+        assertNull(archive.readRecord(3));
+        int[] ids = archive.getTabIds();
+        Arrays.sort(ids);
+        assertArrayEquals(new int[] {1, 2}, ids);
+    }
+
+    @Test
+    public void testRecordFormat() throws IOException {
+        ByteBuffer[] state = createState(5, 7);
+        byte[] data = toArray(state);
+        assertTrue(TabStateArchive.get(mDirectory).writeRecord(42, state));
+
+        ByteBuffer file = readFile();
+        assertEquals(FILE_HEADER_SIZE + RECORD_HEADER_SIZE + 5, file.limit());
+        assertEquals(0x54534152, file.getInt());
+        assertEquals(1, file.getInt());
+        assertEquals(42, file.getInt());
+        assertEquals(5, file.getInt());
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        assertEquals((int) crc.getValue(), file.getInt());
+        byte[] written = new byte[5];
+        file.get(written);
+        assertArrayEquals(data, written);
+    }
+
+    @Test
+    public void testStateSplitAcrossBuffers() {
+        ByteBuffer[] state = new ByteBuffer[] {ByteBuffer.wrap(new byte[] {1, 2}),
+                ByteBuffer.allocateDirect(3), ByteBuffer.wrap(new byte[] {6})};
+        state[1].put(new byte[] {3, 4, 5}).flip();
+        assertTrue(TabStateArchive.get(mDirectory).writeRecord(1, state));
+
+        TabStateArchive.closeAll();
+        ByteBuffer record = TabStateArchive.get(mDirectory).readRecord(1);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, toArray(record));
+    }
+
+    @Test
+    public void testWriteSupersedesPreviousState() {
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        assertTrue(archive.writeRecord(1, createState(15, 2)));
+        assertStateEquals(createState(15, 2), archive.readRecord(1));
+        // Both records are in the log.
+        assertEquals(FILE_HEADER_SIZE + 2 * RECORD_HEADER_SIZE + 25, mFile.length());
+
+        TabStateArchive.closeAll();
+        archive = TabStateArchive.get(mDirectory);
+        assertArrayEquals(new int[] {1}, archive.getTabIds());
+        assertStateEquals(createState(15, 2), archive.readRecord(1));
+    }
+
+    @Test
+    public void testWriteSameStateDoesNotAppend() {
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        long length = mFile.length();
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        assertEquals(length, mFile.length());
+    }
+
+    @Test
+    public void testDeleteAppendsTombstone() {
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        assertTrue(archive.writeRecord(2, createState(10, 2)));
+        long length = mFile.length();
+        archive.delete(1);
+        assertFalse(archive.contains(1));
+        assertEquals(length + RECORD_HEADER_SIZE, mFile.length());
+
+        // Deleting a missing state writes nothing.
+        archive.delete(1);
+        assertEquals(length + RECORD_HEADER_SIZE, mFile.length());
+
+        TabStateArchive.closeAll();
+        archive = TabStateArchive.get(mDirectory);
+        assertFalse(archive.contains(1));
+        assertNull(archive.readRecord(1));
+        assertStateEquals(createState(10, 2), archive.readRecord(2));
+    }
+
+    @Test
+    public void testTruncatedTailIsDropped() throws IOException {
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        assertTrue(archive.writeRecord(2, createState(10, 2)));
+        TabStateArchive.closeAll();
+        truncateFile(mFile.length() - 3);
+
+        archive = TabStateArchive.get(mDirectory);
+        assertArrayEquals(new int[] {1}, archive.getTabIds());
+        assertStateEquals(createState(10, 1), archive.readRecord(1));
+
+        // The next append overwrites the torn record.
+        assertTrue(archive.writeRecord(3, createState(4, 3)));
+        assertEquals(FILE_HEADER_SIZE + 2 * RECORD_HEADER_SIZE + 14, mFile.length());
+        TabStateArchive.closeAll();
+        archive = TabStateArchive.get(mDirectory);
+        assertFalse(archive.contains(2));
+        assertStateEquals(createState(10, 1), archive.readRecord(1));
+        assertStateEquals(createState(4, 3), archive.readRecord(3));
+    }
+
+    @Test
+    public void testTruncatedRecordHeaderIsDropped() throws IOException {
+        assertTrue(TabStateArchive.get(mDirectory).writeRecord(1, createState(10, 1)));
+        TabStateArchive.closeAll();
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(file.length());
+            file.write(new byte[RECORD_HEADER_SIZE - 1]);
+        }
+
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertArrayEquals(new int[] {1}, archive.getTabIds());
+        assertTrue(archive.writeRecord(2, createState(10, 2)));
+        assertEquals(FILE_HEADER_SIZE + 2 * RECORD_HEADER_SIZE + 20, mFile.length());
+    }
+
+    @Test
+    public void testCorruptedRecordEndsLog() throws IOException {
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        assertTrue(archive.writeRecord(2, createState(10, 2)));
+        assertTrue(archive.writeRecord(3, createState(10, 3)));
+        TabStateArchive.closeAll();
+        // Flip a byte of the state of the second record.
+        long offset = FILE_HEADER_SIZE + (RECORD_HEADER_SIZE + 10) + RECORD_HEADER_SIZE + 4;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(offset);
+            int value = file.read();
+            file.seek(offset);
+            file.write(value ^ 0x01);
+        }
+
+        archive = TabStateArchive.get(mDirectory);
+        assertArrayEquals(new int[] {1}, archive.getTabIds());
+        assertNull(archive.readRecord(2));
+        assertNull(archive.readRecord(3));
+    }
+
+    @Test
+    public void testUnreadableArchiveIsDiscarded() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.write(new byte[64]);
+        }
+
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertEquals(0, archive.getTabIds().length);
+        assertFalse(mFile.exists());
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        TabStateArchive.closeAll();
+        assertStateEquals(createState(10, 1), TabStateArchive.get(mDirectory).readRecord(1));
+    }
+
+    @Test
+    public void testCompaction() {
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        int stateSize = 64 * 1024;
+        assertTrue(archive.writeRecord(2, createState(100, 2)));
+        long previousLength = mFile.length();
+        int writes = 0;
+        // Superseded states are only reclaimed once the archive is larger than 1 MiB.
+        while (mFile.length() >= previousLength) {
+            previousLength = mFile.length();
+            assertTrue(archive.writeRecord(1, createState(stateSize, writes)));
+            writes++;
+            assertTrue(writes <= 1024 * 1024 / stateSize + 1);
+        }
+        assertTrue(previousLength + RECORD_HEADER_SIZE + stateSize >= 1024 * 1024);
+
+        long compactedLength = FILE_HEADER_SIZE + 2 * RECORD_HEADER_SIZE + stateSize + 100;
+        assertEquals(compactedLength, mFile.length());
+        assertFalse(new File(mDirectory, "tab_archive.tmp").exists());
+        assertStateEquals(createState(stateSize, writes - 1), archive.readRecord(1));
+        assertStateEquals(createState(100, 2), archive.readRecord(2));
+
+        // Appends continue after the compacted records.
+        assertTrue(archive.writeRecord(3, createState(10, 3)));
+        assertEquals(compactedLength + RECORD_HEADER_SIZE + 10, mFile.length());
+        TabStateArchive.closeAll();
+        archive = TabStateArchive.get(mDirectory);
+        assertStateEquals(createState(stateSize, writes - 1), archive.readRecord(1));
+        assertStateEquals(createState(100, 2), archive.readRecord(2));
+        assertStateEquals(createState(10, 3), archive.readRecord(3));
+    }
+
+    @Test
+    public void testClosedArchiveCannotBeUsed() {
+        TabStateArchive archive = TabStateArchive.get(mDirectory);
+        assertTrue(archive.writeRecord(1, createState(10, 1)));
+        TabStateArchive.closeAll();
+
+        assertFalse(archive.writeRecord(2, createState(10, 2)));
+        assertNull(archive.readRecord(1));
+        assertFalse(archive.contains(1));
+        assertEquals(0, archive.getTabIds().length);
+
+        TabStateArchive reopened = TabStateArchive.get(mDirectory);
+        assertNotSame(archive, reopened);
+        assertStateEquals(createState(10, 1), reopened.readRecord(1));
+        assertFalse(reopened.contains(2));
+    }
+
+    private static ByteBuffer[] createState(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) (seed * 31 + i);
+        int split = size / 2;
+        return new ByteBuffer[] {ByteBuffer.wrap(data, 0, split).slice(),
+                ByteBuffer.wrap(data, split, size - split).slice()};
+    }
+
+    private static byte[] toArray(ByteBuffer... buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) size += buffer.remaining();
+        byte[] array = new byte[size];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int length = buffer.remaining();
+            buffer.duplicate().get(array, offset, length);
+            offset += length;
+        }
+        return array;
+    }
+
+    private static void assertStateEquals(ByteBuffer[] expected, ByteBuffer actual) {
+        assertNotNull(actual);
+        assertArrayEquals(toArray(expected), toArray(actual));
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private void truncateFile(long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.widget;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.v4.util.Pair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.chromium.base.ThreadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/** Tests for {@link ThumbnailBlobStore}. */
+public class ThumbnailBlobStoreTest {
+    private static final int BLOB_HEADER_SIZE = 16;
+
+    private static final Pair<String, Integer> KEY_1 = Pair.create("item1", 100);
+    private static final Pair<String, Integer> KEY_2 = Pair.create("item2", 100);
+    private static final Pair<String, Integer> KEY_3 = Pair.create("item3", 100);
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /** Tasks posted by the store, run by {@link #runTasks()}. */
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+
+    private File mDirectory;
+    private File mBlobFile;
+
+    @Before
+    public void setUp() throws IOException {
+        ThreadUtils.setThreadAssertsDisabledForTesting(true);
+        mDirectory = mTemporaryFolder.newFolder();
+        mBlobFile = new File(mDirectory, "thumbnails.blob");
+    }
+
+    @After
+    public void tearDown() {
+        ThreadUtils.setThreadAssertsDisabledForTesting(false);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        ThumbnailBlobStore store = createStore();
+        assertTrue(store.load().isEmpty());
+        assertTrue(store.put(KEY_1, createThumbnail(10, 1)));
+        assertTrue(store.put(KEY_2, createThumbnail(20, 2)));
+
+        assertTrue(store.contains(KEY_1));
+        assertFalse(store.contains(KEY_3));
+        assertArrayEquals(createThumbnail(10, 1), store.get(KEY_1));
+        assertArrayEquals(createThumbnail(20, 2), store.get(KEY_2));
+        assertNull(store.get(KEY_3));
+        assertEquals(30, store.getSizeBytes());
+        assertEquals(BLOB_HEADER_SIZE + 30, mBlobFile.length());
+    }
+
+    @Test
+    public void testReload() {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        store.put(KEY_1, createThumbnail(10, 1));
+        store.put(KEY_2, createThumbnail(20, 2));
+        runTasks();
+
+        store = createStore();
+        assertEquals(Arrays.asList(KEY_1, KEY_2), store.load());
+        assertEquals(30, store.getSizeBytes());
+        assertArrayEquals(createThumbnail(10, 1), store.get(KEY_1));
+        assertArrayEquals(createThumbnail(20, 2), store.get(KEY_2));
+    }
+
+    @Test
+    public void testReloadKeepsAccessOrder() {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        store.put(KEY_1, createThumbnail(10, 1));
+        store.put(KEY_2, createThumbnail(10, 2));
+        store.put(KEY_3, createThumbnail(10, 3));
+        store.get(KEY_1);
+        runTasks();
+
+        assertEquals(Arrays.asList(KEY_2, KEY_3, KEY_1), createStore().load());
+    }
+
+    @Test
+    public void testReplaceThumbnail() {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        store.put(KEY_1, createThumbnail(10, 1));
+        store.put(KEY_1, createThumbnail(5, 2));
+        assertArrayEquals(createThumbnail(5, 2), store.get(KEY_1));
+        assertEquals(5, store.getSizeBytes());
+    }
+
+    @Test
+    public void testIdenticalThumbnailsStoredOnce() {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        store.put(KEY_1, createThumbnail(10, 1));
+        store.put(KEY_2, createThumbnail(10, 1));
+        assertEquals(BLOB_HEADER_SIZE + 10, mBlobFile.length());
+        assertEquals(10, store.getSizeBytes());
+
+        store.remove(KEY_1);
+        assertEquals(10, store.getSizeBytes());
+        assertArrayEquals(createThumbnail(10, 1), store.get(KEY_2));
+        store.remove(KEY_2);
+        assertEquals(0, store.getSizeBytes());
+
+        // Reloading keeps sharing the thumbnail.
+        store.put(KEY_1, createThumbnail(10, 1));
+        store.put(KEY_2, createThumbnail(10, 1));
+        runTasks();
+        store = createStore();
+        store.load();
+        assertEquals(10, store.getSizeBytes());
+        store.remove(KEY_1);
+        assertArrayEquals(createThumbnail(10, 1), store.get(KEY_2));
+    }
+
+    @Test
+    public void testCorruptedThumbnailIsDropped() throws IOException {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        store.put(KEY_1, createThumbnail(10, 1));
+        store.put(KEY_2, createThumbnail(10, 2));
+        runTasks();
+        flipByte(mBlobFile, BLOB_HEADER_SIZE + 3);
+
+        store = createStore();
+        store.load();
+        assertNull(store.get(KEY_1));
+        assertFalse(store.contains(KEY_1));
+        assertEquals(10, store.getSizeBytes());
+        assertArrayEquals(createThumbnail(10, 2), store.get(KEY_2));
+    }
+
+    @Test
+    public void testThumbnailsMissingFromBlobAreDropped() throws IOException {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        store.put(KEY_1, createThumbnail(10, 1));
+        store.put(KEY_2, createThumbnail(10, 2));
+        runTasks();
+        try (RandomAccessFile file = new RandomAccessFile(mBlobFile, "rw")) {
+            file.setLength(BLOB_HEADER_SIZE + 15);
+        }
+
+        store = createStore();
+        assertEquals(Arrays.asList(KEY_1), store.load());
+        assertEquals(10, store.getSizeBytes());
+        assertArrayEquals(createThumbnail(10, 1), store.get(KEY_1));
+    }
+
+    @Test
+    public void testIndexOfOtherBlobIsIgnored() throws IOException {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        store.put(KEY_1, createThumbnail(10, 1));
+        runTasks();
+        // Change the generation of the blob.
+        flipByte(mBlobFile, 8);
+
+        store = createStore();
+        assertTrue(store.load().isEmpty());
+        assertEquals(0, store.getSizeBytes());
+        assertEquals(BLOB_HEADER_SIZE, mBlobFile.length());
+
+        // The new empty store is usable, and its index matches the new blob.
+        store.put(KEY_2, createThumbnail(10, 2));
+        runTasks();
+        assertEquals(Arrays.asList(KEY_2), createStore().load());
+    }
+
+    @Test
+    public void testCompaction() {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        int size = 64 * 1024;
+        List<Pair<String, Integer>> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            keys.add(Pair.create("item" + i, 100));
+            store.put(keys.get(i), createThumbnail(size, i));
+        }
+        runTasks();
+        assertEquals(BLOB_HEADER_SIZE + 5 * size, mBlobFile.length());
+
+        for (int i = 0; i < 4; i++) store.remove(keys.get(i));
+        runTasks();
+        assertEquals(BLOB_HEADER_SIZE + size, mBlobFile.length());
+        assertFalse(new File(mDirectory, "thumbnails.blob.tmp").exists());
+        assertEquals(size, store.getSizeBytes());
+        assertArrayEquals(createThumbnail(size, 4), store.get(keys.get(4)));
+
+        // Thumbnails are appended to the compacted blob, and the index describes it.
+        store.put(KEY_1, createThumbnail(10, 1));
+        runTasks();
+        store = createStore();
+        assertEquals(Arrays.asList(keys.get(4), KEY_1), store.load());
+        assertArrayEquals(createThumbnail(size, 4), store.get(keys.get(4)));
+        assertArrayEquals(createThumbnail(10, 1), store.get(KEY_1));
+    }
+
+    @Test
+    public void testNoCompactionOfSmallBlob() {
+        ThumbnailBlobStore store = createStore();
+        store.load();
+        store.put(KEY_1, createThumbnail(1000, 1));
+        store.put(KEY_2, createThumbnail(1000, 2));
+        store.remove(KEY_1);
+        runTasks();
+        assertEquals(BLOB_HEADER_SIZE + 2000, mBlobFile.length());
+    }
+
+    @Test
+    public void testLegacyFilesDeleted() throws IOException {
+        File legacyFile = new File(mDirectory, "abc.entry");
+        File legacyBackup = new File(mDirectory, "def.entry.bak");
+        File otherFile = new File(mDirectory, "other");
+        assertTrue(legacyFile.createNewFile());
+        assertTrue(legacyBackup.createNewFile());
+        assertTrue(otherFile.createNewFile());
+
+        assertTrue(createStore().load().isEmpty());
+        assertFalse(legacyFile.exists());
+        assertFalse(legacyBackup.exists());
+        assertTrue(otherFile.exists());
+    }
+
+    private ThumbnailBlobStore createStore() {
+        return new ThumbnailBlobStore(mDirectory, mTasks::add);
+    }
+
+    private void runTasks() {
+        while (!mTasks.isEmpty()) mTasks.remove().run();
+    }
+
+    private static byte[] createThumbnail(int size, int seed) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) bytes[i] = (byte) (seed * 31 + i * 7);
+        return bytes;
+    }
+
+    private static void flipByte(File file, long offset) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(offset);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(value ^ 0x01);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.mojo.bindings;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import org.chromium.mojo.system.Handle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Tests for the decoding of strings and arrays of bytes by {@link Decoder}, from messages built by
+ * hand.
+ */
+public class DecoderTest {
+    private static final Charset UTF8 = Charset.forName("utf8");
+
+    /** The size of a struct holding two pointers. */
+    private static final int STRUCT_SIZE = DataHeader.HEADER_SIZE + 2 * BindingsHelper.POINTER_SIZE;
+
+    @Test
+    public void testReadString() {
+        Decoder decoder = createDecoder(false, encode("hello"), encode("world!"));
+        decoder.readDataHeader();
+        assertEquals("hello", decoder.readString(8, false));
+        assertEquals("world!", decoder.readString(16, false));
+    }
+
+    @Test
+    public void testReadStringFromDirectBuffer() {
+        Decoder decoder = createDecoder(true, encode("hello"), encode("world!"));
+        decoder.readDataHeader();
+        assertEquals("hello", decoder.readString(8, false));
+        assertEquals("world!", decoder.readString(16, false));
+    }
+
+    @Test
+    public void testReadMultiByteString() {
+        String value = "\u00e9t\u00e9 \u6771\u4eac \ud83d\ude00";
+        for (boolean direct : new boolean[] {false, true}) {
+            Decoder decoder = createDecoder(direct, encode(value), encode(""));
+            decoder.readDataHeader();
+            assertEquals(value, decoder.readString(8, false));
+            assertEquals("", decoder.readString(16, false));
+        }
+    }
+
+    @Test
+    public void testReadStringDoesNotModifyMessage() {
+        for (boolean direct : new boolean[] {false, true}) {
+            Message message = createMessage(direct, encode("hello"), encode("world!"));
+            ByteBuffer data = message.getData();
+            byte[] before = getContent(data);
+            Decoder decoder = new Decoder(message);
+            decoder.readDataHeader();
+            decoder.readString(8, false);
+            decoder.readString(16, false);
+            assertEquals(0, data.position());
+            assertEquals(before.length, data.limit());
+            assertArrayEquals(before, getContent(data));
+        }
+    }
+
+    @Test
+    public void testReadNullString() {
+        Decoder decoder = createDecoder(false, null, encode("world!"));
+        decoder.readDataHeader();
+        assertNull(decoder.readString(8, true));
+        assertEquals("world!", decoder.readString(16, true));
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testReadNullStringForNonNullableString() {
+        Decoder decoder = createDecoder(false, null, encode("world!"));
+        decoder.readDataHeader();
+        decoder.readString(8, false);
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testReadStringWithIncorrectHeader() {
+        Message message = createMessage(false, encode("hello"), encode("world!"));
+        // Claim more elements than the size of the array allows.
+        message.getData().putInt(STRUCT_SIZE + 4, 6);
+        Decoder decoder = new Decoder(message);
+        decoder.readDataHeader();
+        decoder.readString(8, false);
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testReadStringOutOfRange() {
+        Message message = createMessage(false, encode("hello"), encode("world!"));
+        // Make the second string extend past the end of the message.
+        int secondString = STRUCT_SIZE + align(DataHeader.HEADER_SIZE + 5);
+        message.getData().putInt(secondString, DataHeader.HEADER_SIZE + 100);
+        message.getData().putInt(secondString + 4, 100);
+        Decoder decoder = new Decoder(message);
+        decoder.readDataHeader();
+        assertEquals("hello", decoder.readString(8, false));
+        decoder.readString(16, false);
+    }
+
+    @Test
+    public void testReadBytes() {
+        byte[] bytes = new byte[] {0, 1, -1, 127, -128};
+        Decoder decoder = createDecoder(true, bytes, null);
+        decoder.readDataHeader();
+        assertArrayEquals(bytes, decoder.readBytes(8, 0, BindingsHelper.UNSPECIFIED_ARRAY_LENGTH));
+        assertNull(decoder.readBytes(
+                16, BindingsHelper.ARRAY_NULLABLE, BindingsHelper.UNSPECIFIED_ARRAY_LENGTH));
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testReadBytesWithUnexpectedLength() {
+        Decoder decoder = createDecoder(false, new byte[] {1, 2, 3}, null);
+        decoder.readDataHeader();
+        decoder.readBytes(8, 0, 4);
+    }
+
+    private static byte[] encode(String value) {
+        return value.getBytes(UTF8);
+    }
+
+    private static Decoder createDecoder(boolean direct, byte[] first, byte[] second) {
+        return new Decoder(createMessage(direct, first, second));
+    }
+
+    /**
+     * Builds a message holding a struct with two pointers to arrays of bytes, followed by the
+     * arrays. A null array is encoded as a null pointer.
+     */
+    private static Message createMessage(boolean direct, byte[] first, byte[] second) {
+        int size = STRUCT_SIZE + arraySize(first) + arraySize(second);
+        ByteBuffer data = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(0, STRUCT_SIZE);
+        data.putInt(4, 0);
+        int position = STRUCT_SIZE;
+        position = putArray(data, 8, position, first);
+        putArray(data, 16, position, second);
+        return new Message(data, new ArrayList<Handle>());
+    }
+
+    /**
+     * Writes a pointer at |pointerOffset| to the array written at |position|, and returns the
+     * position following the array.
+     */
+    private static int putArray(ByteBuffer data, int pointerOffset, int position, byte[] array) {
+        if (array == null) {
+            data.putLong(pointerOffset, 0);
+            return position;
+        }
+        // Pointers are relative to their own position.
+        data.putLong(pointerOffset, position - pointerOffset);
+        data.putInt(position, DataHeader.HEADER_SIZE + array.length);
+        data.putInt(position + 4, array.length);
+        for (int i = 0; i < array.length; i++) {
+            data.put(position + DataHeader.HEADER_SIZE + i, array[i]);
+        }
+        return position + arraySize(array);
+    }
+
+    private static int arraySize(byte[] array) {
+        return array == null ? 0 : align(DataHeader.HEADER_SIZE + array.length);
+    }
+
+    private static int align(int size) {
+        return (size + BindingsHelper.ALIGNMENT - 1) & ~(BindingsHelper.ALIGNMENT - 1);
+    }
+
+    private static byte[] getContent(ByteBuffer data) {
+        byte[] content = new byte[data.limit()];
+        for (int i = 0; i < content.length; i++) content[i] = data.get(i);
+        return content;
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.mojo.bindings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the size hints of {@link EncoderBufferPool}.
+ */
+public class EncoderBufferPoolTest {
+    private static class FirstStruct {}
+    private static class SecondStruct {}
+
+    @Test
+    public void testSizeHintPerClass() {
+        AtomicInteger sizeHint = EncoderBufferPool.getSizeHint(FirstStruct.class);
+        assertSame(sizeHint, EncoderBufferPool.getSizeHint(FirstStruct.class));
+        assertNotSame(sizeHint, EncoderBufferPool.getSizeHint(SecondStruct.class));
+    }
+
+    @Test
+    public void testInitialSize() {
+        AtomicInteger sizeHint = new AtomicInteger();
+        // Without any encoded size, the default size is used.
+        assertEquals(24, EncoderBufferPool.getInitialSize(sizeHint, 24));
+
+        EncoderBufferPool.recordEncodedSize(sizeHint, 100);
+        assertEquals(104, EncoderBufferPool.getInitialSize(sizeHint, 24));
+        assertEquals(200, EncoderBufferPool.getInitialSize(sizeHint, 200));
+    }
+
+    @Test
+    public void testSizeHintRisesAtOnce() {
+        AtomicInteger sizeHint = new AtomicInteger();
+        EncoderBufferPool.recordEncodedSize(sizeHint, 100);
+        EncoderBufferPool.recordEncodedSize(sizeHint, 1000);
+        assertEquals(1000, sizeHint.get());
+    }
+
+    @Test
+    public void testSizeHintDecays() {
+        AtomicInteger sizeHint = new AtomicInteger();
+        EncoderBufferPool.recordEncodedSize(sizeHint, 1000);
+        EncoderBufferPool.recordEncodedSize(sizeHint, 200);
+        // The hint moves an eighth of the way down.
+        assertEquals(900, sizeHint.get());
+
+        for (int i = 0; i < 100; i++) EncoderBufferPool.recordEncodedSize(sizeHint, 200);
+        assertEquals(200, sizeHint.get());
+    }
+
+    @Test
+    public void testSizeHintIsCapped() {
+        AtomicInteger sizeHint = new AtomicInteger();
+        EncoderBufferPool.recordEncodedSize(sizeHint, 10 * 1024 * 1024);
+        assertEquals(64 * 1024, sizeHint.get());
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.mojo.bindings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ResponderMap}, including the responses a peer may send with request ids that
+ * were never issued.
+ */
+public class ResponderMapTest {
+    private static class TestResponder implements MessageReceiver {
+        @Override
+        public boolean accept(Message message) {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        ResponderMap map = new ResponderMap();
+        MessageReceiver responder = new TestResponder();
+        map.put(1, responder, 42);
+
+        assertTrue(map.containsKey(1));
+        assertEquals(42, map.getSendTimeNanos(1));
+        assertSame(responder, map.remove(1));
+        assertFalse(map.containsKey(1));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testUnknownRequestId() {
+        ResponderMap map = new ResponderMap();
+        map.put(1, new TestResponder(), 0);
+
+        assertFalse(map.containsKey(2));
+        assertNull(map.remove(2));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testRequestIdZero() {
+        ResponderMap map = new ResponderMap();
+        // Empty slots hold 0, which must not be reported as a registered request id.
+        assertFalse(map.containsKey(0));
+        assertNull(map.remove(0));
+
+        map.put(1, new TestResponder(), 0);
+        assertFalse(map.containsKey(0));
+        assertNull(map.remove(0));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testManyRequests() {
+        ResponderMap map = new ResponderMap();
+        MessageReceiver[] responders = new MessageReceiver[1000];
+        for (int i = 1; i < responders.length; ++i) {
+            responders[i] = new TestResponder();
+            map.put(i, responders[i], i);
+        }
+        // Removing every other entry exercises the backward shift deletion.
+        for (int i = 1; i < responders.length; i += 2) {
+            assertSame(responders[i], map.remove(i));
+        }
+        for (int i = 1; i < responders.length; ++i) {
+            assertEquals(i % 2 == 0, map.containsKey(i));
+        }
+        assertFalse(map.containsKey(0));
+        assertEquals(responders.length / 2 - 1, map.size());
+    }
+}
@@ -0,0 +1,239 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.ui.modelutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.chromium.ui.modelutil.PropertyModel.WritableBooleanPropertyKey;
+import org.chromium.ui.modelutil.PropertyModel.WritableFloatPropertyKey;
+import org.chromium.ui.modelutil.PropertyModel.WritableIntPropertyKey;
+import org.chromium.ui.modelutil.PropertyModel.WritableObjectPropertyKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/** Tests for {@link PropertyModel}. */
+public class PropertyModelTest {
+    private static final WritableBooleanPropertyKey BOOLEAN_KEY =
+            new WritableBooleanPropertyKey("boolean");
+    private static final WritableFloatPropertyKey FLOAT_KEY = new WritableFloatPropertyKey("float");
+    private static final WritableIntPropertyKey INT_KEY = new WritableIntPropertyKey("int");
+    private static final WritableObjectPropertyKey<String> OBJECT_KEY =
+            new WritableObjectPropertyKey<>("object");
+    private static final WritableObjectPropertyKey<String> SKIP_EQUALITY_KEY =
+            new WritableObjectPropertyKey<>(true, "skipEquality");
+    private static final WritableIntPropertyKey OTHER_INT_KEY =
+            new WritableIntPropertyKey("otherInt");
+
+    private static final PropertyKey[] ALL_KEYS =
+            new PropertyKey[] {BOOLEAN_KEY, FLOAT_KEY, INT_KEY, OBJECT_KEY, SKIP_EQUALITY_KEY};
+
+    private final List<PropertyKey> mChangedKeys = new ArrayList<>();
+
+    private PropertyModel mModel;
+
+    @Before
+    public void setUp() {
+        mModel = new PropertyModel(ALL_KEYS);
+        mModel.addObserver((source, key) -> mChangedKeys.add(key));
+    }
+
+    @Test
+    public void testDefaultValues() {
+        assertFalse(mModel.get(BOOLEAN_KEY));
+        assertEquals(0f, mModel.get(FLOAT_KEY), 0f);
+        assertEquals(0, mModel.get(INT_KEY));
+        assertNull(mModel.get(OBJECT_KEY));
+        assertTrue(mModel.getAllSetProperties().isEmpty());
+        assertEquals(Arrays.asList(ALL_KEYS), new ArrayList<>(mModel.getAllProperties()));
+    }
+
+    @Test
+    public void testSetAndGet() {
+        mModel.set(BOOLEAN_KEY, true);
+        mModel.set(FLOAT_KEY, 1.5f);
+        mModel.set(INT_KEY, 42);
+        mModel.set(OBJECT_KEY, "value");
+
+        assertTrue(mModel.get(BOOLEAN_KEY));
+        assertEquals(1.5f, mModel.get(FLOAT_KEY), 0f);
+        assertEquals(42, mModel.get(INT_KEY));
+        assertEquals("value", mModel.get(OBJECT_KEY));
+        assertEquals(keyList(BOOLEAN_KEY, FLOAT_KEY, INT_KEY, OBJECT_KEY), mChangedKeys);
+    }
+
+    @Test
+    public void testFirstSetNotifiesDefaultValue() {
+        mModel.set(BOOLEAN_KEY, false);
+        mModel.set(FLOAT_KEY, 0f);
+        mModel.set(INT_KEY, 0);
+        mModel.set(OBJECT_KEY, null);
+
+        assertEquals(keyList(BOOLEAN_KEY, FLOAT_KEY, INT_KEY, OBJECT_KEY), mChangedKeys);
+        assertEquals(new HashSet<>(mChangedKeys), new HashSet<>(mModel.getAllSetProperties()));
+    }
+
+    @Test
+    public void testSameValueNotNotified() {
+        mModel.set(INT_KEY, 1);
+        mModel.set(INT_KEY, 1);
+        mModel.set(OBJECT_KEY, "value");
+        mModel.set(OBJECT_KEY, new String("value"));
+        mModel.set(BOOLEAN_KEY, true);
+        mModel.set(BOOLEAN_KEY, true);
+        assertEquals(keyList(INT_KEY, OBJECT_KEY, BOOLEAN_KEY), mChangedKeys);
+
+        mModel.set(INT_KEY, 2);
+        assertEquals(INT_KEY, mChangedKeys.get(3));
+    }
+
+    @Test
+    public void testSkipEqualityAlwaysNotifies() {
+        mModel.set(SKIP_EQUALITY_KEY, "value");
+        mModel.set(SKIP_EQUALITY_KEY, "value");
+        assertEquals(keyList(SKIP_EQUALITY_KEY, SKIP_EQUALITY_KEY), mChangedKeys);
+    }
+
+    @Test
+    public void testModelsWithSameKeysAreIndependent() {
+        PropertyModel otherModel = new PropertyModel(ALL_KEYS);
+        mModel.set(INT_KEY, 1);
+        otherModel.set(INT_KEY, 2);
+        assertEquals(1, mModel.get(INT_KEY));
+        assertEquals(2, otherModel.get(INT_KEY));
+        assertFalse(otherModel.getAllSetProperties().contains(BOOLEAN_KEY));
+    }
+
+    @Test
+    public void testKeysSharingValueArray() {
+        // Booleans and ints are stored in the same array.
+        PropertyModel model = new PropertyModel(INT_KEY, BOOLEAN_KEY, OTHER_INT_KEY);
+        model.set(BOOLEAN_KEY, true);
+        model.set(INT_KEY, 7);
+        model.set(OTHER_INT_KEY, 9);
+        assertTrue(model.get(BOOLEAN_KEY));
+        assertEquals(7, model.get(INT_KEY));
+        assertEquals(9, model.get(OTHER_INT_KEY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetInvalidKey() {
+        mModel.get(OTHER_INT_KEY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetInvalidKey() {
+        mModel.set(OTHER_INT_KEY, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateKey() {
+        new PropertyModel(INT_KEY, FLOAT_KEY, INT_KEY);
+    }
+
+    @Test
+    public void testManyKeys() {
+        WritableIntPropertyKey[] keys = new WritableIntPropertyKey[130];
+        for (int i = 0; i < keys.length; i++) keys[i] = new WritableIntPropertyKey();
+        PropertyModel model = new PropertyModel(keys);
+        int[] setSlots = new int[] {0, 63, 64, 127, 129};
+        for (int slot : setSlots) model.set(keys[slot], slot + 1);
+
+        List<PropertyKey> expected = new ArrayList<>();
+        for (int slot : setSlots) {
+            assertEquals(slot + 1, model.get(keys[slot]));
+            expected.add(keys[slot]);
+        }
+        assertEquals(0, model.get(keys[65]));
+        assertEquals(expected, new ArrayList<>(model.getAllSetProperties()));
+    }
+
+    @Test
+    public void testBuilderDoesNotNotify() {
+        PropertyModel model = new PropertyModel.Builder(ALL_KEYS)
+                                      .with(INT_KEY, 3)
+                                      .with(OBJECT_KEY, "value")
+                                      .build();
+        model.addObserver((source, key) -> mChangedKeys.add(key));
+        assertEquals(3, model.get(INT_KEY));
+        assertEquals("value", model.get(OBJECT_KEY));
+        assertEquals(new HashSet<>(keyList(INT_KEY, OBJECT_KEY)),
+                new HashSet<>(model.getAllSetProperties()));
+
+        // The values set by the builder count as set.
+        model.set(INT_KEY, 3);
+        assertTrue(mChangedKeys.isEmpty());
+    }
+
+    @Test
+    public void testBatchEditNotifiesOncePerKeyInKeyOrder() {
+        mModel.beginBatchEdit();
+        mModel.set(OBJECT_KEY, "a");
+        mModel.set(INT_KEY, 1);
+        mModel.set(OBJECT_KEY, "b");
+        mModel.set(BOOLEAN_KEY, true);
+        assertTrue(mChangedKeys.isEmpty());
+        assertEquals("b", mModel.get(OBJECT_KEY));
+
+        mModel.endBatchEdit();
+        assertEquals(keyList(BOOLEAN_KEY, INT_KEY, OBJECT_KEY), mChangedKeys);
+
+        // Notifications are immediate again after the batch edit.
+        mModel.set(FLOAT_KEY, 1f);
+        assertEquals(FLOAT_KEY, mChangedKeys.get(3));
+    }
+
+    @Test
+    public void testNestedBatchEdits() {
+        mModel.beginBatchEdit();
+        mModel.set(INT_KEY, 1);
+        mModel.beginBatchEdit();
+        mModel.set(FLOAT_KEY, 1f);
+        mModel.endBatchEdit();
+        assertTrue(mChangedKeys.isEmpty());
+
+        mModel.endBatchEdit();
+        assertEquals(keyList(FLOAT_KEY, INT_KEY), mChangedKeys);
+    }
+
+    @Test
+    public void testBatchEditWithoutChange() {
+        mModel.set(INT_KEY, 1);
+        mChangedKeys.clear();
+        mModel.beginBatchEdit();
+        mModel.set(INT_KEY, 1);
+        mModel.endBatchEdit();
+        assertTrue(mChangedKeys.isEmpty());
+    }
+
+    @Test
+    public void testBatchEditStartedByObserver() {
+        mModel.addObserver((source, key) -> {
+            if (key != BOOLEAN_KEY) return;
+            // Changes made while notifying the batch are notified as well.
+            mModel.beginBatchEdit();
+            mModel.set(OBJECT_KEY, "c");
+            mModel.endBatchEdit();
+        });
+
+        mModel.beginBatchEdit();
+        mModel.set(BOOLEAN_KEY, true);
+        mModel.set(INT_KEY, 1);
+        mModel.endBatchEdit();
+        assertEquals(keyList(BOOLEAN_KEY, INT_KEY, OBJECT_KEY), mChangedKeys);
+    }
+
+    private static List<PropertyKey> keyList(PropertyKey... keys) {
+        return Arrays.asList(keys);
+    }
+}